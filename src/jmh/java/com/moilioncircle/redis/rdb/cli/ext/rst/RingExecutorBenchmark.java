@@ -0,0 +1,73 @@
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.moilioncircle.redis.rdb.cli.glossary.WaitStrategy;
+
+/**
+ * handoff of a batch of small tasks to a single worker, {@link RingExecutor} against a single thread
+ * {@link java.util.concurrent.ThreadPoolExecutor}. an operation is a batch, so the worker can't fall behind.
+ *
+ * @author Baoyi Chen
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RingExecutorBenchmark {
+
+	private static final int BATCH = 1024;
+
+	@Param({"ring", "pool"})
+	public String executor;
+
+	@Param({"BUSY_SPIN", "YIELD", "PARK"})
+	public WaitStrategy strategy;
+
+	private long sum;
+	private ExecutorService service;
+
+	@Setup
+	public void setup() {
+		if (executor.equals("ring")) {
+			service = new RingExecutor(1024, strategy, Executors.defaultThreadFactory());
+		} else {
+			service = Executors.newSingleThreadExecutor();
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		service.shutdown();
+		service.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	public long handoff() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		for (int i = 0; i < BATCH - 1; i++) {
+			service.execute(() -> sum++);
+		}
+		service.execute(latch::countDown);
+		latch.await();
+		return sum;
+	}
+}
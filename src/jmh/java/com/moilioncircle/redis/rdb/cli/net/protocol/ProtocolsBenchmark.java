@@ -0,0 +1,98 @@
+package com.moilioncircle.redis.rdb.cli.net.protocol;
+
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.REPLACE;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RESTORE;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.ZERO;
+import static com.moilioncircle.redis.replicator.Constants.DOLLAR;
+import static com.moilioncircle.redis.replicator.Constants.STAR;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.moilioncircle.redis.rdb.cli.util.Outputs;
+
+/**
+ * RESTORE encoding with cached RESP headers against the headers formatted per argument.
+ *
+ * @author Baoyi Chen
+ */
+@Fork(1)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProtocolsBenchmark {
+
+	private static final byte[] CRLF = new byte[]{'\r', '\n'};
+
+	@Param({"16", "512", "8192"})
+	public int size;
+
+	private byte[] key;
+	private byte[] value;
+	private CountingOutputStream out;
+
+	@Setup
+	public void setup() {
+		this.key = "benchmark:key:0000001".getBytes();
+		this.value = new byte[size];
+		this.out = new CountingOutputStream();
+	}
+
+	@Benchmark
+	public long cached() {
+		Protocols.emit(out, RESTORE, key, ZERO, value, REPLACE);
+		return out.count;
+	}
+
+	@Benchmark
+	public long formatted() {
+		byte[][] ary = new byte[][]{key, ZERO, value, REPLACE};
+		Outputs.write(STAR, out);
+		Outputs.write(String.valueOf(ary.length + 1).getBytes(), out);
+		Outputs.write(CRLF, out);
+		Outputs.write(DOLLAR, out);
+		Outputs.write(String.valueOf(RESTORE.length).getBytes(), out);
+		Outputs.write(CRLF, out);
+		Outputs.write(RESTORE, out);
+		Outputs.write(CRLF, out);
+		for (byte[] arg : ary) {
+			Outputs.write(DOLLAR, out);
+			Outputs.write(String.valueOf(arg.length).getBytes(), out);
+			Outputs.write(CRLF, out);
+			Outputs.write(arg, out);
+			Outputs.write(CRLF, out);
+		}
+		return out.count;
+	}
+
+	/*
+	 * no copy, so the benchmark measures the encoding only.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
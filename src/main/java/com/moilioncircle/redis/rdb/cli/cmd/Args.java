@@ -19,6 +19,7 @@ package com.moilioncircle.redis.rdb.cli.cmd;
 import java.io.File;
 import java.util.List;
 
+import com.moilioncircle.redis.rdb.cli.ext.rct.support.NodeMerger;
 import com.moilioncircle.redis.rdb.cli.filter.Filter;
 
 /**
@@ -42,6 +43,7 @@ public interface Args {
 		public int largest;
 		public Filter filter;
 		public boolean replace;
+		public NodeMerger merger;
 	}
 	
 }
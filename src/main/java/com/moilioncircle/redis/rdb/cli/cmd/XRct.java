@@ -17,17 +17,24 @@
 package com.moilioncircle.redis.rdb.cli.cmd;
 
 import static com.moilioncircle.redis.rdb.cli.filter.XFilter.filter;
+import static com.moilioncircle.redis.rdb.cli.util.XUris.masters;
 import static com.moilioncircle.redis.rdb.cli.util.XUris.normalize;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 
 import com.moilioncircle.redis.rdb.cli.cmd.support.XVersionProvider;
 import com.moilioncircle.redis.rdb.cli.conf.Configure;
 import com.moilioncircle.redis.rdb.cli.ext.XRedisReplicator;
+import com.moilioncircle.redis.rdb.cli.ext.rct.support.NodeMerger;
 import com.moilioncircle.redis.rdb.cli.glossary.Format;
 import com.moilioncircle.redis.rdb.cli.util.ProgressBar;
+import com.moilioncircle.redis.rdb.cli.util.XReplicators;
 import com.moilioncircle.redis.replicator.DefaultReplFilter;
 import com.moilioncircle.redis.replicator.FileType;
 import com.moilioncircle.redis.replicator.Replicator;
@@ -39,6 +46,7 @@ import com.moilioncircle.redis.replicator.event.PreRdbSyncEvent;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
 import picocli.CommandLine.Spec;
 
 /**
@@ -61,7 +69,8 @@ import picocli.CommandLine.Spec;
 				"  rct -f dump -s ./dump.rdb -o ./appendonly.aof -r",
 				"  rct -f resp -s redis://127.0.0.1:6379 -o ./target.aof -d 0 1",
 				"  rct -f json -s ./dump.rdb -o ./target.json -k user.* product.*",
-				"  rct -f mem -s ./dump.rdb -o ./target.aof -e redis -t list -l 10 -b 1024"})
+				"  rct -f mem -s ./dump.rdb -o ./target.aof -e redis -t list -l 10 -b 1024",
+				"  rct -f mem -s redis://127.0.0.1:30001 -o ./target.csv -l 50"})
 public class XRct implements Callable<Integer> {
 	
 	@Spec
@@ -70,7 +79,7 @@ public class XRct implements Callable<Integer> {
 	@Option(names = {"-f", "--format"}, required = true, description = {"Format to export. valid formats are json,", "jsonl, dump, diff, key, keyval, count, mem", "and resp"})
 	private String format;
 	
-	@Option(names = {"-s", "--source"}, required = true, description = {"Source file or uri. eg:", "/path/to/dump.rdb", "redis://host:port?authPassword=foobar", "redis:///path/to/dump.rdb."})
+	@Option(names = {"-s", "--source"}, required = true, description = {"Source file or uri. eg:", "/path/to/dump.rdb", "redis://host:port?authPassword=foobar", "redis:///path/to/dump.rdb. if uri is a node of", "redis cluster, all masters are synced."})
 	private String source;
 	
 	@Option(names = {"-o", "--out"}, required = true, paramLabel = "<file>", description = "Output file.", type = File.class)
@@ -101,33 +110,70 @@ public class XRct implements Callable<Integer> {
 	public Integer call() throws Exception {
 		source = normalize(source, FileType.RDB, spec, "Invalid options: '--source=<source>'");
 		Configure configure = Configure.bind();
+		List<String> masters = masters(source, configure);
+		Format format = new Format(this.format);
 		try (ProgressBar bar = ProgressBar.bar(-1, configure.isEnableProgressBar())) {
-			// bind args
-			Args.RctArgs args = new Args.RctArgs();
-			args.bytes = bytes;
-			args.output = output;
-			args.replace = replace;
-			args.largest = largest;
-			args.filter = filter(regexs, db, type);
+			if (masters.size() == 1) {
+				getReplicator(masters.get(0), output, null, format, configure, bar).open();
+				return 0;
+			}
 			
-			Replicator r = new XRedisReplicator(source, configure, DefaultReplFilter.RDB);
+			if (!format.isMergeable()) {
+				throw new ParameterException(spec.commandLine(), "Invalid options: '--format=" + this.format + "' can not be used with source redis cluster");
+			}
 			
-			new Format(format).dress(r, configure, args, escape);
-			
-			r.addEventListener((rep, event) -> {
-				if (event instanceof PreRdbSyncEvent) {
-					rep.addRawByteListener(b -> {
-						bar.react(b.length);
-					});
+			// every master writes its part, the parts are concatenated by the order of masters
+			File path = configure.getTempFilePath() == null ? null : new File(configure.getTempFilePath());
+			NodeMerger merger = new NodeMerger();
+			List<File> parts = new ArrayList<>();
+			List<Replicator> replicators = new ArrayList<>();
+			try {
+				for (String master : masters) {
+					File part = File.createTempFile(configure.getTempFilePrefix(), ".part", path);
+					parts.add(part);
+					replicators.add(getReplicator(master, part, merger, format, configure, bar));
 				}
-				
-				if (event instanceof PostRdbSyncEvent || event instanceof PreCommandSyncEvent) {
-					Replicators.closeQuietly(rep);
+				try {
+					XReplicators.open(replicators, configure.getSourceThreads());
+				} finally {
+					// the parts of failed masters are partial, a merged result was exported by the other masters
+					try (OutputStream out = new FileOutputStream(output)) {
+						for (File part : parts) Files.copy(part.toPath(), out);
+					}
 				}
-				
-			});
-			r.open();
+			} finally {
+				for (File part : parts) Files.deleteIfExists(part.toPath());
+			}
 		}
 		return 0;
 	}
+	
+	private Replicator getReplicator(String source, File output, NodeMerger merger, Format format, Configure configure, ProgressBar bar) throws Exception {
+		// bind args
+		Args.RctArgs args = new Args.RctArgs();
+		args.bytes = bytes;
+		args.output = output;
+		args.merger = merger;
+		args.replace = replace;
+		args.largest = largest;
+		args.filter = filter(regexs, db, type);
+		
+		Replicator r = new XRedisReplicator(source, configure, DefaultReplFilter.RDB);
+		
+		format.dress(r, configure, args, escape);
+		
+		r.addEventListener((rep, event) -> {
+			if (event instanceof PreRdbSyncEvent) {
+				rep.addRawByteListener(b -> {
+					bar.react(b.length);
+				});
+			}
+			
+			if (event instanceof PostRdbSyncEvent || event instanceof PreCommandSyncEvent) {
+				Replicators.closeQuietly(rep);
+			}
+			
+		});
+		return r;
+	}
 }
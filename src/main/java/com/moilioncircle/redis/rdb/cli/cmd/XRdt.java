@@ -16,11 +16,13 @@
 
 package com.moilioncircle.redis.rdb.cli.cmd;
 
+import static com.moilioncircle.redis.rdb.cli.util.XUris.masters;
 import static com.moilioncircle.redis.rdb.cli.util.XUris.normalize;
 
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -29,7 +31,9 @@ import com.moilioncircle.redis.rdb.cli.conf.Configure;
 import com.moilioncircle.redis.rdb.cli.filter.XFilter;
 import com.moilioncircle.redis.rdb.cli.glossary.Action;
 import com.moilioncircle.redis.rdb.cli.util.ProgressBar;
+import com.moilioncircle.redis.rdb.cli.util.XReplicators;
 import com.moilioncircle.redis.replicator.FileType;
+import com.moilioncircle.redis.replicator.RedisURI;
 import com.moilioncircle.redis.replicator.Replicator;
 import com.moilioncircle.redis.replicator.Replicators;
 import com.moilioncircle.redis.replicator.event.PostRdbSyncEvent;
@@ -64,6 +68,7 @@ import picocli.CommandLine.Spec;
 				"  rdt -b ./dump.rdb -o ./dump.rdb1 -d 0 1",
 				"  rdt -b ./dump.rdb -o ./dump.rdb1 -d 0 1 -g 3",
 				"  rdt -b redis://127.0.0.1:6379 -o ./dump.rdb -k user.*",
+				"  rdt -b redis://127.0.0.1:30001 -o /path/to/folder",
 				"  rdt -m ./dump1.rdb ./dump2.rdb -o ./dump.rdb -t hash",
 				"  rdt -s ./dump.rdb -c ./nodes.conf -o /path/to/folder -t hash -d 0",
 				"  rdt -s redis://127.0.0.1:6379 -c ./nodes.conf -o /path/to/folder -d 0"})
@@ -87,7 +92,7 @@ public class XRdt implements Callable<Integer> {
 	}
 	
 	public static class Backup {
-		@Option(names = {"-b", "--backup"}, required = true, paramLabel = "<source>", description = {"Backup <source> to local rdb file. eg:", "/path/to/dump.rdb", "redis://host:port?authPassword=foobar", "redis:///path/to/dump.rdb"})
+		@Option(names = {"-b", "--backup"}, required = true, paramLabel = "<source>", description = {"Backup <source> to local rdb file. eg:", "/path/to/dump.rdb", "redis://host:port?authPassword=foobar", "redis:///path/to/dump.rdb. if uri is a node of", "redis cluster, every master is saved to", "<host>-<port>.rdb of path <file>."})
 		public String backup;
 		
 		@Option(names = {"-g", "--goal"}, paramLabel = "<db>", description = {"Convert db from <source> and save to rdb", "file as <db>."}, type = Long.class)
@@ -140,9 +145,6 @@ public class XRdt implements Callable<Integer> {
 		} else if (exclusive.backup != null && exclusive.backup.backup!= null) {
 			backup = normalize(exclusive.backup.backup, FileType.RDB, spec, "Invalid options: '--backup=<backup>'");
 			goal = exclusive.backup.goal;
-			if (Files.exists(path) && !Files.isRegularFile(path)) {
-				throw new ParameterException(spec.commandLine(), "Invalid options: '--out=<file>'");
-			}
 			
 			action = Action.BACKUP;
 		} else if (exclusive.merge != null) {
@@ -155,6 +157,22 @@ public class XRdt implements Callable<Integer> {
 		}
 		
 		Configure configure = Configure.bind();
+		List<String> masters = action == Action.BACKUP ? masters(backup, configure) : null;
+		boolean cluster = masters != null && masters.size() > 1;
+		if (action == Action.BACKUP) {
+			if (!cluster) {
+				if (Files.exists(path) && !Files.isRegularFile(path)) {
+					throw new ParameterException(spec.commandLine(), "Invalid options: '--out=<file>'");
+				}
+			} else {
+				// one rdb per master of source cluster
+				if (Files.exists(path) && !Files.isDirectory(path)) {
+					throw new ParameterException(spec.commandLine(), "Invalid options: '--out=<file>' must be a path if source is redis cluster");
+				}
+				Files.createDirectories(path);
+			}
+		}
+		
 		try (ProgressBar bar = ProgressBar.bar(-1, configure.isEnableProgressBar())) {
 			
 			// bind args
@@ -163,11 +181,24 @@ public class XRdt implements Callable<Integer> {
 			arg.split = split;
 			arg.merge = merge;
 			arg.config = config;
-			arg.backup = backup;
+			arg.backup = masters == null ? null : masters.get(0);
 			arg.output = output;
 			arg.filter = XFilter.filter(regexs, db, type);
 			
-			List<Tuple2<Replicator, String>> list = action.dress(configure, arg);
+			List<Tuple2<Replicator, String>> list = new ArrayList<>();
+			if (cluster) {
+				for (String master : masters) {
+					RedisURI uri = new RedisURI(master);
+					Args.RdtArgs node = new Args.RdtArgs();
+					node.goal = goal;
+					node.backup = master;
+					node.filter = arg.filter;
+					node.output = new File(output, uri.getHost() + "-" + uri.getPort() + ".rdb");
+					list.addAll(action.dress(configure, node));
+				}
+			} else {
+				list.addAll(action.dress(configure, arg));
+			}
 			
 			for (Tuple2<Replicator, String> tuple : list) {
 				tuple.getV1().addEventListener((rep, event) -> {
@@ -182,7 +213,13 @@ public class XRdt implements Callable<Integer> {
 					}
 					
 				});
-				tuple.getV1().open();
+				if (!cluster) tuple.getV1().open();
+			}
+			
+			if (cluster) {
+				List<Replicator> replicators = new ArrayList<>();
+				for (Tuple2<Replicator, String> tuple : list) replicators.add(tuple.getV1());
+				XReplicators.open(replicators, configure.getSourceThreads());
 			}
 		}
 		
@@ -18,6 +18,7 @@ package com.moilioncircle.redis.rdb.cli.cmd;
 
 import static com.moilioncircle.redis.rdb.cli.util.Iterators.find;
 import static com.moilioncircle.redis.rdb.cli.util.XUris.normalize;
+import static com.moilioncircle.redis.rdb.cli.util.XUris.replica;
 
 import java.io.File;
 import java.util.ServiceLoader;
@@ -28,9 +29,9 @@ import org.slf4j.LoggerFactory;
 
 import com.moilioncircle.redis.rdb.cli.api.sink.ParserService;
 import com.moilioncircle.redis.rdb.cli.api.sink.SinkService;
-import com.moilioncircle.redis.rdb.cli.api.sink.listener.AsyncEventListener;
 import com.moilioncircle.redis.rdb.cli.cmd.support.XVersionProvider;
 import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.ext.XAsyncEventListener;
 import com.moilioncircle.redis.rdb.cli.ext.XRedisReplicator;
 import com.moilioncircle.redis.rdb.cli.util.ProgressBar;
 import com.moilioncircle.redis.rdb.cli.util.XThreadFactory;
@@ -90,7 +91,7 @@ public class XRet implements Callable<Integer> {
 		
 		try (ProgressBar bar = ProgressBar.bar(-1, configure.isEnableProgressBar())) {
 			
-			Replicator r = new XRedisReplicator(source, configure);
+			Replicator r = new XRedisReplicator(replica(source, configure), configure);
 			r.setRdbVisitor(parserService.getRdbVisitor(r));
 			
 			r.addEventListener((rep, event) -> {
@@ -100,7 +101,7 @@ public class XRet implements Callable<Integer> {
 					});
 				}
 			});
-			r.addEventListener(new AsyncEventListener(sinkService, r, configure.getMigrateThreads(), new XThreadFactory("sync-worker")));
+			r.addEventListener(new XAsyncEventListener(sinkService, r, configure, new XThreadFactory("sync-worker")));
 			parserService.wrap(r).open();
 		}
 		return 0;
@@ -18,26 +18,38 @@ package com.moilioncircle.redis.rdb.cli.cmd;
 
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.CLUSTER;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.NODES;
+import static com.moilioncircle.redis.rdb.cli.filter.XFilter.bytes;
 import static com.moilioncircle.redis.rdb.cli.filter.XFilter.cluster;
 import static com.moilioncircle.redis.rdb.cli.filter.XFilter.filter;
+import static com.moilioncircle.redis.rdb.cli.util.XUris.masters;
 import static com.moilioncircle.redis.rdb.cli.util.XUris.normalize;
 import static java.nio.file.Files.readAllLines;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 
 import com.moilioncircle.redis.rdb.cli.cmd.support.XVersionProvider;
 import com.moilioncircle.redis.rdb.cli.conf.Configure;
 import com.moilioncircle.redis.rdb.cli.ext.XRedisReplicator;
+import com.moilioncircle.redis.rdb.cli.ext.rmt.BulkLoader;
+import com.moilioncircle.redis.rdb.cli.ext.rmt.Checkpoint;
 import com.moilioncircle.redis.rdb.cli.ext.rmt.ClusterRdbVisitor;
 import com.moilioncircle.redis.rdb.cli.ext.rmt.SingleRdbVisitor;
+import com.moilioncircle.redis.rdb.cli.ext.rmt.ScanReplicator;
+import com.moilioncircle.redis.rdb.cli.ext.rmt.VerifyRdbVisitor;
+import com.moilioncircle.redis.rdb.cli.filter.Filter;
 import com.moilioncircle.redis.rdb.cli.net.impl.XEndpoint;
 import com.moilioncircle.redis.rdb.cli.net.protocol.RedisObject;
 import com.moilioncircle.redis.rdb.cli.util.Collections;
 import com.moilioncircle.redis.rdb.cli.util.ProgressBar;
+import com.moilioncircle.redis.rdb.cli.util.XReplicators;
 import com.moilioncircle.redis.replicator.DefaultReplFilter;
 import com.moilioncircle.redis.replicator.FileType;
 import com.moilioncircle.redis.replicator.RedisURI;
@@ -68,12 +80,20 @@ import picocli.CommandLine.Spec;
 		versionProvider = XVersionProvider.class,
 		customSynopsis = {
 				"Usage: rmt [-hV] -s <source> (-m <uri> | -c <conf>) [-d <db>...]",
-				"       [-k <regex>...] [-t <type>...] [-rl]"
+				"       [-k <regex>...] [-t <type>...] [-rl] [--checkpoint <file>",
+				"       [--resume]] [--bulk-load] [--verify <percent>]",
+				"       [--verify-big] [--verify-keys <file>] [--scan]",
+				"       [--min-bytes <bytes>] [--max-bytes <bytes>]"
 		},
 		footer = {"%nExamples:",
 				"  rmt -s ./dump.rdb -c ./nodes.conf -t string -r",
 				"  rmt -s ./dump.rdb -m redis://127.0.0.1:6380 -t list -d 0",
-				"  rmt -s redis://127.0.0.1:6379 -m redis://127.0.0.1:6380 -d 0"})
+				"  rmt -s redis://127.0.0.1:6379 -m redis://127.0.0.1:6380 -d 0",
+				"  rmt -s ./dump.rdb -m redis://127.0.0.1:6380 --checkpoint ./ck --resume",
+				"  rmt -s ./dump.rdb -m redis://127.0.0.1:6380 --bulk-load",
+				"  rmt -s ./dump.rdb -c ./nodes.conf --verify 1 --verify-big",
+				"  rmt -s redis://127.0.0.1:30001 -c ./nodes.conf --scan --checkpoint ./ck",
+				"  rmt -s ./dump.rdb -m redis://127.0.0.1:6380 --max-bytes 1048576"})
 public class XRmt implements Callable<Integer> {
 	
 	@Spec
@@ -91,7 +111,7 @@ public class XRmt implements Callable<Integer> {
 		private File config;
 	}
 	
-	@Option(names = {"-s", "--source"}, required = true, description = {"Source file or uri. eg:", "/path/to/dump.rdb", "redis://host:port?authPassword=foobar", "redis:///path/to/dump.rdb."})
+	@Option(names = {"-s", "--source"}, required = true, description = {"Source file or uri. eg:", "/path/to/dump.rdb", "redis://host:port?authPassword=foobar", "redis:///path/to/dump.rdb. if uri is a node of", "redis cluster, all masters are synced."})
 	private String source;
 	
 	@Option(names = {"-d", "--db"}, arity = "1..*", description = {"Database number. multiple databases can be", "provided. if not specified, all databases", "will be included."}, type = Integer.class)
@@ -109,10 +129,51 @@ public class XRmt implements Callable<Integer> {
 	@Option(names = {"-l", "--legacy"}, description = {"If specify the <replace> and this parameter.", "then use lua script to migrate data to target.", "if target redis version is greater than 3.0.", "no need to add this parameter."})
 	private boolean legacy;
 	
+	@Option(names = {"--checkpoint"}, paramLabel = "<file>", description = {"Save migration progress of source file to", "<file> periodically."}, type = File.class)
+	private File checkpoint;
+	
+	@Option(names = {"--resume"}, description = {"Resume migration from <file> of --checkpoint.", "keys that migrated in previous run will be", "skipped."})
+	private boolean resume;
+	
+	@Option(names = {"--bulk-load"}, description = {"Load rdb to an empty standalone target via", "full resync of replication instead of", "restore. the target replicates from rmt and", "is detached after rdb loaded."})
+	private boolean bulkLoad;
+	
+	@Option(names = {"--scan"}, description = {"Read source redis by SCAN, DUMP and PTTL", "instead of SYNC. for source that refuses", "SYNC. all masters of a source cluster are", "scanned in parallel. with --checkpoint, the", "cursors are saved and resumed."})
+	private boolean scan;
+	
+	@Option(names = {"--min-bytes"}, paramLabel = "<bytes>", description = {"Migrate keys whose DUMP payload is at least", "<bytes>."}, type = Long.class)
+	private Long minBytes;
+	
+	@Option(names = {"--max-bytes"}, paramLabel = "<bytes>", description = {"Migrate keys whose DUMP payload is at most", "<bytes>. a string out of range is skipped", "without being read."}, type = Long.class)
+	private Long maxBytes;
+	
+	@Option(names = {"--verify"}, paramLabel = "<percent>", description = {"Verify <percent> of keys of source file on", "target after migration. eg: 0.5, 100."}, type = Double.class)
+	private Double verify;
+	
+	@Option(names = {"--verify-big"}, description = {"Also verify all keys that not stored in", "compact encoding by source redis."})
+	private boolean verifyBig;
+	
+	@Option(names = {"--verify-keys"}, paramLabel = "<file>", description = {"Also verify keys in <file>, one key per", "line."}, type = File.class)
+	private File verifyKeys;
+	
 	@Override
 	public Integer call() throws Exception {
 		source = normalize(source, FileType.RDB, spec, "Invalid options: '--source=<source>'");
+		if (scan && (new RedisURI(source).getFileType() != null || bulkLoad || verify != null || verifyBig || verifyKeys != null)) {
+			throw new ParameterException(spec.commandLine(), "Invalid options: '--scan' requires source redis, and can not be used with '--bulk-load' or '--verify'");
+		}
+		if ((minBytes != null && minBytes < 0) || (maxBytes != null && maxBytes < 0) || (minBytes != null && maxBytes != null && minBytes > maxBytes)) {
+			throw new ParameterException(spec.commandLine(), "Invalid options: '--min-bytes=<bytes>' or '--max-bytes=<bytes>'");
+		}
+		if ((minBytes != null || maxBytes != null) && (bulkLoad || verify != null || verifyBig || verifyKeys != null)) {
+			// the sampled keys of verify and the rdb of bulk load are not limited by size
+			throw new ParameterException(spec.commandLine(), "Invalid options: '--min-bytes' and '--max-bytes' can not be used with '--bulk-load' or '--verify'");
+		}
 		Configure configure = Configure.bind();
+		Checkpoint checkpoint = getCheckpoint(configure);
+		Filter sample = getSample();
+		// scan reads every master of source cluster by itself
+		List<String> masters = scan ? Collections.ofList(source) : masters(source, configure);
 		
 		if (exclusive.migrate != null) {
 			RedisURI uri = new RedisURI(exclusive.migrate);
@@ -121,25 +182,48 @@ public class XRmt implements Callable<Integer> {
 				throw new ParameterException(spec.commandLine(), "Invalid options: '--migrate=<uri>'");
 			}
 			
+			if (bulkLoad) {
+				if (checkpoint != null || replace || legacy) {
+					throw new ParameterException(spec.commandLine(), "Invalid options: '--bulk-load' can not be used with '--checkpoint', '--replace' or '--legacy'");
+				}
+				if (masters.size() > 1) {
+					// a full resync loads one rdb
+					throw new ParameterException(spec.commandLine(), "Invalid options: '--bulk-load' can not be used with source redis cluster");
+				}
+				try (ProgressBar bar = ProgressBar.bar(-1, configure.isEnableProgressBar())) {
+					Filter filter = db == null && regexs == null && type == null ? null : filter(regexs, db, type);
+					new BulkLoader(uri, configure, bar).load(masters.get(0), filter);
+				}
+				return verify(configure, sample, uri, null);
+			}
+			
 			try (ProgressBar bar = ProgressBar.bar(-1, configure.isEnableProgressBar())) {
 				
-				Replicator r = new XRedisReplicator(source, configure, DefaultReplFilter.RDB);
-				r.setRdbVisitor(getRdbVisitor(r, configure, uri));
-				
-				r.addEventListener((rep, event) -> {
-					if (event instanceof PreRdbSyncEvent) {
-						rep.addRawByteListener(b -> bar.react(b.length));
-					}
+				List<Replicator> replicators = new ArrayList<>();
+				for (String master : masters) {
+					Replicator r = getReplicator(master, configure);
+					r.setRdbVisitor(getRdbVisitor(r, configure, uri, getCheckpoint(r, checkpoint)));
 					
-					if (event instanceof PostRdbSyncEvent || event instanceof PreCommandSyncEvent) {
-						Replicators.closeQuietly(r);
-					}
-					
-				});
-				r.open();
+					r.addEventListener((rep, event) -> {
+						if (event instanceof PreRdbSyncEvent) {
+							rep.addRawByteListener(b -> bar.react(b.length));
+						}
+						
+						if (event instanceof PostRdbSyncEvent || event instanceof PreCommandSyncEvent) {
+							Replicators.closeQuietly(r);
+						}
+						
+					});
+					replicators.add(r);
+				}
+				XReplicators.open(replicators, configure.getSourceThreads());
 			}
-			
+			return verify(configure, sample, uri, null);
 		} else {
+			if (bulkLoad) {
+				// cluster nodes refuse replicaof
+				throw new ParameterException(spec.commandLine(), "Invalid options: '--bulk-load' requires '--migrate=<uri>'");
+			}
 			if (exclusive.config == null) {
 				throw new ParameterException(spec.commandLine(), "Invalid options: '--config=<config>'");
 			}
@@ -151,36 +235,127 @@ public class XRmt implements Callable<Integer> {
 			
 			try (ProgressBar bar = ProgressBar.bar(-1, configure.isEnableProgressBar())) {
 				
-				Replicator r = new XRedisReplicator(source, configure, DefaultReplFilter.RDB);
-				r.setRdbVisitor(new ClusterRdbVisitor(r, configure, cluster(regexs, type), null, readAllLines(path), replace));
-				
-				r.addEventListener((rep, event) -> {
+				List<Replicator> replicators = new ArrayList<>();
+				for (String master : masters) {
+					Replicator r = getReplicator(master, configure);
+					r.setRdbVisitor(new ClusterRdbVisitor(r, configure, bytes(cluster(regexs, type), minBytes, maxBytes), null, readAllLines(path), replace, getCheckpoint(r, checkpoint)));
 					
-					if (event instanceof PreRdbSyncEvent) {
-						rep.addRawByteListener(b -> {
-							bar.react(b.length);
-						});
-					}
+					r.addEventListener((rep, event) -> {
 						
-					if (event instanceof PostRdbSyncEvent || event instanceof PreCommandSyncEvent) {
-						Replicators.closeQuietly(rep);
-					}
-					
-				});
-				r.open();
+						if (event instanceof PreRdbSyncEvent) {
+							rep.addRawByteListener(b -> {
+								bar.react(b.length);
+							});
+						}
+							
+						if (event instanceof PostRdbSyncEvent || event instanceof PreCommandSyncEvent) {
+							Replicators.closeQuietly(rep);
+						}
+						
+					});
+					replicators.add(r);
+				}
+				XReplicators.open(replicators, configure.getSourceThreads());
 			}
+			return verify(configure, sample, null, readAllLines(path));
 		}
-		return 0;
 	}
 	
-	private RdbVisitor getRdbVisitor(Replicator replicator, Configure configure, RedisURI uri) throws Exception {
+	private Filter getSample() throws Exception {
+		if (verify == null && !verifyBig && verifyKeys == null) return null;
+		if (new RedisURI(source).getFileType() == null) {
+			// a new rdb from redis is not the one that migrated
+			throw new ParameterException(spec.commandLine(), "Invalid options: '--verify' requires source file");
+		}
+		double percent = verify == null ? 0d : verify;
+		if (percent < 0 || percent > 100) {
+			throw new ParameterException(spec.commandLine(), "Invalid options: '--verify=<percent>'");
+		}
+		Set<String> keys = null;
+		if (verifyKeys != null) {
+			if (!Files.exists(verifyKeys.toPath())) {
+				throw new ParameterException(spec.commandLine(), "Invalid options: '--verify-keys=<file>'");
+			}
+			keys = new HashSet<>(readAllLines(verifyKeys.toPath()));
+		}
+		Filter filter = exclusive.migrate != null ? filter(regexs, db, type) : cluster(regexs, type);
+		return VerifyRdbVisitor.sample(filter, percent, keys, verifyBig);
+	}
+	
+	/**
+	 * @param uri target uri, null if target is specified by nodes.conf
+	 * @param lines nodes.conf, null if target is specified by uri
+	 * @return 0 if no sampled key is inconsistent
+	 */
+	private int verify(Configure configure, Filter sample, RedisURI uri, List<String> lines) throws Exception {
+		if (sample == null) return 0;
+		if (uri != null) {
+			try (XEndpoint endpoint = new XEndpoint(uri.getHost(), uri.getPort(), configure.merge(uri, false))) {
+				RedisObject r = endpoint.send(CLUSTER, NODES);
+				if (!r.type.isError()) lines = Collections.ofList(r.getString().split("\n"));
+			}
+		}
+		try (ProgressBar bar = ProgressBar.bar(-1, configure.isEnableProgressBar())) {
+			Replicator r = new XRedisReplicator(source, configure, DefaultReplFilter.RDB);
+			VerifyRdbVisitor visitor = new VerifyRdbVisitor(r, configure, sample, uri, lines);
+			r.setRdbVisitor(visitor);
+			
+			r.addEventListener((rep, event) -> {
+				if (event instanceof PreRdbSyncEvent) {
+					rep.addRawByteListener(b -> bar.react(b.length));
+				}
+				
+				if (event instanceof PostRdbSyncEvent || event instanceof PreCommandSyncEvent) {
+					Replicators.closeQuietly(rep);
+				}
+			});
+			r.open();
+			return visitor.isConsistent() ? 0 : 1;
+		}
+	}
+	
+	private Replicator getReplicator(String source, Configure configure) throws Exception {
+		if (!scan) return new XRedisReplicator(source, configure, DefaultReplFilter.RDB);
+		Path path = checkpoint == null ? null : checkpoint.toPath();
+		return new ScanReplicator(new RedisURI(source), configure, path, resume);
+	}
+	
+	private Checkpoint getCheckpoint(Configure configure) throws Exception {
+		if (checkpoint == null) {
+			if (resume) throw new ParameterException(spec.commandLine(), "Invalid options: '--resume' requires '--checkpoint=<file>'");
+			return null;
+		}
+		if (scan) {
+			// scan cursors are saved by ScanReplicator
+			return null;
+		}
+		RedisURI uri = new RedisURI(source);
+		if (uri.getFileType() == null) {
+			// offsets of a new rdb from redis are not comparable
+			throw new ParameterException(spec.commandLine(), "Invalid options: '--checkpoint=<file>' requires source file");
+		}
+		String target = exclusive.migrate != null ? exclusive.migrate : exclusive.config.getAbsolutePath();
+		String hash = Checkpoint.hash(source, new File(uri.getPath()).length(), target, db, regexs, type, replace, legacy, minBytes, maxBytes);
+		try {
+			return Checkpoint.valueOf(checkpoint.toPath(), hash, configure.getMigrateCheckpointInterval(), resume);
+		} catch (IOException e) {
+			throw new ParameterException(spec.commandLine(), "Invalid options: '--resume', reason: " + e.getMessage());
+		}
+	}
+	
+	private static Checkpoint getCheckpoint(Replicator replicator, Checkpoint checkpoint) {
+		// cursors of scan are saved by the checkpoint of ScanReplicator
+		return replicator instanceof ScanReplicator ? ((ScanReplicator) replicator).getCheckpoint() : checkpoint;
+	}
+	
+	private RdbVisitor getRdbVisitor(Replicator replicator, Configure configure, RedisURI uri, Checkpoint checkpoint) throws Exception {
 		try (XEndpoint endpoint = new XEndpoint(uri.getHost(), uri.getPort(), configure.merge(uri, false))) {
 			RedisObject r = endpoint.send(CLUSTER, NODES);
 			if (r.type.isError()) {
-				return new SingleRdbVisitor(replicator, configure, filter(regexs, db, type), uri, replace, legacy);
+				return new SingleRdbVisitor(replicator, configure, bytes(filter(regexs, db, type), minBytes, maxBytes), uri, replace, legacy, checkpoint);
 			} else {
 				List<String> lines = Collections.ofList(r.getString().split("\n"));
-				return new ClusterRdbVisitor(replicator, configure, cluster(regexs, type), uri, lines, replace);
+				return new ClusterRdbVisitor(replicator, configure, bytes(cluster(regexs, type), minBytes, maxBytes), uri, lines, replace, checkpoint);
 			}
 		} catch (Throwable e) {
 			throw new RuntimeException("failed to connect to " + uri.getHost() + ":" + uri.getPort() + ", reason " + e.getMessage());
@@ -20,27 +20,43 @@ import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.CLUS
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.NODES;
 import static com.moilioncircle.redis.rdb.cli.filter.XFilter.cluster;
 import static com.moilioncircle.redis.rdb.cli.filter.XFilter.filter;
+import static com.moilioncircle.redis.rdb.cli.filter.XFilter.union;
 import static com.moilioncircle.redis.rdb.cli.util.XUris.normalize;
+import static com.moilioncircle.redis.rdb.cli.util.XUris.replica;
 import static java.nio.file.Files.readAllLines;
+import static java.util.stream.Collectors.toList;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.moilioncircle.redis.rdb.cli.api.sink.cmd.CombineCommandParser;
 import com.moilioncircle.redis.rdb.cli.cmd.support.XVersionProvider;
 import com.moilioncircle.redis.rdb.cli.conf.Configure;
 import com.moilioncircle.redis.rdb.cli.ext.XRedisReplicator;
+import com.moilioncircle.redis.rdb.cli.ext.rst.AbstractRstRdbVisitor;
+import com.moilioncircle.redis.rdb.cli.ext.rst.Checkpoint;
+import com.moilioncircle.redis.rdb.cli.ext.rst.ClusterPool;
 import com.moilioncircle.redis.rdb.cli.ext.rst.ClusterRdbVisitor;
 import com.moilioncircle.redis.rdb.cli.ext.rst.SingleRdbVisitor;
 import com.moilioncircle.redis.rdb.cli.net.impl.XEndpoint;
 import com.moilioncircle.redis.rdb.cli.net.protocol.RedisObject;
 import com.moilioncircle.redis.rdb.cli.util.Collections;
 import com.moilioncircle.redis.rdb.cli.util.ProgressBar;
+import com.moilioncircle.redis.rdb.cli.util.XThreadFactory;
 import com.moilioncircle.redis.replicator.RedisURI;
 import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.Replicators;
 import com.moilioncircle.redis.replicator.cmd.CommandName;
 import com.moilioncircle.redis.replicator.cmd.parser.AppendParser;
 import com.moilioncircle.redis.replicator.cmd.parser.BLMoveParser;
@@ -134,7 +150,6 @@ import com.moilioncircle.redis.replicator.cmd.parser.ZRemRangeByRankParser;
 import com.moilioncircle.redis.replicator.cmd.parser.ZRemRangeByScoreParser;
 import com.moilioncircle.redis.replicator.cmd.parser.ZUnionStoreParser;
 import com.moilioncircle.redis.replicator.event.PreRdbSyncEvent;
-import com.moilioncircle.redis.replicator.rdb.RdbVisitor;
 
 import picocli.CommandLine.ArgGroup;
 import picocli.CommandLine.Command;
@@ -155,33 +170,37 @@ import picocli.CommandLine.Spec;
 		optionListHeading = "%nOptions:%n",
 		versionProvider = XVersionProvider.class,
 		customSynopsis = {
-				"Usage: rst [-hV] -s <uri> (-m <uri> | -c <conf>) [-d <db>...] [-rl]"
+				"Usage: rst [-hV] (-s <uri>)... ([-m <uri>]... [-c <conf>]...) [-d <db>...]",
+				"       [-rl] [--checkpoint <file> [--resume]]"
 		},
 		footer = {"%nExamples:",
 				"  rst -s redis://127.0.0.1:6379 -c ./nodes.conf -r",
-				"  rst -s redis://127.0.0.1:6379 -m redis://127.0.0.1:6380 -d 0"})
+				"  rst -s redis://127.0.0.1:6379 -m redis://127.0.0.1:6380 -d 0",
+				"  rst -s redis://127.0.0.1:6379 -m redis://127.0.0.1:6380 --checkpoint ./ck --resume",
+				"  rst -s redis://127.0.0.1:6379 -m redis://127.0.0.1:6380 -c ./nodes.conf",
+				"  rst -s redis://127.0.0.1:6379 -s redis://127.0.0.1:6381 -c ./nodes.conf"})
 public class XRst implements Callable<Integer> {
 	
 	@Spec
 	private CommandSpec spec;
 	
-	@ArgGroup(exclusive = true, multiplicity = "1")
+	@ArgGroup(exclusive = false, multiplicity = "1")
 	public RstExclusive exclusive;
 	
 	@SuppressWarnings("unused")
 	private static class RstExclusive {
-		@Option(names = {"-m", "--migrate"}, required = true, paramLabel = "<uri>", description = {"Migrate to uri. eg:", "redis://host:port?authPassword=foobar."})
-		private String migrate;
+		@Option(names = {"-m", "--migrate"}, paramLabel = "<uri>", description = {"Migrate to uri. eg:", "redis://host:port?authPassword=foobar.", "multiple targets can be provided."})
+		private List<String> migrate;
 		
-		@Option(names = {"-c", "--config"}, required = true, paramLabel = "<conf>", description = {"Migrate data to cluster via redis cluster's", "<nodes.conf> file, if specified, no need to", "specify --migrate."}, type = File.class)
-		private File config;
+		@Option(names = {"-c", "--config"}, paramLabel = "<conf>", description = {"Migrate data to cluster via redis cluster's", "<nodes.conf> file, if specified, no need to", "specify --migrate. multiple targets can be", "provided."}, type = File.class)
+		private List<File> config;
 	}
 	
 	@Option(names = {"-d", "--db"}, arity = "1..*", description = {"Database number. multiple databases can be", "provided. if not specified, all databases", "will be included."}, type = Integer.class)
 	private List<Integer> db;
 	
-	@Option(names = {"-s", "--source"}, required = true, paramLabel = "<uri>", description = {"Redis uri. eg:", "redis://host:port?authPassword=foobar"})
-	private String source;
+	@Option(names = {"-s", "--source"}, required = true, paramLabel = "<uri>", description = {"Redis uri. eg:", "redis://host:port?authPassword=foobar", "multiple sources can be provided."})
+	private List<String> source;
 	
 	@Option(names = {"-r", "--replace"}, description = {"Replace exist key value. if not specified,", "default value is false."})
 	private boolean replace;
@@ -189,45 +208,78 @@ public class XRst implements Callable<Integer> {
 	@Option(names = {"-l", "--legacy"}, description = {"If specify the <replace> and this parameter.", "then use lua script to migrate data to target.", "if target redis version is greater than 3.0.", "no need to add this parameter."})
 	private boolean legacy;
 	
+	@Option(names = {"--checkpoint"}, paramLabel = "<file>", description = {"Save replication id and offset of source to", "<file> periodically."}, type = File.class)
+	private File checkpoint;
+	
+	@Option(names = {"--resume"}, description = {"Resume replication from <file> of --checkpoint.", "try partial resync first, full resync if", "source refused."})
+	private boolean resume;
 	
 	@Override
 	public Integer call() throws Exception {
-		source = normalize(source, null, spec, "Invalid options: '--source=<uri>'");
+		for (int i = 0; i < source.size(); i++) {
+			source.set(i, normalize(source.get(i), null, spec, "Invalid options: '--source=<uri>'"));
+		}
 		
-		Configure configure = Configure.bind();
+		List<RedisURI> uris = new ArrayList<>();
 		if (exclusive.migrate != null) {
-			RedisURI uri = new RedisURI(exclusive.migrate);
-			if (uri.getFileType() != null) {
-				throw new ParameterException(spec.commandLine(), "Invalid options: '--migrate=<uri>'");
-			}
-			try (ProgressBar bar = ProgressBar.bar(-1, configure.isEnableProgressBar())) {
-				
-				Replicator r = new XRedisReplicator(source, configure);
-				r.setRdbVisitor(getRdbVisitor(r, configure, uri));
-				
-				r.addEventListener((rep, event) -> {
-					if (event instanceof PreRdbSyncEvent) {
-						rep.addRawByteListener(b -> {
-							bar.react(b.length);
-						});
-					}
-				});
-				dress(r).open();
+			for (String migrate : exclusive.migrate) {
+				RedisURI uri = new RedisURI(migrate);
+				if (uri.getFileType() != null) {
+					throw new ParameterException(spec.commandLine(), "Invalid options: '--migrate=<uri>'");
+				}
+				uris.add(uri);
 			}
-		} else {
-			if (exclusive.config == null) {
-				throw new ParameterException(spec.commandLine(), "Invalid options: '--config=<config>'");
+		}
+		List<Path> paths = new ArrayList<>();
+		if (exclusive.config != null) {
+			for (File config : exclusive.config) {
+				Path path = config.toPath();
+				if (!Files.exists(path)) {
+					throw new ParameterException(spec.commandLine(), "Invalid options: '--config=<config>'");
+				}
+				paths.add(path);
 			}
-			Path path = exclusive.config.toPath();
+		}
+		
+		Configure configure = Configure.bind();
+		List<Checkpoint> checkpoints = new ArrayList<>();
+		for (int i = 0; i < source.size(); i++) {
+			checkpoints.add(getCheckpoint(configure, i));
+		}
+		try (ProgressBar bar = ProgressBar.bar(-1, configure.isEnableProgressBar())) {
 			
-			if (!Files.exists(path)) {
-				throw new ParameterException(spec.commandLine(), "Invalid options: '--config=<config>'");
+			// a cluster target is shared by all sources, null if the target is a single node.
+			Map<RedisURI, ClusterPool> uriPools = new LinkedHashMap<>();
+			for (RedisURI uri : uris) {
+				uriPools.put(uri, getClusterPool(configure, uri));
+			}
+			Map<Path, ClusterPool> pathPools = new LinkedHashMap<>();
+			for (Path path : paths) {
+				pathPools.put(path, new ClusterPool(configure, null, readAllLines(path)));
 			}
 			
-			try (ProgressBar bar = ProgressBar.bar(-1, configure.isEnableProgressBar())) {
+			List<Replicator> replicators = new ArrayList<>();
+			for (int i = 0; i < source.size(); i++) {
+				Replicator r = new XRedisReplicator(replica(source.get(i), configure), configure);
+				Checkpoint checkpoint = checkpoints.get(i);
 				
-				Replicator r = new XRedisReplicator(source, configure);
-				r.setRdbVisitor(new ClusterRdbVisitor(r, configure, cluster(), null, readAllLines(path), replace));
+				// the rdb is parsed once. a cluster target has one set of workers and connections whatever
+				// the number of sources, a single node target has its own connections per source to keep its db.
+				List<AbstractRstRdbVisitor> visitors = new ArrayList<>();
+				for (Map.Entry<RedisURI, ClusterPool> entry : uriPools.entrySet()) {
+					ClusterPool pool = entry.getValue();
+					if (pool == null) {
+						visitors.add(new SingleRdbVisitor(r, configure, filter(db), entry.getKey(), replace, legacy, checkpoint));
+					} else {
+						visitors.add(new ClusterRdbVisitor(r, configure, cluster(), pool, replace, checkpoint));
+					}
+				}
+				for (ClusterPool pool : pathPools.values()) {
+					visitors.add(new ClusterRdbVisitor(r, configure, cluster(), pool, replace, checkpoint));
+				}
+				AbstractRstRdbVisitor visitor = visitors.get(0);
+				visitor.parse(union(visitors.stream().map(AbstractRstRdbVisitor::getTargetFilter).collect(toList())));
+				r.setRdbVisitor(visitor);
 				
 				r.addEventListener((rep, event) -> {
 					if (event instanceof PreRdbSyncEvent) {
@@ -235,22 +287,83 @@ public class XRst implements Callable<Integer> {
 							bar.react(b.length);
 						});
 					}
+					// a failed target stops alone, the source stops after all its targets failed
+					if (visitors.stream().allMatch(AbstractRstRdbVisitor::isFailed)) {
+						Replicators.closeQuietly(rep);
+					}
 				});
-				
-				dress(r).open();
+				replicators.add(dress(r));
 			}
+			open(replicators);
 		}
 		return 0;
 	}
 	
-	private RdbVisitor getRdbVisitor(Replicator replicator, Configure configure, RedisURI uri) throws Exception {
+	/*
+	 * every source has its own replicator thread, so the commands of a source are applied in order.
+	 * a failed source doesn't stop the others.
+	 */
+	private void open(List<Replicator> replicators) throws Exception {
+		if (replicators.size() == 1) {
+			replicators.get(0).open();
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(replicators.size(), new XThreadFactory("sync-source"));
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < replicators.size(); i++) {
+			Replicator replicator = replicators.get(i);
+			String uri = ((XRedisReplicator) replicator).getSource();
+			futures.add(executor.submit(() -> {
+				try {
+					replicator.open();
+				} catch (Throwable e) {
+					System.out.println("failed to sync " + uri + ", reason: " + e.getMessage());
+					throw e;
+				}
+				return null;
+			}));
+		}
+		executor.shutdown();
+		Exception error = null;
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (error == null) error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+		if (error != null) throw error;
+	}
+	
+	private Checkpoint getCheckpoint(Configure configure, int index) throws Exception {
+		if (checkpoint == null) {
+			if (resume) throw new ParameterException(spec.commandLine(), "Invalid options: '--resume' requires '--checkpoint=<file>'");
+			return null;
+		}
+		List<String> targets = new ArrayList<>();
+		if (exclusive.migrate != null) targets.addAll(exclusive.migrate);
+		if (exclusive.config != null) exclusive.config.forEach(e -> targets.add(e.getAbsolutePath()));
+		// compatible with the checkpoint of single target
+		Object target = targets.size() == 1 ? targets.get(0) : targets;
+		String hash = Checkpoint.hash(source.get(index), target, db, replace, legacy);
+		// <file>.0, <file>.1 ... if there are multiple sources
+		Path path = checkpoint.toPath();
+		if (source.size() > 1) path = path.resolveSibling(path.getFileName() + "." + index);
+		try {
+			return Checkpoint.valueOf(path, hash, configure.getMigrateCheckpointInterval(), resume);
+		} catch (IOException e) {
+			throw new ParameterException(spec.commandLine(), "Invalid options: '--resume', reason: " + e.getMessage());
+		}
+	}
+	
+	private ClusterPool getClusterPool(Configure configure, RedisURI uri) throws Exception {
 		try (XEndpoint endpoint = new XEndpoint(uri.getHost(), uri.getPort(), configure.merge(uri, false))) {
 			RedisObject r = endpoint.send(CLUSTER, NODES);
 			if (r.type.isError()) {
-				return new SingleRdbVisitor(replicator, configure, filter(db), uri, replace, legacy);
+				return null;
 			} else {
 				List<String> lines = Collections.ofList(r.getString().split("\n"));
-				return new ClusterRdbVisitor(replicator, configure, cluster(), uri, lines, replace);
+				return new ClusterPool(configure, uri, lines);
 			}
 		} catch (Throwable e) {
 			throw new RuntimeException("failed to connect to " + uri.getHost() + ":" + uri.getPort() + ", reason " + e.getMessage());
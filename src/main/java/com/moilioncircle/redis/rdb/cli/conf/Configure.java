@@ -28,7 +28,9 @@ import java.util.Properties;
 import java.util.stream.Collectors;
 
 import com.moilioncircle.redis.rdb.cli.glossary.FileType;
+import com.moilioncircle.redis.rdb.cli.glossary.CrossSlot;
 import com.moilioncircle.redis.rdb.cli.glossary.Gateway;
+import com.moilioncircle.redis.rdb.cli.glossary.WaitStrategy;
 import com.moilioncircle.redis.rdb.cli.sentinel.RedisSentinelURI;
 import com.moilioncircle.redis.rdb.cli.util.Strings;
 import com.moilioncircle.redis.replicator.Configuration;
@@ -86,6 +88,11 @@ public class Configure {
      */
     private int migrateThreads = 4;
     
+    /**
+     * rmt --migrate connections per target node per thread
+     */
+    private int migrateConnections = 1;
+    
     /**
      * rmt --migrate
      */
@@ -95,6 +102,61 @@ public class Configure {
      * rmt --migrate
      */
     private boolean migrateFlush = true;
+    
+    /**
+     * rmt --migrate huge key size. if migrateHugeKeySize <= 0 then always use restore
+     */
+    private int migrateHugeKeySize = 0;
+    
+    /**
+     * rmt --checkpoint save interval in milliseconds
+     */
+    private int migrateCheckpointInterval = 5000;
+    
+    /**
+     * rst fallback of MSETNX, RENAME, RENAMENX when keys in different slots
+     */
+    private CrossSlot migrateCrossSlot = CrossSlot.REWRITE;
+    
+    /**
+     * rst coalescing window of a worker in milliseconds. 0 means disabled
+     */
+    private int migrateCoalesceInterval = 0;
+    
+    /**
+     * rst max commands in coalescing window of a worker
+     */
+    private int migrateCoalesceSize = 1024;
+    
+    /**
+     * rst max pending events of a worker. 0 means unbounded
+     */
+    private int migrateQueueSize = 0;
+    
+    /**
+     * rst max bytes of keys and commands not sent yet per target. 0 means unbounded
+     */
+    private int migrateQueueBytes = 0;
+    
+    /**
+     * rst how a worker waits for events. blocking, busy_spin, yield or park
+     */
+    private WaitStrategy migrateWaitStrategy = WaitStrategy.BLOCKING;
+    
+    /**
+     * rmt --scan COUNT of SCAN
+     */
+    private int migrateScanCount = 512;
+    
+    /**
+     * rmt --scan max keys per second per source node. 0 means unlimited
+     */
+    private int migrateScanRate = 0;
+    
+    /**
+     * rct, rdt --backup and rmt max nodes of a cluster source that synced at the same time
+     */
+    private int sourceThreads = 4;
 
     /**
      * timeout
@@ -200,6 +262,11 @@ public class Configure {
      * metric instance
      */
     private String metricInstance;
+    
+    /**
+     * rst replication lag sample interval in milliseconds
+     */
+    private int metricLagInterval = 1000;
 
     /**
      * ssl parameter
@@ -385,6 +452,14 @@ public class Configure {
         this.migrateThreads = migrateThreads;
     }
     
+    public int getMigrateConnections() {
+        return migrateConnections;
+    }
+    
+    public void setMigrateConnections(int migrateConnections) {
+        this.migrateConnections = migrateConnections;
+    }
+    
     public int getMigrateRetries() {
         return migrateRetries;
     }
@@ -400,6 +475,94 @@ public class Configure {
     public void setMigrateFlush(boolean migrateFlush) {
         this.migrateFlush = migrateFlush;
     }
+    
+    public int getMigrateHugeKeySize() {
+        return migrateHugeKeySize;
+    }
+    
+    public void setMigrateHugeKeySize(int migrateHugeKeySize) {
+        this.migrateHugeKeySize = migrateHugeKeySize;
+    }
+    
+    public int getMigrateCheckpointInterval() {
+        return migrateCheckpointInterval;
+    }
+    
+    public void setMigrateCheckpointInterval(int migrateCheckpointInterval) {
+        this.migrateCheckpointInterval = migrateCheckpointInterval;
+    }
+    
+    public CrossSlot getMigrateCrossSlot() {
+        return migrateCrossSlot;
+    }
+    
+    public void setMigrateCrossSlot(CrossSlot migrateCrossSlot) {
+        this.migrateCrossSlot = migrateCrossSlot;
+    }
+    
+    public int getMigrateCoalesceInterval() {
+        return migrateCoalesceInterval;
+    }
+    
+    public void setMigrateCoalesceInterval(int migrateCoalesceInterval) {
+        this.migrateCoalesceInterval = migrateCoalesceInterval;
+    }
+    
+    public int getMigrateCoalesceSize() {
+        return migrateCoalesceSize;
+    }
+    
+    public void setMigrateCoalesceSize(int migrateCoalesceSize) {
+        this.migrateCoalesceSize = migrateCoalesceSize;
+    }
+    
+    public int getMigrateQueueSize() {
+        return migrateQueueSize;
+    }
+    
+    public void setMigrateQueueSize(int migrateQueueSize) {
+        this.migrateQueueSize = migrateQueueSize;
+    }
+    
+    public int getMigrateQueueBytes() {
+        return migrateQueueBytes;
+    }
+    
+    public void setMigrateQueueBytes(int migrateQueueBytes) {
+        this.migrateQueueBytes = migrateQueueBytes;
+    }
+    
+    public WaitStrategy getMigrateWaitStrategy() {
+        return migrateWaitStrategy;
+    }
+    
+    public void setMigrateWaitStrategy(WaitStrategy migrateWaitStrategy) {
+        this.migrateWaitStrategy = migrateWaitStrategy;
+    }
+    
+    public int getMigrateScanCount() {
+        return migrateScanCount;
+    }
+    
+    public void setMigrateScanCount(int migrateScanCount) {
+        this.migrateScanCount = migrateScanCount;
+    }
+    
+    public int getMigrateScanRate() {
+        return migrateScanRate;
+    }
+    
+    public void setMigrateScanRate(int migrateScanRate) {
+        this.migrateScanRate = migrateScanRate;
+    }
+    
+    public int getSourceThreads() {
+        return sourceThreads;
+    }
+    
+    public void setSourceThreads(int sourceThreads) {
+        this.sourceThreads = sourceThreads;
+    }
 
     public int getRetryInterval() {
         return retryInterval;
@@ -536,6 +699,14 @@ public class Configure {
     public void setMetricInstance(String metricInstance) {
         this.metricInstance = metricInstance;
     }
+    
+    public int getMetricLagInterval() {
+        return metricLagInterval;
+    }
+    
+    public void setMetricLagInterval(int metricLagInterval) {
+        this.metricLagInterval = metricLagInterval;
+    }
 
     public String getSourceKeystorePath() {
         return sourceKeystorePath;
@@ -683,8 +854,20 @@ public class Configure {
         conf.batchSize = getInt(conf, "batch_size", 128, true);
         conf.migrateBatchSize = getInt(conf, "migrate_batch_size", 4096, true);
         conf.migrateThreads = getInt(conf, "migrate_threads", 4, true);
+        conf.migrateConnections = getInt(conf, "migrate_connections", 1, true);
         conf.migrateRetries = getInt(conf, "migrate_retries", 1, true);
         conf.migrateFlush = getBool(conf, "migrate_flush", true, true);
+        conf.migrateHugeKeySize = getInt(conf, "migrate_huge_key_size", 0, true);
+        conf.migrateCheckpointInterval = getInt(conf, "migrate_checkpoint_interval", 5000, true);
+        conf.migrateCrossSlot = CrossSlot.parse(getString(conf, "migrate_cross_slot", "rewrite", true));
+        conf.migrateCoalesceInterval = getInt(conf, "migrate_coalesce_interval", 0, true);
+        conf.migrateCoalesceSize = getInt(conf, "migrate_coalesce_size", 1024, true);
+        conf.migrateQueueSize = getInt(conf, "migrate_queue_size", 0, true);
+        conf.migrateQueueBytes = getInt(conf, "migrate_queue_bytes", 0, true);
+        conf.migrateWaitStrategy = WaitStrategy.parse(getString(conf, "migrate_wait_strategy", "blocking", true));
+        conf.migrateScanCount = getInt(conf, "migrate_scan_count", 512, true);
+        conf.migrateScanRate = getInt(conf, "migrate_scan_rate", 0, true);
+        conf.sourceThreads = getInt(conf, "source_threads", 4, true);
         conf.dumpRdbVersion = getInt(conf, "dump_rdb_version", -1, true);
         conf.retries = getInt(conf, "retries", 5, true);
         conf.retryInterval = getInt(conf, "retry_interval", 1000, true);
@@ -706,6 +889,7 @@ public class Configure {
         conf.metricDatabase = getString(conf, "metric_database", "redis_rdb_cli", true);
         conf.metricRetentionPolicy = getString(conf, "metric_retention_policy", "30days", true);
         conf.metricInstance = getString(conf, "metric_instance", "instance0", true);
+        conf.metricLagInterval = getInt(conf, "metric_lag_interval", 1000, true);
     
         conf.enableProgressBar = getBool(conf, "enable_progress_bar", true, true);
     
@@ -898,8 +1082,20 @@ public class Configure {
                 "batchSize=" + batchSize +
                 ", migrateBatchSize=" + migrateBatchSize +
                 ", migrateThreads=" + migrateThreads +
+                ", migrateConnections=" + migrateConnections +
                 ", migrateRetries=" + migrateRetries +
                 ", migrateFlush=" + migrateFlush +
+                ", migrateHugeKeySize=" + migrateHugeKeySize +
+                ", migrateCheckpointInterval=" + migrateCheckpointInterval +
+                ", migrateCrossSlot=" + migrateCrossSlot +
+                ", migrateCoalesceInterval=" + migrateCoalesceInterval +
+                ", migrateCoalesceSize=" + migrateCoalesceSize +
+                ", migrateQueueSize=" + migrateQueueSize +
+                ", migrateQueueBytes=" + migrateQueueBytes +
+                ", migrateWaitStrategy=" + migrateWaitStrategy +
+                ", migrateScanCount=" + migrateScanCount +
+                ", migrateScanRate=" + migrateScanRate +
+                ", sourceThreads=" + sourceThreads +
                 ", timeout=" + timeout +
                 ", rcvBuf=" + rcvBuf +
                 ", sndBuf=" + sndBuf +
@@ -921,6 +1117,7 @@ public class Configure {
                 ", metricDatabase='" + metricDatabase + '\'' +
                 ", metricRetentionPolicy='" + metricRetentionPolicy + '\'' +
                 ", metricInstance='" + metricInstance + '\'' +
+                ", metricLagInterval=" + metricLagInterval +
                 ", sourceDefaultTruststore=" + sourceDefaultTruststore +
                 ", sourceKeystorePath='" + sourceKeystorePath + '\'' +
                 ", sourceKeystorePass='" + sourceKeystorePass + '\'' +
@@ -137,6 +137,7 @@ public class NodeConfParser {
 						String slot = arg.substring(1, idx); // slot
 						arg.substring(idx + 3, idx + 3 + 40); // migrate
 						node.getMigratingSlots().add(Short.parseShort(slot));
+						continue;
 					} else if (arg.contains("-")) {
 						int idx = arg.indexOf("-");
 						st = parseInt(arg.substring(0, idx));
@@ -258,16 +259,14 @@ public class NodeConfParser {
 	
 	public static short slot(byte[] key) {
 		if (key == null) return 0;
-		int st = -1, ed = -1;
-		for (int i = 0, len = key.length; i < len; i++) {
-			if (key[i] == '{' && st == -1) st = i;
-			if (key[i] == '}' && st >= 0) {
-				ed = i;
-				break;
-			}
+		int st = 0, len = key.length;
+		while (st < len && key[st] != '{') st++;
+		if (st < len) {
+			int ed = st + 1;
+			while (ed < len && key[ed] != '}') ed++;
+			if (ed < len && ed > st + 1)
+				return (short) (CRC16.crc16(key, st + 1, ed) & 16383);
 		}
-		if (st >= 0 && ed >= 0 && ed > st + 1)
-			return (short) (CRC16.crc16(key, st + 1, ed) & 16383);
 		return (short) (CRC16.crc16(key) & 16383);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.rdb.cli.ext;
+
+import static com.moilioncircle.redis.rdb.cli.conf.NodeConfParser.slot;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosedCommand;
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosingCommand;
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.ext.rst.PartitionedEventListener;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+
+/**
+ * hands the events of replicator to migrate_threads workers like {@code AsyncEventListener}. the workers are
+ * created by {@link PartitionedEventListener#executors(Configure, ThreadFactory)}, so migrate_queue_size and
+ * migrate_wait_strategy apply to rmt and ret as well as rst.
+ * <p>
+ * key value pairs are routed by slot of key, the other events are sent to all workers. every worker receives a
+ * {@link ClosingCommand} when the replicator closed, then the listener receives a {@link ClosedCommand}.
+ *
+ * @author Baoyi Chen
+ */
+public class XAsyncEventListener implements EventListener {
+    
+    private final EventListener listener;
+    private final ExecutorService[] executors;
+    
+    public XAsyncEventListener(EventListener listener, Replicator replicator, Configure configure, ThreadFactory factory) {
+        this.listener = listener;
+        this.executors = PartitionedEventListener.executors(configure, factory);
+        replicator.addCloseListener(this::close);
+    }
+    
+    @Override
+    public void onEvent(Replicator replicator, Event event) {
+        if (executors.length == 0) {
+            listener.onEvent(replicator, event);
+        } else if (event instanceof KeyValuePair<?, ?> && ((KeyValuePair<?, ?>) event).getKey() instanceof byte[]) {
+            byte[] key = (byte[]) ((KeyValuePair<?, ?>) event).getKey();
+            executors[slot(key) % executors.length].submit(() -> listener.onEvent(replicator, event));
+        } else {
+            for (ExecutorService executor : executors) {
+                executor.submit(() -> listener.onEvent(replicator, event));
+            }
+        }
+    }
+    
+    private void close(Replicator replicator) {
+        if (executors.length == 0) {
+            listener.onEvent(replicator, new ClosingCommand());
+        } else {
+            for (ExecutorService executor : executors) {
+                executor.submit(() -> listener.onEvent(replicator, new ClosingCommand()));
+                executor.shutdown();
+            }
+            for (ExecutorService executor : executors) {
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        listener.onEvent(replicator, new ClosedCommand());
+    }
+}
@@ -51,6 +51,7 @@ import com.moilioncircle.redis.replicator.rdb.module.ModuleParser;
  */
 public class XRedisReplicator implements Replicator {
 
+    protected String source;
     protected Replicator replicator;
 
     public XRedisReplicator(String uri, Configure configure, ReplFilter... filters) throws URISyntaxException, IOException {
@@ -79,6 +80,7 @@ public class XRedisReplicator implements Replicator {
         Objects.requireNonNull(configure);
         Configuration configuration = configure.merge(uri, true);
         configuration.setReplFilters(filters);
+        this.source = uri.getFileType() != null ? uri.getPath() : uri.getHost() + ":" + uri.getPort();
         if (uri.getFileType() != null) {
             PeekableInputStream in = new PeekableInputStream(uri.toURL().openStream());
             switch (uri.getFileType()) {
@@ -114,6 +116,7 @@ public class XRedisReplicator implements Replicator {
         Objects.requireNonNull(configure);
         Configuration configuration = configure.merge(uri, true);
         configuration.setReplFilters(filters);
+        this.source = uri.getParameters().get("master");
         this.replicator = new RedisSentinelReplicator(uri, configuration);
         this.replicator.addExceptionListener((r, t, e) -> {
             throw new RuntimeException(t.getMessage(), t);
@@ -228,6 +231,13 @@ public class XRedisReplicator implements Replicator {
         return replicator.getStatus();
     }
 
+    /**
+     * @return host:port, file path or sentinel master name of source. no password in it.
+     */
+    public String getSource() {
+        return source;
+    }
+
     @Override
     public Configuration getConfiguration() {
         return replicator.getConfiguration();
@@ -36,6 +36,8 @@ public class CommandConstants {
     public static final byte[] DEL = "del".getBytes();
     
     public static final byte[] SET = "set".getBytes();
+    public static final byte[] MSET = "mset".getBytes();
+    public static final byte[] INCRBY = "incrby".getBytes();
     public static final byte[] SADD = "sadd".getBytes();
     public static final byte[] ZADD = "zadd".getBytes();
     public static final byte[] LOAD = "load".getBytes();
@@ -44,6 +46,8 @@ public class CommandConstants {
     
     public static final byte[] SELECT = "select".getBytes();
     public static final byte[] REPLACE = "replace".getBytes();
+    public static final byte[] RENAME = "rename".getBytes();
+    public static final byte[] RENAMENX = "renamenx".getBytes();
     
     public static final byte[] SCRIPT = "script".getBytes();
     public static final byte[] EVALSHA = "evalsha".getBytes();
@@ -55,15 +59,30 @@ public class CommandConstants {
     public static final byte[] EXPIREAT = "expireat".getBytes();
     public static final byte[] PEXPIREAT = "pexpireat".getBytes();
     
+    public static final byte[] DUMP = "dump".getBytes();
+    public static final byte[] PTTL = "pttl".getBytes();
     public static final byte[] RESTORE = "restore".getBytes();
     public static final byte[] RESTORE_ASKING = "restore-asking".getBytes();
+    public static final byte[] SCAN = "scan".getBytes();
+    public static final byte[] COUNT = "count".getBytes();
     
+    public static final byte[] ASKING = "asking".getBytes();
     public static final byte[] CLUSTER = "cluster".getBytes();
     public static final byte[] NODES = "nodes".getBytes();
     
+    public static final byte[] REPLICAOF = "replicaof".getBytes();
+    public static final byte[] SLAVEOF = "slaveof".getBytes();
+    public static final byte[][] NO_ONE = {"no".getBytes(), "one".getBytes()};
+
+    public static final byte[] SENTINEL = "sentinel".getBytes();
+    public static final byte[] REPLICAS = "replicas".getBytes();
+    public static final byte[] SLAVES = "slaves".getBytes();
+    
     // monitor
     public static final byte[] INFO = "info".getBytes();
     public static final byte[] REPLICATION = "replication".getBytes();
+    public static final byte[] PERSISTENCE = "persistence".getBytes();
+    public static final byte[] KEYSPACE = "keyspace".getBytes();
     public static final byte[] ALL = "all".getBytes();
     public static final byte[] CONFIG = "config".getBytes();
     public static final byte[] GET = "get".getBytes();
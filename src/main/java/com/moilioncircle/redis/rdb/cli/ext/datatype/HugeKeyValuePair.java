@@ -0,0 +1,41 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.rdb.cli.ext.datatype;
+
+import com.moilioncircle.redis.rdb.cli.util.ByteBuffers;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+
+/**
+ * @author Baoyi Chen
+ */
+public class HugeKeyValuePair extends KeyValuePair<byte[], ByteBuffers> {
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * source rdb version of the value. value is a dump payload that may be stored in a temp file.
+     */
+    private int version;
+    
+    public int getVersion() {
+        return version;
+    }
+    
+    public void setVersion(int version) {
+        this.version = version;
+    }
+}
@@ -18,13 +18,16 @@ package com.moilioncircle.redis.rdb.cli.ext.rct;
 
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 
 import com.moilioncircle.redis.rdb.cli.api.format.escape.Escaper;
 import com.moilioncircle.redis.rdb.cli.cmd.Args;
 import com.moilioncircle.redis.rdb.cli.conf.Configure;
 import com.moilioncircle.redis.rdb.cli.ext.datatype.DummyKeyValuePair;
+import com.moilioncircle.redis.rdb.cli.ext.rct.support.NodeMerger;
 import com.moilioncircle.redis.rdb.cli.ext.visitor.BaseRdbVisitor;
 import com.moilioncircle.redis.rdb.cli.util.Outputs;
 import com.moilioncircle.redis.replicator.Replicator;
@@ -43,16 +46,45 @@ public abstract class AbstractRctRdbVisitor extends BaseRdbVisitor {
 	protected Escaper escaper;
 	protected OutputStream out;
 	
+	/**
+	 * null if source is not a redis cluster
+	 */
+	protected NodeMerger merger;
+	protected int part;
+	
 	public AbstractRctRdbVisitor(Replicator replicator, Configure configure, Args.RctArgs args, Escaper escaper) {
 		super(replicator, configure, args.filter);
 		this.escaper = escaper;
+		this.merger = args.merger;
+		if (merger != null) this.part = merger.join();
 		replicator.addEventListener((rep, event) -> {
 			if (event instanceof PreRdbSyncEvent) {
 				Outputs.closeQuietly(this.out);
-				this.out = Outputs.newBufferedOutput(args.output, configure.getOutputBufferSize());
+				open(args.output);
+			}
+		});
+		replicator.addCloseListener(rep -> {
+			if (merger != null) {
+				// the node failed before rdb sync
+				if (out == null) open(args.output);
+				// null if the node finished or other nodes are running
+				List<AbstractRctRdbVisitor> visitors = merger.drop(this);
+				if (visitors != null) export(visitors);
 			}
+			Outputs.closeQuietly(out);
 		});
-		replicator.addCloseListener(rep -> Outputs.closeQuietly(out));
+	}
+	
+	protected void open(File output) {
+		this.out = Outputs.newBufferedOutput(output, configure.getOutputBufferSize());
+	}
+	
+	/**
+	 * exports the merged result of a cluster source to the part of this node that failed.
+	 *
+	 * @param visitors visitors of the finished nodes
+	 */
+	protected void export(List<AbstractRctRdbVisitor> visitors) {
 	}
 	
 	protected void delimiter(OutputStream out) {
@@ -82,14 +82,34 @@ public class CountRdbVisitor extends AbstractRctRdbVisitor implements EventListe
         Outputs.write('\n', out);
     }
     
+    private void export(Map<String, Long> counter) {
+        if (configure.getExportFileFormat() == FileType.CSV) {
+            exportCsv(counter);
+        } else if (configure.getExportFileFormat() == FileType.JSONL) {
+            exportJsonl(counter);
+        }
+    }
+    
+    @Override
+    protected void export(List<AbstractRctRdbVisitor> visitors) {
+        Map<String, Long> counter = new HashMap<>();
+        for (AbstractRctRdbVisitor visitor : visitors) {
+            for (Map.Entry<String, Long> entry : ((CountRdbVisitor) visitor).counter.entrySet()) {
+                counter.merge(entry.getKey(), entry.getValue(), Long::sum);
+            }
+        }
+        export(counter);
+    }
+    
     @Override
     public void onEvent(Replicator replicator, Event event) {
         if (event instanceof PostRdbSyncEvent || event instanceof PreCommandSyncEvent) {
-            if (configure.getExportFileFormat() == FileType.CSV) {
-                exportCsv(counter);
-            } else if (configure.getExportFileFormat() == FileType.JSONL) {
-                exportJsonl(counter);
+            if (merger == null) {
+                export(counter);
+                return;
             }
+            List<AbstractRctRdbVisitor> visitors = merger.merge(this);
+            if (visitors != null) export(visitors);
         }
     }
 
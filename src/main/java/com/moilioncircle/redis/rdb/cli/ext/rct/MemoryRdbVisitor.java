@@ -34,8 +34,10 @@ import static com.moilioncircle.redis.replicator.rdb.datatype.ExpiredType.MS;
 import static com.moilioncircle.redis.replicator.rdb.datatype.ExpiredType.NONE;
 import static java.lang.System.currentTimeMillis;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
 
@@ -87,8 +89,10 @@ public class MemoryRdbVisitor extends AbstractRctRdbVisitor implements Consumer<
 	
 	//
 	private long totalMemory = 0;
+	private long usedMemory = 0;
 	private boolean rdb6 = true;
 	private Map<Long, Tuple2<Long, Long>> dbInfo = new LinkedHashMap<>();
+	private Map<Long, Tuple2<Long, Long>> resizeInfo = new LinkedHashMap<>();
 	
 	//noinspection ThisEscapedInObjectConstruction
 	public MemoryRdbVisitor(Replicator replicator, Configure configure, Args.RctArgs args, Escaper escaper) {
@@ -99,6 +103,22 @@ public class MemoryRdbVisitor extends AbstractRctRdbVisitor implements Consumer<
 		this.heap = new MaximHeap<>(args.largest);
 		this.heap.setConsumer(this);
 		this.replicator.addEventListener(this);
+		// a failed node never synced
+		this.replicator.addCloseListener(rep -> close());
+	}
+	
+	@Override
+	protected void open(File output) {
+		super.open(output);
+		if (configure.getExportFileFormat() == FileType.CSV && part == 0) {
+			// csv header
+			exportCsvHeader();
+		}
+	}
+	
+	private void close() {
+		MonitorManager.closeQuietly(manager);
+		this.manager = null;
 	}
 	
 	private void exportJsonl(XTuple2 tuple) {
@@ -216,41 +236,92 @@ public class MemoryRdbVisitor extends AbstractRctRdbVisitor implements Consumer<
 			}
 		} else if (event instanceof PostRdbSyncEvent || event instanceof PreCommandSyncEvent) {
 			
-			for (XTuple2 tuple : heap.get(true)) {
-				accept(tuple);
-				//
-				DummyKeyValuePair kv = tuple.getV2();
-				String[] properties = new String[4];
-				properties[0] = new String(kv.getKey());
-				properties[1] = parse(kv.getValueRdbType()).getValue();
-				properties[2] = String.valueOf(kv.getDb().getDbNumber());
-				properties[3] = String.valueOf(kv.getLength());
-				MONITOR.set(MEMORY_BIG_KEY, properties, tuple.getV1());
-			}
-			
-			if (rdb6) {
-				MONITOR.set(MEMORY_TOTAL_MEMORY, totalMemory);
-				for (Map.Entry<Long, Tuple2<Long, Long>> entry : dbInfo.entrySet()) {
-					String property = String.valueOf(entry.getKey());
-					MONITOR.set(MEMORY_DB_NUMBERS, property, entry.getValue().getV1());
-					MONITOR.set(MEMORY_DB_EXPIRES, property, entry.getValue().getV2());
+			if (merger != null) {
+				List<AbstractRctRdbVisitor> visitors = merger.merge(this);
+				if (visitors == null) {
+					close();
+					return;
 				}
+				merge(visitors);
 			}
-			
-			MonitorManager.closeQuietly(manager);
+			export();
 		} else if (event instanceof PreRdbSyncEvent) {
-			if (configure.getExportFileFormat() == FileType.CSV) {
-				// csv header
-				exportCsvHeader();
-			}
-			//
-			manager.reset(MEMORY_MEASUREMENTS);
+			// nodes of a cluster source report to the same measurement, it was reset when opened
+			if (merger == null) manager.reset(MEMORY_MEASUREMENTS);
 		} else if (event instanceof AuxField) {
 			AuxField aux = (AuxField) event;
 			if (aux.getAuxKey().equals("used-mem")) {
-				MONITOR.set(MEMORY_TOTAL_MEMORY, Long.parseLong(aux.getAuxValue()));
+				usedMemory = Long.parseLong(aux.getAuxValue());
+				MONITOR.set(MEMORY_TOTAL_MEMORY, usedMemory);
+			}
+		}
+	}
+	
+	private void export() {
+		for (XTuple2 tuple : heap.get(true)) {
+			accept(tuple);
+			//
+			DummyKeyValuePair kv = tuple.getV2();
+			String[] properties = new String[4];
+			properties[0] = new String(kv.getKey());
+			properties[1] = parse(kv.getValueRdbType()).getValue();
+			properties[2] = String.valueOf(kv.getDb().getDbNumber());
+			properties[3] = String.valueOf(kv.getLength());
+			MONITOR.set(MEMORY_BIG_KEY, properties, tuple.getV1());
+		}
+		
+		if (rdb6) {
+			MONITOR.set(MEMORY_TOTAL_MEMORY, totalMemory);
+			for (Map.Entry<Long, Tuple2<Long, Long>> entry : dbInfo.entrySet()) {
+				String property = String.valueOf(entry.getKey());
+				MONITOR.set(MEMORY_DB_NUMBERS, property, entry.getValue().getV1());
+				MONITOR.set(MEMORY_DB_EXPIRES, property, entry.getValue().getV2());
 			}
 		}
+		
+		close();
+	}
+		
+	@Override
+	protected void export(List<AbstractRctRdbVisitor> visitors) {
+		// drop the partial result of the failed node
+		heap.clear();
+		rdb6 = true;
+		totalMemory = 0L;
+		usedMemory = 0L;
+		dbInfo.clear();
+		resizeInfo.clear();
+		merge(visitors);
+		export();
+	}
+	
+	/**
+	 * merges the results of the other nodes of a cluster source to this one that finished at last.
+	 */
+	private void merge(List<AbstractRctRdbVisitor> visitors) {
+		for (AbstractRctRdbVisitor v : visitors) {
+			if (v == this) continue;
+			MemoryRdbVisitor visitor = (MemoryRdbVisitor) v;
+			// empty without --largest, every node exported its keys already
+			for (XTuple2 tuple : visitor.heap.get(false)) heap.add(tuple);
+			rdb6 &= visitor.rdb6;
+			totalMemory += visitor.totalMemory;
+			usedMemory += visitor.usedMemory;
+			merge(dbInfo, visitor.dbInfo);
+			merge(resizeInfo, visitor.resizeInfo);
+		}
+		if (usedMemory > 0) MONITOR.set(MEMORY_TOTAL_MEMORY, usedMemory);
+		for (Map.Entry<Long, Tuple2<Long, Long>> entry : resizeInfo.entrySet()) {
+			String property = String.valueOf(entry.getKey());
+			MONITOR.set(MEMORY_DB_NUMBERS, property, entry.getValue().getV1());
+			MONITOR.set(MEMORY_DB_EXPIRES, property, entry.getValue().getV2());
+		}
+	}
+	
+	private static void merge(Map<Long, Tuple2<Long, Long>> to, Map<Long, Tuple2<Long, Long>> from) {
+		for (Map.Entry<Long, Tuple2<Long, Long>> entry : from.entrySet()) {
+			to.merge(entry.getKey(), entry.getValue(), (v1, v2) -> Tuples.of(v1.getV1() + v2.getV1(), v1.getV2() + v2.getV2()));
+		}
 	}
 	
 	@Override
@@ -267,6 +338,7 @@ public class MemoryRdbVisitor extends AbstractRctRdbVisitor implements Consumer<
 		String property = String.valueOf(db.getDbNumber());
 		MONITOR.set(MEMORY_DB_NUMBERS, property, db.getDbsize());
 		MONITOR.set(MEMORY_DB_EXPIRES, property, db.getExpires());
+		resizeInfo.put(db.getDbNumber(), Tuples.of(db.getDbsize(), db.getExpires()));
 		return db;
 	}
 	
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.rdb.cli.ext.rct.support;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * shared by the visitors of the nodes of a cluster source. every visitor writes its own part of output, the parts
+ * are concatenated by the order that visitors joined. a visitor that aggregates keys (e.g. count, top n of mem)
+ * hands itself to {@link #merge(Object)} when its node finished, and the last one exports the merged result.
+ * a node that failed is dropped by {@link #drop(Object)}, the result of the other nodes is still exported.
+ *
+ * @author Baoyi Chen
+ */
+public class NodeMerger {
+    
+    private static final Logger logger = LoggerFactory.getLogger(NodeMerger.class);
+    
+    private int failed;
+    private int parties;
+    private final Set<Object> results = new LinkedHashSet<>();
+    
+    /**
+     * @return index of the part of the visitor
+     */
+    public synchronized int join() {
+        return parties++;
+    }
+    
+    /**
+     * @param result result of a finished node
+     * @param <T> type of result
+     * @return results of the finished nodes if the caller is the last one, otherwise null
+     */
+    public synchronized <T> List<T> merge(T result) {
+        if (!results.add(result)) return null;
+        return complete();
+    }
+    
+    /**
+     * @param result result of a closed node, ignored if the node finished
+     * @param <T> type of result
+     * @return results of the finished nodes if the caller is the last one, otherwise null
+     */
+    public synchronized <T> List<T> drop(T result) {
+        if (results.contains(result)) return null;
+        failed++;
+        return complete();
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <T> List<T> complete() {
+        if (results.isEmpty() || results.size() + failed != parties) return null;
+        if (failed > 0) logger.warn("{} of {} nodes failed, exported the merged result of the other nodes", failed, parties);
+        return new ArrayList<>((Set<T>) results);
+    }
+}
@@ -16,42 +16,139 @@
 
 package com.moilioncircle.redis.rdb.cli.ext.rmt;
 
+import static com.moilioncircle.redis.rdb.cli.conf.NodeConfParser.slot;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.DEL;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.HMSET;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.PEXPIREAT;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RENAME;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RENAMENX;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RPUSH;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.SADD;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.ZADD;
+import static com.moilioncircle.redis.rdb.cli.glossary.Measures.ENDPOINT_FAILURE;
 import static com.moilioncircle.redis.rdb.cli.glossary.Measures.ENDPOINT_MEASUREMENTS;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_LISTPACK;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPMAP;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_ZIPLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_MODULE;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_MODULE_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET_INTSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STRING;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_LISTPACK;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_ZIPLIST;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.moilioncircle.redis.rdb.cli.api.format.escape.Escaper;
 import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.ext.DumpRawByteListener;
+import com.moilioncircle.redis.rdb.cli.ext.datatype.DummyKeyValuePair;
+import com.moilioncircle.redis.rdb.cli.ext.datatype.HugeKeyValuePair;
+import com.moilioncircle.redis.rdb.cli.ext.datatype.RawKeyValuePair;
 import com.moilioncircle.redis.rdb.cli.ext.escape.RawEscaper;
 import com.moilioncircle.redis.rdb.cli.ext.visitor.BaseRdbVisitor;
 import com.moilioncircle.redis.rdb.cli.filter.Filter;
+import com.moilioncircle.redis.rdb.cli.monitor.Monitor;
+import com.moilioncircle.redis.rdb.cli.monitor.MonitorFactory;
+import com.moilioncircle.redis.rdb.cli.io.ByteBuffersInputStream;
+import com.moilioncircle.redis.rdb.cli.io.LayeredOutputStream;
 import com.moilioncircle.redis.rdb.cli.monitor.MonitorManager;
+import com.moilioncircle.redis.rdb.cli.net.protocol.RedisObject;
+import com.moilioncircle.redis.rdb.cli.util.ByteBuffers;
+import com.moilioncircle.redis.replicator.AbstractReplicator;
 import com.moilioncircle.redis.replicator.Replicator;
 import com.moilioncircle.redis.replicator.event.Event;
 import com.moilioncircle.redis.replicator.io.RedisInputStream;
 import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
 import com.moilioncircle.redis.replicator.rdb.dump.DumpRdbValueVisitor;
 import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpFunction;
 import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.iterable.ValueIterableRdbValueVisitor;
+import com.moilioncircle.redis.replicator.util.ByteBuilder;
 
 /**
  * @author Baoyi Chen
  */
 public abstract class AbstractRmtRdbVisitor extends BaseRdbVisitor {
 	
+	private static final Logger logger = LoggerFactory.getLogger(AbstractRmtRdbVisitor.class);
+	private static final Monitor MONITOR = MonitorFactory.getMonitor("endpoint");
+	
 	protected final boolean flush;
 	protected final boolean replace;
+	protected final int hugeKeySize;
 	protected final MonitorManager manager;
 	protected final Escaper raw = new RawEscaper();
 	protected final DumpRdbValueVisitor valueVisitor;
+	protected final Checkpoint checkpoint;
+	
+	/*
+	 * re-encodes the values captured by doApplyHuge.
+	 */
+	private final Recoder recoder = new Recoder();
+	private final DumpRdbValueVisitor recodeVisitor;
+	
+	private long base;
+	private long mark;
+	private RedisInputStream in;
+	private final ThreadLocal<List<Long>> offsets = new ThreadLocal<>();
 	
-	public AbstractRmtRdbVisitor(Replicator replicator, Configure configure, Filter filter, boolean replace) {
+	public AbstractRmtRdbVisitor(Replicator replicator, Configure configure, Filter filter, boolean replace, Checkpoint checkpoint) {
 		super(replicator, configure, filter);
 		this.replace = replace;
+		this.checkpoint = checkpoint;
 		this.flush = configure.isMigrateFlush();
+		this.hugeKeySize = configure.getMigrateHugeKeySize();
 		this.manager = new MonitorManager(configure);
 		this.manager.open(ENDPOINT_MEASUREMENTS);
 		this.valueVisitor = new DumpRdbValueVisitor(replicator, configure.getDumpRdbVersion(), configure.getOutputBufferSize());
+		this.recodeVisitor = new DumpRdbValueVisitor(recoder, configure.getDumpRdbVersion(), configure.getOutputBufferSize());
+		// keys of scan are dispatched by ScanReplicator, and the cursors are resumed by itself
+		if (checkpoint != null && !(replicator instanceof ScanReplicator)) {
+			this.filter = resume(filter, checkpoint.getOffset());
+			// must be added before the async listener of sub class. so that the key is pending before worker acks it.
+			this.replicator.addEventListener((rep, event) -> {
+				if (event instanceof KeyValuePair<?, ?>) checkpoint.dispatch((KeyValuePair<?, ?>) event, mark, position(in) - base);
+			});
+		}
+	}
+	
+	@Override
+	public String applyMagic(RedisInputStream in) throws IOException {
+		this.in = in;
+		this.base = position(in);
+		return super.applyMagic(in);
+	}
+	
+	/**
+	 * redis drops expired keys on RESTORE anyway, so they are skipped before the value is read.
+	 */
+	@Override
+	protected boolean isExpired(ContextKeyValuePair context, byte[] key) {
+		Long ms = getExpiredMs(context);
+		if (ms == null || ms > System.currentTimeMillis()) return false;
+		MONITOR.add(ENDPOINT_FAILURE, "expired", 1);
+		logger.debug("failure[expired] [{}]", new String(key));
+		return true;
 	}
 	
 	@Override
@@ -66,155 +163,596 @@ public abstract class AbstractRmtRdbVisitor extends BaseRdbVisitor {
 		return function;
 	}
 	
+	/**
+	 * the encoding of string is same in all rdb versions, so it is always copied as raw bytes. its length is
+	 * known by the length prefix, a string out of --min-bytes and --max-bytes is skipped without being read.
+	 */
 	@Override
 	protected Event doApplyString(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
-		DumpKeyValuePair dump = new DumpKeyValuePair();
-		dump.setKey(key);
-		dump.setValue(valueVisitor.applyString(in, version));
-		return context.valueOf(dump);
+		LayeredOutputStream out = new LayeredOutputStream(configure, configure.getMaxOutputBufferSize());
+		boolean contains;
+		try {
+			long length;
+			DumpRawByteListener listener = new DumpRawByteListener(replicator, getVersion(version), out, raw);
+			try {
+				listener.write((byte) type);
+				length = getStringLength(in);
+				// payload of DUMP : type, length prefix, value, rdb version and crc
+				contains = filter.containsBytes(out.size() + length + 10);
+				if (contains) in.skip(length); // copied by listener
+			} finally {
+				listener.close();
+			}
+			if (!contains) in.skip(length);
+		} catch (IOException | RuntimeException e) {
+			out.close();
+			throw e;
+		}
+		
+		if (!contains) {
+			out.close();
+			return context.valueOf(new DummyKeyValuePair());
+		}
+		RawKeyValuePair kv = new RawKeyValuePair();
+		kv.setKey(key);
+		kv.setValueRdbType(type);
+		kv.setValue(out.toByteBuffers());
+		return context.valueOf(kv);
 	}
 	
 	@Override
 	protected Event doApplyList(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version) || hugeKeySize > 0) return doApplyHuge(in, version, key, type, context);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyList(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplySet(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version) || hugeKeySize > 0) return doApplyHuge(in, version, key, type, context);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applySet(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyZSet(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version) || hugeKeySize > 0) return doApplyHuge(in, version, key, type, context);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyZSet(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyZSet2(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version) || hugeKeySize > 0) return doApplyHuge(in, version, key, type, context);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyZSet2(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyHash(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version) || hugeKeySize > 0) return doApplyHuge(in, version, key, type, context);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyHash(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyHashZipMap(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version)) return doApplyRaw(in, version, key, type, context, false);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyHashZipMap(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyListZipList(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version)) return doApplyRaw(in, version, key, type, context, false);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyListZipList(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplySetIntSet(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version)) return doApplyRaw(in, version, key, type, context, false);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applySetIntSet(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyZSetZipList(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version)) return doApplyRaw(in, version, key, type, context, false);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyZSetZipList(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyZSetListPack(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version)) return doApplyRaw(in, version, key, type, context, false);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyZSetListPack(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyHashZipList(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version)) return doApplyRaw(in, version, key, type, context, false);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyHashZipList(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyHashListPack(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version)) return doApplyRaw(in, version, key, type, context, false);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyHashListPack(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyListQuickList(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version) || hugeKeySize > 0) return doApplyHuge(in, version, key, type, context);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyListQuickList(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyListQuickList2(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version) || hugeKeySize > 0) return doApplyHuge(in, version, key, type, context);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyListQuickList2(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyModule(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version)) return doApplyRaw(in, version, key, type, context, false);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyModule(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyModule2(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version)) return doApplyRaw(in, version, key, type, context, false);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyModule2(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyStreamListPacks(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version)) return doApplyRaw(in, version, key, type, context, false);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyStreamListPacks(in, version));
-		return context.valueOf(dump);
+		return valueOf(context, dump);
 	}
 	
 	@Override
 	protected Event doApplyStreamListPacks2(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		if (passthrough(version)) return doApplyRaw(in, version, key, type, context, false);
 		DumpKeyValuePair dump = new DumpKeyValuePair();
 		dump.setKey(key);
 		dump.setValue(valueVisitor.applyStreamListPacks2(in, version));
+		return valueOf(context, dump);
+	}
+	
+	/**
+	 * send command to the node that owns the key.
+	 */
+	protected abstract void batch(byte[] key, byte[] command, byte[]... args);
+	
+	/**
+	 * send command to the node that owns the key and wait for the reply.
+	 */
+	protected abstract RedisObject send(byte[] key, byte[] command, byte[]... args);
+	
+	/**
+	 * flush commands of current worker and wait for the replies.
+	 */
+	protected abstract void flushQuietly();
+	
+	/**
+	 * called by worker after the key was sent. every migrate_batch_size keys the worker flushes
+	 * its endpoints and acknowledges the keys to checkpoint.
+	 */
+	protected void ack(Event event) {
+		if (checkpoint == null) return;
+		if (!(event instanceof KeyValuePair<?, ?>) || event instanceof DummyKeyValuePair) return;
+		List<Long> offsets = this.offsets.get();
+		if (offsets == null) this.offsets.set(offsets = new ArrayList<>());
+		offsets.add(((KeyValuePair<?, ?>) event).getContext().getOffsets().getV1());
+		if (offsets.size() >= configure.getMigrateBatchSize()) {
+			flushQuietly();
+			ack();
+		}
+	}
+	
+	/**
+	 * acknowledge flushed keys of current worker to checkpoint.
+	 */
+	protected void ack() {
+		List<Long> offsets = this.offsets.get();
+		if (checkpoint == null || offsets == null) return;
+		checkpoint.ack(offsets);
+		offsets.clear();
+	}
+	
+	/**
+	 * record the mark of current key for checkpoint. keys before offset were acknowledged by target
+	 * in previous run, skip them without parsing value.
+	 */
+	private Filter resume(Filter filter, long offset) {
+		return new Filter() {
+			@Override
+			public boolean contains(long db) {
+				return filter.contains(db);
+			}
+			
+			@Override
+			public boolean contains(long db, int type, String key) {
+				// mark is inside current key. all keys with mark less than offset were acknowledged.
+				mark = position(in) - base;
+				return mark >= offset && filter.contains(db, type, key);
+			}
+			
+			@Override
+			public boolean containsBytes(long bytes) {
+				return filter.containsBytes(bytes);
+			}
+		};
+	}
+	
+	/**
+	 * bytes consumed by rdb parser.
+	 */
+	private static long position(RedisInputStream in) {
+		return in.total() - (in.tail() - in.head());
+	}
+	
+	/**
+	 * source rdb version equals to dump rdb version. copy raw bytes to dump payload without re-encoding.
+	 */
+	protected boolean passthrough(int version) {
+		return getVersion(version) == version;
+	}
+	
+	protected Event doApplyRaw(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context, boolean huge) throws IOException {
+		huge &= hugeKeySize > 0;
+		int max = configure.getMaxOutputBufferSize();
+		LayeredOutputStream out = new LayeredOutputStream(configure, huge ? Math.min(hugeKeySize, max) : max);
+		try {
+			try (DumpRawByteListener listener = new DumpRawByteListener(replicator, version, out, raw)) {
+				listener.write((byte) type);
+				switch (type) {
+					case RDB_TYPE_STRING:
+						super.doApplyString(in, version, key, type, context);
+						break;
+					case RDB_TYPE_LIST:
+						super.doApplyList(in, version, key, type, context);
+						break;
+					case RDB_TYPE_SET:
+						super.doApplySet(in, version, key, type, context);
+						break;
+					case RDB_TYPE_ZSET:
+						super.doApplyZSet(in, version, key, type, context);
+						break;
+					case RDB_TYPE_ZSET_2:
+						super.doApplyZSet2(in, version, key, type, context);
+						break;
+					case RDB_TYPE_HASH:
+						super.doApplyHash(in, version, key, type, context);
+						break;
+					case RDB_TYPE_HASH_ZIPMAP:
+						super.doApplyHashZipMap(in, version, key, type, context);
+						break;
+					case RDB_TYPE_LIST_ZIPLIST:
+						super.doApplyListZipList(in, version, key, type, context);
+						break;
+					case RDB_TYPE_SET_INTSET:
+						super.doApplySetIntSet(in, version, key, type, context);
+						break;
+					case RDB_TYPE_ZSET_ZIPLIST:
+						super.doApplyZSetZipList(in, version, key, type, context);
+						break;
+					case RDB_TYPE_ZSET_LISTPACK:
+						super.doApplyZSetListPack(in, version, key, type, context);
+						break;
+					case RDB_TYPE_HASH_ZIPLIST:
+						super.doApplyHashZipList(in, version, key, type, context);
+						break;
+					case RDB_TYPE_HASH_LISTPACK:
+						super.doApplyHashListPack(in, version, key, type, context);
+						break;
+					case RDB_TYPE_LIST_QUICKLIST:
+						super.doApplyListQuickList(in, version, key, type, context);
+						break;
+					case RDB_TYPE_LIST_QUICKLIST_2:
+						super.doApplyListQuickList2(in, version, key, type, context);
+						break;
+					case RDB_TYPE_MODULE:
+						super.doApplyModule(in, version, key, type, context);
+						break;
+					case RDB_TYPE_MODULE_2:
+						super.doApplyModule2(in, version, key, type, context);
+						break;
+					case RDB_TYPE_STREAM_LISTPACKS:
+						super.doApplyStreamListPacks(in, version, key, type, context);
+						break;
+					case RDB_TYPE_STREAM_LISTPACKS_2:
+						super.doApplyStreamListPacks2(in, version, key, type, context);
+						break;
+					default:
+						throw new AssertionError("unexpected value type:" + type);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			out.close();
+			throw e;
+		}
+		
+		huge &= out.size() > hugeKeySize;
+		// a value re-encoded by caller is checked after encoding
+		if ((huge || passthrough(version)) && !filter.containsBytes(out.size())) {
+			out.close();
+			return context.valueOf(new DummyKeyValuePair());
+		}
+		
+		if (huge) {
+			HugeKeyValuePair kv = new HugeKeyValuePair();
+			kv.setKey(key);
+			kv.setVersion(version);
+			kv.setValueRdbType(type);
+			kv.setValue(out.toByteBuffers());
+			return context.valueOf(kv);
+		}
+		
+		RawKeyValuePair kv = new RawKeyValuePair();
+		kv.setKey(key);
+		kv.setValueRdbType(type);
+		kv.setValue(out.toByteBuffers());
+		return context.valueOf(kv);
+	}
+	
+	/**
+	 * the split of migrate_huge_key_size doesn't depend on rdb version, the value is captured in source rdb version
+	 * first. if it is not huge and dump rdb version is different, it is re-encoded from the captured bytes.
+	 */
+	protected Event doApplyHuge(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+		Event event = doApplyRaw(in, version, key, type, context, true);
+		if (passthrough(version) || !(event instanceof RawKeyValuePair)) return event;
+		
+		try (ByteBuffers value = ((RawKeyValuePair) event).getValue()) {
+			RedisInputStream payload = recoder.open(value, configure.getOutputBufferSize());
+			payload.read(); // dump type
+			DumpKeyValuePair dump = new DumpKeyValuePair();
+			dump.setKey(key);
+			switch (type) {
+				case RDB_TYPE_LIST:
+					dump.setValue(recodeVisitor.applyList(payload, version));
+					break;
+				case RDB_TYPE_SET:
+					dump.setValue(recodeVisitor.applySet(payload, version));
+					break;
+				case RDB_TYPE_ZSET:
+					dump.setValue(recodeVisitor.applyZSet(payload, version));
+					break;
+				case RDB_TYPE_ZSET_2:
+					dump.setValue(recodeVisitor.applyZSet2(payload, version));
+					break;
+				case RDB_TYPE_HASH:
+					dump.setValue(recodeVisitor.applyHash(payload, version));
+					break;
+				case RDB_TYPE_LIST_QUICKLIST:
+					dump.setValue(recodeVisitor.applyListQuickList(payload, version));
+					break;
+				case RDB_TYPE_LIST_QUICKLIST_2:
+					dump.setValue(recodeVisitor.applyListQuickList2(payload, version));
+					break;
+				default:
+					throw new AssertionError("unexpected value type:" + type);
+			}
+			return valueOf(context, dump);
+		}
+	}
+	
+	/**
+	 * values re-encoded in another rdb version are checked by --min-bytes and --max-bytes after encoding.
+	 */
+	protected Event valueOf(ContextKeyValuePair context, DumpKeyValuePair dump) {
+		if (!filter.containsBytes(dump.getValue().length)) return context.valueOf(new DummyKeyValuePair());
 		return context.valueOf(dump);
 	}
+	
+	/*
+	 * step 1 : DEL temp
+	 * step 2 : RPUSH|SADD|ZADD|HMSET temp elements... (batch_size elements per command)
+	 * step 3 : PEXPIREAT temp ms
+	 * step 4 : RENAME temp key or RENAMENX temp key and DEL temp
+	 */
+	protected void restore(HugeKeyValuePair kv) throws IOException {
+		byte[] key = kv.getKey();
+		byte[] temp = temp(key);
+		batch(key, DEL, temp);
+		
+		ByteBuffers value = kv.getValue();
+		value.reset();
+		RedisInputStream in = new RedisInputStream(new ByteBuffersInputStream(value), configure.getOutputBufferSize());
+		ValueIterableRdbValueVisitor visitor = new ValueIterableRdbValueVisitor(replicator);
+		
+		int version = kv.getVersion();
+		int type = in.read(); // dump type
+		switch (type) {
+			case RDB_TYPE_LIST:
+				emit(key, RPUSH, temp, visitor.applyList(in, version));
+				break;
+			case RDB_TYPE_LIST_QUICKLIST:
+				emit(key, RPUSH, temp, visitor.applyListQuickList(in, version));
+				break;
+			case RDB_TYPE_LIST_QUICKLIST_2:
+				emit(key, RPUSH, temp, visitor.applyListQuickList2(in, version));
+				break;
+			case RDB_TYPE_SET:
+				emit(key, SADD, temp, visitor.applySet(in, version));
+				break;
+			case RDB_TYPE_ZSET:
+				emitZSet(key, temp, visitor.applyZSet(in, version));
+				break;
+			case RDB_TYPE_ZSET_2:
+				emitZSet(key, temp, visitor.applyZSet2(in, version));
+				break;
+			case RDB_TYPE_HASH:
+				emitHash(key, temp, visitor.applyHash(in, version));
+				break;
+			default:
+				throw new AssertionError("unexpected value type:" + type);
+		}
+		
+		if (kv.getExpiredMs() != null) {
+			batch(key, PEXPIREAT, temp, String.valueOf(kv.getExpiredMs()).getBytes());
+		}
+		
+		if (replace) {
+			batch(key, RENAME, temp, key);
+		} else {
+			// the same as RESTORE without REPLACE, an existing key is not overwritten
+			RedisObject r = send(key, RENAMENX, temp, key);
+			batch(key, DEL, temp);
+			if (r == null || r.type.isError()) {
+				MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
+				logger.error("failure[failed] [{}], reason: {}", new String(key), r == null ? "no reply" : r.getString());
+			} else if (r.type.isNumber() && r.getNumber() == 0L) {
+				MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
+				logger.error("failure[failed] [{}], reason: BUSYKEY Target key name already exists.", new String(key));
+			}
+		}
+	}
+	
+	private void emit(byte[] key, byte[] command, byte[] target, Iterator<byte[]> it) {
+		List<byte[]> args = new ArrayList<>();
+		args.add(target);
+		while (it.hasNext()) {
+			args.add(it.next());
+			if (args.size() > configure.getBatchSize()) {
+				batch(key, command, args.toArray(new byte[args.size()][]));
+				args.subList(1, args.size()).clear();
+			}
+		}
+		if (args.size() > 1) batch(key, command, args.toArray(new byte[args.size()][]));
+	}
+	
+	private void emitZSet(byte[] key, byte[] target, Iterator<ZSetEntry> it) {
+		List<byte[]> args = new ArrayList<>();
+		args.add(target);
+		while (it.hasNext()) {
+			ZSetEntry entry = it.next();
+			args.add(String.valueOf(entry.getScore()).getBytes());
+			args.add(entry.getElement());
+			if (args.size() > 2 * configure.getBatchSize()) {
+				batch(key, ZADD, args.toArray(new byte[args.size()][]));
+				args.subList(1, args.size()).clear();
+			}
+		}
+		if (args.size() > 1) batch(key, ZADD, args.toArray(new byte[args.size()][]));
+	}
+	
+	private void emitHash(byte[] key, byte[] target, Iterator<Map.Entry<byte[], byte[]>> it) {
+		List<byte[]> args = new ArrayList<>();
+		args.add(target);
+		while (it.hasNext()) {
+			Map.Entry<byte[], byte[]> entry = it.next();
+			args.add(entry.getKey());
+			args.add(entry.getValue());
+			if (args.size() > 2 * configure.getBatchSize()) {
+				batch(key, HMSET, args.toArray(new byte[args.size()][]));
+				args.subList(1, args.size()).clear();
+			}
+		}
+		if (args.size() > 1) batch(key, HMSET, args.toArray(new byte[args.size()][]));
+	}
+	
+	/**
+	 * temp key in the same slot as key.
+	 */
+	protected static byte[] temp(byte[] key) {
+		int st = -1, ed = -1;
+		boolean braced = false;
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] == '{' && st == -1) st = i;
+			if (key[i] == '}') braced = true;
+			if (key[i] == '}' && st >= 0 && ed == -1) ed = i;
+		}
+		byte[] suffix = ":rmt-huge-key".getBytes();
+		ByteBuilder builder = ByteBuilder.allocate(key.length + suffix.length + 16);
+		if (st >= 0 && ed > st + 1) {
+			// key has a hash tag, keep it
+			builder.put(key);
+		} else if (!braced && key.length > 0) {
+			builder.put((byte) '{');
+			builder.put(key);
+			builder.put((byte) '}');
+		} else {
+			// the slot is computed from the whole key, but {key} is not a valid tag. use a tag of the same slot.
+			builder.put((byte) '{');
+			builder.put(Tags.TAGS[slot(key)]);
+			builder.put((byte) '}');
+			builder.put(key);
+		}
+		builder.put(suffix);
+		return builder.array();
+	}
+	
+	/*
+	 * DumpRdbValueVisitor copies raw bytes by the raw byte listeners of replicator. this replicator passes the bytes
+	 * of a captured value to them instead of the bytes of source.
+	 */
+	private static final class Recoder extends AbstractReplicator {
+		private RedisInputStream open(ByteBuffers value, int size) {
+			RedisInputStream in = new RedisInputStream(new ByteBuffersInputStream(value), size);
+			in.setRawByteListeners(rawByteListeners);
+			return in;
+		}
+	}
+	
+	/*
+	 * a short hash tag of every slot.
+	 */
+	private static final class Tags {
+		private static final byte[][] TAGS = new byte[16384][];
+		
+		static {
+			for (int i = 0, covered = 0; covered < TAGS.length; i++) {
+				byte[] tag = String.valueOf(i).getBytes();
+				short slot = slot(tag);
+				if (TAGS[slot] != null) continue;
+				TAGS[slot] = tag;
+				covered++;
+			}
+		}
+	}
 }
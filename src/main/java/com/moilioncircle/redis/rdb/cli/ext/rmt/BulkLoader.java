@@ -0,0 +1,222 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.rdb.cli.ext.rmt;
+
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.CLUSTER;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.INFO;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.KEYSPACE;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.NODES;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.NO_ONE;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.PERSISTENCE;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.REPLICAOF;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.REPLICATION;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.SLAVEOF;
+import static com.moilioncircle.redis.rdb.cli.ext.rmonitor.support.XStandaloneRedisInfo.extract;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.moilioncircle.redis.rdb.cli.cmd.Args;
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.filter.Filter;
+import com.moilioncircle.redis.rdb.cli.glossary.Action;
+import com.moilioncircle.redis.rdb.cli.net.impl.XEndpoint;
+import com.moilioncircle.redis.rdb.cli.net.protocol.Protocol;
+import com.moilioncircle.redis.rdb.cli.net.protocol.RedisObject;
+import com.moilioncircle.redis.rdb.cli.util.ProgressBar;
+import com.moilioncircle.redis.replicator.RedisURI;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.Replicators;
+import com.moilioncircle.redis.replicator.event.PostRdbSyncEvent;
+import com.moilioncircle.redis.replicator.event.PreCommandSyncEvent;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.util.type.Tuple2;
+
+/**
+ * loads a rdb into an empty standalone redis by acting as its master for one full resync.
+ * <p>
+ * the target replicates from us with {@code REPLICAOF}, receives the rdb as the payload of
+ * {@code FULLRESYNC}, and is detached with {@code REPLICAOF NO ONE} after the rdb is loaded.
+ *
+ * @author Baoyi Chen
+ */
+public class BulkLoader {
+    
+    private static final Logger logger = LoggerFactory.getLogger(BulkLoader.class);
+    
+    private static final byte[] PING = "*1\r\n$4\r\nPING\r\n".getBytes();
+    
+    private final RedisURI uri;
+    private final ProgressBar bar;
+    private final Configure configure;
+    
+    public BulkLoader(RedisURI uri, Configure configure, ProgressBar bar) {
+        this.uri = uri;
+        this.bar = bar;
+        this.configure = configure;
+    }
+    
+    /**
+     * @param source source uri
+     * @param filter null if all keys of a rdb file are loaded, then the file is served as is
+     * @throws Exception if the target is not an empty standalone redis or the full resync failed
+     */
+    public void load(String source, Filter filter) throws Exception {
+        RedisURI src = new RedisURI(source);
+        boolean temporary = filter != null || src.getFileType() == null;
+        File file = temporary ? backup(source, filter) : new File(src.getPath());
+        try (XEndpoint endpoint = new XEndpoint(uri.getHost(), uri.getPort(), configure.merge(uri, false))) {
+            verify(endpoint);
+            try (ServerSocket server = new ServerSocket(0, 1, endpoint.getLocalAddress())) {
+                server.setSoTimeout(configure.getTimeout());
+                String host = server.getInetAddress().getHostAddress();
+                byte[] port = String.valueOf(server.getLocalPort()).getBytes();
+                RedisObject r = endpoint.send(REPLICAOF, host.getBytes(), port);
+                if (r.type.isError()) r = endpoint.send(SLAVEOF, host.getBytes(), port);
+                if (r.type.isError()) throw new IOException(r.getString());
+                try (Socket replica = server.accept()) {
+                    replica.setSoTimeout(configure.getTimeout());
+                    resync(replica, file);
+                    await(endpoint, replica);
+                } finally {
+                    endpoint.send(REPLICAOF, NO_ONE);
+                }
+            }
+        } finally {
+            if (temporary) Files.deleteIfExists(file.toPath());
+        }
+    }
+    
+    /**
+     * a filtered or remote source is saved to a temp rdb file first, the length of the payload must be known.
+     */
+    private File backup(String source, Filter filter) throws Exception {
+        File path = configure.getTempFilePath() == null ? null : new File(configure.getTempFilePath());
+        File file = File.createTempFile(configure.getTempFilePrefix(), ".rdb", path);
+        Args.RdtArgs arg = new Args.RdtArgs();
+        arg.backup = source;
+        arg.output = file;
+        arg.filter = filter;
+        try {
+            List<Tuple2<Replicator, String>> list = Action.BACKUP.dress(configure, arg);
+            for (Tuple2<Replicator, String> tuple : list) {
+                tuple.getV1().addEventListener((rep, event) -> {
+                    if (event instanceof PostRdbSyncEvent || event instanceof PreCommandSyncEvent) {
+                        Replicators.closeQuietly(rep);
+                    }
+                });
+                tuple.getV1().open();
+            }
+            return file;
+        } catch (Exception e) {
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        }
+    }
+    
+    private void verify(XEndpoint endpoint) {
+        String address = uri.getHost() + ":" + uri.getPort();
+        if (!endpoint.send(CLUSTER, NODES).type.isError()) {
+            // cluster nodes refuse replicaof
+            throw new UnsupportedOperationException("bulk load does not support cluster target " + address);
+        }
+        Map<String, String> keyspace = extract(endpoint.send(INFO, KEYSPACE).getString()).get("Keyspace");
+        if (keyspace != null && !keyspace.isEmpty()) {
+            throw new UnsupportedOperationException("bulk load requires an empty target, but " + address + " has " + keyspace.keySet());
+        }
+    }
+    
+    private void resync(Socket replica, File file) throws IOException {
+        Protocol protocol = new Protocol(new RedisInputStream(replica.getInputStream(), 1024), null);
+        OutputStream out = replica.getOutputStream();
+        while (true) {
+            RedisObject[] command = protocol.parse().getArray();
+            String name = command[0].getString();
+            if (name.equalsIgnoreCase("ping")) {
+                out.write("+PONG\r\n".getBytes());
+            } else if (name.equalsIgnoreCase("psync") || name.equalsIgnoreCase("sync")) {
+                if (name.equalsIgnoreCase("psync")) {
+                    out.write(("+FULLRESYNC " + replid() + " 0\r\n").getBytes());
+                }
+                break;
+            } else {
+                // auth, replconf
+                out.write("+OK\r\n".getBytes());
+            }
+            out.flush();
+        }
+        
+        out.write(("$" + file.length() + "\r\n").getBytes());
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+                bar.react(len);
+            }
+        }
+        out.flush();
+        logger.info("sent {} bytes of rdb to {}:{}", file.length(), uri.getHost(), uri.getPort());
+    }
+    
+    private void await(XEndpoint endpoint, Socket replica) throws Exception {
+        InputStream in = replica.getInputStream();
+        OutputStream out = replica.getOutputStream();
+        byte[] buf = new byte[1024];
+        replica.setSoTimeout(1000);
+        while (true) {
+            Map<String, Map<String, String>> info = extract(endpoint.send(INFO, REPLICATION).getString() + endpoint.send(INFO, PERSISTENCE).getString());
+            Map<String, String> replication = info.get("Replication");
+            Map<String, String> persistence = info.get("Persistence");
+            if (replication != null && "up".equals(replication.get("master_link_status"))
+                    && persistence != null && "0".equals(persistence.get("loading"))) {
+                return;
+            }
+            
+            // keep the link alive, and drain the acks of replica
+            out.write(PING);
+            out.flush();
+            try {
+                if (in.read(buf) == -1) {
+                    throw new EOFException("replica " + uri.getHost() + ":" + uri.getPort() + " closed the link before rdb loaded");
+                }
+            } catch (SocketTimeoutException e) {
+            }
+        }
+    }
+    
+    private static String replid() {
+        StringBuilder builder = new StringBuilder();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 40; i++) builder.append(Character.forDigit(random.nextInt(16), 16));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.rdb.cli.ext.rmt;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.moilioncircle.redis.rdb.cli.ext.datatype.DummyKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.util.CRC64;
+import com.moilioncircle.redis.replicator.util.Tuples;
+
+/**
+ * durable progress of rmt. all keys before the saved offset of source were acknowledged by target.
+ *
+ * @author Baoyi Chen
+ */
+public class Checkpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(Checkpoint.class);
+
+    private static final String HASH = "hash";
+    private static final String OFFSET = "offset";
+
+    private final Path path;
+    private final String hash;
+    private final long offset;
+    private final long interval;
+
+    private long last;
+    private long saved = -1L;
+    private volatile long dispatched;
+    private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<>();
+
+    protected Checkpoint(Path path, String hash, long offset, long interval) {
+        this.path = path;
+        this.hash = hash;
+        this.offset = offset;
+        this.interval = interval;
+        this.dispatched = offset;
+    }
+
+    public static Checkpoint valueOf(Path path, String hash, long interval, boolean resume) throws IOException {
+        long offset = 0L;
+        if (resume && Files.exists(path)) {
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(path, UTF_8)) {
+                properties.load(reader);
+            }
+            String prev = properties.getProperty(HASH);
+            if (prev != null && !prev.equals(hash)) {
+                throw new IOException("checkpoint " + path + " was saved with different source or options");
+            }
+            offset = Long.parseLong(properties.getProperty(OFFSET, "0"));
+        }
+        return new Checkpoint(path, hash, offset, interval);
+    }
+
+    /**
+     * @param parts source, target and options of rmt
+     * @return hash of parts. resume is refused if the hash changed.
+     */
+    public static String hash(Object... parts) {
+        StringBuilder builder = new StringBuilder();
+        for (Object part : parts) {
+            builder.append(part).append('\n');
+        }
+        return Long.toHexString(CRC64.crc64(builder.toString().getBytes(UTF_8)));
+    }
+
+    /**
+     * @return bytes of source to resume from. 0 if not resumed.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * called by rdb parser thread before the key is handed to workers.
+     *
+     * @param kv   the key
+     * @param mark bytes consumed when the key was read. it is inside the key.
+     * @param end  bytes consumed when the value was read.
+     */
+    public void dispatch(KeyValuePair<?, ?> kv, long mark, long end) {
+        // offsets of context don't count the bytes read in bulk. replace them.
+        kv.getContext().setOffsets(Tuples.of(mark, end));
+        // filtered and resumed keys are not sent to target
+        if (!(kv instanceof DummyKeyValuePair)) pending.add(mark);
+        dispatched = end;
+    }
+
+    /**
+     * called by workers after the commands of these keys were flushed. a key failed after all retries is
+     * never acknowledged, so the saved offset stays before it and --resume sends it again.
+     *
+     * @param offsets marks of acknowledged keys
+     */
+    public void ack(List<Long> offsets) {
+        for (Long offset : offsets) {
+            pending.remove(offset);
+        }
+        save(false);
+    }
+
+    public synchronized void save(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - last < interval) return;
+        last = now;
+
+        // read dispatched before pending. a key dispatched after that has a mark greater than it.
+        long next = dispatched;
+        Long first = pending.ceiling(Long.MIN_VALUE);
+        if (first != null) next = Math.min(next, first);
+
+        Properties properties = new Properties();
+        if (!store(properties, next)) return;
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, UTF_8)) {
+                properties.store(writer, null);
+            }
+            Files.move(temp, path, REPLACE_EXISTING, ATOMIC_MOVE);
+            saved = next;
+        } catch (IOException e) {
+            logger.error("failed to save checkpoint {}, reason: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * @param properties to save
+     * @param next       all keys before next were acknowledged
+     * @return false if nothing changed since last save
+     */
+    protected boolean store(Properties properties, long next) {
+        if (next <= saved) return false;
+        properties.setProperty(HASH, hash);
+        properties.setProperty(OFFSET, String.valueOf(next));
+        return true;
+    }
+}
@@ -23,6 +23,7 @@ import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.REST
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RESTORE_ASKING;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.ZERO;
 import static com.moilioncircle.redis.rdb.cli.glossary.Measures.ENDPOINT_FAILURE;
+import static com.moilioncircle.redis.rdb.cli.util.ByteBuffers.wrap;
 
 import java.io.IOException;
 import java.util.List;
@@ -32,13 +33,18 @@ import org.slf4j.LoggerFactory;
 
 import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosedCommand;
 import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosingCommand;
-import com.moilioncircle.redis.rdb.cli.api.sink.listener.AsyncEventListener;
 import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.ext.XAsyncEventListener;
+import com.moilioncircle.redis.rdb.cli.ext.datatype.HugeKeyValuePair;
+import com.moilioncircle.redis.rdb.cli.ext.datatype.RawKeyValuePair;
 import com.moilioncircle.redis.rdb.cli.filter.Filter;
 import com.moilioncircle.redis.rdb.cli.monitor.Monitor;
 import com.moilioncircle.redis.rdb.cli.monitor.MonitorFactory;
 import com.moilioncircle.redis.rdb.cli.monitor.MonitorManager;
+import com.moilioncircle.redis.rdb.cli.net.impl.Routes;
 import com.moilioncircle.redis.rdb.cli.net.impl.XEndpoints;
+import com.moilioncircle.redis.rdb.cli.net.protocol.RedisObject;
+import com.moilioncircle.redis.rdb.cli.util.ByteBuffers;
 import com.moilioncircle.redis.rdb.cli.util.XThreadFactory;
 import com.moilioncircle.redis.replicator.Configuration;
 import com.moilioncircle.redis.replicator.RedisURI;
@@ -57,43 +63,68 @@ public class ClusterRdbVisitor extends AbstractRmtRdbVisitor implements EventLis
     private static final Logger logger = LoggerFactory.getLogger(ClusterRdbVisitor.class);
     private static final Monitor MONITOR = MonitorFactory.getMonitor("endpoint");
 
+    private final int connections;
     private final List<String> lines;
     private final Configuration configuration;
-    private ThreadLocal<XEndpoints> endpoints = new ThreadLocal<>();
+    private ThreadLocal<XEndpoints[]> endpoints = new ThreadLocal<>();
+    
+    /*
+     * one slot routing table shared by the connections of all workers.
+     */
+    private Routes routes;
     
     //noinspection ThisEscapedInObjectConstruction
-    public ClusterRdbVisitor(Replicator replicator, Configure configure, Filter filter, RedisURI uri, List<String> lines, boolean replace) throws IOException {
-        super(replicator, configure, filter, replace);
+    public ClusterRdbVisitor(Replicator replicator, Configure configure, Filter filter, RedisURI uri, List<String> lines, boolean replace, Checkpoint checkpoint) throws IOException {
+        super(replicator, configure, filter, replace, checkpoint);
         this.lines = lines;
         this.configuration = configure.merge(uri, false);
-        this.replicator.addEventListener(new AsyncEventListener(this, replicator, configure.getMigrateThreads(), new XThreadFactory("sync-worker")));
+        this.connections = Math.max(configure.getMigrateConnections(), 1);
+        this.replicator.addEventListener(new XAsyncEventListener(this, replicator, configure, new XThreadFactory("sync-worker")));
     }
 
     @Override
     public void onEvent(Replicator replicator, Event event) {
         try {
+            boolean acked = true;
             if (event instanceof PreRdbSyncEvent) {
-                XEndpoints prev = this.endpoints.get();
-                XEndpoints.closeQuietly(prev);
-                List<String> nodes = prev != null ? prev.getClusterNodes() : lines;
+                XEndpoints[] prev = this.endpoints.get();
+                closeQuietly(prev);
                 int pipe = configure.getMigrateBatchSize();
                 try {
-                    this.endpoints.set(new XEndpoints(nodes, pipe, true, configuration));
+                    Routes routes = routes();
+                    XEndpoints[] next = new XEndpoints[connections];
+                    this.endpoints.set(next);
+                    for (int i = 0; i < connections; i++) {
+                        next[i] = new XEndpoints(routes, pipe, true, configuration);
+                    }
                 } catch (Throwable e) {
                     // unrecoverable error
                     System.out.println("failed to connect cluster nodes, reason : " + e.getMessage());
                     System.exit(-1);
                 }
             } else if (event instanceof DumpKeyValuePair) {
-                retry((DumpKeyValuePair)event, configure.getMigrateRetries());
+                acked = retry((DumpKeyValuePair)event, configure.getMigrateRetries());
+            } else if (event instanceof RawKeyValuePair) {
+                RawKeyValuePair kv = (RawKeyValuePair) event;
+                try (ByteBuffers value = kv.getValue()) {
+                    acked = retry(kv, configure.getMigrateRetries());
+                }
+            } else if (event instanceof HugeKeyValuePair) {
+                HugeKeyValuePair kv = (HugeKeyValuePair) event;
+                try (ByteBuffers value = kv.getValue()) {
+                    acked = retry(kv, configure.getMigrateRetries());
+                }
             } else if (event instanceof DumpFunction) {
                 retry((DumpFunction) event, configure.getMigrateRetries());
             } else if (event instanceof ClosingCommand) {
-                this.endpoints.get().flushQuietly();
-                XEndpoints.closeQuietly(this.endpoints.get());
+                flushQuietly();
+                ack();
+                closeQuietly(this.endpoints.get());
             } else if (event instanceof ClosedCommand) {
+                if (checkpoint != null) checkpoint.save(true);
                 MonitorManager.closeQuietly(manager);
             }
+            if (acked) ack(event);
         } catch (Throwable e) {
             // should not reach here, but if reach here ,please report an issue
             logger.error("report an issue with exception stack on https://github.com/leonchen83/redis-rdb-cli/issues", e);
@@ -102,7 +133,7 @@ public class ClusterRdbVisitor extends AbstractRmtRdbVisitor implements EventLis
         }
     }
 
-    public void retry(DumpKeyValuePair dkv, int times) {
+    public boolean retry(DumpKeyValuePair dkv, int times) {
         logger.trace("sync rdb event [{}], times {}", new String(dkv.getKey()), times);
         short slot = slot(dkv.getKey());
         try {
@@ -112,26 +143,126 @@ public class ClusterRdbVisitor extends AbstractRmtRdbVisitor implements EventLis
                 if (ms <= 0) {
                     MONITOR.add(ENDPOINT_FAILURE, "expired", 1);
                     logger.error("failure[expired] [{}]", new String(dkv.getKey()));
-                    return;
+                    return true;
                 }
                 expire = String.valueOf(ms).getBytes();
             }
 
             if (!replace) {
-                endpoints.get().batch(flush, slot, RESTORE_ASKING, dkv.getKey(), expire, dkv.getValue());
+                endpoints(slot).batch(flush, slot, RESTORE_ASKING, dkv.getKey(), expire, dkv.getValue());
             } else {
                 // https://github.com/leonchen83/redis-rdb-cli/issues/6 --no need to use lua script
-                endpoints.get().batch(flush, slot, RESTORE_ASKING, dkv.getKey(), expire, dkv.getValue(), REPLACE);
+                endpoints(slot).batch(flush, slot, RESTORE_ASKING, dkv.getKey(), expire, dkv.getValue(), REPLACE);
             }
         } catch (Throwable e) {
             times--;
             if (times >= 0 && flush) {
-                this.endpoints.get().updateQuietly(slot);
-                retry(dkv, times);
+                endpoints(slot).updateQuietly(slot);
+                return retry(dkv, times);
             } else {
                 MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
                 logger.error("failure[failed] [{}], reason: {}", new String(dkv.getKey()), e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public boolean retry(RawKeyValuePair kv, int times) {
+        logger.trace("sync rdb raw event [{}], times {}", new String(kv.getKey()), times);
+        short slot = slot(kv.getKey());
+        try {
+            byte[] expire = ZERO;
+            if (kv.getExpiredMs() != null) {
+                long ms = kv.getExpiredMs() - System.currentTimeMillis();
+                if (ms <= 0) {
+                    MONITOR.add(ENDPOINT_FAILURE, "expired", 1);
+                    logger.error("failure[expired] [{}]", new String(kv.getKey()));
+                    return true;
+                }
+                expire = String.valueOf(ms).getBytes();
+            }
+            
+            ByteBuffers value = kv.getValue();
+            value.reset();
+            if (!replace) {
+                endpoints(slot).batch(flush, slot, wrap(RESTORE_ASKING), wrap(kv.getKey()), wrap(expire), value);
+            } else {
+                endpoints(slot).batch(flush, slot, wrap(RESTORE_ASKING), wrap(kv.getKey()), wrap(expire), value, wrap(REPLACE));
+            }
+        } catch (Throwable e) {
+            times--;
+            if (times >= 0 && flush) {
+                endpoints(slot).updateQuietly(slot);
+                return retry(kv, times);
+            } else {
+                MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
+                logger.error("failure[failed] [{}], reason: {}", new String(kv.getKey()), e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public boolean retry(HugeKeyValuePair kv, int times) {
+        logger.trace("sync rdb huge event [{}], times {}", new String(kv.getKey()), times);
+        short slot = slot(kv.getKey());
+        try {
+            if (kv.getExpiredMs() != null && kv.getExpiredMs() <= System.currentTimeMillis()) {
+                MONITOR.add(ENDPOINT_FAILURE, "expired", 1);
+                logger.error("failure[expired] [{}]", new String(kv.getKey()));
+                return true;
             }
+            restore(kv);
+        } catch (Throwable e) {
+            times--;
+            if (times >= 0 && flush) {
+                endpoints(slot).updateQuietly(slot);
+                return retry(kv, times);
+            } else {
+                MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
+                logger.error("failure[failed] [{}], reason: {}", new String(kv.getKey()), e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    protected void batch(byte[] key, byte[] command, byte[]... args) {
+        short slot = slot(key);
+        endpoints(slot).batch(flush, slot, command, args);
+    }
+    
+    @Override
+    protected RedisObject send(byte[] key, byte[] command, byte[]... args) {
+        short slot = slot(key);
+        return endpoints(slot).send(command, args);
+    }
+    
+    @Override
+    protected void flushQuietly() {
+        for (XEndpoints e : this.endpoints.get()) {
+            e.flushQuietly();
+        }
+    }
+    
+    private synchronized Routes routes() {
+        if (routes == null) routes = new Routes(lines);
+        return routes;
+    }
+    
+    /**
+     * keys are assigned to connections by slot. so that the commands of the same key are sent in order.
+     */
+    private XEndpoints endpoints(short slot) {
+        return endpoints.get()[slot % connections];
+    }
+    
+    private static void closeQuietly(XEndpoints[] endpoints) {
+        if (endpoints == null) return;
+        for (XEndpoints e : endpoints) {
+            XEndpoints.closeQuietly(e);
         }
     }
     
@@ -140,9 +271,9 @@ public class ClusterRdbVisitor extends AbstractRmtRdbVisitor implements EventLis
         try {
             boolean result = false;
             if (!replace) {
-                result = endpoints.get().broadcast(FUNCTION, RESTORE, dfn.getSerialized());
+                result = endpoints.get()[0].broadcast(FUNCTION, RESTORE, dfn.getSerialized());
             } else {
-                result = endpoints.get().broadcast(FUNCTION, RESTORE, dfn.getSerialized(), REPLACE);
+                result = endpoints.get()[0].broadcast(FUNCTION, RESTORE, dfn.getSerialized(), REPLACE);
             }
             if (!result) throw new RuntimeException("failover");
         } catch (Throwable e) {
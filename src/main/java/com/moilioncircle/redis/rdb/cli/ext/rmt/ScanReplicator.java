@@ -0,0 +1,363 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.rdb.cli.ext.rmt;
+
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.ASKING;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.CLUSTER;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.COUNT;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.DUMP;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.INFO;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.KEYSPACE;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.NODES;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.PTTL;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.SCAN;
+import static com.moilioncircle.redis.rdb.cli.ext.rmonitor.support.XStandaloneRedisInfo.extract;
+import static com.moilioncircle.redis.rdb.cli.glossary.Measures.ENDPOINT_FAILURE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.conf.NodeConfParser;
+import com.moilioncircle.redis.rdb.cli.ext.visitor.BaseRdbVisitor;
+import com.moilioncircle.redis.rdb.cli.filter.Filter;
+import com.moilioncircle.redis.rdb.cli.monitor.Monitor;
+import com.moilioncircle.redis.rdb.cli.monitor.MonitorFactory;
+import com.moilioncircle.redis.rdb.cli.net.impl.XEndpoint;
+import com.moilioncircle.redis.rdb.cli.net.protocol.RedisObject;
+import com.moilioncircle.redis.rdb.cli.util.Collections;
+import com.moilioncircle.redis.rdb.cli.util.XThreadFactory;
+import com.moilioncircle.redis.replicator.AbstractReplicator;
+import com.moilioncircle.redis.replicator.RedisURI;
+import com.moilioncircle.redis.replicator.Status;
+import com.moilioncircle.redis.replicator.event.PostRdbSyncEvent;
+import com.moilioncircle.redis.replicator.event.PreRdbSyncEvent;
+import com.moilioncircle.redis.replicator.io.RawByteListener;
+import com.moilioncircle.redis.replicator.rdb.datatype.DB;
+import com.moilioncircle.redis.replicator.rdb.datatype.ExpiredType;
+import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
+import com.moilioncircle.redis.replicator.util.Tuples;
+import com.moilioncircle.redis.replicator.util.type.Tuple2;
+
+/**
+ * reads keys of a source that refuses {@code SYNC} by {@code SCAN}, {@code DUMP} and {@code PTTL}, and submits
+ * them as {@link DumpKeyValuePair} to the rdb visitors of rmt.
+ * <p>
+ * every master of a cluster, or every db of a standalone redis, is scanned by its own thread. a thread sends
+ * {@code DUMP} and {@code PTTL} of the keys of a {@code SCAN} reply together with the next {@code SCAN}, so a batch
+ * costs one round trip. a key that replies {@code -MOVED} or {@code -ASK} during resharding is read from its new owner.
+ * <p>
+ * the cursor of every thread can be saved to a file and resumed. a cursor is saved after all keys before it were
+ * acknowledged to the {@link Checkpoint} by the workers of rdb visitor.
+ *
+ * @author Baoyi Chen
+ */
+public class ScanReplicator extends AbstractReplicator {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ScanReplicator.class);
+    
+    private static final String DONE = "done";
+    private static final int REDIRECTS = 5;
+    private static final Monitor MONITOR = MonitorFactory.getMonitor("endpoint");
+    
+    private final RedisURI uri;
+    private Filter filter;
+    private final Configure configure;
+    
+    /**
+     * cursor of every task to resume from.
+     */
+    private final Map<String, String> cursors = new HashMap<>();
+    
+    /**
+     * null if cursors are not saved.
+     */
+    private final ScanCheckpoint checkpoint;
+    
+    /**
+     * sequence of keys in place of rdb offset of checkpoint.
+     */
+    private long sequence;
+    
+    /**
+     * @param uri source
+     * @param configure configure
+     * @param checkpoint file of cursors. null if not saved
+     * @param resume resume from cursors in checkpoint
+     * @throws IOException if failed to read checkpoint
+     */
+    public ScanReplicator(RedisURI uri, Configure configure, Path checkpoint, boolean resume) throws IOException {
+        this.uri = uri;
+        this.configure = configure;
+        this.configuration = configure.merge(uri, true);
+        if (resume && checkpoint != null && Files.exists(checkpoint)) {
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(checkpoint, UTF_8)) {
+                properties.load(reader);
+            }
+            for (String task : properties.stringPropertyNames()) cursors.put(task, properties.getProperty(task));
+        }
+        this.checkpoint = checkpoint == null ? null : new ScanCheckpoint(checkpoint, configure.getMigrateCheckpointInterval(), cursors);
+    }
+    
+    /**
+     * @return checkpoint that the rdb visitor acknowledges the keys to. null if cursors are not saved.
+     */
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+    
+    @Override
+    protected void doOpen() throws IOException {
+        // keys are filtered like the visitor filters the keys of rdb
+        this.filter = ((BaseRdbVisitor) rdbVisitor).getFilter();
+        List<String> tasks = tasks();
+        
+        submitEvent(new PreRdbSyncEvent());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(tasks.size(), 1), new XThreadFactory("scan"));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String task : tasks) {
+                futures.add(executor.submit(() -> {
+                    scan(task);
+                    return null;
+                }));
+            }
+            List<String> failed = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    logger.error("failed to scan {}, reason: {}", tasks.get(i), e.getCause().getMessage());
+                    failed.add(tasks.get(i));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            if (!failed.isEmpty()) throw new IOException("failed to scan " + failed);
+        } finally {
+            executor.shutdownNow();
+        }
+        submitEvent(new PostRdbSyncEvent());
+    }
+    
+    /**
+     * @return host:port/db of every master and db to scan
+     */
+    private List<String> tasks() {
+        List<String> tasks = new ArrayList<>();
+        try (XEndpoint endpoint = new XEndpoint(uri.getHost(), uri.getPort(), configuration)) {
+            RedisObject r = endpoint.send(CLUSTER, NODES);
+            if (!r.type.isError()) {
+                Map<Short, String> slots = new HashMap<>();
+                NodeConfParser.parse(Collections.ofList(r.getString().split("\n")), new HashSet<>(), slots, t -> t.getV1() + ":" + t.getV2());
+                if (filter.contains(0)) for (String master : new TreeSet<>(slots.values())) tasks.add(master + "/0");
+            } else {
+                Map<String, String> keyspace = extract(endpoint.send(INFO, KEYSPACE).getString()).get("Keyspace");
+                if (keyspace != null) {
+                    for (String key : new TreeSet<>(keyspace.keySet())) {
+                        int db = Integer.parseInt(key.substring(2));
+                        if (filter.contains(db)) tasks.add(uri.getHost() + ":" + uri.getPort() + "/" + db);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return tasks;
+    }
+    
+    private void scan(String task) throws InterruptedException {
+        String cursor = cursors.getOrDefault(task, "0");
+        if (cursor.equals(DONE)) return;
+        
+        int idx = task.lastIndexOf('/');
+        int db = Integer.parseInt(task.substring(idx + 1));
+        String address = task.substring(0, idx);
+        
+        int rate = configure.getMigrateScanRate();
+        byte[] count = String.valueOf(configure.getMigrateScanCount()).getBytes();
+        long mark = System.nanoTime();
+        long keys = 0L;
+        // owners of the keys that moved away during resharding
+        Map<String, XEndpoint> nodes = new HashMap<>();
+        try (XEndpoint endpoint = endpoint(address, db)) {
+            RedisObject reply = endpoint.send(SCAN, cursor.getBytes(), COUNT, count);
+            while (getStatus() == Status.CONNECTED) {
+                if (reply.type.isError()) throw new RuntimeException(reply.getString());
+                RedisObject[] ary = reply.getArray();
+                String next = ary[0].getString();
+                RedisObject[] batch = ary[1].getArray();
+                for (RedisObject key : batch) {
+                    endpoint.batch(false, DUMP, key.getBytes());
+                    endpoint.batch(false, PTTL, key.getBytes());
+                }
+                boolean last = next.equals("0");
+                if (!last) endpoint.batch(false, SCAN, next.getBytes(), COUNT, count);
+                List<RedisObject> replies = endpoint.sync();
+                
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < batch.length; i++) {
+                    submit(db, batch[i].getBytes(), replies.get(2 * i), replies.get(2 * i + 1), now, nodes);
+                }
+                if (checkpoint != null) checkpoint.progress(task, sequence(), last ? DONE : next);
+                if (last) return;
+                reply = replies.get(replies.size() - 1);
+                
+                keys += batch.length;
+                if (rate > 0) {
+                    // keys read so far should take keys / rate seconds at least
+                    long wait = TimeUnit.SECONDS.toNanos(keys) / rate - (System.nanoTime() - mark);
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (XEndpoint node : nodes.values()) XEndpoint.closeQuietly(node);
+        }
+    }
+    
+    private void submit(int db, byte[] key, RedisObject dump, RedisObject pttl, long now, Map<String, XEndpoint> nodes) {
+        for (int i = 0; i < REDIRECTS; i++) {
+            RedisObject error = dump.type.isError() ? dump : pttl.type.isError() ? pttl : null;
+            if (error == null) break;
+            String message = error.getString();
+            if (!message.startsWith("MOVED ") && !message.startsWith("ASK ")) break;
+            // the slot is migrating, read the key from its new owner
+            String[] ary = message.split(" ");
+            boolean ask = message.startsWith("ASK ");
+            try {
+                XEndpoint endpoint = nodes.computeIfAbsent(ary[2], k -> endpoint(k, db));
+                if (ask) endpoint.batch(false, ASKING);
+                endpoint.batch(false, DUMP, key);
+                if (ask) endpoint.batch(false, ASKING);
+                endpoint.batch(false, PTTL, key);
+                List<RedisObject> replies = endpoint.sync();
+                dump = replies.get(ask ? 1 : 0);
+                pttl = replies.get(ask ? 3 : 1);
+            } catch (Throwable e) {
+                XEndpoint.closeQuietly(nodes.remove(ary[2]));
+                MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
+                logger.error("failure[failed] [{}], reason: {}", new String(key), e.getMessage());
+                return;
+            }
+        }
+        if (dump.type.isError() || pttl.type.isError()) {
+            MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
+            logger.error("failure[failed] [{}], reason: {}", new String(key), (dump.type.isError() ? dump : pttl).getString());
+            return;
+        }
+        // deleted or expired after SCAN
+        if (dump.type.isNull() || pttl.getNumber() == -2L) return;
+        byte[] value = dump.getBytes();
+        if (!filter.contains(db, value[0] & 0xFF, new String(key)) || !filter.containsBytes(value.length)) return;
+        DumpKeyValuePair dkv = new DumpKeyValuePair();
+        dkv.setDb(new DB(db));
+        dkv.setKey(key);
+        dkv.setValue(value);
+        dkv.setValueRdbType(value[0] & 0xFF);
+        long ttl = pttl.getNumber();
+        if (ttl >= 0) {
+            dkv.setExpiredType(ExpiredType.MS);
+            dkv.setExpiredValue(now + ttl);
+        } else {
+            dkv.setExpiredType(ExpiredType.NONE);
+        }
+        synchronized (this) {
+            // the key is pending before a worker acknowledges it
+            long mark = sequence++;
+            if (checkpoint != null) checkpoint.dispatch(dkv, mark, sequence);
+            submitEvent(dkv, Tuples.of(mark, sequence));
+            for (RawByteListener listener : rawByteListeners) listener.handle(value);
+        }
+    }
+    
+    /**
+     * @return all keys before it were handed to workers
+     */
+    private synchronized long sequence() {
+        return sequence;
+    }
+    
+    private XEndpoint endpoint(String address, int db) {
+        int idx = address.lastIndexOf(':');
+        return new XEndpoint(address.substring(0, idx), Integer.parseInt(address.substring(idx + 1)), db, -1, false, configuration);
+    }
+    
+    /**
+     * saves the cursor of a task after all keys before it were acknowledged by target.
+     */
+    private static class ScanCheckpoint extends Checkpoint {
+        
+        private final Map<String, String> cursors;
+        private final Map<String, Deque<Tuple2<Long, String>>> progress = new HashMap<>();
+        
+        private ScanCheckpoint(Path path, long interval, Map<String, String> cursors) {
+            super(path, null, 0L, interval);
+            this.cursors = new HashMap<>(cursors);
+        }
+        
+        /**
+         * @param sequence keys of the task before sequence were handed to workers
+         * @param cursor next cursor of the task
+         */
+        private void progress(String task, long sequence, String cursor) {
+            synchronized (progress) {
+                progress.computeIfAbsent(task, k -> new ArrayDeque<>()).add(Tuples.of(sequence, cursor));
+            }
+        }
+        
+        @Override
+        protected boolean store(Properties properties, long next) {
+            boolean changed = false;
+            synchronized (progress) {
+                for (Map.Entry<String, Deque<Tuple2<Long, String>>> entry : progress.entrySet()) {
+                    Deque<Tuple2<Long, String>> deque = entry.getValue();
+                    while (!deque.isEmpty() && deque.peek().getV1() <= next) {
+                        cursors.put(entry.getKey(), deque.poll().getV2());
+                        changed = true;
+                    }
+                }
+            }
+            properties.putAll(cursors);
+            return changed;
+        }
+    }
+}
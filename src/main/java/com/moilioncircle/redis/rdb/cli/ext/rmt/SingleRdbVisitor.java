@@ -16,6 +16,7 @@
 
 package com.moilioncircle.redis.rdb.cli.ext.rmt;
 
+import static com.moilioncircle.redis.rdb.cli.conf.NodeConfParser.slot;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.EVALSHA;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.FUNCTION;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.LOAD;
@@ -25,20 +26,24 @@ import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.REST
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.SCRIPT;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.ZERO;
 import static com.moilioncircle.redis.rdb.cli.glossary.Measures.ENDPOINT_FAILURE;
+import static com.moilioncircle.redis.rdb.cli.util.ByteBuffers.wrap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosedCommand;
 import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosingCommand;
-import com.moilioncircle.redis.rdb.cli.api.sink.listener.AsyncEventListener;
 import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.ext.XAsyncEventListener;
+import com.moilioncircle.redis.rdb.cli.ext.datatype.HugeKeyValuePair;
+import com.moilioncircle.redis.rdb.cli.ext.datatype.RawKeyValuePair;
 import com.moilioncircle.redis.rdb.cli.filter.Filter;
 import com.moilioncircle.redis.rdb.cli.monitor.Monitor;
 import com.moilioncircle.redis.rdb.cli.monitor.MonitorFactory;
 import com.moilioncircle.redis.rdb.cli.monitor.MonitorManager;
 import com.moilioncircle.redis.rdb.cli.net.impl.XEndpoint;
 import com.moilioncircle.redis.rdb.cli.net.protocol.RedisObject;
+import com.moilioncircle.redis.rdb.cli.util.ByteBuffers;
 import com.moilioncircle.redis.rdb.cli.util.XThreadFactory;
 import com.moilioncircle.redis.replicator.Configuration;
 import com.moilioncircle.redis.replicator.RedisURI;
@@ -62,40 +67,60 @@ public class SingleRdbVisitor extends AbstractRmtRdbVisitor implements EventList
     private final boolean legacy;
     private volatile byte[] evalSha;
     private final Configuration conf;
-    private ThreadLocal<XEndpoint> endpoint = new ThreadLocal<>();
+    private final int connections;
+    private ThreadLocal<XEndpoint[]> endpoints = new ThreadLocal<>();
     
     //noinspection ThisEscapedInObjectConstruction
-    public SingleRdbVisitor(Replicator replicator, Configure configure, Filter filter, RedisURI uri, boolean replace, boolean legacy) throws Exception {
-        super(replicator, configure, filter, replace);
+    public SingleRdbVisitor(Replicator replicator, Configure configure, Filter filter, RedisURI uri, boolean replace, boolean legacy, Checkpoint checkpoint) throws Exception {
+        super(replicator, configure, filter, replace, checkpoint);
         this.uri = uri;
         this.legacy = legacy;
         this.conf = configure.merge(this.uri, false);
-        this.replicator.addEventListener(new AsyncEventListener(this, replicator, configure.getMigrateThreads(), new XThreadFactory("sync-worker")));
+        this.connections = Math.max(configure.getMigrateConnections(), 1);
+        this.replicator.addEventListener(new XAsyncEventListener(this, replicator, configure, new XThreadFactory("sync-worker")));
     }
     
     @Override
     public void onEvent(Replicator replicator, Event event) {
         try {
+            boolean acked = true;
             if (event instanceof PreRdbSyncEvent) {
-                XEndpoint.closeQuietly(this.endpoint.get());
+                closeQuietly(this.endpoints.get());
                 int pipe = configure.getMigrateBatchSize();
                 try {
-                    this.endpoint.set(new XEndpoint(uri.getHost(), uri.getPort(), 0, pipe, true, conf));
+                    XEndpoint[] next = new XEndpoint[connections];
+                    this.endpoints.set(next);
+                    for (int i = 0; i < connections; i++) {
+                        next[i] = new XEndpoint(uri.getHost(), uri.getPort(), 0, pipe, true, conf);
+                    }
                 } catch (Throwable e) {
                     // unrecoverable error
                     System.out.println("failed to connect " + uri.getHost() + ":" + uri.getPort() + ", reason : " + e.getMessage());
                     System.exit(-1);
                 }
             } else if (event instanceof DumpKeyValuePair) {
-                retry((DumpKeyValuePair) event, configure.getMigrateRetries());
+                acked = retry((DumpKeyValuePair) event, configure.getMigrateRetries());
+            } else if (event instanceof RawKeyValuePair) {
+                RawKeyValuePair kv = (RawKeyValuePair) event;
+                try (ByteBuffers value = kv.getValue()) {
+                    acked = retry(kv, configure.getMigrateRetries());
+                }
+            } else if (event instanceof HugeKeyValuePair) {
+                HugeKeyValuePair kv = (HugeKeyValuePair) event;
+                try (ByteBuffers value = kv.getValue()) {
+                    acked = retry(kv, configure.getMigrateRetries());
+                }
             } else if (event instanceof DumpFunction) {
                 retry((DumpFunction) event, configure.getMigrateRetries());
             } else if (event instanceof ClosingCommand) {
-                this.endpoint.get().flushQuietly();
-                XEndpoint.closeQuietly(this.endpoint.get());
+                flushQuietly();
+                ack();
+                closeQuietly(this.endpoints.get());
             } else if (event instanceof ClosedCommand) {
+                if (checkpoint != null) checkpoint.save(true);
                 MonitorManager.closeQuietly(manager);
             }
+            if (acked) ack(event);
         } catch (Throwable e) {
             // should not reach here, but if reach here ,please report an issue
             logger.error("report an issue with exception stack on https://github.com/leonchen83/redis-rdb-cli/issues", e);
@@ -104,14 +129,15 @@ public class SingleRdbVisitor extends AbstractRmtRdbVisitor implements EventList
         }
     }
     
-    public void retry(DumpKeyValuePair dkv, int times) {
+    public boolean retry(DumpKeyValuePair dkv, int times) {
         logger.trace("sync rdb event [{}], times {}", new String(dkv.getKey()), times);
+        int i = route(dkv.getKey());
         try {
             DB db = dkv.getDb();
     
             int index;
-            if (db != null && (index = (int) db.getDbNumber()) != endpoint.get().getDB()) {
-                endpoint.get().select(true, index);
+            if (db != null && (index = (int) db.getDbNumber()) != endpoints.get()[i].getDB()) {
+                endpoints.get()[i].select(true, index);
             }
     
             byte[] expire = ZERO;
@@ -120,46 +146,147 @@ public class SingleRdbVisitor extends AbstractRmtRdbVisitor implements EventList
                 if (ms <= 0) {
                     MONITOR.add(ENDPOINT_FAILURE, "expired", 1);
                     logger.error("failure[expired] [{}]", new String(dkv.getKey()));
-                    return;
+                    return true;
                 }
                 expire = String.valueOf(ms).getBytes();
             }
             if (!replace) {
-                endpoint.get().batch(flush, RESTORE, dkv.getKey(), expire, dkv.getValue());
+                endpoints.get()[i].batch(flush, RESTORE, dkv.getKey(), expire, dkv.getValue());
             } else if (legacy) {
                 // https://github.com/leonchen83/redis-rdb-cli/issues/6
                 eval(dkv.getKey(), dkv.getValue(), expire);
             } else {
-                endpoint.get().batch(flush, RESTORE, dkv.getKey(), expire, dkv.getValue(), REPLACE);
+                endpoints.get()[i].batch(flush, RESTORE, dkv.getKey(), expire, dkv.getValue(), REPLACE);
             }
         } catch (Throwable e) {
             times--;
             if (times >= 0 && flush) {
-                XEndpoint prev = endpoint.get();
+                XEndpoint prev = endpoints.get()[i];
                 XEndpoint next = XEndpoint.valueOfQuietly(prev, prev.getDB());
-                if (next != null) endpoint.set(next);
-                retry(dkv, times);
+                if (next != null) endpoints.get()[i] = next;
+                return retry(dkv, times);
             } else {
                 MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
                 logger.error("failure[failed] [{}], reason: {}", new String(dkv.getKey()), e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public boolean retry(RawKeyValuePair kv, int times) {
+        logger.trace("sync rdb raw event [{}], times {}", new String(kv.getKey()), times);
+        int i = route(kv.getKey());
+        try {
+            DB db = kv.getDb();
+            
+            int index;
+            if (db != null && (index = (int) db.getDbNumber()) != endpoints.get()[i].getDB()) {
+                endpoints.get()[i].select(true, index);
+            }
+            
+            byte[] expire = ZERO;
+            if (kv.getExpiredMs() != null) {
+                long ms = kv.getExpiredMs() - System.currentTimeMillis();
+                if (ms <= 0) {
+                    MONITOR.add(ENDPOINT_FAILURE, "expired", 1);
+                    logger.error("failure[expired] [{}]", new String(kv.getKey()));
+                    return true;
+                }
+                expire = String.valueOf(ms).getBytes();
+            }
+            ByteBuffers value = kv.getValue();
+            value.reset();
+            if (!replace) {
+                endpoints.get()[i].batch(flush, wrap(RESTORE), wrap(kv.getKey()), wrap(expire), value);
+            } else if (legacy) {
+                // https://github.com/leonchen83/redis-rdb-cli/issues/6
+                eval(kv.getKey(), value.toByteArray(), expire);
+            } else {
+                endpoints.get()[i].batch(flush, wrap(RESTORE), wrap(kv.getKey()), wrap(expire), value, wrap(REPLACE));
+            }
+        } catch (Throwable e) {
+            times--;
+            if (times >= 0 && flush) {
+                XEndpoint prev = endpoints.get()[i];
+                XEndpoint next = XEndpoint.valueOfQuietly(prev, prev.getDB());
+                if (next != null) endpoints.get()[i] = next;
+                return retry(kv, times);
+            } else {
+                MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
+                logger.error("failure[failed] [{}], reason: {}", new String(kv.getKey()), e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public boolean retry(HugeKeyValuePair kv, int times) {
+        logger.trace("sync rdb huge event [{}], times {}", new String(kv.getKey()), times);
+        int i = route(kv.getKey());
+        try {
+            DB db = kv.getDb();
+            
+            int index;
+            if (db != null && (index = (int) db.getDbNumber()) != endpoints.get()[i].getDB()) {
+                endpoints.get()[i].select(true, index);
+            }
+            
+            if (kv.getExpiredMs() != null && kv.getExpiredMs() <= System.currentTimeMillis()) {
+                MONITOR.add(ENDPOINT_FAILURE, "expired", 1);
+                logger.error("failure[expired] [{}]", new String(kv.getKey()));
+                return true;
+            }
+            restore(kv);
+        } catch (Throwable e) {
+            times--;
+            if (times >= 0 && flush) {
+                XEndpoint prev = endpoints.get()[i];
+                XEndpoint next = XEndpoint.valueOfQuietly(prev, prev.getDB());
+                if (next != null) endpoints.get()[i] = next;
+                return retry(kv, times);
+            } else {
+                MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
+                logger.error("failure[failed] [{}], reason: {}", new String(kv.getKey()), e.getMessage());
+                return false;
             }
         }
+        return true;
+    }
+    
+    @Override
+    protected void batch(byte[] key, byte[] command, byte[]... args) {
+        int i = route(key);
+        endpoints.get()[i].batch(flush, command, args);
+    }
+    
+    @Override
+    protected RedisObject send(byte[] key, byte[] command, byte[]... args) {
+        int i = route(key);
+        return endpoints.get()[i].send(command, args);
+    }
+    
+    @Override
+    protected void flushQuietly() {
+        for (XEndpoint e : this.endpoints.get()) {
+            e.flushQuietly();
+        }
     }
     
     public void retry(DumpFunction dfn, int times) {
         logger.trace("sync rdb event [function], times {}", times);
         try {
             if (!replace) {
-                endpoint.get().batch(flush, FUNCTION, RESTORE, dfn.getSerialized());
+                endpoints.get()[0].batch(flush, FUNCTION, RESTORE, dfn.getSerialized());
             } else {
-                endpoint.get().batch(flush, FUNCTION, RESTORE, dfn.getSerialized(), REPLACE);
+                endpoints.get()[0].batch(flush, FUNCTION, RESTORE, dfn.getSerialized(), REPLACE);
             }
         } catch (Throwable e) {
             times--;
             if (times >= 0 && flush) {
-                XEndpoint prev = endpoint.get();
+                XEndpoint prev = endpoints.get()[0];
                 XEndpoint next = XEndpoint.valueOfQuietly(prev, prev.getDB());
-                if (next != null) endpoint.set(next);
+                if (next != null) endpoints.get()[0] = next;
                 retry(dfn, times);
             } else {
                 MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
@@ -168,6 +295,20 @@ public class SingleRdbVisitor extends AbstractRmtRdbVisitor implements EventList
         }
     }
     
+    /**
+     * keys are assigned to connections by slot. so that the commands of the same key are sent in order.
+     */
+    private int route(byte[] key) {
+        return connections == 1 ? 0 : slot(key) % connections;
+    }
+    
+    private static void closeQuietly(XEndpoint[] endpoints) {
+        if (endpoints == null) return;
+        for (XEndpoint e : endpoints) {
+            XEndpoint.closeQuietly(e);
+        }
+    }
+    
     /*
      * LUA
      * step 1 : SCRIPT LOAD script
@@ -177,14 +318,15 @@ public class SingleRdbVisitor extends AbstractRmtRdbVisitor implements EventList
             ("redis.call('del',KEYS[1]);return redis.call('restore',KEYS[1],ARGV[1],ARGV[2]);").getBytes();
     
     protected void eval(byte[] key, byte[] value, byte[] expire) {
+        int i = route(key);
         if (evalSha == null) {
-            RedisObject r = endpoint.get().send(SCRIPT, LOAD, LUA_SCRIPT);
+            RedisObject r = endpoints.get()[i].send(SCRIPT, LOAD, LUA_SCRIPT);
             byte[] evalSha = r.getBytes();
             if (r.type.isError() || evalSha == null) throw new RuntimeException(); // retry in the caller method.
             this.evalSha = evalSha;
             eval(key, value, expire);
         } else {
-            endpoint.get().batch(flush, EVALSHA, evalSha, ONE, key, expire, value);
+            endpoints.get()[i].batch(flush, EVALSHA, evalSha, ONE, key, expire, value);
         }
     }
 }
@@ -0,0 +1,526 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.rdb.cli.ext.rmt;
+
+import static com.moilioncircle.redis.rdb.cli.conf.NodeConfParser.slot;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.DUMP;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.PING;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.PTTL;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_SET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STREAM_LISTPACKS_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_ZSET_2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosedCommand;
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosingCommand;
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.conf.NodeConfParser;
+import com.moilioncircle.redis.rdb.cli.ext.XAsyncEventListener;
+import com.moilioncircle.redis.rdb.cli.ext.visitor.BaseRdbVisitor;
+import com.moilioncircle.redis.rdb.cli.filter.Filter;
+import com.moilioncircle.redis.rdb.cli.net.impl.XEndpoint;
+import com.moilioncircle.redis.rdb.cli.net.protocol.RedisObject;
+import com.moilioncircle.redis.rdb.cli.util.XThreadFactory;
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.RedisURI;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.event.PreRdbSyncEvent;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.rdb.RdbValueVisitor;
+import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
+import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.dump.parser.DefaultDumpValueParser;
+import com.moilioncircle.redis.replicator.rdb.dump.parser.DumpValueParser;
+import com.moilioncircle.redis.replicator.rdb.iterable.ValueIterableRdbValueVisitor;
+import com.moilioncircle.redis.replicator.util.CRC64;
+
+/**
+ * verifies sampled keys of source rdb against the target after migration.
+ * <p>
+ * every worker pipelines {@code DUMP} and {@code PTTL} of its keys to all nodes, then reads the replies
+ * node by node. values are compared by a digest of the decoded value, so the result does not depend on
+ * the encoding that the target chose. stream and module values are only checked for existence and ttl.
+ *
+ * @author Baoyi Chen
+ */
+public class VerifyRdbVisitor extends BaseRdbVisitor implements EventListener {
+    
+    private static final Logger logger = LoggerFactory.getLogger(VerifyRdbVisitor.class);
+    
+    /**
+     * rmt sends relative ttl, so the expiry on target is later than source by the latency of migration.
+     */
+    private static final long TTL_TOLERANCE = 1000L;
+    
+    private final boolean cluster;
+    private final String[] routes;
+    private final Configuration configuration;
+    private final RdbValueVisitor decoder;
+    private final DumpValueParser parser;
+    
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong mismatched = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong drifted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    
+    private final ThreadLocal<Map<String, XEndpoint>> endpoints = new ThreadLocal<>();
+    private final ThreadLocal<Map<XEndpoint, List<Pending>>> pending = new ThreadLocal<>();
+    
+    /**
+     * @param replicator replicator
+     * @param configure configure
+     * @param filter sampled keys, see {@link #sample(Filter, double, Set, boolean)}
+     * @param uri target uri, or auth of cluster nodes
+     * @param lines cluster nodes. null if target is a standalone redis
+     */
+    //noinspection ThisEscapedInObjectConstruction
+    public VerifyRdbVisitor(Replicator replicator, Configure configure, Filter filter, RedisURI uri, List<String> lines) {
+        super(replicator, configure, filter);
+        this.cluster = lines != null;
+        this.routes = new String[cluster ? 16384 : 1];
+        this.configuration = configure.merge(uri, false);
+        // big values are digested while they are read, not decoded into memory first
+        this.decoder = new ValueIterableRdbValueVisitor(replicator);
+        this.parser = new DefaultDumpValueParser(replicator);
+        if (cluster) {
+            Map<Short, String> slots = new HashMap<>();
+            NodeConfParser.parse(lines, new HashSet<>(), slots, t -> t.getV1() + ":" + t.getV2());
+            for (Map.Entry<Short, String> entry : slots.entrySet()) routes[entry.getKey()] = entry.getValue();
+        } else {
+            routes[0] = uri.getHost() + ":" + uri.getPort();
+        }
+        this.replicator.addEventListener(new XAsyncEventListener(this, replicator, configure, new XThreadFactory("verify-worker")));
+    }
+    
+    /**
+     * @return true if all sampled keys are consistent. valid after replicator closed.
+     */
+    public boolean isConsistent() {
+        return mismatched.get() == 0 && missing.get() == 0 && drifted.get() == 0 && failed.get() == 0;
+    }
+    
+    /**
+     * expired keys were not migrated.
+     */
+    @Override
+    protected boolean isExpired(ContextKeyValuePair context, byte[] key) {
+        Long ms = getExpiredMs(context);
+        return ms != null && ms <= System.currentTimeMillis();
+    }
+    
+    @Override
+    protected Event doApplyString(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, digest(decoder.applyString(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyList(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, ordered(decoder.applyList(in, version))));
+    }
+    
+    @Override
+    protected Event doApplySet(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, unordered(decoder.applySet(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyZSet(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, unordered(decoder.applyZSet(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyZSet2(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, unordered(decoder.applyZSet2(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyHash(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, unordered(decoder.applyHash(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyHashZipMap(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, unordered(decoder.applyHashZipMap(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyListZipList(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, ordered(decoder.applyListZipList(in, version))));
+    }
+    
+    @Override
+    protected Event doApplySetIntSet(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, unordered(decoder.applySetIntSet(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyZSetZipList(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, unordered(decoder.applyZSetZipList(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyZSetListPack(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, unordered(decoder.applyZSetListPack(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyHashZipList(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, unordered(decoder.applyHashZipList(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyHashListPack(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, unordered(decoder.applyHashListPack(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyListQuickList(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, ordered(decoder.applyListQuickList(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyListQuickList2(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        return context.valueOf(new Sample(key, ordered(decoder.applyListQuickList2(in, version))));
+    }
+    
+    @Override
+    protected Event doApplyModule(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        // only checked for existence and ttl
+        decoder.applyModule(in, version);
+        return context.valueOf(new Sample(key, null));
+    }
+    
+    @Override
+    protected Event doApplyModule2(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        // only checked for existence and ttl
+        decoder.applyModule2(in, version);
+        return context.valueOf(new Sample(key, null));
+    }
+    
+    @Override
+    protected Event doApplyStreamListPacks(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        // only checked for existence and ttl
+        decoder.applyStreamListPacks(in, version);
+        return context.valueOf(new Sample(key, null));
+    }
+    
+    @Override
+    protected Event doApplyStreamListPacks2(RedisInputStream in, int version, byte[] key, int type, ContextKeyValuePair context) throws IOException {
+        // only checked for existence and ttl
+        decoder.applyStreamListPacks2(in, version);
+        return context.valueOf(new Sample(key, null));
+    }
+    
+    @Override
+    public void onEvent(Replicator replicator, Event event) {
+        try {
+            if (event instanceof PreRdbSyncEvent) {
+                closeQuietly(this.endpoints.get());
+                this.endpoints.set(new HashMap<>());
+                this.pending.set(new HashMap<>());
+            } else if (event instanceof Sample) {
+                verify((Sample) event);
+            } else if (event instanceof ClosingCommand) {
+                sync();
+                closeQuietly(this.endpoints.get());
+            } else if (event instanceof ClosedCommand) {
+                System.out.println("verified " + verified.get() + " keys, " + mismatched.get() + " mismatched, " + missing.get() + " missing, " + drifted.get() + " ttl drifted, " + failed.get() + " failed.");
+            }
+        } catch (Throwable e) {
+            // should not reach here, but if reach here ,please report an issue
+            logger.error("report an issue with exception stack on https://github.com/leonchen83/redis-rdb-cli/issues", e);
+            System.out.println("fatal error, check log and report an issue with exception stack.");
+            System.exit(-1);
+        }
+    }
+    
+    private void verify(Sample sample) {
+        byte[] key = sample.getKey();
+        Pending p = new Pending(key, sample.getValue(), sample.getExpiredMs());
+        XEndpoint endpoint = endpoint(routes[cluster ? slot(key) : 0]);
+        List<Pending> list = pending.get().computeIfAbsent(endpoint, k -> new ArrayList<>());
+        int db = (int) sample.getDb().getDbNumber();
+        if (!cluster && db != endpoint.getDB()) {
+            endpoint.select(false, db);
+            list.add(null);
+        }
+        endpoint.batch(false, DUMP, key);
+        endpoint.batch(false, PTTL, key);
+        list.add(p);
+        if (list.size() >= configure.getMigrateBatchSize()) sync();
+    }
+    
+    /**
+     * commands of all nodes are written out before any reply is read.
+     */
+    private void sync() {
+        Map<XEndpoint, List<Pending>> map = pending.get();
+        for (Map.Entry<XEndpoint, List<Pending>> entry : map.entrySet()) {
+            if (entry.getValue().isEmpty()) continue;
+            entry.getKey().batch(true, PING);
+        }
+        for (Map.Entry<XEndpoint, List<Pending>> entry : map.entrySet()) {
+            List<Pending> list = entry.getValue();
+            if (list.isEmpty()) continue;
+            List<RedisObject> replies;
+            try {
+                replies = entry.getKey().sync();
+            } catch (Throwable e) {
+                for (Pending p : list) if (p != null) failed(p, e.getMessage());
+                list.clear();
+                XEndpoint prev = entry.getKey();
+                endpoints.get().values().remove(prev);
+                XEndpoint.closeQuietly(prev);
+                continue;
+            }
+            int i = 0;
+            for (Pending p : list) {
+                if (p == null) {
+                    i++;
+                    continue;
+                }
+                compare(p, replies.get(i), replies.get(i + 1));
+                i += 2;
+            }
+            list.clear();
+        }
+        map.values().removeIf(List::isEmpty);
+    }
+    
+    private void compare(Pending p, RedisObject dump, RedisObject pttl) {
+        String key = new String(p.key);
+        verified.incrementAndGet();
+        if (dump.type.isError()) {
+            failed(p, dump.getString());
+            return;
+        }
+        if (dump.type.isNull()) {
+            missing.incrementAndGet();
+            logger.error("failure[missing] [{}]", key);
+            return;
+        }
+        if (p.digest != null) {
+            DumpKeyValuePair dkv = new DumpKeyValuePair();
+            dkv.setKey(p.key);
+            dkv.setValue(dump.getBytes());
+            Long digest;
+            try {
+                digest = digest(parser.parse(dkv).getValue());
+            } catch (Throwable e) {
+                failed(p, e.getMessage());
+                return;
+            }
+            if (!p.digest.equals(digest)) {
+                mismatched.incrementAndGet();
+                logger.error("failure[mismatch] [{}]", key);
+                return;
+            }
+        }
+        long ttl = pttl.getNumber();
+        boolean drift;
+        if (p.expiredMs == null) {
+            drift = ttl != -1L;
+        } else {
+            drift = ttl < 0 || Math.abs(System.currentTimeMillis() + ttl - p.expiredMs) > TTL_TOLERANCE;
+        }
+        if (drift) {
+            drifted.incrementAndGet();
+            logger.error("failure[ttl] [{}], expected {}, actual pttl {}", key, p.expiredMs, ttl);
+        }
+    }
+    
+    private void failed(Pending p, String reason) {
+        failed.incrementAndGet();
+        logger.error("failure[failed] [{}], reason: {}", new String(p.key), reason);
+    }
+    
+    private XEndpoint endpoint(String address) {
+        Map<String, XEndpoint> map = endpoints.get();
+        XEndpoint endpoint = map.get(address);
+        if (endpoint == null) {
+            int idx = address.lastIndexOf(':');
+            String host = address.substring(0, idx);
+            int port = Integer.parseInt(address.substring(idx + 1));
+            // replies are read by sync, never discarded by auto flush
+            endpoint = new XEndpoint(host, port, 0, -1, false, configuration);
+            map.put(address, endpoint);
+        }
+        return endpoint;
+    }
+    
+    private static void closeQuietly(Map<String, XEndpoint> endpoints) {
+        if (endpoints == null) return;
+        for (XEndpoint endpoint : endpoints.values()) {
+            XEndpoint.closeQuietly(endpoint);
+        }
+    }
+    
+    /**
+     * digest of decoded value that does not depend on encoding. elements of set, sorted set and hash are
+     * combined in any order, a field and its value are digested together.
+     *
+     * @param value decoded value
+     * @return digest. null if the value can't be digested, e.g. stream or module
+     */
+    @SuppressWarnings("unchecked")
+    static Long digest(Object value) {
+        if (value instanceof byte[]) {
+            return CRC64.crc64((byte[]) value);
+        } else if (value instanceof List) {
+            return ordered(((List<byte[]>) value).iterator());
+        } else if (value instanceof Map) {
+            return unordered(((Map<?, ?>) value).entrySet().iterator());
+        } else if (value instanceof Set) {
+            return unordered(((Set<?>) value).iterator());
+        }
+        return null;
+    }
+    
+    /**
+     * @param elements elements of list
+     * @return digest
+     */
+    static Long ordered(Iterator<byte[]> elements) {
+        long h = 1L;
+        while (elements.hasNext()) h = h * 31 + CRC64.crc64(elements.next());
+        return h;
+    }
+    
+    /**
+     * the iterator is always drained, the elements of a value that read from rdb are consumed while iterating.
+     *
+     * @param elements members of set, entries of sorted set or hash
+     * @return digest. null if an element can't be digested
+     */
+    @SuppressWarnings("unchecked")
+    static Long unordered(Iterator<?> elements) {
+        long h = 0L;
+        long size = 0L;
+        boolean valid = true;
+        while (elements.hasNext()) {
+            Object element = elements.next();
+            if (element instanceof Map.Entry) {
+                Map.Entry<byte[], byte[]> entry = (Map.Entry<byte[], byte[]>) element;
+                h += digest(entry.getKey(), entry.getValue());
+            } else if (element instanceof ZSetEntry) {
+                ZSetEntry entry = (ZSetEntry) element;
+                h += digest(entry.getElement(), CRC64.longToByteArray(Double.doubleToLongBits(entry.getScore())));
+            } else if (element instanceof byte[]) {
+                h += CRC64.crc64((byte[]) element);
+            } else {
+                valid = false;
+            }
+            size++;
+        }
+        return valid ? h ^ size : null;
+    }
+    
+    /**
+     * length of field is mixed in, so that "ab" "c" and "a" "bc" differ.
+     */
+    private static long digest(byte[] field, byte[] value) {
+        return CRC64.crc64(value, CRC64.crc64(field) + field.length);
+    }
+    
+    /**
+     * @param filter keys of migration
+     * @param percent percent of keys that sampled by hash of key
+     * @param keys keys that always sampled
+     * @param big sample all keys that redis did not store in compact encoding
+     * @return filter of sampled keys
+     */
+    public static Filter sample(Filter filter, double percent, Set<String> keys, boolean big) {
+        long threshold = (long) (percent * 100);
+        return new Filter() {
+            @Override
+            public boolean contains(long db) {
+                return filter.contains(db);
+            }
+            
+            @Override
+            public boolean contains(long db, int type, String key) {
+                if (!filter.contains(db, type, key)) return false;
+                if (keys != null && keys.contains(key)) return true;
+                if (big && isBig(type)) return true;
+                return (key.hashCode() & 0x7FFFFFFF) % 10000 < threshold;
+            }
+        };
+    }
+    
+    private static boolean isBig(int type) {
+        switch (type) {
+            case RDB_TYPE_LIST:
+            case RDB_TYPE_LIST_QUICKLIST:
+            case RDB_TYPE_LIST_QUICKLIST_2:
+            case RDB_TYPE_SET:
+            case RDB_TYPE_ZSET:
+            case RDB_TYPE_ZSET_2:
+            case RDB_TYPE_HASH:
+            case RDB_TYPE_STREAM_LISTPACKS:
+            case RDB_TYPE_STREAM_LISTPACKS_2:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * sampled key with the digest of its value, the value is not kept.
+     */
+    private static class Sample extends KeyValuePair<byte[], Long> {
+        private Sample(byte[] key, Long value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+    
+    private static class Pending {
+        private final byte[] key;
+        private final Long digest;
+        private final Long expiredMs;
+        
+        private Pending(byte[] key, Long digest, Long expiredMs) {
+            this.key = key;
+            this.digest = digest;
+            this.expiredMs = expiredMs;
+        }
+    }
+}
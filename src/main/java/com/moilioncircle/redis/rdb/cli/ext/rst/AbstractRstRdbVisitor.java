@@ -16,20 +16,36 @@
 
 package com.moilioncircle.redis.rdb.cli.ext.rst;
 
+import static com.moilioncircle.redis.rdb.cli.glossary.Measures.ENDPOINT_FAILURE;
 import static com.moilioncircle.redis.rdb.cli.glossary.Measures.ENDPOINT_MEASUREMENTS;
+import static com.moilioncircle.redis.rdb.cli.glossary.Measures.SYNC_MEASUREMENTS;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.moilioncircle.redis.rdb.cli.api.format.escape.Escaper;
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.CombineCommand;
 import com.moilioncircle.redis.rdb.cli.conf.Configure;
 import com.moilioncircle.redis.rdb.cli.ext.escape.RawEscaper;
 import com.moilioncircle.redis.rdb.cli.ext.visitor.BaseRdbVisitor;
 import com.moilioncircle.redis.rdb.cli.filter.Filter;
+import com.moilioncircle.redis.rdb.cli.glossary.Gateway;
+import com.moilioncircle.redis.rdb.cli.monitor.Monitor;
+import com.moilioncircle.redis.rdb.cli.monitor.MonitorFactory;
 import com.moilioncircle.redis.rdb.cli.monitor.MonitorManager;
 import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.cmd.impl.SelectCommand;
 import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.event.PreCommandSyncEvent;
+import com.moilioncircle.redis.replicator.event.PreRdbSyncEvent;
 import com.moilioncircle.redis.replicator.io.RedisInputStream;
 import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.DB;
 import com.moilioncircle.redis.replicator.rdb.dump.DumpRdbValueVisitor;
 import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpFunction;
 import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
@@ -37,23 +53,157 @@ import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
 /**
  * @author Baoyi Chen
  */
-public abstract class AbstractRstRdbVisitor extends BaseRdbVisitor {
+public abstract class AbstractRstRdbVisitor extends BaseRdbVisitor implements EventListener {
+	
+	private static final Logger logger = LoggerFactory.getLogger(AbstractRstRdbVisitor.class);
+	private static final Monitor MONITOR = MonitorFactory.getMonitor("endpoint");
 	
 	protected final boolean flush;
 	protected final boolean replace;
 	protected final MonitorManager manager;
+	protected final Checkpoint checkpoint;
+	protected final ReplicationLag lag;
+	protected final Filter targetFilter;
 	protected final Escaper raw = new RawEscaper();
 	protected final DumpRdbValueVisitor valueVisitor;
+	private final ThreadLocal<List<Long>> marks = ThreadLocal.withInitial(ArrayList::new);
+	private volatile boolean failed;
 	
-	public AbstractRstRdbVisitor(Replicator replicator, Configure configure, Filter filter, boolean replace) {
+	public AbstractRstRdbVisitor(Replicator replicator, Configure configure, Filter filter, boolean replace, Checkpoint checkpoint) {
 		super(replicator, configure, filter);
 		this.replace = replace;
+		this.checkpoint = checkpoint;
+		this.targetFilter = filter;
+		if (checkpoint != null) checkpoint.attach(replicator.getConfiguration());
+		this.lag = configure.getMetricGateway() == Gateway.NONE ? null : new ReplicationLag(replicator.getConfiguration());
 		this.flush = configure.isMigrateFlush();
 		this.manager = new MonitorManager(configure);
 		this.manager.open(ENDPOINT_MEASUREMENTS);
+		this.manager.reset(SYNC_MEASUREMENTS);
 		this.valueVisitor = new DumpRdbValueVisitor(replicator, configure.getDumpRdbVersion(), configure.getOutputBufferSize());
 	}
 	
+	public Filter getTargetFilter() {
+		return targetFilter;
+	}
+	
+	/**
+	 * @return offsets not acknowledged by target. null if metric_gateway is none.
+	 */
+	public ReplicationLag getLag() {
+		return lag;
+	}
+	
+	/**
+	 * @return true if the target is unreachable or broken, its events are dropped.
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+	
+	/**
+	 * stop syncing to the target. the workers of the target are stopped by {@link PartitionedEventListener}
+	 * and the events after are dropped, the other targets of the source continue.
+	 *
+	 * @param message reason of failure
+	 */
+	protected void fail(String message) {
+		if (failed) return;
+		failed = true;
+		logger.error(message);
+		System.out.println(message + ", stop syncing to the target.");
+	}
+	
+	/**
+	 * used when the events of one source are sent to multiple targets. only one visitor parses the rdb,
+	 * so it parses the dbs of all targets, and every visitor drops the events of its own filter.
+	 *
+	 * @param filter union of the filters of all targets
+	 */
+	public void parse(Filter filter) {
+		this.filter = filter;
+	}
+	
+	/**
+	 * @param dkv key of rdb
+	 * @return true if the db of key is migrated to this target.
+	 */
+	protected boolean contains(DumpKeyValuePair dkv) {
+		DB db = dkv.getDb();
+		return db == null || targetFilter.contains(db.getDbNumber());
+	}
+	
+	/**
+	 * keys already expired in the full sync are not sent, the value of them is skipped.
+	 */
+	@Override
+	protected boolean isExpired(ContextKeyValuePair context, byte[] key) {
+		Long ms = getExpiredMs(context);
+		if (ms == null || ms > System.currentTimeMillis()) return false;
+		MONITOR.add(ENDPOINT_FAILURE, "expired", 1);
+		logger.debug("failure[expired] [{}]", new String(key));
+		return true;
+	}
+	
+	/**
+	 * flush commands of current worker and wait for the replies.
+	 */
+	protected abstract void flushQuietly();
+	
+	/**
+	 * called by replicator thread before the event is handed to workers.
+	 *
+	 * @param event event of source
+	 * @return mark of the event in checkpoint and lag. -1 if the event is not tracked.
+	 */
+	protected long mark(Event event) {
+		if (event instanceof PreRdbSyncEvent) {
+			if (checkpoint != null) checkpoint.reset();
+			if (lag != null) lag.reset();
+			return -1L;
+		}
+		long mark = -1L;
+		if (checkpoint != null) {
+			if (event instanceof PreCommandSyncEvent) {
+				mark = checkpoint.sync();
+			} else if (event instanceof SelectCommand) {
+				checkpoint.select(((SelectCommand) event).getIndex());
+				mark = checkpoint.dispatch();
+			} else if (event instanceof CombineCommand) {
+				mark = checkpoint.dispatch();
+			}
+		}
+		// both marks are the replication offset before the event
+		if (lag != null && (event instanceof PreCommandSyncEvent || event instanceof SelectCommand || event instanceof CombineCommand)) {
+			mark = lag.dispatch();
+		}
+		return mark;
+	}
+	
+	/**
+	 * called by worker after the event was sent. marks are acknowledged in batch.
+	 *
+	 * @param mark mark of the event
+	 */
+	protected void ack(long mark) {
+		if ((checkpoint == null && lag == null) || mark < 0) return;
+		List<Long> marks = this.marks.get();
+		marks.add(mark);
+		if (marks.size() >= configure.getMigrateBatchSize()) ack();
+	}
+	
+	/**
+	 * flush commands of current worker and acknowledge the marks of them.
+	 */
+	protected void ack() {
+		if (checkpoint == null && lag == null) return;
+		flushQuietly();
+		List<Long> marks = this.marks.get();
+		if (checkpoint != null) checkpoint.ack(marks);
+		if (lag != null) lag.ack(marks);
+		marks.clear();
+	}
+	
 	@Override
 	public Event applyFunction(RedisInputStream in, int version) throws IOException {
 		DumpFunction function = valueVisitor.applyFunction(in, version);
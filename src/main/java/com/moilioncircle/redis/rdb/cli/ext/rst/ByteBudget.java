@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+/**
+ * bytes of the events that handed to workers but not sent yet. the producer waits if the budget is exceeded.
+ * <p>
+ * an event larger than the budget is accepted when nothing is in flight, otherwise it would wait forever.
+ *
+ * @author Baoyi Chen
+ */
+public class ByteBudget {
+
+    private long bytes;
+    private final long capacity;
+
+    /**
+     * @param capacity max bytes in flight. 0 means unbounded
+     */
+    public ByteBudget(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param bytes bytes of event
+     * @return nanoseconds that the caller waited.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized long acquire(long bytes) throws InterruptedException {
+        long mark = 0L;
+        if (capacity > 0) {
+            while (this.bytes > 0 && this.bytes + bytes > capacity) {
+                if (mark == 0L) mark = System.nanoTime();
+                wait();
+            }
+        }
+        this.bytes += bytes;
+        return mark == 0L ? 0L : System.nanoTime() - mark;
+    }
+
+    /**
+     * @param bytes bytes of event that acquired before
+     */
+    public synchronized void release(long bytes) {
+        if (bytes <= 0) return;
+        this.bytes -= bytes;
+        notifyAll();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+}
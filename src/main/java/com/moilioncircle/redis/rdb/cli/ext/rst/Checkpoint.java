@@ -0,0 +1,230 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.util.CRC64;
+
+/**
+ * durable replication offset of rst. all commands before the saved offset were acknowledged by target.
+ *
+ * @author Baoyi Chen
+ */
+public class Checkpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(Checkpoint.class);
+
+    private static final String DB = "db";
+    private static final String HASH = "hash";
+    private static final String OFFSET = "offset";
+    private static final String REPL_ID = "repl_id";
+
+    private final Path path;
+    private final String hash;
+    private final long interval;
+    private final String replId;
+    private final long replOffset;
+
+    private long last;
+    private int db;
+    private String savedId;
+    private long savedOffset = -1L;
+    private volatile long sync = -1L;
+    private volatile boolean syncing;
+    private Configuration configuration;
+    // PreCommandSyncEvent and SELECT of replicator have the same offset as the next command
+    private final ConcurrentSkipListMap<Long, Integer> pending = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Long, Integer> selects = new ConcurrentSkipListMap<>();
+
+    private Checkpoint(Path path, String hash, long interval, String replId, long replOffset, int db) {
+        this.db = db;
+        this.path = path;
+        this.hash = hash;
+        this.replId = replId;
+        this.interval = interval;
+        this.replOffset = replOffset;
+    }
+
+    public static Checkpoint valueOf(Path path, String hash, long interval, boolean resume) throws IOException {
+        String replId = null;
+        long replOffset = -1L;
+        int db = 0;
+        if (resume && Files.exists(path)) {
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(path, UTF_8)) {
+                properties.load(reader);
+            }
+            String prev = properties.getProperty(HASH);
+            if (prev != null && !prev.equals(hash)) {
+                throw new IOException("checkpoint " + path + " was saved with different source or options");
+            }
+            replId = properties.getProperty(REPL_ID);
+            replOffset = Long.parseLong(properties.getProperty(OFFSET, "-1"));
+            db = Integer.parseInt(properties.getProperty(DB, "0"));
+        }
+        return new Checkpoint(path, hash, interval, replId, replOffset, db);
+    }
+
+    /**
+     * @param parts source, target and options of rst
+     * @return hash of parts. resume is refused if the hash changed.
+     */
+    public static String hash(Object... parts) {
+        StringBuilder builder = new StringBuilder();
+        for (Object part : parts) {
+            builder.append(part).append('\n');
+        }
+        return Long.toHexString(CRC64.crc64(builder.toString().getBytes(UTF_8)));
+    }
+
+    /**
+     * @return true if a previous replication id and offset were loaded.
+     */
+    public boolean isResumed() {
+        return replId != null && replOffset >= 0;
+    }
+
+    /**
+     * @return db of the source replication stream at the loaded offset.
+     */
+    public int getDB() {
+        return db;
+    }
+
+    /**
+     * source uses the replication id and offset of configuration to send PSYNC replId offset+1.
+     *
+     * @param configuration configuration of source replicator
+     */
+    public void attach(Configuration configuration) {
+        this.configuration = configuration;
+        if (isResumed()) {
+            configuration.setReplId(replId);
+            configuration.setReplOffset(replOffset);
+        }
+    }
+
+    /**
+     * called by replicator thread when a full sync begins. nothing is saved until the rdb was acknowledged.
+     */
+    public void reset() {
+        sync = -1L;
+        syncing = true;
+        pending.clear();
+        selects.clear();
+    }
+
+    /**
+     * called by replicator thread before a command is handed to workers.
+     *
+     * @return offset of source before the command.
+     */
+    public long dispatch() {
+        long mark = configuration.getReplOffset();
+        pending.merge(mark, 1, Integer::sum);
+        return mark;
+    }
+
+    /**
+     * called by replicator thread when source begins to send commands.
+     * the rdb of a full sync is applied after the returned mark was acknowledged by all workers.
+     *
+     * @return offset of source after the sync.
+     */
+    public long sync() {
+        long mark = dispatch();
+        this.sync = mark;
+        return mark;
+    }
+
+    /**
+     * called by replicator thread when source selects db.
+     *
+     * @param db db index
+     */
+    public void select(int db) {
+        selects.put(configuration.getReplOffset(), db);
+    }
+
+    /**
+     * called by workers after the commands were flushed.
+     *
+     * @param marks offsets returned by dispatch
+     */
+    public void ack(List<Long> marks) {
+        for (Long mark : marks) {
+            pending.computeIfPresent(mark, (k, v) -> v == 1 ? null : v - 1);
+        }
+        if (syncing && sync >= 0 && !pending.containsKey(sync)) syncing = false;
+        save(false);
+    }
+
+    public synchronized void save(boolean force) {
+        if (syncing || configuration == null) return;
+        long now = System.currentTimeMillis();
+        if (!force && now - last < interval) return;
+        last = now;
+
+        // read offset before pending. a command dispatched after that has a mark not less than it.
+        String id = configuration.getReplId();
+        long next = configuration.getReplOffset();
+        Map.Entry<Long, Integer> first = pending.firstEntry();
+        if (first != null) next = Math.min(next, first.getKey());
+        if (next < 0 || (next == savedOffset && id.equals(savedId))) return;
+
+        // the SELECT at mark is applied if mark < next
+        Map.Entry<Long, Integer> select = selects.lowerEntry(next);
+        if (select != null) {
+            db = select.getValue();
+            selects.headMap(select.getKey()).clear();
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(HASH, hash);
+        properties.setProperty(REPL_ID, id);
+        properties.setProperty(OFFSET, String.valueOf(next));
+        properties.setProperty(DB, String.valueOf(db));
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, UTF_8)) {
+                properties.store(writer, null);
+            }
+            Files.move(temp, path, REPLACE_EXISTING, ATOMIC_MOVE);
+            savedId = id;
+            savedOffset = next;
+        } catch (IOException e) {
+            logger.error("failed to save checkpoint {}, reason: {}", path, e.getMessage());
+        }
+    }
+}
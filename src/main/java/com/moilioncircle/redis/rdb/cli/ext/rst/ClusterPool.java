@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.net.impl.Routes;
+import com.moilioncircle.redis.rdb.cli.net.impl.XEndpoints;
+import com.moilioncircle.redis.rdb.cli.util.XThreadFactory;
+import com.moilioncircle.redis.replicator.Configuration;
+import com.moilioncircle.redis.replicator.RedisURI;
+
+/**
+ * workers and connections of a cluster target, shared by the {@link ClusterRdbVisitor}s of all sources.
+ * every worker has one {@link XEndpoints} and all of them route by one {@link Routes}, so the connections to
+ * the target don't grow with the number of sources. the events of a source are handed to the workers by its
+ * own {@link PartitionedEventListener}, they are still applied in order per source.
+ * <p>
+ * a cluster target is db 0 only, so the connections carry no state of a source. the workers and connections
+ * are closed after all sources closed.
+ *
+ * @author Baoyi Chen
+ */
+public class ClusterPool implements Closeable {
+    
+    private int refs;
+    private volatile boolean failed;
+    private final int pipe;
+    private final Routes routes;
+    private final ExecutorService[] executors;
+    private final Configuration configuration;
+    private final List<XEndpoints> connections = new ArrayList<>();
+    private final ThreadLocal<XEndpoints> endpoints = new ThreadLocal<>();
+    
+    public ClusterPool(Configure configure, RedisURI uri, List<String> lines) {
+        this(configure, uri, lines, new XThreadFactory("sync-worker"));
+    }
+    
+    public ClusterPool(Configure configure, RedisURI uri, List<String> lines, ThreadFactory factory) {
+        this.routes = new Routes(lines);
+        this.pipe = configure.getMigrateBatchSize();
+        this.configuration = configure.merge(uri, false);
+        this.executors = PartitionedEventListener.executors(configure, factory);
+    }
+    
+    public Routes getRoutes() {
+        return routes;
+    }
+    
+    ExecutorService[] getExecutors() {
+        return executors;
+    }
+    
+    /**
+     * @return connections of current worker. null if not connected.
+     */
+    XEndpoints get() {
+        return endpoints.get();
+    }
+    
+    /**
+     * @return connections of current worker. connected on first call.
+     */
+    XEndpoints connect() {
+        XEndpoints r = endpoints.get();
+        if (r != null) return r;
+        r = new XEndpoints(routes, pipe, true, configuration);
+        endpoints.set(r);
+        synchronized (connections) {
+            connections.add(r);
+        }
+        return r;
+    }
+    
+    /**
+     * @return true if the target failed in any source.
+     */
+    boolean isFailed() {
+        return failed;
+    }
+    
+    /**
+     * the target is unreachable, all sources stop syncing to it.
+     */
+    void fail() {
+        failed = true;
+    }
+    
+    /**
+     * called by every source that uses this pool.
+     */
+    synchronized void retain() {
+        refs++;
+    }
+    
+    /**
+     * called when a source closed. the last one closes the pool.
+     */
+    synchronized void release() {
+        if (--refs > 0) return;
+        close();
+    }
+    
+    @Override
+    public void close() {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (connections) {
+            for (XEndpoints endpoints : connections) XEndpoints.closeQuietly(endpoints);
+            connections.clear();
+        }
+    }
+}
@@ -17,7 +17,11 @@
 package com.moilioncircle.redis.rdb.cli.ext.rst;
 
 import static com.moilioncircle.redis.rdb.cli.conf.NodeConfParser.slot;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.DEL;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.DUMP;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.FUNCTION;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.MSET;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.PTTL;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.REPLACE;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RESTORE;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RESTORE_ASKING;
@@ -25,7 +29,10 @@ import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.ZERO
 import static com.moilioncircle.redis.rdb.cli.glossary.Measures.ENDPOINT_FAILURE;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,15 +40,15 @@ import org.slf4j.LoggerFactory;
 import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosedCommand;
 import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosingCommand;
 import com.moilioncircle.redis.rdb.cli.api.sink.cmd.CombineCommand;
-import com.moilioncircle.redis.rdb.cli.api.sink.listener.AsyncEventListener;
 import com.moilioncircle.redis.rdb.cli.conf.Configure;
 import com.moilioncircle.redis.rdb.cli.filter.Filter;
+import com.moilioncircle.redis.rdb.cli.glossary.CrossSlot;
 import com.moilioncircle.redis.rdb.cli.monitor.Monitor;
 import com.moilioncircle.redis.rdb.cli.monitor.MonitorFactory;
 import com.moilioncircle.redis.rdb.cli.monitor.MonitorManager;
 import com.moilioncircle.redis.rdb.cli.net.impl.XEndpoints;
+import com.moilioncircle.redis.rdb.cli.net.protocol.RedisObject;
 import com.moilioncircle.redis.rdb.cli.util.XThreadFactory;
-import com.moilioncircle.redis.replicator.Configuration;
 import com.moilioncircle.redis.replicator.RedisURI;
 import com.moilioncircle.redis.replicator.Replicator;
 import com.moilioncircle.redis.replicator.cmd.Command;
@@ -88,65 +95,103 @@ public class ClusterRdbVisitor extends AbstractRstRdbVisitor implements EventLis
     private static final Logger logger = LoggerFactory.getLogger(ClusterRdbVisitor.class);
     private static final Monitor MONITOR = MonitorFactory.getMonitor("endpoint");
 
-    private int db;
-    private long ping = 0;
-    private final List<String> lines;
-    private final Configuration configuration;
-    private ThreadLocal<XEndpoints> endpoints = new ThreadLocal<>();
+    private ThreadLocal<Integer> db = ThreadLocal.withInitial(() -> 0);
+    private ThreadLocal<Long> ping = ThreadLocal.withInitial(() -> 0L);
+    
+    /*
+     * workers, connections and slot routing table. shared with other sources of the same target.
+     */
+    private final ClusterPool pool;
+    
+    public ClusterRdbVisitor(Replicator replicator, Configure configure, Filter filter, RedisURI uri, List<String> lines, boolean replace, Checkpoint checkpoint) throws IOException {
+        this(replicator, configure, filter, new ClusterPool(configure, uri, lines), replace, checkpoint);
+    }
     
     //noinspection ThisEscapedInObjectConstruction
-    public ClusterRdbVisitor(Replicator replicator, Configure configure, Filter filter, RedisURI uri, List<String> lines, boolean replace) throws IOException {
-        super(replicator, configure, filter, replace);
-        this.lines = lines;
-        this.configuration = configure.merge(uri, false);
-        this.replicator.addEventListener(new AsyncEventListener(this, replicator, configure.getMigrateThreads(), new XThreadFactory("sync-worker")));
+    public ClusterRdbVisitor(Replicator replicator, Configure configure, Filter filter, ClusterPool pool, boolean replace, Checkpoint checkpoint) throws IOException {
+        super(replicator, configure, filter, replace, checkpoint);
+        this.pool = pool;
+        this.pool.retain();
+        this.replicator.addEventListener(new PartitionedEventListener(this, replicator, configure, new XThreadFactory("sync-worker"), pool.getExecutors()));
+    }
+
+    @Override
+    public boolean isFailed() {
+        return super.isFailed() || pool.isFailed();
+    }
+
+    @Override
+    protected void fail(String message) {
+        pool.fail();
+        super.fail(message);
     }
 
     @Override
     public void onEvent(Replicator replicator, Event event) {
+        if (isFailed() && !(event instanceof ClosingCommand) && !(event instanceof ClosedCommand)) return;
         try {
             if (event instanceof PreRdbSyncEvent) {
-                XEndpoints prev = this.endpoints.get();
-                XEndpoints.closeQuietly(prev);
-                List<String> nodes = prev != null ? prev.getClusterNodes() : lines;
-                int pipe = configure.getMigrateBatchSize();
-                try {
-                    this.endpoints.set(new XEndpoints(nodes, pipe, true, configuration));
-                } catch (Throwable e) {
-                    // unrecoverable error
-                    System.out.println("failed to connect cluster nodes, reason : " + e.getMessage());
-                    System.exit(-1);
-                }
+                connect();
             } else if (event instanceof DumpKeyValuePair) {
-                retry((DumpKeyValuePair)event, configure.getMigrateRetries());
+                if (contains((DumpKeyValuePair) event)) {
+                    retry((DumpKeyValuePair)event, configure.getMigrateRetries());
+                }
             } else if (event instanceof DumpFunction) {
                 broadcast((DumpFunction) event, configure.getMigrateRetries());
             } else if (event instanceof PostRdbSyncEvent) {
-                this.endpoints.get().flushQuietly();
+                flushQuietly();
             } else if (event instanceof PreCommandSyncEvent) {
-                this.endpoints.get().flushQuietly();
+                if (pool.get() == null) {
+                    // partial resync after restart, continue with the db of checkpoint
+                    if (!connect()) return;
+                    this.db.set(checkpoint.getDB());
+                }
+                pool.get().flushQuietly();
             } else if (event instanceof SelectCommand) {
                 SelectCommand select = (SelectCommand)event;
-                this.db = select.getIndex();
+                this.db.set(select.getIndex());
             } else if (event instanceof CombineCommand) {
-                if (filter.contains(db)) {
+                if (targetFilter.contains(db.get())) {
                     retry((CombineCommand)event, configure.getMigrateRetries());
                 }
             } else if (event instanceof ClosingCommand) {
-                this.endpoints.get().flushQuietly();
-                XEndpoints.closeQuietly(this.endpoints.get());
+                if (pool.get() == null) return;
+                ack();
+                // closed by the pool after all sources closed
+                pool.get().flushQuietly();
                 MonitorManager.closeQuietly(manager);
             } else if (event instanceof ClosedCommand) {
+                if (checkpoint != null) checkpoint.save(true);
                 MonitorManager.closeQuietly(manager);
+                pool.release();
             }
         } catch (Throwable e) {
+            // the target failed while sending the event
+            if (isFailed()) return;
             // should not reach here, but if reach here ,please report an issue
             logger.error("report an issue with exception stack on https://github.com/leonchen83/redis-rdb-cli/issues", e);
-            System.out.println("fatal error, check log and report an issue with exception stack.");
-            System.exit(-1);
+            fail("fatal error, check log and report an issue with exception stack");
         }
     }
 
+    private boolean connect() {
+        try {
+            // the connections of worker may carry the commands of other sources, they are not reconnected
+            pool.connect();
+            return true;
+        } catch (Throwable e) {
+            // unrecoverable error of this target, the other targets continue
+            fail("failed to connect cluster nodes, reason : " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    protected void flushQuietly() {
+        XEndpoints endpoints = pool.get();
+        if (endpoints != null) endpoints.flushQuietly();
+    }
+
     public void retry(DumpKeyValuePair dkv, int times) {
         logger.trace("sync rdb event [{}], times {}", new String(dkv.getKey()), times);
         short slot = slot(dkv.getKey());
@@ -163,15 +208,15 @@ public class ClusterRdbVisitor extends AbstractRstRdbVisitor implements EventLis
             }
 
             if (!replace) {
-                endpoints.get().batch(flush, slot, RESTORE_ASKING, dkv.getKey(), expire, dkv.getValue());
+                pool.get().batch(flush, slot, RESTORE_ASKING, dkv.getKey(), expire, dkv.getValue());
             } else {
                 // https://github.com/leonchen83/redis-rdb-cli/issues/6 --no need to use lua script
-                endpoints.get().batch(flush, slot, RESTORE_ASKING, dkv.getKey(), expire, dkv.getValue(), REPLACE);
+                pool.get().batch(flush, slot, RESTORE_ASKING, dkv.getKey(), expire, dkv.getValue(), REPLACE);
             }
         } catch (Throwable e) {
             times--;
             if (times >= 0 && flush) {
-                this.endpoints.get().updateQuietly(slot);
+                pool.get().updateQuietly(slot);
                 retry(dkv, times);
             } else {
                 MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
@@ -185,9 +230,9 @@ public class ClusterRdbVisitor extends AbstractRstRdbVisitor implements EventLis
         try {
             boolean result = false;
             if (!replace) {
-                result = endpoints.get().broadcast(FUNCTION, RESTORE, dfn.getSerialized());
+                result = pool.get().broadcast(FUNCTION, RESTORE, dfn.getSerialized());
             } else {
-                result = endpoints.get().broadcast(FUNCTION, RESTORE, dfn.getSerialized(), REPLACE);
+                result = pool.get().broadcast(FUNCTION, RESTORE, dfn.getSerialized(), REPLACE);
             }
             if (!result) throw new RuntimeException("failover");
         } catch (Throwable e) {
@@ -204,7 +249,7 @@ public class ClusterRdbVisitor extends AbstractRstRdbVisitor implements EventLis
     public void broadcast(CombineCommand command, int times) {
         try {
             DefaultCommand dcmd = command.getDefaultCommand();
-            boolean result = endpoints.get().broadcast(dcmd.getCommand(), dcmd.getArgs());
+            boolean result = pool.get().broadcast(dcmd.getCommand(), dcmd.getArgs());
             if (!result) throw new RuntimeException("failover");
         } catch (Throwable e) {
             times--;
@@ -218,30 +263,86 @@ public class ClusterRdbVisitor extends AbstractRstRdbVisitor implements EventLis
     }
     
     public void retry(CombineCommand command, short slot, int times) {
+        retry(command.getDefaultCommand(), slot, times);
+    }
+    
+    public void retry(DefaultCommand command, short slot, int times) {
         try {
-            DefaultCommand dcmd = command.getDefaultCommand();
-            endpoints.get().batch(flush, slot, dcmd.getCommand(), dcmd.getArgs());
+            pool.get().batch(flush, slot, command.getCommand(), command.getArgs());
         } catch (Throwable e) {
             times--;
             if (times >= 0 && flush) {
-                this.endpoints.get().updateQuietly(slot);
+                pool.get().updateQuietly(slot);
                 retry(command, slot, times);
             } else {
                 MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
-                logger.error("failure[failed] [{}], reason: {}", command, e.getMessage());
+                logger.error("failure[failed] [{}], reason: {}", CombineCommand.toString(command), e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * split keys in different slots to one command per slot. e.g. MSET, DEL, UNLINK
+     *
+     * @param command command name
+     * @param args    keys, or keys and values
+     * @param step    2 if every key followed by a value
+     * @param times   retry times
+     */
+    public void split(byte[] command, byte[][] args, int step, int times) {
+        Map<Short, List<byte[]>> slots = new LinkedHashMap<>();
+        for (int i = 0; i + step <= args.length; i += step) {
+            List<byte[]> list = slots.computeIfAbsent(slot(args[i]), k -> new ArrayList<>());
+            for (int j = i; j < i + step; j++) list.add(args[j]);
+        }
+        for (Map.Entry<Short, List<byte[]>> entry : slots.entrySet()) {
+            DefaultCommand dcmd = new DefaultCommand();
+            dcmd.setCommand(command);
+            dcmd.setArgs(entry.getValue().toArray(new byte[0][]));
+            retry(dcmd, entry.getKey(), times);
+        }
+    }
+    
+    /**
+     * RENAME key newkey in different slots. move the value to the node of newkey.
+     */
+    public void rename(byte[] key, byte[] newKey, int times) {
+        short slot = slot(key);
+        try {
+            // flush pending commands of key before DUMP
+            RedisObject value = pool.get().send(DUMP, key);
+            if (value.type.isError()) throw new RuntimeException(value.getString());
+            if (value.getBytes() == null) {
+                MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
+                logger.error("failure[failed] [rename {} {}], reason: no such key", new String(key), new String(newKey));
+                return;
+            }
+            RedisObject ttl = pool.get().send(PTTL, key);
+            if (ttl.type.isError()) throw new RuntimeException(ttl.getString());
+            byte[] expire = ttl.getNumber() > 0 ? String.valueOf(ttl.getNumber()).getBytes() : ZERO;
+            pool.get().batch(flush, slot(newKey), RESTORE_ASKING, newKey, expire, value.getBytes(), REPLACE);
+            pool.get().batch(flush, slot, DEL, key);
+        } catch (Throwable e) {
+            times--;
+            if (times >= 0 && flush) {
+                pool.get().updateQuietly(slot);
+                rename(key, newKey, times);
+            } else {
+                MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
+                logger.error("failure[failed] [rename {} {}], reason: {}", new String(key), new String(newKey), e.getMessage());
             }
         }
     }
     
     public void ping() {
         try {
-            if (ping == 0) {
-                ping = System.currentTimeMillis();
+            if (ping.get() == 0) {
+                ping.set(System.currentTimeMillis());
             }
             // ping every 10s
-            if (System.currentTimeMillis() - ping > 10000) {
-                endpoints.get().ping(flush);
-                ping = System.currentTimeMillis();
+            if (System.currentTimeMillis() - ping.get() > 10000) {
+                pool.get().ping();
+                ping.set(System.currentTimeMillis());
             }
         } catch (Throwable e) {
         }
@@ -257,6 +358,8 @@ public class ClusterRdbVisitor extends AbstractRstRdbVisitor implements EventLis
             short slot = slot1(cmd.getKey(), cmd.getNewKey());
             if (slot != -1) {
                 retry(command, slot, times);
+            } else if (configure.getMigrateCrossSlot() == CrossSlot.REWRITE) {
+                rename(cmd.getKey(), cmd.getNewKey(), times);
             } else {
                 MONITOR.add(ENDPOINT_FAILURE, "slot", 1);
                 logger.error("failure[slot] [{}]", command);
@@ -266,6 +369,8 @@ public class ClusterRdbVisitor extends AbstractRstRdbVisitor implements EventLis
             short slot = slot1(cmd.getKey(), cmd.getNewKey());
             if (slot != -1) {
                 retry(command, slot, times);
+            } else if (configure.getMigrateCrossSlot() == CrossSlot.REWRITE) {
+                rename(cmd.getKey(), cmd.getNewKey(), times);
             } else {
                 MONITOR.add(ENDPOINT_FAILURE, "slot", 1);
                 logger.error("failure[slot] [{}]", command);
@@ -294,6 +399,9 @@ public class ClusterRdbVisitor extends AbstractRstRdbVisitor implements EventLis
             short slot = slot0(keys);
             if (slot != -1) {
                 retry(command, slot, times);
+            } else if (configure.getMigrateCrossSlot() == CrossSlot.REWRITE) {
+                // MSETNX was propagated only if all keys were set
+                split(MSET, command.getDefaultCommand().getArgs(), 2, times);
             } else {
                 MONITOR.add(ENDPOINT_FAILURE, "slot", 1);
                 logger.error("failure[slot] [{}]", command);
@@ -323,26 +431,25 @@ public class ClusterRdbVisitor extends AbstractRstRdbVisitor implements EventLis
             if (slot != -1) {
                 retry(command, slot, times);
             } else {
-                MONITOR.add(ENDPOINT_FAILURE, "slot", 1);
-                logger.error("failure[slot] [{}]", command);
+                split(MSET, command.getDefaultCommand().getArgs(), 2, times);
             }
         } else if (parsedCommand instanceof UnLinkCommand) {
             UnLinkCommand cmd = (UnLinkCommand) parsedCommand;
             short slot = slot0(cmd.getKeys());
             if (slot != -1) {
-                retry(command, slot(cmd.getKeys()[0]), times);
+                retry(command, slot, times);
             } else {
-                MONITOR.add(ENDPOINT_FAILURE, "slot", 1);
-                logger.error("failure[slot] [{}]", command);
+                DefaultCommand dcmd = command.getDefaultCommand();
+                split(dcmd.getCommand(), dcmd.getArgs(), 1, times);
             }
         } else if (parsedCommand instanceof DelCommand) {
             DelCommand cmd = (DelCommand) parsedCommand;
             short slot = slot0(cmd.getKeys());
             if (slot != -1) {
-                retry(command, slot(cmd.getKeys()[0]), times);
+                retry(command, slot, times);
             } else {
-                MONITOR.add(ENDPOINT_FAILURE, "slot", 1);
-                logger.error("failure[slot] [{}]", command);
+                DefaultCommand dcmd = command.getDefaultCommand();
+                split(dcmd.getCommand(), dcmd.getArgs(), 1, times);
             }
         } else if (parsedCommand instanceof ZUnionStoreCommand) {
             ZUnionStoreCommand cmd = (ZUnionStoreCommand) parsedCommand;
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.INCRBY;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.CombineCommand;
+import com.moilioncircle.redis.replicator.cmd.Command;
+import com.moilioncircle.redis.replicator.cmd.impl.DecrByCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.DecrCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.DefaultCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ExistType;
+import com.moilioncircle.redis.replicator.cmd.impl.ExpireAtCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.GenericKeyCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.IncrByCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.IncrCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PExpireAtCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PSetExCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SetExCommand;
+
+/**
+ * keep a run of single key writes of a worker and drop the writes that superseded by later writes of the same key.
+ * <p>
+ * SET, SETEX and PSETEX supersede all the writes of the key in window.
+ * PEXPIREAT and EXPIREAT supersede the previous PEXPIREAT and EXPIREAT of the key.
+ * consecutive INCR, DECR, INCRBY and DECRBY of the key are merged to one INCRBY.
+ * <p>
+ * other commands are not kept, the caller must drain the window before them.
+ * the order of remaining commands is not changed. not thread safe, every worker has its own window.
+ *
+ * @author Baoyi Chen
+ */
+public class CoalescingWindow {
+
+    private int count;
+    private long first;
+    private final int size;
+    private final long interval;
+    private List<Entry> entries = new ArrayList<>();
+    private Map<ByteBuffer, List<Entry>> keys = new HashMap<>();
+
+    public CoalescingWindow(int size, long interval) {
+        this.size = size;
+        this.interval = interval;
+    }
+
+    public boolean offer(CombineCommand command, long mark) {
+        return offer(command, mark, 0L);
+    }
+
+    /**
+     * @param command command of source
+     * @param mark    mark of the command in checkpoint
+     * @param bytes   bytes of the command that the caller holds until the window is drained
+     * @return false if the command can't be kept in window.
+     */
+    public boolean offer(CombineCommand command, long mark, long bytes) {
+        Command parsed = command.getParsedCommand();
+        if (!isCoalescible(command)) return false;
+        byte[] key = ((GenericKeyCommand) parsed).getKey();
+        List<Entry> list = keys.computeIfAbsent(ByteBuffer.wrap(key), k -> new ArrayList<>(2));
+        Entry next = new Entry(command, mark, bytes);
+        if (isSet(parsed)) {
+            for (Entry prev : list) supersede(prev, next);
+            list.clear();
+        } else if (isExpireAt(parsed)) {
+            for (Iterator<Entry> it = list.iterator(); it.hasNext(); ) {
+                Entry prev = it.next();
+                if (isExpireAt(prev.command.getParsedCommand())) {
+                    supersede(prev, next);
+                    it.remove();
+                }
+            }
+        } else if (!list.isEmpty()) {
+            Entry prev = list.get(list.size() - 1);
+            if (prev.delta != null && next.delta != null) {
+                try {
+                    long delta = Math.addExact(prev.delta, next.delta);
+                    DefaultCommand dcmd = new DefaultCommand();
+                    dcmd.setCommand(INCRBY);
+                    dcmd.setArgs(new byte[][]{key, String.valueOf(delta).getBytes()});
+                    next = new Entry(new CombineCommand(dcmd, new IncrByCommand(key, delta)), mark, bytes);
+                    next.delta = delta;
+                    supersede(prev, next);
+                    list.remove(list.size() - 1);
+                } catch (ArithmeticException e) {
+                    // overflow, keep both
+                }
+            }
+        }
+        if (count == 0) first = System.currentTimeMillis();
+        list.add(next);
+        entries.add(next);
+        count++;
+        return true;
+    }
+
+    /**
+     * @return true if window should be drained.
+     */
+    public boolean isFull() {
+        return count >= size || (count > 0 && System.currentTimeMillis() - first >= interval);
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return kept commands in order. marks and bytes of the dropped commands belong to the commands that superseded them.
+     */
+    public List<Entry> drain() {
+        List<Entry> r = new ArrayList<>(count);
+        for (Entry entry : entries) if (!entry.dropped) r.add(entry);
+        entries = new ArrayList<>();
+        keys = new HashMap<>();
+        count = 0;
+        return r;
+    }
+
+    private void supersede(Entry prev, Entry next) {
+        prev.dropped = true;
+        next.marks.addAll(prev.marks);
+        next.bytes += prev.bytes;
+        count--;
+    }
+
+    private static boolean isCoalescible(CombineCommand command) {
+        Command parsed = command.getParsedCommand();
+        if (parsed instanceof SetCommand) {
+            // NX, XX, GET and KEEPTTL depend on the previous value
+            SetCommand set = (SetCommand) parsed;
+            return set.getExistType() == ExistType.NONE && !set.isGet() && !set.getKeepTtl();
+        } else if (isExpireAt(parsed)) {
+            // NX, XX, GT and LT depend on the previous ttl
+            return command.getDefaultCommand().getArgs().length == 2;
+        }
+        return parsed instanceof SetExCommand || parsed instanceof PSetExCommand
+                || parsed instanceof IncrCommand || parsed instanceof DecrCommand
+                || parsed instanceof IncrByCommand || parsed instanceof DecrByCommand;
+    }
+
+    private static boolean isSet(Command parsed) {
+        return parsed instanceof SetCommand || parsed instanceof SetExCommand || parsed instanceof PSetExCommand;
+    }
+
+    private static boolean isExpireAt(Command parsed) {
+        return parsed instanceof PExpireAtCommand || parsed instanceof ExpireAtCommand;
+    }
+
+    private static Long delta(Command parsed) {
+        if (parsed instanceof IncrCommand) return 1L;
+        else if (parsed instanceof DecrCommand) return -1L;
+        else if (parsed instanceof IncrByCommand) return ((IncrByCommand) parsed).getValue();
+        else if (parsed instanceof DecrByCommand) {
+            long value = ((DecrByCommand) parsed).getValue();
+            return value == Long.MIN_VALUE ? null : -value;
+        }
+        return null;
+    }
+
+    public static class Entry {
+        private Long delta;
+        private long bytes;
+        private boolean dropped;
+        private final CombineCommand command;
+        private final List<Long> marks = new ArrayList<>(1);
+
+        private Entry(CombineCommand command, long mark, long bytes) {
+            this.bytes = bytes;
+            this.command = command;
+            this.delta = delta(command.getParsedCommand());
+            if (mark >= 0) this.marks.add(mark);
+        }
+
+        public CombineCommand getCommand() {
+            return command;
+        }
+
+        public List<Long> getMarks() {
+            return marks;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,594 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import static com.moilioncircle.redis.rdb.cli.conf.NodeConfParser.slot;
+import static com.moilioncircle.redis.rdb.cli.glossary.Measures.SYNC_BLOCKED;
+import static com.moilioncircle.redis.rdb.cli.glossary.Measures.SYNC_LAG;
+import static com.moilioncircle.redis.rdb.cli.glossary.Measures.SYNC_LAG_BYTES;
+import static com.moilioncircle.redis.rdb.cli.glossary.Measures.SYNC_LAG_MS;
+import static com.moilioncircle.redis.rdb.cli.glossary.Measures.SYNC_OFFSET;
+import static com.moilioncircle.redis.rdb.cli.glossary.Measures.SYNC_QUEUE_BYTES;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosedCommand;
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosingCommand;
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.CombineCommand;
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.ext.XRedisReplicator;
+import com.moilioncircle.redis.rdb.cli.glossary.Gateway;
+import com.moilioncircle.redis.rdb.cli.glossary.WaitStrategy;
+import com.moilioncircle.redis.rdb.cli.monitor.Monitor;
+import com.moilioncircle.redis.rdb.cli.monitor.MonitorFactory;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.cmd.Command;
+import com.moilioncircle.redis.replicator.cmd.impl.BLMoveCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.BRPopLPushCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.BitOpCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.CopyCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.DefaultCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.DelCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ExecCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.GenericKeyCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.GeoSearchStoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.LMoveCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.MSetCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.MSetNxCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.MultiCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PFCountCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PFMergeCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.PingCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RPopLPushCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RenameCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.RenameNxCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SDiffStoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SInterStoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SMoveCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SPublishCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SUnionStoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SelectCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SortCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.UnLinkCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZDiffStoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZInterStoreCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ZUnionStoreCommand;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.EventListener;
+import com.moilioncircle.redis.replicator.event.PostCommandSyncEvent;
+import com.moilioncircle.redis.replicator.event.PostRdbSyncEvent;
+import com.moilioncircle.redis.replicator.event.PreCommandSyncEvent;
+import com.moilioncircle.redis.replicator.event.PreRdbSyncEvent;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpFunction;
+import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
+
+/**
+ * route keys and commands to a fixed worker by slot of the key, so commands of the same key are applied in order.
+ * commands that keys are unknown or in different workers (FLUSHALL, SWAPDB, EVAL, cross worker MSET...) are barriers.
+ * they are applied after all workers flushed, and the commands after them wait until they are flushed.
+ * if migrate_coalesce_interval > 0, every worker coalesces the writes of the same key in a {@link CoalescingWindow}.
+ * if metric_gateway is not none, replication lag of the source is sampled every metric_lag_interval in background from the
+ * offsets that are received but not acknowledged by target, see {@link ReplicationLag}.
+ * if migrate_queue_size > 0, the replicator thread waits when a worker has migrate_queue_size pending events.
+ * if migrate_queue_bytes > 0, the replicator thread waits when the keys and commands not sent yet exceed migrate_queue_bytes.
+ * if migrate_wait_strategy is not blocking, events are handed to workers through a {@link RingExecutor}.
+ * the workers may be shared with the listeners of other sources, see {@link ClusterPool}.
+ * if the target failed, the events are dropped and the workers are stopped, the other targets of the source continue.
+ *
+ * @author Baoyi Chen
+ */
+public class PartitionedEventListener implements EventListener {
+
+    private static final Monitor MONITOR = MonitorFactory.getMonitor("sync");
+    private static final long[] BUCKETS = new long[]{10L, 100L, 1000L, 10000L, 60000L};
+    private static final int RING_SIZE = 1024;
+
+    private int pinned = -1;
+    private volatile boolean streaming;
+    private final int count;
+    private final boolean shared;
+    private final String source;
+    private final long interval;
+    private final long lagInterval;
+    private final ExecutorService[] executors;
+    private final ByteBudget budget;
+    private final CoalescingWindow[] windows;
+    private final ScheduledExecutorService scheduler;
+    private final ScheduledExecutorService sampler;
+    private final AbstractRstRdbVisitor listener;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    public PartitionedEventListener(AbstractRstRdbVisitor listener, Replicator replicator, Configure configure, ThreadFactory factory) {
+        this(listener, replicator, configure, factory, executors(configure, factory), false);
+    }
+    
+    /**
+     * @param executors workers shared with other sources. they are not shut down by this listener.
+     */
+    public PartitionedEventListener(AbstractRstRdbVisitor listener, Replicator replicator, Configure configure, ThreadFactory factory, ExecutorService[] executors) {
+        this(listener, replicator, configure, factory, executors, true);
+    }
+    
+    private PartitionedEventListener(AbstractRstRdbVisitor listener, Replicator replicator, Configure configure, ThreadFactory factory, ExecutorService[] executors, boolean shared) {
+        this.listener = listener;
+        this.shared = shared;
+        this.executors = executors;
+        this.count = executors.length;
+        this.source = replicator instanceof XRedisReplicator ? ((XRedisReplicator) replicator).getSource() : "source";
+        this.interval = configure.getMigrateCoalesceInterval();
+        this.lagInterval = configure.getMetricGateway() == Gateway.NONE ? 0 : configure.getMetricLagInterval();
+        this.budget = count > 0 && configure.getMigrateQueueBytes() > 0 ? new ByteBudget(configure.getMigrateQueueBytes()) : null;
+        if (count > 0 && interval > 0) {
+            this.windows = new CoalescingWindow[count];
+            for (int i = 0; i < count; i++) {
+                windows[i] = new CoalescingWindow(configure.getMigrateCoalesceSize(), interval);
+            }
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(factory);
+        } else {
+            this.windows = null;
+            this.scheduler = null;
+        }
+        if (lagInterval > 0 && listener.getLag() != null) {
+            // sampled even if the replicator thread is idle or blocked
+            this.sampler = Executors.newSingleThreadScheduledExecutor(factory);
+            this.sampler.scheduleAtFixedRate(this::sample, lagInterval, lagInterval, TimeUnit.MILLISECONDS);
+        } else {
+            this.sampler = null;
+        }
+        replicator.addCloseListener(this::close);
+    }
+
+    /**
+     * @param configure configure
+     * @param factory thread factory
+     * @return migrate_threads single thread executors. empty if migrate_threads <= 0.
+     */
+    public static ExecutorService[] executors(Configure configure, ThreadFactory factory) {
+        ExecutorService[] executors = new ExecutorService[Math.max(configure.getMigrateThreads(), 0)];
+        for (int i = 0; i < executors.length; i++) {
+            executors[i] = executor(configure.getMigrateQueueSize(), configure.getMigrateWaitStrategy(), factory);
+        }
+        return executors;
+    }
+    
+    /**
+     * @param size max pending tasks. 0 means unbounded, or RING_SIZE if strategy is not blocking
+     * @param strategy wait strategy of worker
+     * @param factory thread factory
+     * @return single thread executor. submit blocks the caller if the executor is full.
+     */
+    private static ExecutorService executor(int size, WaitStrategy strategy, ThreadFactory factory) {
+        if (strategy != WaitStrategy.BLOCKING) return new RingExecutor(size > 0 ? size : RING_SIZE, strategy, factory);
+        if (size <= 0) return Executors.newSingleThreadExecutor(factory);
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(size), factory, (task, executor) -> {
+            if (executor.isShutdown()) throw new RejectedExecutionException();
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        });
+    }
+
+    @Override
+    public void onEvent(Replicator replicator, Event event) {
+        if (event instanceof PreRdbSyncEvent) {
+            streaming = false;
+        } else if (event instanceof PreCommandSyncEvent) {
+            streaming = true;
+        }
+        if (stopped(replicator, -1)) return;
+        long mark = listener.mark(event);
+        if (count <= 0) {
+            listener.onEvent(replicator, event);
+            listener.ack(mark);
+            if (isBroadcast(event)) listener.ack();
+        } else if (event instanceof KeyValuePair<?, ?>) {
+            Object key = ((KeyValuePair<?, ?>) event).getKey();
+            submit(key instanceof byte[] ? partition((byte[]) key) : 0, replicator, event, mark);
+        } else if (isBroadcast(event)) {
+            broadcast(replicator, event, mark);
+        } else if (event instanceof CombineCommand) {
+            Command command = ((CombineCommand) event).getParsedCommand();
+            if (pinned != -1) {
+                // commands between MULTI and EXEC are sent in the same connection
+                submit(pinned, replicator, event, mark);
+                if (command instanceof ExecCommand) {
+                    await(replicator, pinned);
+                    pinned = -1;
+                }
+            } else if (command instanceof MultiCommand) {
+                await(replicator);
+                submit(pinned = 0, replicator, event, mark);
+            } else {
+                int partition = partition(keys(command));
+                if (partition != -1) {
+                    submit(partition, replicator, event, mark);
+                } else {
+                    await(replicator);
+                    submit(0, replicator, event, mark);
+                    await(replicator, 0);
+                }
+            }
+        } else {
+            submit(0, replicator, event, mark);
+        }
+    }
+
+    private boolean isBroadcast(Event event) {
+        // every worker has its own connection. PING keeps all of them alive and acknowledges the idle workers.
+        if (event instanceof CombineCommand) {
+            return pinned == -1 && ((CombineCommand) event).getParsedCommand() instanceof PingCommand;
+        }
+        return event instanceof SelectCommand
+                || event instanceof PreRdbSyncEvent || event instanceof PostRdbSyncEvent
+                || event instanceof PreCommandSyncEvent || event instanceof PostCommandSyncEvent;
+    }
+
+    private void submit(int partition, Replicator replicator, Event event, long mark) {
+        long bytes = acquire(event);
+        Future<?> future = execute(partition, () -> {
+            boolean kept = false;
+            try {
+                kept = apply(partition, replicator, event, mark, bytes);
+            } finally {
+                // the bytes of a command kept in window are released when the window is drained
+                if (!kept) release(bytes);
+                stopped(replicator, partition);
+            }
+        });
+        if (future == null) release(bytes);
+    }
+
+    /*
+     * return null if the workers of failed target were shut down.
+     */
+    private Future<?> execute(int partition, Runnable task) {
+        try {
+            return executors[partition].submit(task);
+        } catch (RejectedExecutionException e) {
+            if (!stopped.get()) throw e;
+            return null;
+        }
+    }
+
+    /*
+     * run in replicator thread (partition -1) or worker. stop the workers once the target failed.
+     */
+    private boolean stopped(Replicator replicator, int partition) {
+        if (!listener.isFailed()) return false;
+        if (stopped.compareAndSet(false, true)) stop(replicator, partition);
+        return true;
+    }
+
+    /*
+     * the events queued after failure are dropped by workers and their bytes are released, so a replicator
+     * thread waiting for the budget continues with the other targets.
+     */
+    private void stop(Replicator replicator, int current) {
+        if (scheduler != null) scheduler.shutdownNow();
+        for (int i = 0; i < count; i++) {
+            int partition = i;
+            Runnable task = () -> {
+                if (windows != null) {
+                    for (CoalescingWindow.Entry entry : windows[partition].drain()) release(entry.getBytes());
+                }
+                listener.onEvent(replicator, new ClosingCommand());
+            };
+            // the worker that found the failure must not wait for its own queue
+            if (partition == current) task.run();
+            else executors[partition].submit(task);
+        }
+        if (!shared) {
+            for (ExecutorService executor : executors) executor.shutdown();
+        }
+    }
+
+    /*
+     * run in replicator thread. the source is not read while waiting.
+     */
+    private long acquire(Event event) {
+        long bytes = budget == null ? 0L : size(event);
+        if (bytes <= 0) return 0L;
+        try {
+            long blocked = budget.acquire(bytes);
+            if (blocked > 0) MONITOR.add(SYNC_BLOCKED, source, 1, blocked);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0L;
+        }
+        MONITOR.set(SYNC_QUEUE_BYTES, source, budget.getBytes());
+        return bytes;
+    }
+
+    private void release(long bytes) {
+        if (bytes <= 0) return;
+        budget.release(bytes);
+        MONITOR.set(SYNC_QUEUE_BYTES, source, budget.getBytes());
+    }
+
+    private static long size(Event event) {
+        if (event instanceof DumpKeyValuePair) {
+            DumpKeyValuePair dkv = (DumpKeyValuePair) event;
+            return dkv.getKey().length + (long) dkv.getValue().length;
+        } else if (event instanceof DumpFunction) {
+            return ((DumpFunction) event).getSerialized().length;
+        } else if (event instanceof CombineCommand) {
+            DefaultCommand command = ((CombineCommand) event).getDefaultCommand();
+            long r = command.getCommand().length;
+            for (byte[] arg : command.getArgs()) r += arg.length;
+            return r;
+        }
+        return 0L;
+    }
+
+    /*
+     * run in worker of partition. return true if the command is kept in window.
+     */
+    private boolean apply(int partition, Replicator replicator, Event event, long mark, long bytes) {
+        if (stopped.get()) return false;
+        if (windows != null) {
+            CoalescingWindow window = windows[partition];
+            if (event instanceof CombineCommand) {
+                boolean empty = window.isEmpty();
+                if (window.offer((CombineCommand) event, mark, bytes)) {
+                    if (window.isFull()) {
+                        drain(partition, replicator);
+                    } else if (empty) {
+                        // drain the window in time if no more commands come
+                        scheduler.schedule(() -> executors[partition].submit(() -> drain(partition, replicator)), interval, TimeUnit.MILLISECONDS);
+                    }
+                    return true;
+                }
+            }
+            drain(partition, replicator);
+        }
+        listener.onEvent(replicator, event);
+        listener.ack(mark);
+        return false;
+    }
+
+    private void drain(int partition, Replicator replicator) {
+        if (windows == null || windows[partition].isEmpty()) return;
+        for (CoalescingWindow.Entry entry : windows[partition].drain()) {
+            try {
+                listener.onEvent(replicator, entry.getCommand());
+                for (Long mark : entry.getMarks()) listener.ack(mark);
+            } finally {
+                release(entry.getBytes());
+            }
+        }
+    }
+
+    private void broadcast(Replicator replicator, Event event, long mark) {
+        AtomicInteger remaining = new AtomicInteger(count);
+        for (int i = 0; i < count; i++) {
+            int partition = i;
+            execute(i, () -> {
+                drain(partition, replicator);
+                listener.onEvent(replicator, event);
+                listener.ack();
+                // the mark is acknowledged after all workers flushed
+                if (remaining.decrementAndGet() == 0) {
+                    listener.ack(mark);
+                    listener.ack();
+                }
+            });
+        }
+    }
+
+    /*
+     * wait until the events submitted before were flushed.
+     */
+    private void await(Replicator replicator, int... partitions) {
+        if (partitions.length == 0) {
+            partitions = new int[count];
+            for (int i = 0; i < count; i++) partitions[i] = i;
+        }
+        List<Future<?>> futures = new ArrayList<>(partitions.length);
+        for (int partition : partitions) {
+            futures.add(execute(partition, () -> {
+                drain(partition, replicator);
+                listener.flushQuietly();
+            }));
+        }
+        for (Future<?> future : futures) {
+            if (future == null) continue;
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /*
+     * run in sampler thread. lag is the received offset minus the acknowledged offset, and the age of the
+     * oldest command not acknowledged.
+     */
+    private void sample() {
+        if (!streaming) return;
+        try {
+            ReplicationLag lag = listener.getLag();
+            long now = System.currentTimeMillis();
+            long received = lag.getReceived();
+            long acknowledged = lag.getAcknowledged(received);
+            long ms = lag.getAge(now);
+            MONITOR.set(SYNC_OFFSET, source, "received", received);
+            MONITOR.set(SYNC_OFFSET, source, "acknowledged", acknowledged);
+            MONITOR.set(SYNC_LAG_BYTES, source, received - acknowledged);
+            MONITOR.set(SYNC_LAG_MS, source, ms);
+            MONITOR.add(SYNC_LAG, source, bucket(ms), 1, TimeUnit.MILLISECONDS.toNanos(ms));
+        } catch (Throwable e) {
+            // keep sampling
+        }
+    }
+
+    private static String bucket(long ms) {
+        for (long bucket : BUCKETS) {
+            if (ms <= bucket) return "le_" + bucket + "ms";
+        }
+        return "le_inf";
+    }
+
+    private void close(Replicator replicator) {
+        if (sampler != null) sampler.shutdownNow();
+        if (count <= 0) {
+            listener.onEvent(replicator, new ClosingCommand());
+        } else {
+            if (scheduler != null) scheduler.shutdownNow();
+            // windows are drained before ClosingCommand. the workers of failed target were closed when stopped
+            if (!stopped.get()) {
+                for (int i = 0; i < count; i++) submit(i, replicator, new ClosingCommand(), -1L);
+            }
+            if (shared) {
+                // the workers keep running for other sources
+                if (!stopped.get()) await(replicator);
+            } else {
+                for (ExecutorService executor : executors) {
+                    executor.shutdown();
+                    try {
+                        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+        listener.onEvent(replicator, new ClosedCommand());
+    }
+
+    private int partition(byte[] key) {
+        return slot(key) % count;
+    }
+
+    /**
+     * @param keys keys of command
+     * @return worker of all the keys. -1 if keys are unknown or in different workers.
+     */
+    private int partition(byte[][] keys) {
+        if (keys == null || keys.length == 0) return -1;
+        int partition = partition(keys[0]);
+        for (int i = 1; i < keys.length; i++) {
+            if (partition != partition(keys[i])) return -1;
+        }
+        return partition;
+    }
+
+    /**
+     * @param command parsed command
+     * @return keys of command. null if command is a barrier.
+     */
+    public static byte[][] keys(Command command) {
+        if (command instanceof RenameCommand) {
+            RenameCommand cmd = (RenameCommand) command;
+            return new byte[][]{cmd.getKey(), cmd.getNewKey()};
+        } else if (command instanceof RenameNxCommand) {
+            RenameNxCommand cmd = (RenameNxCommand) command;
+            return new byte[][]{cmd.getKey(), cmd.getNewKey()};
+        } else if (command instanceof SortCommand) {
+            // BY and GET patterns read other keys
+            return null;
+        } else if (command instanceof GenericKeyCommand) {
+            return new byte[][]{((GenericKeyCommand) command).getKey()};
+        } else if (command instanceof DelCommand) {
+            return ((DelCommand) command).getKeys();
+        } else if (command instanceof UnLinkCommand) {
+            return ((UnLinkCommand) command).getKeys();
+        } else if (command instanceof MSetCommand) {
+            return ((MSetCommand) command).getKv().keySet().toArray(new byte[0][]);
+        } else if (command instanceof MSetNxCommand) {
+            return ((MSetNxCommand) command).getKv().keySet().toArray(new byte[0][]);
+        } else if (command instanceof PFCountCommand) {
+            return ((PFCountCommand) command).getKeys();
+        } else if (command instanceof PFMergeCommand) {
+            PFMergeCommand cmd = (PFMergeCommand) command;
+            return concat(cmd.getDestkey(), cmd.getSourcekeys());
+        } else if (command instanceof BitOpCommand) {
+            BitOpCommand cmd = (BitOpCommand) command;
+            return concat(cmd.getDestkey(), cmd.getKeys());
+        } else if (command instanceof ZUnionStoreCommand) {
+            ZUnionStoreCommand cmd = (ZUnionStoreCommand) command;
+            return concat(cmd.getDestination(), cmd.getKeys());
+        } else if (command instanceof ZInterStoreCommand) {
+            ZInterStoreCommand cmd = (ZInterStoreCommand) command;
+            return concat(cmd.getDestination(), cmd.getKeys());
+        } else if (command instanceof ZDiffStoreCommand) {
+            ZDiffStoreCommand cmd = (ZDiffStoreCommand) command;
+            return concat(cmd.getDestination(), cmd.getKeys());
+        } else if (command instanceof SUnionStoreCommand) {
+            SUnionStoreCommand cmd = (SUnionStoreCommand) command;
+            return concat(cmd.getDestination(), cmd.getKeys());
+        } else if (command instanceof SInterStoreCommand) {
+            SInterStoreCommand cmd = (SInterStoreCommand) command;
+            return concat(cmd.getDestination(), cmd.getKeys());
+        } else if (command instanceof SDiffStoreCommand) {
+            SDiffStoreCommand cmd = (SDiffStoreCommand) command;
+            return concat(cmd.getDestination(), cmd.getKeys());
+        } else if (command instanceof SMoveCommand) {
+            SMoveCommand cmd = (SMoveCommand) command;
+            return new byte[][]{cmd.getSource(), cmd.getDestination()};
+        } else if (command instanceof RPopLPushCommand) {
+            RPopLPushCommand cmd = (RPopLPushCommand) command;
+            return new byte[][]{cmd.getSource(), cmd.getDestination()};
+        } else if (command instanceof BRPopLPushCommand) {
+            BRPopLPushCommand cmd = (BRPopLPushCommand) command;
+            return new byte[][]{cmd.getSource(), cmd.getDestination()};
+        } else if (command instanceof LMoveCommand) {
+            LMoveCommand cmd = (LMoveCommand) command;
+            return new byte[][]{cmd.getSource(), cmd.getDestination()};
+        } else if (command instanceof BLMoveCommand) {
+            BLMoveCommand cmd = (BLMoveCommand) command;
+            return new byte[][]{cmd.getSource(), cmd.getDestination()};
+        } else if (command instanceof CopyCommand) {
+            CopyCommand cmd = (CopyCommand) command;
+            return new byte[][]{cmd.getSource(), cmd.getDestination()};
+        } else if (command instanceof GeoSearchStoreCommand) {
+            GeoSearchStoreCommand cmd = (GeoSearchStoreCommand) command;
+            return new byte[][]{cmd.getSource(), cmd.getDestination()};
+        } else if (command instanceof SPublishCommand) {
+            return new byte[][]{((SPublishCommand) command).getChannel()};
+        } else {
+            // flushall, flushdb, swapdb, publish, eval, evalsha, script, function and unknown commands
+            return null;
+        }
+    }
+
+    private static byte[][] concat(byte[] key, byte[]... keys) {
+        byte[][] r = new byte[keys.length + 1][];
+        r[0] = key;
+        System.arraycopy(keys, 0, r, 1, keys.length);
+        return r;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.moilioncircle.redis.replicator.Configuration;
+
+/**
+ * replication offsets of the commands that handed to workers but not acknowledged by target yet.
+ * the acknowledged offset is the offset before the oldest pending command, or the received offset if none.
+ *
+ * @author Baoyi Chen
+ */
+public class ReplicationLag {
+
+    private final Configuration configuration;
+    // offset -> [pending commands, dispatched time]
+    private final ConcurrentSkipListMap<Long, long[]> pending = new ConcurrentSkipListMap<>();
+
+    public ReplicationLag(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * called by replicator thread when a full sync begins.
+     */
+    public void reset() {
+        pending.clear();
+    }
+
+    /**
+     * called by replicator thread before a command is handed to workers.
+     *
+     * @return offset of source before the command.
+     */
+    public long dispatch() {
+        long mark = configuration.getReplOffset();
+        long now = System.currentTimeMillis();
+        // the function may be retried, so values are not modified in place
+        pending.compute(mark, (k, v) -> v == null ? new long[]{1L, now} : new long[]{v[0] + 1, v[1]});
+        return mark;
+    }
+
+    /**
+     * called by workers after the commands were flushed.
+     *
+     * @param marks offsets returned by dispatch
+     */
+    public void ack(List<Long> marks) {
+        for (Long mark : marks) {
+            pending.computeIfPresent(mark, (k, v) -> v[0] == 1 ? null : new long[]{v[0] - 1, v[1]});
+        }
+    }
+
+    public long getReceived() {
+        return configuration.getReplOffset();
+    }
+
+    /**
+     * @param received the offset returned by {@link #getReceived()}, read before this call.
+     * @return acknowledged offset, not greater than received.
+     */
+    public long getAcknowledged(long received) {
+        Map.Entry<Long, long[]> first = pending.firstEntry();
+        return first == null ? received : Math.min(first.getKey(), received);
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return milliseconds since the oldest pending command was dispatched. 0 if none.
+     */
+    public long getAge(long now) {
+        Map.Entry<Long, long[]> first = pending.firstEntry();
+        return first == null ? 0L : Math.max(now - first.getValue()[1], 0L);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import static com.moilioncircle.redis.rdb.cli.glossary.WaitStrategy.PARK;
+import static com.moilioncircle.redis.rdb.cli.glossary.WaitStrategy.YIELD;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.moilioncircle.redis.rdb.cli.glossary.WaitStrategy;
+
+/**
+ * single thread executor on a ring of preallocated slots. no lock and no node allocation per task.
+ * <p>
+ * producers claim a slot by CAS on the tail and publish it by the sequence of the slot. the worker runs all
+ * the published slots in a batch and waits by {@link WaitStrategy} when the ring is empty. producers back off
+ * when the ring is full. on shutdown the worker runs the claimed slots and closes the tail by CAS, so every
+ * task is either run or rejected.
+ *
+ * @author Baoyi Chen
+ */
+public class RingExecutor extends AbstractExecutorService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RingExecutor.class);
+
+    private static final int SPINS = 100;
+
+    /*
+     * tail after the worker exited. producers can't claim a slot any more.
+     */
+    private static final long CLOSED = -1L;
+
+    private long head;
+    private final int mask;
+    private final Object[] tasks;
+    private final Thread worker;
+    private final WaitStrategy strategy;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private volatile boolean waiting;
+    private volatile boolean shutdown;
+
+    /**
+     * @param size     slots of ring. rounded up to power of 2
+     * @param strategy wait strategy of worker and producers
+     * @param factory  thread factory
+     */
+    public RingExecutor(int size, WaitStrategy strategy, ThreadFactory factory) {
+        int capacity = 1;
+        while (capacity < size) capacity <<= 1;
+        this.mask = capacity - 1;
+        this.strategy = strategy;
+        this.tasks = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) sequences.set(i, i);
+        this.worker = factory.newThread(this::run);
+        this.worker.start();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) throw new NullPointerException();
+        if (shutdown) throw new RejectedExecutionException();
+        long pos = tail.get();
+        for (int spins = 0; ; ) {
+            if (pos == CLOSED) throw new RejectedExecutionException();
+            long diff = sequences.get((int) pos & mask) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) break;
+            } else if (diff < 0) {
+                // full
+                if (shutdown) throw new RejectedExecutionException();
+                spins = idle(spins, false);
+            }
+            pos = tail.get();
+        }
+        int index = (int) pos & mask;
+        tasks[index] = task;
+        // volatile write before reading waiting, otherwise the worker may park and miss this task
+        sequences.set(index, pos + 1);
+        if (waiting) LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        try {
+            for (int spins = 0; ; ) {
+                long pos = head;
+                // batch of the published slots
+                while (sequences.get((int) pos & mask) == pos + 1) {
+                    int index = (int) pos & mask;
+                    Runnable task = (Runnable) tasks[index];
+                    tasks[index] = null;
+                    sequences.lazySet(index, pos + mask + 1);
+                    pos++;
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        // the same as ThreadPoolExecutor, the worker keeps running.
+                        logger.error("failed to run task", e);
+                    }
+                }
+                if (pos != head) {
+                    head = pos;
+                    spins = 0;
+                } else if (shutdown && tail.compareAndSet(head, CLOSED)) {
+                    // a producer that claimed a slot before has moved the tail, so its task is not lost.
+                    return;
+                } else {
+                    spins = idle(spins, true);
+                }
+            }
+        } finally {
+            terminated.countDown();
+        }
+    }
+
+    /*
+     * spin SPINS times first. the parked worker is unparked by producers. a full ring means the worker is slower
+     * than producers, so producers always back off by yielding, and then park for a short time with PARK.
+     */
+    private int idle(int spins, boolean consumer) {
+        if (consumer && strategy != YIELD && strategy != PARK) return spins;
+        if (spins < SPINS) return spins + 1;
+        if (!consumer && spins < SPINS * 2) {
+            Thread.yield();
+            return spins + 1;
+        }
+        if (consumer && strategy == PARK) {
+            waiting = true;
+            if (sequences.get((int) head & mask) != head + 1 && !shutdown) LockSupport.park(this);
+            waiting = false;
+        } else if (strategy == PARK) {
+            LockSupport.parkNanos(this, 1000L);
+        } else {
+            Thread.yield();
+        }
+        return spins;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(worker);
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        worker.interrupt();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+}
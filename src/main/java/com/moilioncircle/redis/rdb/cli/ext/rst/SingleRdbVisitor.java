@@ -24,17 +24,18 @@ import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.ONE;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.REPLACE;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RESTORE;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.SCRIPT;
-import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.SELECT;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.ZERO;
 import static com.moilioncircle.redis.rdb.cli.glossary.Measures.ENDPOINT_FAILURE;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosedCommand;
 import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosingCommand;
 import com.moilioncircle.redis.rdb.cli.api.sink.cmd.CombineCommand;
-import com.moilioncircle.redis.rdb.cli.api.sink.listener.AsyncEventListener;
 import com.moilioncircle.redis.rdb.cli.conf.Configure;
 import com.moilioncircle.redis.rdb.cli.filter.Filter;
 import com.moilioncircle.redis.rdb.cli.monitor.Monitor;
@@ -46,10 +47,19 @@ import com.moilioncircle.redis.rdb.cli.util.XThreadFactory;
 import com.moilioncircle.redis.replicator.Configuration;
 import com.moilioncircle.redis.replicator.RedisURI;
 import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.cmd.Command;
+import com.moilioncircle.redis.replicator.cmd.impl.CopyCommand;
 import com.moilioncircle.redis.replicator.cmd.impl.DefaultCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.EvalCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.EvalShaCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.ExecCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.FlushAllCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.MoveCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.MultiCommand;
 import com.moilioncircle.redis.replicator.cmd.impl.PingCommand;
 import com.moilioncircle.redis.replicator.cmd.impl.PublishCommand;
 import com.moilioncircle.redis.replicator.cmd.impl.SelectCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SwapDBCommand;
 import com.moilioncircle.redis.replicator.event.Event;
 import com.moilioncircle.redis.replicator.event.EventListener;
 import com.moilioncircle.redis.replicator.event.PostRdbSyncEvent;
@@ -61,6 +71,11 @@ import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
 import com.moilioncircle.redis.replicator.util.Strings;
 
 /**
+ * every worker has a connection per db, selected once when connected. so keys and commands of different dbs
+ * are pipelined without SELECT. the commands that touch other dbs (MOVE, COPY ... DB, FLUSHALL, SWAPDB and
+ * scripts that may SELECT) flush all connections of the worker before and after, and a transaction stays in
+ * the connection of MULTI with explicit SELECTs until EXEC, all connections are flushed around it if it SELECTs.
+ *
  * @author Baoyi Chen
  */
 public class SingleRdbVisitor extends AbstractRstRdbVisitor implements EventListener {
@@ -68,58 +83,85 @@ public class SingleRdbVisitor extends AbstractRstRdbVisitor implements EventList
     private static final Logger logger = LoggerFactory.getLogger(SingleRdbVisitor.class);
     private static final Monitor MONITOR = MonitorFactory.getMonitor("endpoint");
 
-    private int db;
-    private long ping = 0;
+    private ThreadLocal<Integer> db = ThreadLocal.withInitial(() -> 0);
+    private ThreadLocal<Long> ping = ThreadLocal.withInitial(() -> 0L);
+    // db of the connection that MULTI was sent to. -1 if not in a transaction
+    private ThreadLocal<Integer> multi = ThreadLocal.withInitial(() -> -1);
+    // the transaction SELECTs another db
+    private ThreadLocal<Boolean> crossed = ThreadLocal.withInitial(() -> false);
     private final RedisURI uri;
     private final boolean legacy;
     private volatile byte[] evalSha;
     private final Configuration conf;
-    private ThreadLocal<XEndpoint> endpoint = new ThreadLocal<>();
+    private ThreadLocal<Map<Integer, XEndpoint>> endpoints = ThreadLocal.withInitial(HashMap::new);
     
     //noinspection ThisEscapedInObjectConstruction
-    public SingleRdbVisitor(Replicator replicator, Configure configure, Filter filter, RedisURI uri, boolean replace, boolean legacy) throws Exception {
-        super(replicator, configure, filter, replace);
+    public SingleRdbVisitor(Replicator replicator, Configure configure, Filter filter, RedisURI uri, boolean replace, boolean legacy, Checkpoint checkpoint) throws Exception {
+        super(replicator, configure, filter, replace, checkpoint);
         this.uri = uri;
         this.legacy = legacy;
         this.conf = configure.merge(this.uri, false);
-        this.replicator.addEventListener(new AsyncEventListener(this, replicator, configure.getMigrateThreads(), new XThreadFactory("sync-worker")));
+        this.replicator.addEventListener(new PartitionedEventListener(this, replicator, configure, new XThreadFactory("sync-worker")));
     }
 
     @Override
     public void onEvent(Replicator replicator, Event event) {
+        if (isFailed() && !(event instanceof ClosingCommand) && !(event instanceof ClosedCommand)) return;
         try {
             if (event instanceof PreRdbSyncEvent) {
-                XEndpoint.closeQuietly(this.endpoint.get());
-                int pipe = configure.getMigrateBatchSize();
-                try {
-                    this.endpoint.set(new XEndpoint(uri.getHost(), uri.getPort(), 0, pipe, true, conf));
-                } catch (Throwable e) {
-                    // unrecoverable error
-                    System.out.println("failed to connect " + uri.getHost() + ":" + uri.getPort() + ", reason : " + e.getMessage());
-                    System.exit(-1);
-                }
+                closeQuietly();
+                this.db.set(0);
+                endpoint();
             } else if (event instanceof DumpKeyValuePair) {
-                retry((DumpKeyValuePair) event, configure.getMigrateRetries());
+                if (contains((DumpKeyValuePair) event)) {
+                    retry((DumpKeyValuePair) event, configure.getMigrateRetries());
+                }
             } else if (event instanceof DumpFunction) {
                 retry((DumpFunction) event, configure.getMigrateRetries());
             } else if (event instanceof PostRdbSyncEvent) {
-                this.endpoint.get().flushQuietly();
+                flushQuietly();
             } else if (event instanceof PreCommandSyncEvent) {
-                this.endpoint.get().flushQuietly();
+                if (this.endpoints.get().isEmpty()) {
+                    // partial resync after restart, continue with the db of checkpoint
+                    this.db.set(checkpoint.getDB());
+                    endpoint();
+                }
+                flushQuietly();
             } else if (event instanceof SelectCommand) {
                 SelectCommand select = (SelectCommand)event;
-                this.db = select.getIndex();
-                if (filter.contains(db)) {
-                    DefaultCommand command = new DefaultCommand();
-                    command.setCommand(SELECT);
-                    command.setArgs(new byte[][]{String.valueOf(db).getBytes()});
-                    retry(command, configure.getMigrateRetries());
+                this.db.set(select.getIndex());
+                if (multi.get() != -1 && targetFilter.contains(db.get())) {
+                    // SELECT in transaction, EXEC must not overtake the commands of other connections.
+                    if (!crossed.get()) {
+                        flushQuietly();
+                        crossed.set(true);
+                    }
+                    // the connection remembers the db, so EXEC selects back to the db of MULTI
+                    try {
+                        endpoint().select(flush, db.get());
+                    } catch (Throwable e) {
+                        MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
+                        logger.error("failure[failed] [select {}], reason: {}", db.get(), e.getMessage());
+                    }
                 }
             } else if (event instanceof CombineCommand) {
                 CombineCommand command = (CombineCommand)event;
-                if (command.getParsedCommand() instanceof PingCommand) {
+                Command parsed = command.getParsedCommand();
+                if (parsed instanceof PingCommand) {
                     ping(command);
-                } else if (filter.contains(db)) {
+                } else if (parsed instanceof ExecCommand && multi.get() != -1) {
+                    retry(command.getDefaultCommand(), configure.getMigrateRetries());
+                    exec();
+                    if (crossed.get()) {
+                        flushQuietly();
+                        crossed.set(false);
+                    }
+                } else if (isCrossDB(command) && targetFilter.contains(db.get())) {
+                    flushQuietly();
+                    retry(command.getDefaultCommand(), configure.getMigrateRetries());
+                    flushQuietly();
+                } else if (targetFilter.contains(db.get())) {
+                    if (parsed instanceof MultiCommand) multi.set(db.get());
                     if (command.getParsedCommand() instanceof PublishCommand) {
                         PublishCommand publish = (PublishCommand) command.getParsedCommand();
                         String channel = Strings.toString(publish.getChannel());
@@ -132,39 +174,128 @@ public class SingleRdbVisitor extends AbstractRstRdbVisitor implements EventList
                     }
                 }
             } else if (event instanceof ClosingCommand) {
-                this.endpoint.get().flushQuietly();
-                XEndpoint.closeQuietly(this.endpoint.get());
+                if (this.endpoints.get().isEmpty()) return;
+                ack();
+                flushQuietly();
+                closeQuietly();
             } else if (event instanceof ClosedCommand) {
+                if (checkpoint != null) checkpoint.save(true);
                 MonitorManager.closeQuietly(manager);
             }
         } catch (Throwable e) {
+            // the target failed while sending the event
+            if (isFailed()) return;
             // should not reach here, but if reach here ,please report an issue
             logger.error("report an issue with exception stack on https://github.com/leonchen83/redis-rdb-cli/issues", e);
-            System.out.println("fatal error, check log and report an issue with exception stack.");
-            System.exit(-1);
+            fail("fatal error, check log and report an issue with exception stack");
+        }
+    }
+    
+    /**
+     * @return connection of current db, or the connection of MULTI in a transaction. connected on first use.
+     */
+    private XEndpoint endpoint() {
+        int db = key();
+        XEndpoint endpoint = endpoints.get().get(db);
+        if (endpoint != null) return endpoint;
+        // not reconnected by the retries after failure
+        if (isFailed()) throw new IllegalStateException("target " + uri.getHost() + ":" + uri.getPort() + " failed");
+        int pipe = configure.getMigrateBatchSize();
+        try {
+            endpoint = new XEndpoint(uri.getHost(), uri.getPort(), db, pipe, true, conf);
+            endpoints.get().put(db, endpoint);
+        } catch (Throwable e) {
+            // unrecoverable error of this target, the other targets continue
+            fail("failed to connect " + uri.getHost() + ":" + uri.getPort() + ", reason : " + e.getMessage());
+            throw new IllegalStateException(e);
+        }
+        return endpoint;
+    }
+    
+    private int key() {
+        return multi.get() != -1 ? multi.get() : this.db.get();
+    }
+    
+    private void reconnect(int key, XEndpoint prev, int db) {
+        XEndpoint next = XEndpoint.valueOfQuietly(prev, db);
+        if (next != null) endpoints.get().put(key, next);
+    }
+    
+    /*
+     * the connection of MULTI may be selected to another db in the transaction.
+     */
+    private void exec() {
+        int db = multi.get();
+        XEndpoint endpoint = endpoints.get().get(db);
+        multi.set(-1);
+        if (endpoint != null && endpoint.getDB() != db) {
+            try {
+                endpoint.select(flush, db);
+            } catch (Throwable e) {
+                reconnect(db, endpoint, db);
+            }
+        }
+    }
+    
+    /*
+     * the commands that write the other dbs that have their own connections. the body of EVALSHA and FCALL is
+     * unknown here, so they are assumed to SELECT.
+     */
+    private static boolean isCrossDB(CombineCommand combine) {
+        Command command = combine.getParsedCommand();
+        if (command instanceof MoveCommand || command instanceof FlushAllCommand || command instanceof SwapDBCommand) return true;
+        if (command instanceof CopyCommand) return ((CopyCommand) command).getDb() != null;
+        if (command instanceof EvalCommand) return Strings.toString(((EvalCommand) command).getScript()).toLowerCase().contains("select");
+        if (command instanceof EvalShaCommand) return true;
+        return Strings.isEquals(Strings.toString(combine.getDefaultCommand().getCommand()).toLowerCase(), "fcall");
+    }
+    
+    @Override
+    protected void flushQuietly() {
+        for (XEndpoint endpoint : this.endpoints.get().values()) {
+            endpoint.flushQuietly();
+        }
+    }
+    
+    private void closeQuietly() {
+        for (XEndpoint endpoint : this.endpoints.get().values()) {
+            XEndpoint.closeQuietly(endpoint);
         }
+        this.endpoints.get().clear();
+        this.multi.set(-1);
+        this.crossed.set(false);
     }
     
     private void ping(CombineCommand command) {
-        if (ping == 0) {
-            ping = System.currentTimeMillis();
+        if (ping.get() == 0) {
+            ping.set(System.currentTimeMillis());
         }
         // ping every 10s
-        if (System.currentTimeMillis() - ping > 10000) {
-            retry(command.getDefaultCommand(), configure.getMigrateRetries());
-            ping = System.currentTimeMillis();
+        if (System.currentTimeMillis() - ping.get() > 10000) {
+            if (multi.get() != -1) {
+                retry(command.getDefaultCommand(), configure.getMigrateRetries());
+            } else {
+                // keep the connections of all dbs alive
+                int db = this.db.get();
+                for (Integer index : endpoints.get().keySet().toArray(new Integer[0])) {
+                    this.db.set(index);
+                    retry(command.getDefaultCommand(), configure.getMigrateRetries());
+                }
+                this.db.set(db);
+            }
+            ping.set(System.currentTimeMillis());
         }
     }
     
     public void retry(DefaultCommand command, int times) {
         logger.trace("sync aof event [{}], times {}", CombineCommand.toString(command), times);
         try {
-            endpoint.get().batch(flush, command.getCommand(), command.getArgs());
+            endpoint().batch(flush, command.getCommand(), command.getArgs());
         } catch (Throwable e) {
             times--;
             if (times >= 0 && flush) {
-                XEndpoint next = XEndpoint.valueOfQuietly(endpoint.get(), db);
-                if (next != null) endpoint.set(next);
+                XEndpoint prev = endpoint();
+                reconnect(key(), prev, prev.getDB());
                 retry(command, times);
             } else {
                 MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
@@ -177,11 +308,7 @@ public class SingleRdbVisitor extends AbstractRstRdbVisitor implements EventList
         logger.trace("sync rdb event [{}], times {}", new String(dkv.getKey()), times);
         try {
             DB db = dkv.getDb();
-    
-            int index;
-            if (db != null && (index = (int) db.getDbNumber()) != endpoint.get().getDB()) {
-                endpoint.get().select(true, index);
-            }
+            if (db != null) this.db.set((int) db.getDbNumber());
     
             byte[] expire = ZERO;
             if (dkv.getExpiredMs() != null) {
@@ -194,19 +321,18 @@ public class SingleRdbVisitor extends AbstractRstRdbVisitor implements EventList
                 expire = String.valueOf(ms).getBytes();
             }
             if (!replace) {
-                endpoint.get().batch(flush, RESTORE, dkv.getKey(), expire, dkv.getValue());
+                endpoint().batch(flush, RESTORE, dkv.getKey(), expire, dkv.getValue());
             } else if (legacy) {
                 // https://github.com/leonchen83/redis-rdb-cli/issues/6
                 eval(dkv.getKey(), dkv.getValue(), expire);
             } else {
-                endpoint.get().batch(flush, RESTORE, dkv.getKey(), expire, dkv.getValue(), REPLACE);
+                endpoint().batch(flush, RESTORE, dkv.getKey(), expire, dkv.getValue(), REPLACE);
             }
         } catch (Throwable e) {
             times--;
             if (times >= 0 && flush) {
-                XEndpoint prev = endpoint.get();
-                XEndpoint next = XEndpoint.valueOfQuietly(prev, prev.getDB());
-                if (next != null) endpoint.set(next);
+                XEndpoint prev = endpoint();
+                reconnect(key(), prev, prev.getDB());
                 retry(dkv, times);
             } else {
                 MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
@@ -219,16 +345,15 @@ public class SingleRdbVisitor extends AbstractRstRdbVisitor implements EventList
         logger.trace("sync rdb event [function], times {}", times);
         try {
             if (!replace) {
-                endpoint.get().batch(flush, FUNCTION, RESTORE, dfn.getSerialized());
+                endpoint().batch(flush, FUNCTION, RESTORE, dfn.getSerialized());
             } else {
-                endpoint.get().batch(flush, FUNCTION, RESTORE, dfn.getSerialized(), REPLACE);
+                endpoint().batch(flush, FUNCTION, RESTORE, dfn.getSerialized(), REPLACE);
             }
         } catch (Throwable e) {
             times--;
             if (times >= 0 && flush) {
-                XEndpoint prev = endpoint.get();
-                XEndpoint next = XEndpoint.valueOfQuietly(prev, prev.getDB());
-                if (next != null) endpoint.set(next);
+                XEndpoint prev = endpoint();
+                reconnect(key(), prev, prev.getDB());
                 retry(dfn, times);
             } else {
                 MONITOR.add(ENDPOINT_FAILURE, "failed", 1);
@@ -247,13 +372,13 @@ public class SingleRdbVisitor extends AbstractRstRdbVisitor implements EventList
     
     protected void eval(byte[] key, byte[] value, byte[] expire) {
         if (evalSha == null) {
-            RedisObject r = endpoint.get().send(SCRIPT, LOAD, LUA_SCRIPT);
+            RedisObject r = endpoint().send(SCRIPT, LOAD, LUA_SCRIPT);
             byte[] evalSha = r.getBytes();
             if (r.type.isError() || evalSha == null) throw new RuntimeException(); // retry in the caller method.
             this.evalSha = evalSha;
             eval(key, value, expire);
         } else {
-            endpoint.get().batch(flush, EVALSHA, evalSha, ONE, key, expire, value);
+            endpoint().batch(flush, EVALSHA, evalSha, ONE, key, expire, value);
         }
     }
 }
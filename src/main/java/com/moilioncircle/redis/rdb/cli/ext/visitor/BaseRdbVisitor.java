@@ -19,6 +19,10 @@ package com.moilioncircle.redis.rdb.cli.ext.visitor;
 import static com.moilioncircle.redis.rdb.cli.glossary.Guard.DRAIN;
 import static com.moilioncircle.redis.rdb.cli.glossary.Guard.PASS;
 import static com.moilioncircle.redis.rdb.cli.glossary.Guard.SAVE;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT16;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT32;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_INT8;
+import static com.moilioncircle.redis.replicator.Constants.RDB_ENC_LZF;
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_LISTPACK;
 import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH_ZIPLIST;
@@ -52,6 +56,7 @@ import com.moilioncircle.redis.replicator.rdb.BaseRdbParser;
 import com.moilioncircle.redis.replicator.rdb.DefaultRdbVisitor;
 import com.moilioncircle.redis.replicator.rdb.RdbValueVisitor;
 import com.moilioncircle.redis.replicator.rdb.datatype.ContextKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.datatype.ExpiredType;
 import com.moilioncircle.redis.replicator.rdb.skip.SkipRdbValueVisitor;
 import com.moilioncircle.redis.replicator.util.Strings;
 
@@ -72,6 +77,10 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		this.valueVisitor = new SkipRdbValueVisitor(replicator);
 	}
 	
+	public Filter getFilter() {
+		return filter;
+	}
+	
 	protected int getVersion(int version) {
 		if (configure.getDumpRdbVersion() == -1) {
 			return version;
@@ -80,12 +89,61 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		}
 	}
 	
+	/**
+	 * called after the key and its expiry are read, before the value. if true, the value is skipped
+	 * without being decoded like the keys that not in filter.
+	 *
+	 * @param context expiry of key
+	 * @param key key
+	 * @return true if the key should be dropped as expired. false by default.
+	 */
+	protected boolean isExpired(ContextKeyValuePair context, byte[] key) {
+		return false;
+	}
+	
+	/**
+	 * @param context expiry of key
+	 * @return expire time in milliseconds. null if key has no expiry.
+	 */
+	protected static Long getExpiredMs(ContextKeyValuePair context) {
+		Long value = context.getExpiredValue();
+		if (value == null || context.getExpiredType() == ExpiredType.NONE) return null;
+		return context.getExpiredType() == ExpiredType.SECOND ? value * 1000L : value;
+	}
+	
+	/**
+	 * reads the length prefix of an encoded string.
+	 *
+	 * @param in input stream
+	 * @return bytes of the string that follow the prefix
+	 * @throws IOException IOException
+	 */
+	protected static long getStringLength(RedisInputStream in) throws IOException {
+		BaseRdbParser parser = new BaseRdbParser(in);
+		BaseRdbParser.Len len = parser.rdbLoadLen();
+		if (!len.encoded) return len.len;
+		switch ((int) len.len) {
+			case RDB_ENC_INT8:
+				return 1;
+			case RDB_ENC_INT16:
+				return 2;
+			case RDB_ENC_INT32:
+				return 4;
+			case RDB_ENC_LZF:
+				long clen = parser.rdbLoadLen().len;
+				parser.rdbLoadLen(); // length of uncompressed string
+				return clen;
+			default:
+				throw new AssertionError("unknown RdbParser encoding type:" + len.len);
+		}
+	}
+	
 	@Override
 	public Event applyString(RedisInputStream in, int version, ContextKeyValuePair context) throws IOException {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_STRING, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_STRING, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyString(in, version, key, RDB_TYPE_STRING, context);
@@ -104,7 +162,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_LIST, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_LIST, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyList(in, version, key, RDB_TYPE_LIST, context);
@@ -123,7 +181,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_SET, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_SET, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplySet(in, version, key, RDB_TYPE_SET, context);
@@ -142,7 +200,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_ZSET, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_ZSET, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyZSet(in, version, key, RDB_TYPE_ZSET, context);
@@ -161,7 +219,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_ZSET_2, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_ZSET_2, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyZSet2(in, version, key, RDB_TYPE_ZSET_2, context);
@@ -180,7 +238,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_HASH, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_HASH, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyHash(in, version, key, RDB_TYPE_HASH, context);
@@ -199,7 +257,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_HASH_ZIPMAP, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_HASH_ZIPMAP, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyHashZipMap(in, version, key, RDB_TYPE_HASH_ZIPMAP, context);
@@ -218,7 +276,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_LIST_ZIPLIST, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_LIST_ZIPLIST, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyListZipList(in, version, key, RDB_TYPE_LIST_ZIPLIST, context);
@@ -237,7 +295,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_SET_INTSET, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_SET_INTSET, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplySetIntSet(in, version, key, RDB_TYPE_SET_INTSET, context);
@@ -256,7 +314,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_ZSET_ZIPLIST, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_ZSET_ZIPLIST, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyZSetZipList(in, version, key, RDB_TYPE_ZSET_ZIPLIST, context);
@@ -275,7 +333,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_ZSET_LISTPACK, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_ZSET_LISTPACK, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyZSetListPack(in, version, key, RDB_TYPE_ZSET_LISTPACK, context);
@@ -294,7 +352,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_HASH_ZIPLIST, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_HASH_ZIPLIST, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyHashZipList(in, version, key, RDB_TYPE_HASH_ZIPLIST, context);
@@ -313,7 +371,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_HASH_LISTPACK, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_HASH_LISTPACK, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyHashListPack(in, version, key, RDB_TYPE_HASH_LISTPACK, context);
@@ -332,7 +390,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_LIST_QUICKLIST, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_LIST_QUICKLIST, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyListQuickList(in, version, key, RDB_TYPE_LIST_QUICKLIST, context);
@@ -351,7 +409,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_LIST_QUICKLIST_2, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_LIST_QUICKLIST_2, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyListQuickList2(in, version, key, RDB_TYPE_LIST_QUICKLIST_2, context);
@@ -370,7 +428,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_MODULE, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_MODULE, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyModule(in, version, key, RDB_TYPE_MODULE, context);
@@ -389,7 +447,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_MODULE_2, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_MODULE_2, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyModule2(in, version, key, RDB_TYPE_MODULE_2, context);
@@ -408,7 +466,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_STREAM_LISTPACKS, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_STREAM_LISTPACKS, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyStreamListPacks(in, version, key, RDB_TYPE_STREAM_LISTPACKS, context);
@@ -427,7 +485,7 @@ public abstract class BaseRdbVisitor extends DefaultRdbVisitor {
 		try {
 			BaseRdbParser parser = new BaseRdbParser(in);
 			byte[] key = parser.rdbLoadEncodedStringObject().first();
-			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_STREAM_LISTPACKS_2, Strings.toString(key));
+			boolean contains = filter.contains(context.getDb().getDbNumber(), RDB_TYPE_STREAM_LISTPACKS_2, Strings.toString(key)) && !isExpired(context, key);
 			if (contains) {
 				if (listener != null) listener.setGuard(DRAIN);
 				return doApplyStreamListPacks2(in, version, key, RDB_TYPE_STREAM_LISTPACKS_2, context);
@@ -25,4 +25,12 @@ public interface Filter {
 	
 	boolean contains(long db, int type, String key);
 	
+	/**
+	 * @param bytes length of the DUMP payload of value
+	 * @return false if the value is out of --min-bytes and --max-bytes
+	 */
+	default boolean containsBytes(long bytes) {
+		return true;
+	}
+	
 }
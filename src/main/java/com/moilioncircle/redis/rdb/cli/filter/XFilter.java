@@ -77,6 +77,52 @@ public class XFilter implements Filter {
 		return new XFilter(regexs, dbs, types);
 	}
 	
+	public static Filter union(List<Filter> filters) {
+		if (filters.size() == 1) return filters.get(0);
+		return new Filter() {
+			@Override
+			public boolean contains(long db) {
+				return filters.stream().anyMatch(e -> e.contains(db));
+			}
+			
+			@Override
+			public boolean contains(long db, int type, String key) {
+				return filters.stream().anyMatch(e -> e.contains(db, type, key));
+			}
+			
+			@Override
+			public boolean containsBytes(long bytes) {
+				return filters.stream().anyMatch(e -> e.containsBytes(bytes));
+			}
+		};
+	}
+	
+	/**
+	 * @param filter filter of db, type and key
+	 * @param min min length of DUMP payload, null if not limited
+	 * @param max max length of DUMP payload, null if not limited
+	 * @return filter that also limits the length of value
+	 */
+	public static Filter bytes(Filter filter, Long min, Long max) {
+		if (min == null && max == null) return filter;
+		return new Filter() {
+			@Override
+			public boolean contains(long db) {
+				return filter.contains(db);
+			}
+			
+			@Override
+			public boolean contains(long db, int type, String key) {
+				return filter.contains(db, type, key);
+			}
+			
+			@Override
+			public boolean containsBytes(long bytes) {
+				return (min == null || bytes >= min) && (max == null || bytes <= max) && filter.containsBytes(bytes);
+			}
+		};
+	}
+	
 	private boolean contains(int type) {
 		if (isEmpty(types)) {
 			return true;
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.rdb.cli.glossary;
+
+/**
+ * fallback of the cross slot commands that can't be split in cluster `rst`.
+ *
+ * @author Baoyi Chen
+ */
+public enum CrossSlot {
+
+    SKIP("skip"),
+    REWRITE("rewrite");
+
+    private String value;
+
+    CrossSlot(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return this.value;
+    }
+
+    public static CrossSlot parse(String value) {
+        if (value.equals("skip")) return SKIP;
+        else if (value.equals("rewrite")) return REWRITE;
+        else throw new UnsupportedOperationException(value);
+    }
+}
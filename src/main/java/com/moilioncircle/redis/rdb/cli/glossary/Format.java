@@ -52,6 +52,14 @@ public class Format {
         this.formatter = Iterators.find(ServiceLoader.load(FormatterService.class).iterator(), test);
     }
 
+    /**
+     * @return true if the outputs of the nodes of a cluster source can be concatenated or merged to one output
+     */
+    public boolean isMergeable() {
+        // json is an array, and self define formatter may have header and footer
+        return formatter == null && !value.equals("json");
+    }
+    
     public void dress(Replicator r, Configure configure, Args.RctArgs args, String escape) {
         // self define formatter has highest priority
         if (formatter != null) {
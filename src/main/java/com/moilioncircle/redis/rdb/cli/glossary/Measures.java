@@ -28,6 +28,15 @@ public class Measures {
 	
 	public static final String[] ENDPOINT_MEASUREMENTS = new String[] {ENDPOINT_SEND, ENDPOINT_RECONNECT, ENDPOINT_FAILURE, ENDPOINT_SUCCESS};
 	
+	public static final String SYNC_LAG = "sync_lag";
+	public static final String SYNC_LAG_MS = "sync_lag_ms";
+	public static final String SYNC_LAG_BYTES = "sync_lag_bytes";
+	public static final String SYNC_OFFSET = "sync_offset";
+	public static final String SYNC_BLOCKED = "sync_blocked";
+	public static final String SYNC_QUEUE_BYTES = "sync_queue_bytes";
+	
+	public static final String[] SYNC_MEASUREMENTS = new String[] {SYNC_LAG, SYNC_LAG_MS, SYNC_LAG_BYTES, SYNC_OFFSET, SYNC_BLOCKED, SYNC_QUEUE_BYTES};
+	
 	public static final String MEMORY_BIG_KEY = "memory_big_key";
 	public static final String MEMORY_DB_NUMBERS = "memory_dbnum";
 	public static final String MEMORY_DB_EXPIRES = "memory_dbexp";
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.rdb.cli.glossary;
+
+/**
+ * how a `rst` worker waits for events. `blocking` uses a blocking queue, the others use a {@code RingExecutor}.
+ *
+ * @author Baoyi Chen
+ */
+public enum WaitStrategy {
+
+    BLOCKING("blocking"),
+    BUSY_SPIN("busy_spin"),
+    YIELD("yield"),
+    PARK("park");
+
+    private String value;
+
+    WaitStrategy(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return this.value;
+    }
+
+    public static WaitStrategy parse(String value) {
+        if (value.equals("blocking")) return BLOCKING;
+        else if (value.equals("busy_spin")) return BUSY_SPIN;
+        else if (value.equals("yield")) return YIELD;
+        else if (value.equals("park")) return PARK;
+        else throw new UnsupportedOperationException(value);
+    }
+}
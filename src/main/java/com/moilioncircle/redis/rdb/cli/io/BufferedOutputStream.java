@@ -45,6 +45,13 @@ public class BufferedOutputStream extends OutputStream {
     }
     
     public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buf.length) {
+            // large chunk. write through without copying to buffer
+            flush();
+            out.write(b, off, len);
+            out.flush();
+            return;
+        }
         while (len > 0) {
             int min = Math.min(len, buf.length - count);
             System.arraycopy(b, off, buf, count, min);
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.rdb.cli.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import com.moilioncircle.redis.rdb.cli.util.ByteBuffers;
+
+/**
+ * @author Baoyi Chen
+ */
+public class ByteBuffersInputStream extends InputStream {
+    
+    private ByteBuffer buf;
+    private final Iterator<ByteBuffer> buffers;
+    
+    public ByteBuffersInputStream(ByteBuffers buffers) {
+        this.buffers = buffers.getBuffers();
+    }
+    
+    @Override
+    public int read() {
+        if (!fill()) return -1;
+        return buf.get() & 0xFF;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int n = Math.min(len, buf.remaining());
+        buf.get(b, off, n);
+        return n;
+    }
+    
+    private boolean fill() {
+        while ((buf == null || !buf.hasRemaining()) && buffers.hasNext()) {
+            buf = buffers.next();
+        }
+        return buf != null && buf.hasRemaining();
+    }
+}
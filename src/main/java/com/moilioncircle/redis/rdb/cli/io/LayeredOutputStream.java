@@ -57,8 +57,12 @@ public class LayeredOutputStream extends OutputStream {
     protected ByteBufferOutputStream buffer;
     
     public LayeredOutputStream(Configure configure) {
+        this(configure, configure.getMaxOutputBufferSize());
+    }
+    
+    public LayeredOutputStream(Configure configure, int max) {
         this.init = configure.getOutputBufferSize();
-        this.max = configure.getMaxOutputBufferSize();
+        this.max = max;
         this.path = configure.getTempFilePath();
         this.prefix = configure.getTempFilePrefix();
         this.buffer = new ByteBufferOutputStream(init);
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.moilioncircle.redis.rdb.cli.net.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.moilioncircle.redis.rdb.cli.conf.NodeConfParser;
+import com.moilioncircle.redis.rdb.cli.net.AbstractEndpoint;
+
+/**
+ * slot routing table of a cluster, shared by all {@link XEndpoints} of a visitor. the table only holds
+ * the topology, every {@link XEndpoints} keeps its own connections to the nodes.
+ * <p>
+ * readers take the immutable {@link Snapshot} from a single volatile reference. a topology change copies
+ * the snapshot and swaps it with a new epoch, so a -MOVED reply or a failover seen by one connection
+ * updates the route of all connections.
+ *
+ * @author Baoyi Chen
+ */
+public class Routes {
+
+    private static final Logger logger = LoggerFactory.getLogger(Routes.class);
+
+    private static final int SLOTS = 16384;
+
+    private volatile Snapshot snapshot;
+    private volatile List<String> clusterNodes;
+
+    public Routes(List<String> lines) {
+        Set<DummyEndpoint> next1 = new HashSet<>();
+        Map<Short, DummyEndpoint> next2 = new HashMap<>(32768);
+        NodeConfParser.parse(lines, next1, next2, t -> new DummyEndpoint(t.getV1(), t.getV2()));
+        if (next2.size() != SLOTS) {
+            throw new UnsupportedOperationException("slots size : " + next2.size() + ", expected 16384.");
+        }
+        List<DummyEndpoint> nodes = new ArrayList<>();
+        short[] slots = new short[SLOTS];
+        for (Map.Entry<Short, DummyEndpoint> entry : next2.entrySet()) {
+            slots[entry.getKey()] = (short) index(nodes, entry.getValue());
+        }
+        this.clusterNodes = lines;
+        this.snapshot = new Snapshot(0L, nodes.toArray(new DummyEndpoint[0]), slots);
+    }
+
+    public Snapshot get() {
+        return snapshot;
+    }
+
+    public List<String> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    /**
+     * -MOVED reply. move the slot to the node.
+     *
+     * @param slot slot
+     * @param host host of new owner
+     * @param port port of new owner
+     */
+    public synchronized void move(short slot, String host, int port) {
+        Snapshot prev = snapshot;
+        DummyEndpoint next = new DummyEndpoint(host, port);
+        if (prev.route(slot).equals(next)) return;
+        List<DummyEndpoint> nodes = new ArrayList<>(Arrays.asList(prev.nodes));
+        short[] slots = prev.slots.clone();
+        slots[slot] = (short) index(nodes, next);
+        swap(prev, nodes, slots);
+        logger.debug("slot {} moved to {}:{}", slot, host, port);
+    }
+
+    /**
+     * the node was replaced by its replica. move all slots of the node to the replica.
+     *
+     * @param prev failed node
+     * @param host host of new owner
+     * @param port port of new owner
+     */
+    public synchronized void replace(AbstractEndpoint prev, String host, int port) {
+        Snapshot current = snapshot;
+        DummyEndpoint next = new DummyEndpoint(host, port);
+        int idx = current.index(prev);
+        if (idx < 0 || prev.equals(next)) return;
+        List<DummyEndpoint> nodes = new ArrayList<>(Arrays.asList(current.nodes));
+        short[] slots = current.slots.clone();
+        short v = (short) index(nodes, next);
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (slots[slot] == idx) slots[slot] = v;
+        }
+        swap(current, nodes, slots);
+    }
+
+    /**
+     * CLUSTER NODES view after failover. slots not covered by the view keep their previous route,
+     * -MOVED reply or next failover will fix them.
+     *
+     * @param prev the snapshot that the caller saw failed.
+     * @param lines cluster nodes
+     * @return false if the routes were already updated since prev.
+     */
+    public synchronized boolean merge(Snapshot prev, List<String> lines) {
+        Snapshot current = snapshot;
+        if (current != prev) return false;
+        Set<DummyEndpoint> next1 = new HashSet<>();
+        Map<Short, DummyEndpoint> next2 = new HashMap<>(32768);
+        NodeConfParser.parse(lines, next1, next2, t -> new DummyEndpoint(t.getV1(), t.getV2()));
+
+        List<DummyEndpoint> nodes = new ArrayList<>();
+        short[] slots = new short[SLOTS];
+        for (int slot = 0; slot < SLOTS; slot++) {
+            DummyEndpoint node = next2.get((short) slot);
+            if (node == null) node = current.route((short) slot);
+            slots[slot] = (short) index(nodes, node);
+        }
+        if (next2.size() != SLOTS) {
+            logger.warn("covered slots: [{}], cluster config: [{}]", next2.size(), String.join("\n", lines));
+        }
+        this.clusterNodes = lines;
+        swap(current, nodes, slots);
+        return true;
+    }
+
+    private void swap(Snapshot prev, List<DummyEndpoint> nodes, short[] slots) {
+        // drop the nodes that own no slot any more
+        short[] mapping = new short[nodes.size()];
+        for (short slot : slots) mapping[slot] = 1;
+        List<DummyEndpoint> next = new ArrayList<>();
+        for (int i = 0; i < mapping.length; i++) {
+            if (mapping[i] == 0) continue;
+            mapping[i] = (short) next.size();
+            next.add(nodes.get(i));
+        }
+        for (int slot = 0; slot < SLOTS; slot++) {
+            slots[slot] = mapping[slots[slot]];
+        }
+        this.snapshot = new Snapshot(prev.epoch + 1, next.toArray(new DummyEndpoint[0]), slots);
+    }
+
+    private static int index(List<DummyEndpoint> nodes, DummyEndpoint node) {
+        int idx = nodes.indexOf(node);
+        if (idx >= 0) return idx;
+        nodes.add(new DummyEndpoint(node.getHost(), node.getPort()));
+        return nodes.size() - 1;
+    }
+
+    /**
+     * immutable slot routing table. slot to index of node.
+     */
+    public static final class Snapshot {
+        private final long epoch;
+        private final short[] slots;
+        private final DummyEndpoint[] nodes;
+
+        private Snapshot(long epoch, DummyEndpoint[] nodes, short[] slots) {
+            this.epoch = epoch;
+            this.nodes = nodes;
+            this.slots = slots;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public int size() {
+            return nodes.length;
+        }
+
+        public int index(short slot) {
+            return slots[slot];
+        }
+
+        public DummyEndpoint node(int index) {
+            return nodes[index];
+        }
+
+        public DummyEndpoint route(short slot) {
+            return nodes[slots[slot]];
+        }
+
+        /**
+         * @param endpoint node
+         * @return first slot of the node, -1 if the node owns no slot.
+         */
+        public short slot(AbstractEndpoint endpoint) {
+            int index = index(endpoint);
+            if (index < 0) return -1;
+            for (int slot = 0; slot < slots.length; slot++) {
+                if (slots[slot] == index) return (short) slot;
+            }
+            return -1;
+        }
+
+        /**
+         * @param endpoint node
+         * @return index of the node, -1 if the node owns no slot.
+         */
+        public int index(AbstractEndpoint endpoint) {
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i].equals(endpoint)) return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -27,9 +27,11 @@ import static com.moilioncircle.redis.rdb.cli.glossary.Measures.ENDPOINT_SUCCESS
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
@@ -49,6 +51,8 @@ import com.moilioncircle.redis.rdb.cli.util.Sockets;
 import com.moilioncircle.redis.replicator.Configuration;
 import com.moilioncircle.redis.replicator.io.RedisInputStream;
 import com.moilioncircle.redis.replicator.net.RedisSocketFactory;
+import com.moilioncircle.redis.replicator.util.Tuples;
+import com.moilioncircle.redis.replicator.util.type.Tuple2;
 
 /**
  * @author Baoyi Chen
@@ -71,6 +75,12 @@ public class XEndpoint extends AbstractEndpoint implements Closeable {
     private final boolean statistics;
     private final RedisInputStream in;
     
+    /**
+     * cluster endpoint. keep pipelined commands to re-queue them when target replies -MOVED or -ASK.
+     */
+    private List<Pending> pending;
+    private List<Tuple2<String, Pending>> redirections;
+    
     public XEndpoint(String host, int port, Configuration conf) {
         this(host, port, 0, 1, false, conf);
     }
@@ -130,6 +140,35 @@ public class XEndpoint extends AbstractEndpoint implements Closeable {
         return db;
     }
     
+    public InetAddress getLocalAddress() {
+        return socket.getLocalAddress();
+    }
+    
+    public boolean isRedirect() {
+        return pending != null;
+    }
+    
+    public void setRedirect(boolean redirect) {
+        release();
+        if (redirect) {
+            this.pending = new ArrayList<>();
+            this.redirections = new ArrayList<>();
+        } else {
+            this.pending = null;
+            this.redirections = null;
+        }
+    }
+    
+    /**
+     * @return commands that replied -MOVED or -ASK since last call, with the error message. null if not redirect endpoint.
+     * the caller must release them.
+     */
+    List<Tuple2<String, Pending>> redirections() {
+        List<Tuple2<String, Pending>> r = redirections;
+        if (r != null && !r.isEmpty()) redirections = new ArrayList<>();
+        return r;
+    }
+    
     public RedisObject send(byte[] command, byte[]... ary) {
         try {
             flush();
@@ -150,6 +189,7 @@ public class XEndpoint extends AbstractEndpoint implements Closeable {
         try {
             long mark = System.nanoTime();
             protocol.emit(command, args);
+            if (pending != null) pending.add(new Pending(command(command, args)));
             if (force) {
                 out.flush();
                 if (statistics) MONITOR.add(ENDPOINT_SEND, address, 1, System.nanoTime() - mark);
@@ -161,10 +201,15 @@ public class XEndpoint extends AbstractEndpoint implements Closeable {
         }
     }
     
+    /**
+     * the buffers are not copied. a redirect endpoint retains them until the reply is read, so that -MOVED
+     * or -ASK can re-queue them. the caller closes the buffers after batch as usual.
+     */
     public void batch(boolean force, ByteBuffers command, ByteBuffers... args) {
         try {
             long mark = System.nanoTime();
             protocol.emit(command, args);
+            if (pending != null) pending.add(new Pending(retain(command, args)));
             if (force) {
                 out.flush();
                 if (statistics) MONITOR.add(ENDPOINT_SEND, address, 1, System.nanoTime() - mark);
@@ -195,6 +240,7 @@ public class XEndpoint extends AbstractEndpoint implements Closeable {
             for (int i = 0; i < count; i++) {
                 result.add(protocol.parse());
             }
+            release(pending);
             count = 0;
             return result;
         } catch (IOException e) {
@@ -215,22 +261,45 @@ public class XEndpoint extends AbstractEndpoint implements Closeable {
             if (count <= 0) return;
             Outputs.flush(out);
             for (int i = 0; i < count; i++) {
-                RedisObject r = protocol.parse();
+                RedisObject r = protocol.discard();
                 if (r != null && r.type.isError()) {
-                    logger.error(r.getString());
+                    String message = r.getString();
+                    if (pending != null && (message.startsWith("MOVED ") || message.startsWith("ASK "))) {
+                        // the redirection takes the pending command over
+                        redirections.add(Tuples.of(message, pending.set(i, null)));
+                        continue;
+                    }
+                    logger.error(message);
                     if (statistics) MONITOR.add(ENDPOINT_FAILURE, "respond", 1);
                 } else {
                     if (statistics) MONITOR.add(ENDPOINT_SUCCESS, address, 1);
                 }
             }
+            release(pending);
             count = 0;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
     
+    private void release() {
+        release(pending);
+        if (redirections == null) return;
+        for (Tuple2<String, Pending> redirection : redirections) redirection.getV2().release();
+        redirections.clear();
+    }
+    
+    private static void release(List<Pending> pending) {
+        if (pending == null) return;
+        for (Pending command : pending) {
+            if (command != null) command.release();
+        }
+        pending.clear();
+    }
+    
     @Override
     public void close() throws IOException {
+        release();
         Sockets.closeQuietly(in);
         Sockets.closeQuietly(out);
         Sockets.closeQuietly(socket);
@@ -289,12 +358,60 @@ public class XEndpoint extends AbstractEndpoint implements Closeable {
         closeQuietly(endpoint);
         XEndpoint v = new XEndpoint(host, port, db, endpoint.pipe, endpoint.statistics, endpoint.conf);
         v.setSlots(new ArrayList<>(endpoint.slots));
+        v.setRedirect(endpoint.isRedirect());
         return v;
     }
     
+    private static byte[][] command(byte[] command, byte[]... args) {
+        byte[][] r = new byte[args.length + 1][];
+        r[0] = command;
+        System.arraycopy(args, 0, r, 1, args.length);
+        return r;
+    }
+    
+    private static ByteBuffers[] retain(ByteBuffers command, ByteBuffers... args) {
+        ByteBuffers[] r = new ByteBuffers[args.length + 1];
+        r[0] = command.retain();
+        for (int i = 0; i < args.length; i++) r[i + 1] = args[i].retain();
+        return r;
+    }
+    
     public static DummyEndpoint toDummy(XEndpoint endpoint) {
         DummyEndpoint dummy = new DummyEndpoint(endpoint.getHost(), endpoint.getPort());
         dummy.setSlots(new ArrayList<>(endpoint.getSlots())); // copy
         return dummy;
     }
+    
+    /**
+     * pipelined command of a redirect endpoint.
+     */
+    static class Pending {
+        private byte[][] command;
+        private ByteBuffers[] buffers;
+        
+        private Pending(byte[][] command) {
+            this.command = command;
+        }
+        
+        private Pending(ByteBuffers[] buffers) {
+            this.buffers = buffers;
+        }
+        
+        /**
+         * re-queue this command to endpoint.
+         */
+        void batch(XEndpoint endpoint, boolean force) {
+            if (command != null) {
+                endpoint.batch(force, command[0], Arrays.copyOfRange(command, 1, command.length));
+            } else {
+                for (ByteBuffers buffer : buffers) buffer.reset();
+                endpoint.batch(force, buffers[0], Arrays.copyOfRange(buffers, 1, buffers.length));
+            }
+        }
+        
+        void release() {
+            if (buffers == null) return;
+            for (ByteBuffers buffer : buffers) buffer.close();
+        }
+    }
 }
\ No newline at end of file
@@ -17,10 +17,12 @@
 package com.moilioncircle.redis.rdb.cli.net.impl;
 
 import static com.moilioncircle.redis.rdb.cli.conf.NodeConfParser.slot;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.ASKING;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.CLUSTER;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.NODES;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.PING;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.ROLE;
+import static java.lang.Integer.parseInt;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -30,17 +32,16 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.moilioncircle.redis.rdb.cli.conf.NodeConfParser;
+import com.moilioncircle.redis.rdb.cli.net.AbstractEndpoint;
 import com.moilioncircle.redis.rdb.cli.net.protocol.RedisObject;
 import com.moilioncircle.redis.rdb.cli.util.ByteBuffers;
 import com.moilioncircle.redis.rdb.cli.util.Collections;
 import com.moilioncircle.redis.replicator.Configuration;
-import com.moilioncircle.redis.replicator.util.type.Tuple3;
+import com.moilioncircle.redis.replicator.util.type.Tuple2;
 
 /**
  * @author Baoyi Chen
@@ -48,77 +49,256 @@ import com.moilioncircle.redis.replicator.util.type.Tuple3;
 public class XEndpoints implements Closeable {
     
     private static final Logger logger = LoggerFactory.getLogger(XEndpoints.class);
+    
+    private static final int MAX_REDIRECTIONS = 5;
 
     private final int pipe;
+    private final Routes routes;
+    private final boolean statistics;
     private final Configuration configuration;
-    private Set<XEndpoint> index1 = new HashSet<>();
-    private List<String> clusterNodes = new ArrayList<>();
-    private Map<Short, XEndpoint> index2 = new HashMap<>(32768);
+    
+    /*
+     * connections of this instance. index2 caches the connection of every node of the routes snapshot.
+     */
+    private Routes.Snapshot snapshot;
+    private XEndpoint[] index2;
+    private Map<AbstractEndpoint, XEndpoint> index1 = new HashMap<>();
 
     public XEndpoints(List<String> lines, int pipe, boolean statistics, Configuration configuration) {
+        this(new Routes(lines), pipe, statistics, configuration);
+    }
+    
+    /**
+     * @param routes slot routing table shared with other instances.
+     * @param pipe pipeline size
+     * @param statistics statistics
+     * @param configuration configuration
+     */
+    public XEndpoints(Routes routes, int pipe, boolean statistics, Configuration configuration) {
         this.pipe = pipe;
-        this.clusterNodes = lines;
+        this.routes = routes;
+        this.statistics = statistics;
         this.configuration = configuration;
-        Function<Tuple3<String, Integer, String>, XEndpoint> mapper = t -> {
-            return new XEndpoint(t.getV1(), t.getV2(), 0, pipe, statistics, configuration);
-        };
-        NodeConfParser.parse(lines, index1, index2, mapper);
-    
-        if (index2.size() != 16384) {
-            throw new UnsupportedOperationException("slots size : " + index2.size() + ", expected 16384.");
+        try {
+            Routes.Snapshot snapshot = routes.get();
+            for (int i = 0; i < snapshot.size(); i++) {
+                endpoint(snapshot.node(i));
+            }
+        } catch (Throwable e) {
+            closeQuietly(this);
+            throw e;
         }
     }
     
     public List<String> getClusterNodes() {
-        return clusterNodes;
+        return routes.getClusterNodes();
+    }
+    
+    /**
+     * @return epoch of slot routing table. increased on every topology change.
+     */
+    public long getEpoch() {
+        return routes.get().getEpoch();
     }
     
-    public void ping(boolean force) {
-        for (XEndpoint prev : new HashSet<>(index1)) {
+    /**
+     * PING is appended to the pipeline of every node and written out without waiting for the replies,
+     * so the commands in flight are not interrupted. the replies are read by the next flush.
+     */
+    public void ping() {
+        List<XEndpoint> failed = new ArrayList<>();
+        for (XEndpoint prev : new ArrayList<>(index1.values())) {
             try {
-                prev.batch(force, PING);
+                prev.batch(true, PING);
             } catch (Throwable e) {
-                updateQuietly(prev);
-                break;
+                failed.add(prev);
             }
         }
+        for (XEndpoint prev : failed) {
+            if (isRouted(prev)) updateQuietly(prev);
+            else remove(prev);
+        }
     }
     
     public RedisObject send(byte[] command, byte[]... args) {
         short slot = slot(args[0]);
-        return index2.get(slot).send(command, args);
+        return route(slot).send(command, args);
     }
     
+    /**
+     * the command is written to all nodes first, then the replies of all nodes are read. so a broadcast
+     * costs one round trip instead of one per node. a failed node is replaced and the command is resent
+     * to the new owner of its slots only.
+     *
+     * @param command command
+     * @param args args of command
+     * @return false if any node failed and was not recovered.
+     */
     public boolean broadcast(byte[] command, byte[]... args) {
-        boolean result = true;
-        for (XEndpoint prev : new HashSet<>(index1)) {
+        List<XEndpoint> sent = new ArrayList<>();
+        List<DummyEndpoint> failed = new ArrayList<>();
+        Routes.Snapshot snapshot = routes.get();
+        for (int i = 0; i < snapshot.size(); i++) {
+            DummyEndpoint node = snapshot.node(i);
             try {
-                prev.send(command, args);
+                XEndpoint prev = endpoint(node);
+                prev.batch(true, command, args);
+                sent.add(prev);
             } catch (Throwable e) {
-                updateQuietly(prev);
-                result = false;
+                failed.add(node);
             }
         }
+        Set<XEndpoint> next = new HashSet<>();
+        for (XEndpoint prev : sent) {
+            try {
+                prev.flush();
+                next.addAll(redirect(prev, false));
+            } catch (Throwable e) {
+                failed.add(XEndpoint.toDummy(prev));
+            }
+        }
+        flushQuietly(next);
+        boolean result = true;
+        for (DummyEndpoint prev : failed) {
+            result &= resend(prev, command, args);
+        }
         return result;
     }
+    
+    private boolean resend(DummyEndpoint prev, byte[] command, byte[]... args) {
+        short slot = routes.get().slot(prev);
+        if (slot < 0) return false;
+        try {
+            XEndpoint next = route(slot);
+            if (next.equals(prev)) {
+                // the failed node still owns the slot
+                update(next);
+                next = route(slot);
+            }
+            next.send(command, args);
+            return true;
+        } catch (Throwable e) {
+            updateQuietly(slot);
+            return false;
+        }
+    }
+    
+    /*
+     * false if the node owns no slot of the routing table any more.
+     */
+    private boolean isRouted(XEndpoint endpoint) {
+        return routes.get().index(endpoint) >= 0;
+    }
 
     public void batch(boolean force, short slot, byte[] command, byte[]... args) {
-        index2.get(slot).batch(force, command, args);
+        XEndpoint endpoint = route(slot);
+        endpoint.batch(force, command, args);
+        redirect(endpoint, force);
     }
     
     public void batch(boolean force, short slot, ByteBuffers command, ByteBuffers... args) {
-        index2.get(slot).batch(force, command, args);
+        XEndpoint endpoint = route(slot);
+        endpoint.batch(force, command, args);
+        redirect(endpoint, force);
     }
 
     public void flushQuietly() {
-        for (XEndpoint endpoint : index1) {
-            endpoint.flushQuietly();
+        flushQuietly(new HashSet<>(index1.values()));
+    }
+    
+    private void flushQuietly(Set<XEndpoint> endpoints) {
+        for (int i = 0; i <= MAX_REDIRECTIONS && !endpoints.isEmpty(); i++) {
+            Set<XEndpoint> next = new HashSet<>();
+            for (XEndpoint endpoint : endpoints) {
+                endpoint.flushQuietly();
+                next.addAll(redirect(endpoint, false));
+            }
+            // flush re-queued commands
+            endpoints = next;
         }
     }
+    
+    /*
+     * -MOVED 3999 127.0.0.1:6381 : update shared slot table then re-queue the command to new node.
+     * -ASK 3999 127.0.0.1:6381   : re-queue ASKING and the command to new node. slot table not changed.
+     */
+    private Set<XEndpoint> redirect(XEndpoint endpoint, boolean force) {
+        List<Tuple2<String, XEndpoint.Pending>> redirections = endpoint.redirections();
+        if (redirections == null || redirections.isEmpty()) return Collections.ofSet();
+        Set<XEndpoint> result = new HashSet<>();
+        for (Tuple2<String, XEndpoint.Pending> redirection : redirections) {
+            String message = redirection.getV1();
+            XEndpoint.Pending command = redirection.getV2();
+            try {
+                String[] ary = message.split(" ");
+                short slot = Short.parseShort(ary[1]);
+                int idx = ary[2].lastIndexOf(':');
+                String host = ary[2].substring(0, idx);
+                int port = parseInt(ary[2].substring(idx + 1));
+                XEndpoint next = endpoint(new DummyEndpoint(host, port));
+                if (ary[0].equals("MOVED")) {
+                    routes.move(slot, host, port);
+                }
+                if (ary[0].equals("ASK")) {
+                    next.batch(false, ASKING);
+                }
+                command.batch(next, force);
+                result.add(next);
+            } catch (Throwable e) {
+                logger.error("failed to redirect [{}], reason: {}", message, e.getMessage());
+            } finally {
+                // next endpoint retains the command
+                command.release();
+            }
+        }
+        return result;
+    }
+    
+    /*
+     * connection of the slot owner in the shared routes. reconnect if the routes or the connections changed.
+     */
+    private XEndpoint route(short slot) {
+        Routes.Snapshot snapshot = routes.get();
+        if (snapshot != this.snapshot) {
+            this.index2 = new XEndpoint[snapshot.size()];
+            this.snapshot = snapshot;
+        }
+        int idx = snapshot.index(slot);
+        XEndpoint endpoint = index2[idx];
+        if (endpoint == null) {
+            endpoint = endpoint(snapshot.node(idx));
+            index2[idx] = endpoint;
+        }
+        return endpoint;
+    }
+    
+    private XEndpoint endpoint(AbstractEndpoint node) {
+        XEndpoint endpoint = index1.get(node);
+        if (endpoint != null) return endpoint;
+        endpoint = new XEndpoint(node.getHost(), node.getPort(), 0, pipe, statistics, configuration);
+        endpoint.setRedirect(true);
+        index1.put(endpoint, endpoint);
+        return endpoint;
+    }
+    
+    private void add(XEndpoint endpoint) {
+        XEndpoint prev = index1.put(endpoint, endpoint);
+        if (prev != null && prev != endpoint) {
+            prev.flushQuietly();
+            XEndpoint.closeQuietly(prev);
+        }
+        this.snapshot = null;
+    }
+    
+    private void remove(XEndpoint endpoint) {
+        if (index1.get(endpoint) == endpoint) index1.remove(endpoint);
+        XEndpoint.closeQuietly(endpoint);
+        this.snapshot = null;
+    }
 
     @Override
     public void close() throws IOException {
-        for (XEndpoint endpoint : index1) {
+        for (XEndpoint endpoint : index1.values()) {
             endpoint.close();
         }
     }
@@ -131,7 +311,16 @@ public class XEndpoints implements Closeable {
     }
 
     public void update(short slot) {
-        update(index2.get(slot));
+        Routes.Snapshot prev = routes.get();
+        XEndpoint endpoint;
+        try {
+            endpoint = route(slot);
+        } catch (Throwable e) {
+            // the owner can't be connected
+            failover(prev);
+            return;
+        }
+        update(endpoint);
     }
     
     public void updateQuietly(XEndpoint endpoint) {
@@ -142,45 +331,49 @@ public class XEndpoints implements Closeable {
     }
 
     public void update(XEndpoint endpoint) {
-        logger.debug("update cluster view. failed node {}:{}, prev {}", endpoint.getHost(), endpoint.getPort(), index1);
+        logger.debug("update cluster view. failed node {}:{}, prev {}", endpoint.getHost(), endpoint.getPort(), this);
+        Routes.Snapshot prev = routes.get();
+        remove(endpoint);
         try {
             XEndpoint next = XEndpoint.valueOf(endpoint, 0);
             RedisObject r= next.send(ROLE);
             RedisObject[] array = r.getArray();
             if (array[0].getString().equals("master")) {
                 // master
-                replace(endpoint.getSlots(), endpoint, next);
+                add(next);
             } else {
                 // slave
                 String host = array[1].getString();
                 int port = array[2].getNumber().intValue();
                 next = XEndpoint.valueOf(host, port, 0, next);
-                replace(endpoint.getSlots(), endpoint, next);
+                add(next);
+                routes.replace(endpoint, host, port);
             }
         } catch (Throwable e) {
-            failover();
+            failover(prev);
         }
     }
     
-    private void failover() {
+    private void failover(Routes.Snapshot prev) {
         // FAILOVER PROCESS
         logger.debug("FAILOVER PROCESS!");
         
+        // the routes were already updated by another connection since the failure.
+        if (routes.get() != prev) return;
+        
         // when all above failover mechanism failed.
         // need update all cluster nodes view
         
         // 1 get cluster nodes view
-        String config = null;
         List<String> lines = null;
-        for (XEndpoint prev : index1) {
+        for (XEndpoint endpoint : new ArrayList<>(index1.values())) {
             try {
-                RedisObject r = prev.send(CLUSTER, NODES);
+                RedisObject r = endpoint.send(CLUSTER, NODES);
                 if (r.type.isError()) {
                     // try next endpoint
                     continue;
                 }
-                config = r.getString();
-                lines = Collections.ofList(config.split("\n"));
+                lines = Collections.ofList(r.getString().split("\n"));
                 break;
             } catch (Throwable error) {
             }
@@ -192,74 +385,27 @@ public class XEndpoints implements Closeable {
             return;
         }
         
-        // 3 parse nodes info
-        Set<DummyEndpoint> next1 = new HashSet<>();
-        Map<Short, DummyEndpoint> next2 = new HashMap<>(32768);
+        // 3 update the shared routes, uncovered slots keep previous route
         try {
-            NodeConfParser.parse(lines, next1, next2, tuple -> {
-                return new DummyEndpoint(tuple.getV1(), tuple.getV2());
-            });
-    
-            if (next2.size() != 16384) {
-                throw new UnsupportedOperationException("slots size : " + next2.size() + ", expected 16384.");
-            }
+            routes.merge(prev, lines);
         } catch (Throwable cause) {
             return;
         }
         
-        // 4 update all cluster nodes view
-        merge(next1, next2, lines, config);
-        logger.debug("merged cluster view. next {}", index1);
-    }
-    
-    private void merge(Set<DummyEndpoint> next1, Map<Short, DummyEndpoint> next2, List<String> lines, String config) {
-        Set<XEndpoint> n1 = new HashSet<>();
-        Map<Short, XEndpoint> n2 = new HashMap<>(16384);
-        // 1. close broken endpoint
-        for (XEndpoint endpoint : index1) {
-            if (!next1.contains(endpoint)) {
-                XEndpoint.closeQuietly(endpoint);
+        // 4 close the broken connections, connections of new nodes are created on demand
+        for (XEndpoint endpoint : new ArrayList<>(index1.values())) {
+            if (!isRouted(endpoint)) {
+                remove(endpoint);
                 continue;
             }
-            
             try {
                 RedisObject r = endpoint.send(PING);
-                if (r.type.isError()) {
-                    XEndpoint.closeQuietly(endpoint);
-                } else {
-                    n1.add(endpoint); // reuse old endpoint
-                }
+                if (r.type.isError()) remove(endpoint);
             } catch (Throwable e) {
-                XEndpoint.closeQuietly(endpoint);
-            }
-        }
-        
-        // 2. create connection for new endpoint
-        for (DummyEndpoint dummy : next1) {
-            if (!n1.contains(dummy)) {
-                XEndpoint endpoint = DummyEndpoint.valueOfQuietly(dummy, configuration, pipe);
-                if (endpoint != null) n1.add(endpoint); // new endpoint
+                remove(endpoint);
             }
         }
-        
-        // 3. create slot index
-        for (XEndpoint endpoint : n1) {
-            for(Short slot : endpoint.getSlots()) {
-                n2.put(slot, endpoint);
-            }
-        }
-        
-        // 4. validate slot
-        if (n2.size() != 16384) {
-            // unrecoverable error
-            logger.error("unsupported migrating importing slot. covered slots: [{}], cluster config: [{}]", n2.size(), config);
-            System.out.println("unsupported migrating importing slot. covered slots:" + n2.size());
-            System.exit(-1);
-        }
-        
-        this.index1 = n1;
-        this.index2 = n2;
-        this.clusterNodes = lines;
+        logger.debug("merged cluster view. next {}", this);
     }
 
     public static void close(XEndpoints endpoints) {
@@ -278,19 +424,11 @@ public class XEndpoints implements Closeable {
         } catch (Throwable e) {
         }
     }
-
-    protected void replace(List<Short> slots, XEndpoint v1, XEndpoint v2) {
-        index1.remove(v1);
-        index1.add(v2);
-        for (short slot : slots) {
-            index2.put(slot, v2);
-        }
-    }
     
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
-        for (XEndpoint endpoint : index1) {
+        for (XEndpoint endpoint : index1.values()) {
             builder.append(endpoint.toString());
             builder.append(",");
         }
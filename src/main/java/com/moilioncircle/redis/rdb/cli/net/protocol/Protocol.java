@@ -51,94 +51,112 @@ public class Protocol {
     }
 
     public RedisObject parse() throws IOException {
+        int c = in.read();
+        switch (c) {
+            case DOLLAR:
+                // RESP Bulk Strings
+                long len = readLong();
+                if (len == -1) return new RedisObject(RedisObject.Type.NULL, null);
+                RedisObject r = new RedisObject(RedisObject.Type.BULK, in.readBytes(len).first());
+                readCrLf();
+                return r;
+            case COLON:
+                // RESP Integers
+                return new RedisObject(RedisObject.Type.NUMBER, readLong());
+            case STAR:
+                // RESP Arrays
+                len = readLong();
+                if (len == -1) return new RedisObject(RedisObject.Type.NULL, null);
+                RedisObject[] ary = new RedisObject[(int) len];
+                for (int i = 0; i < len; i++) {
+                    RedisObject obj = parse();
+                    ary[i] = obj;
+                }
+                return new RedisObject(RedisObject.Type.ARRAY, ary);
+            case PLUS:
+                // RESP Simple Strings
+                return new RedisObject(RedisObject.Type.STRING, readLine());
+            case MINUS:
+                // RESP Errors
+                return new RedisObject(RedisObject.Type.ERR, readLine());
+            default:
+                throw new RuntimeException("expect [$,:,*,+,-] but: " + (char) c);
+        }
+    }
+    
+    /**
+     * skip a reply without allocation, only the error reply is materialized.
+     *
+     * @return the error reply (first error of an array reply) or null if not error
+     * @throws IOException io exception
+     */
+    public RedisObject discard() throws IOException {
+        int c = in.read();
+        switch (c) {
+            case DOLLAR:
+                long len = readLong();
+                if (len == -1) return null;
+                while (len > 0) {
+                    len -= in.skip(len);
+                }
+                readCrLf();
+                return null;
+            case COLON:
+                readLong();
+                return null;
+            case STAR:
+                len = readLong();
+                RedisObject error = null;
+                for (long i = 0; i < len; i++) {
+                    RedisObject r = discard();
+                    if (error == null) error = r;
+                }
+                return error;
+            case PLUS:
+                while (true) {
+                    while (in.read() != '\r') ;
+                    if (in.read() == '\n') return null;
+                }
+            case MINUS:
+                return new RedisObject(RedisObject.Type.ERR, readLine());
+            default:
+                throw new RuntimeException("expect [$,:,*,+,-] but: " + (char) c);
+        }
+    }
+    
+    private long readLong() throws IOException {
+        long r = 0;
+        int c = in.read();
+        boolean negative = c == '-';
+        if (negative) c = in.read();
+        while (c != '\r') {
+            if (c < '0' || c > '9') throw new RuntimeException("expect [0-9] but :" + (char) c);
+            r = r * 10 + (c - '0');
+            c = in.read();
+        }
+        if ((c = in.read()) != '\n') throw new RuntimeException("expect '\\n' but :" + (char) c);
+        return negative ? -r : r;
+    }
+    
+    private byte[] readLine() throws IOException {
+        ByteBuilder builder = ByteBuilder.allocate(32);
+        int c;
         while (true) {
-            int c = in.read();
-            switch (c) {
-                case DOLLAR:
-                    // RESP Bulk Strings
-                    ByteBuilder builder = ByteBuilder.allocate(32);
-                    while (true) {
-                        while ((c = in.read()) != '\r') {
-                            builder.put((byte) c);
-                        }
-                        if ((c = in.read()) == '\n') {
-                            break;
-                        } else {
-                            builder.put((byte) c);
-                        }
-                    }
-                    long len = Long.parseLong(builder.toString());
-                    if (len == -1) return new RedisObject(RedisObject.Type.NULL, null);
-                    RedisObject r = new RedisObject(RedisObject.Type.BULK, in.readBytes(len).first());
-                    if ((c = in.read()) != '\r') throw new RuntimeException("expect '\\r' but :" + (char) c);
-                    if ((c = in.read()) != '\n') throw new RuntimeException("expect '\\n' but :" + (char) c);
-                    return r;
-                case COLON:
-                    // RESP Integers
-                    builder = ByteBuilder.allocate(128);
-                    while (true) {
-                        while ((c = in.read()) != '\r') {
-                            builder.put((byte) c);
-                        }
-                        if ((c = in.read()) == '\n') {
-                            break;
-                        } else {
-                            builder.put((byte) c);
-                        }
-                    }
-                    // As integer
-                    return new RedisObject(RedisObject.Type.NUMBER, Long.parseLong(builder.toString()));
-                case STAR:
-                    // RESP Arrays
-                    builder = ByteBuilder.allocate(128);
-                    while (true) {
-                        while ((c = in.read()) != '\r') {
-                            builder.put((byte) c);
-                        }
-                        if ((c = in.read()) == '\n') {
-                            break;
-                        } else {
-                            builder.put((byte) c);
-                        }
-                    }
-                    len = Long.parseLong(builder.toString());
-                    if (len == -1) return new RedisObject(RedisObject.Type.NULL, null);
-                    RedisObject[] ary = new RedisObject[(int) len];
-                    for (int i = 0; i < len; i++) {
-                        RedisObject obj = parse();
-                        ary[i] = obj;
-                    }
-                    return new RedisObject(RedisObject.Type.ARRAY, ary);
-                case PLUS:
-                    // RESP Simple Strings
-                    builder = ByteBuilder.allocate(128);
-                    while (true) {
-                        while ((c = in.read()) != '\r') {
-                            builder.put((byte) c);
-                        }
-                        if ((c = in.read()) == '\n') {
-                            return new RedisObject(RedisObject.Type.STRING, builder.array());
-                        } else {
-                            builder.put((byte) c);
-                        }
-                    }
-                case MINUS:
-                    // RESP Errors
-                    builder = ByteBuilder.allocate(32);
-                    while (true) {
-                        while ((c = in.read()) != '\r') {
-                            builder.put((byte) c);
-                        }
-                        if ((c = in.read()) == '\n') {
-                            return new RedisObject(RedisObject.Type.ERR, builder.array());
-                        } else {
-                            builder.put((byte) c);
-                        }
-                    }
-                default:
-                    throw new RuntimeException("expect [$,:,*,+,-] but: " + (char) c);
-
+            while ((c = in.read()) != '\r') {
+                builder.put((byte) c);
+            }
+            if ((c = in.read()) == '\n') {
+                return builder.array();
+            } else {
+                builder.put((byte) '\r');
+                builder.put((byte) c);
             }
         }
     }
+    
+    private void readCrLf() throws IOException {
+        int c;
+        if ((c = in.read()) != '\r') throw new RuntimeException("expect '\\r' but :" + (char) c);
+        if ((c = in.read()) != '\n') throw new RuntimeException("expect '\\n' but :" + (char) c);
+    }
 }
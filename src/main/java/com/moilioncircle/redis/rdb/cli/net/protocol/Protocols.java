@@ -17,20 +17,25 @@
 package com.moilioncircle.redis.rdb.cli.net.protocol;
 
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.DESCRIPTION_BUF;
-import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.FIVE;
-import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.FOUR;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.FUNCTION_BUF;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.LOAD_BUF;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.PING;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.REPLACE;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.REPLACE_BUF;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RESTORE;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RESTORE_ASKING;
 import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RESTORE_BUF;
-import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.THREE;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.SELECT;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.ZERO;
 import static com.moilioncircle.redis.replicator.Constants.DOLLAR;
 import static com.moilioncircle.redis.replicator.Constants.STAR;
 
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import com.moilioncircle.redis.rdb.cli.util.ByteBuffers;
 import com.moilioncircle.redis.rdb.cli.util.Outputs;
@@ -41,99 +46,70 @@ import com.moilioncircle.redis.replicator.rdb.datatype.Function;
  */
 public class Protocols {
 	
+	private static final int CACHED = 1024;
+	private static final byte[] CRLF = new byte[]{'\r', '\n'};
+	
+	/**
+	 * cached "*n\r\n" and "$n\r\n" headers for small n.
+	 */
+	private static final byte[][] ARRAYS = new byte[CACHED][];
+	private static final byte[][] BULKS = new byte[CACHED][];
+	
+	/**
+	 * pre-encoded "$len\r\narg\r\n" of frequently used constant arguments. keyed by identity.
+	 */
+	private static final Map<byte[], byte[]> ARGS = new IdentityHashMap<>();
+	
+	static {
+		for (int i = 0; i < CACHED; i++) {
+			ARRAYS[i] = header(STAR, i);
+			BULKS[i] = header(DOLLAR, i);
+		}
+		for (byte[] arg : new byte[][]{RESTORE, RESTORE_ASKING, SELECT, PING, REPLACE, ZERO}) {
+			byte[] bulk = bulk(arg.length);
+			byte[] encoded = new byte[bulk.length + arg.length + 2];
+			System.arraycopy(bulk, 0, encoded, 0, bulk.length);
+			System.arraycopy(arg, 0, encoded, bulk.length, arg.length);
+			System.arraycopy(CRLF, 0, encoded, bulk.length + arg.length, 2);
+			ARGS.put(arg, encoded);
+		}
+	}
+	
 	public static void emit(OutputStream out, ByteBuffer command, ByteBuffer... ary) {
-		Outputs.write(STAR, out);
-		Outputs.write(String.valueOf(ary.length + 1).getBytes(), out);
-		writeCrLf(out);
-		Outputs.write(DOLLAR, out);
-		Outputs.write(String.valueOf(command.remaining()).getBytes(), out);
-		writeCrLf(out);
-		Outputs.write(command.array(), command.position(), command.limit(), out);
-		writeCrLf(out);
+		Outputs.write(array(ary.length + 1), out);
+		emitArg(out, command);
 		for (final ByteBuffer arg : ary) {
-			Outputs.write(DOLLAR, out);
-			Outputs.write(String.valueOf(arg.remaining()).getBytes(), out);
-			writeCrLf(out);
-			Outputs.write(arg.array(), arg.position(), arg.limit(), out);
-			writeCrLf(out);
+			emitArg(out, arg);
 		}
 	}
 	
 	public static void emit(OutputStream out, ByteBuffers command, ByteBuffers... ary) {
-		Outputs.write(STAR, out);
-		Outputs.write(String.valueOf(ary.length + 1).getBytes(), out);
-		writeCrLf(out);
-		Outputs.write(DOLLAR, out);
-		Outputs.write(String.valueOf(command.getSize()).getBytes(), out);
-		writeCrLf(out);
-		Iterator<ByteBuffer> cit = command.getBuffers();
-		while (cit.hasNext()) {
-			ByteBuffer tmp = cit.next();
-			Outputs.write(tmp.array(), tmp.position(), tmp.limit(), out);
-		}
-		writeCrLf(out);
+		Outputs.write(array(ary.length + 1), out);
+		emitArg(out, command);
 		for (final ByteBuffers arg : ary) {
-			Outputs.write(DOLLAR, out);
-			Outputs.write(String.valueOf(arg.getSize()).getBytes(), out);
-			writeCrLf(out);
-			Iterator<ByteBuffer> ait = arg.getBuffers();
-			while (ait.hasNext()) {
-				ByteBuffer tmp = ait.next();
-				Outputs.write(tmp.array(), tmp.position(), tmp.limit(), out);
-			}
-			writeCrLf(out);
+			emitArg(out, arg);
 		}
 	}
 	
 	public static void emit(OutputStream out, byte[] command, byte[]... ary) {
-		Outputs.write(STAR, out);
-		Outputs.write(String.valueOf(ary.length + 1).getBytes(), out);
-		writeCrLf(out);
-		Outputs.write(DOLLAR, out);
-		Outputs.write(String.valueOf(command.length).getBytes(), out);
-		writeCrLf(out);
-		Outputs.write(command, out);
-		writeCrLf(out);
+		Outputs.write(array(ary.length + 1), out);
+		emitArg(out, command);
 		for (final byte[] arg : ary) {
-			Outputs.write(DOLLAR, out);
-			Outputs.write(String.valueOf(arg.length).getBytes(), out);
-			writeCrLf(out);
-			Outputs.write(arg, out);
-			writeCrLf(out);
+			emitArg(out, arg);
 		}
 	}
 	
 	public static void emit(OutputStream out, byte[] command, byte[] key, List<byte[]> ary) {
-		Outputs.write(STAR, out);
-		Outputs.write(String.valueOf(ary.size() + 2).getBytes(), out);
-		writeCrLf(out);
-		Outputs.write(DOLLAR, out);
-		Outputs.write(String.valueOf(command.length).getBytes(), out);
-		writeCrLf(out);
-		Outputs.write(command, out);
-		writeCrLf(out);
-		Outputs.write(DOLLAR, out);
-		Outputs.write(String.valueOf(key.length).getBytes(), out);
-		writeCrLf(out);
-		Outputs.write(key, out);
-		writeCrLf(out);
+		Outputs.write(array(ary.size() + 2), out);
+		emitArg(out, command);
+		emitArg(out, key);
 		for (final byte[] arg : ary) {
-			Outputs.write(DOLLAR, out);
-			Outputs.write(String.valueOf(arg.length).getBytes(), out);
-			writeCrLf(out);
-			Outputs.write(arg, out);
-			writeCrLf(out);
+			emitArg(out, arg);
 		}
 	}
 	
 	public static void restore(OutputStream out, ByteBuffer key, ByteBuffer ex, ByteBuffers value, boolean replace) {
-		Outputs.write(STAR, out);
-		if (replace) {
-			Outputs.write(FIVE, out);
-		} else {
-			Outputs.write(FOUR, out);
-		}
-		writeCrLf(out);
+		Outputs.write(array(replace ? 5 : 4), out);
 		emitArg(out, RESTORE_BUF);
 		emitArg(out, key);
 		emitArg(out, ex);
@@ -144,13 +120,7 @@ public class Protocols {
 	}
 	
 	public static void functionRestore(OutputStream out, ByteBuffers value, boolean replace) {
-		Outputs.write(STAR, out);
-		if (replace) {
-			Outputs.write(FOUR, out);
-		} else {
-			Outputs.write(THREE, out);
-		}
-		writeCrLf(out);
+		Outputs.write(array(replace ? 4 : 3), out);
 		emitArg(out, FUNCTION_BUF);
 		emitArg(out, RESTORE_BUF);
 		emitArg(out, value);
@@ -166,9 +136,7 @@ public class Protocols {
 			if (replace) {
 				count += 1;
 			}
-			Outputs.write(STAR, out);
-			Outputs.write(String.valueOf(count).getBytes(), out);
-			writeCrLf(out);
+			Outputs.write(array(count), out);
 			emitArg(out, FUNCTION_BUF);
 			emitArg(out, LOAD_BUF);
 			if (replace) {
@@ -183,9 +151,7 @@ public class Protocols {
 			if (replace) {
 				count += 1;
 			}
-			Outputs.write(STAR, out);
-			Outputs.write(String.valueOf(count).getBytes(), out);
-			writeCrLf(out);
+			Outputs.write(array(count), out);
 			emitArg(out, FUNCTION_BUF);
 			emitArg(out, LOAD_BUF);
 			emitArg(out, ByteBuffer.wrap(function.getEngineName()));
@@ -201,27 +167,48 @@ public class Protocols {
 		}
 	}
 	
+	private static void emitArg(OutputStream out, byte[] arg) {
+		byte[] encoded = ARGS.get(arg);
+		if (encoded != null) {
+			Outputs.write(encoded, out);
+		} else {
+			Outputs.write(bulk(arg.length), out);
+			Outputs.write(arg, out);
+			Outputs.write(CRLF, out);
+		}
+	}
+	
 	private static void emitArg(OutputStream out, ByteBuffer arg) {
-		Outputs.write(DOLLAR, out);
-		Outputs.write(String.valueOf(arg.remaining()).getBytes(), out);
-		writeCrLf(out);
-		Outputs.write(arg.array(), arg.position(), arg.limit(), out);
-		writeCrLf(out);
+		Outputs.write(bulk(arg.remaining()), out);
+		Outputs.write(arg.array(), arg.arrayOffset() + arg.position(), arg.remaining(), out);
+		Outputs.write(CRLF, out);
 	}
 	
 	private static void emitArg(OutputStream out, ByteBuffers value) {
-		Outputs.write(DOLLAR, out);
-		Outputs.write(String.valueOf(value.getSize()).getBytes(), out);
-		writeCrLf(out);
-		while (value.getBuffers().hasNext()) {
-			ByteBuffer buf = value.getBuffers().next();
-			Outputs.write(buf.array(), buf.position(), buf.limit(), out);
+		Outputs.write(bulk(value.getSize()), out);
+		Iterator<ByteBuffer> it = value.getBuffers();
+		while (it.hasNext()) {
+			ByteBuffer buf = it.next();
+			Outputs.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), out);
 		}
-		writeCrLf(out);
+		Outputs.write(CRLF, out);
+	}
+	
+	private static byte[] array(long n) {
+		return n < CACHED ? ARRAYS[(int) n] : header(STAR, n);
+	}
+	
+	private static byte[] bulk(long n) {
+		return n < CACHED ? BULKS[(int) n] : header(DOLLAR, n);
 	}
 	
-	private static void writeCrLf(OutputStream out) {
-		Outputs.write('\r', out);
-		Outputs.write('\n', out);
+	private static byte[] header(byte prefix, long n) {
+		byte[] len = String.valueOf(n).getBytes();
+		byte[] r = new byte[len.length + 3];
+		r[0] = prefix;
+		System.arraycopy(len, 0, r, 1, len.length);
+		r[r.length - 2] = '\r';
+		r[r.length - 1] = '\n';
+		return r;
 	}
 }
@@ -28,6 +28,8 @@ import com.moilioncircle.redis.rdb.cli.io.LayeredOutputStream;
  */
 public class ByteBuffers implements Closeable {
     private long size;
+    private int refs = 1;
+    private ByteBuffer buf;
     private LayeredOutputStream out;
     private Iterator<ByteBuffer> buffers;
     
@@ -36,6 +38,7 @@ public class ByteBuffers implements Closeable {
     }
     
     private ByteBuffers(ByteBuffer buf) {
+        this.buf = buf;
         this.size = buf.remaining();
         this.buffers = Iterators.iterator(buf);
     }
@@ -64,15 +67,47 @@ public class ByteBuffers implements Closeable {
         this.buffers = buffers;
     }
     
+    /**
+     * @return the remaining bytes. the buffers are consumed.
+     */
+    public byte[] toByteArray() {
+        byte[] value = new byte[(int) size];
+        for (int off = 0; buffers.hasNext(); ) {
+            ByteBuffer buf = buffers.next();
+            int len = buf.remaining();
+            buf.get(value, off, len);
+            off += len;
+        }
+        return value;
+    }
+    
+    /**
+     * rewind the buffers so that they can be written again.
+     */
     public void reset() {
+        if (buf != null) {
+            this.buffers = Iterators.iterator(buf);
+            return;
+        }
         if (out == null) return;
         ByteBuffers that = out.toByteBuffers();
         this.size = that.size;
         this.buffers = that.buffers;
     }
     
+    /**
+     * keep the buffers until {@link #close()} is called once more. e.g. a pipelined command that may be re-sent.
+     *
+     * @return this
+     */
+    public ByteBuffers retain() {
+        refs++;
+        return this;
+    }
+    
     @Override
     public void close() {
+        if (--refs > 0) return;
         try {
             if (out != null) out.close();
         } catch (IOException ignore) {
@@ -88,6 +88,10 @@ public class MaximHeap<T extends Comparable<T>> {
         }
     }
     
+    public void clear() {
+        ary.clear();
+    }
+    
     public List<T> get(boolean sort) {
         if (sort) {
             ary.sort(Comparator.reverseOrder());
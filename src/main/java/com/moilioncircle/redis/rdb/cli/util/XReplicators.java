@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018-2019 Baoyi Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.moilioncircle.redis.rdb.cli.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.moilioncircle.redis.replicator.Replicator;
+
+/**
+ * @author Baoyi Chen
+ */
+public class XReplicators {
+    
+    private static final Logger logger = LoggerFactory.getLogger(XReplicators.class);
+    
+    /**
+     * opens replicators of the nodes of a source, at most {@code threads} at the same time.
+     * a failed replicator does not stop the others. a single replicator opens in the caller thread.
+     *
+     * @param replicators replicators
+     * @param threads max replicators that open at the same time
+     * @throws IOException the first failure after all replicators closed
+     */
+    public static void open(List<Replicator> replicators, int threads) throws IOException {
+        if (replicators.isEmpty()) return;
+        if (replicators.size() == 1) {
+            replicators.get(0).open();
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, replicators.size())), new XThreadFactory("source"));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Replicator replicator : replicators) {
+                futures.add(executor.submit(() -> {
+                    replicator.open();
+                    return null;
+                }));
+            }
+            IOException error = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    logger.error("failed to sync source, reason: {}", cause.getMessage());
+                    if (error == null) error = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            if (error != null) throw error;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
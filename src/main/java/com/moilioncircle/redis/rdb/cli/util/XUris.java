@@ -16,23 +16,54 @@
 
 package com.moilioncircle.redis.rdb.cli.util;
 
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.CLUSTER;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.INFO;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.NODES;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.REPLICAS;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.REPLICATION;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.SENTINEL;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.SLAVES;
+import static com.moilioncircle.redis.rdb.cli.ext.rmonitor.support.XStandaloneRedisInfo.extract;
+
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.conf.NodeConfParser;
+import com.moilioncircle.redis.rdb.cli.net.impl.XEndpoint;
+import com.moilioncircle.redis.rdb.cli.net.protocol.RedisObject;
 import com.moilioncircle.redis.rdb.cli.sentinel.RedisSentinelURI;
+import com.moilioncircle.redis.replicator.Configuration;
 import com.moilioncircle.redis.replicator.FileType;
 import com.moilioncircle.redis.replicator.RedisURI;
+import com.moilioncircle.redis.replicator.util.Tuples;
+import com.moilioncircle.redis.replicator.util.type.Tuple2;
+import com.moilioncircle.redis.replicator.util.type.Tuple3;
 
 import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.ParameterException;
+import redis.clients.jedis.HostAndPort;
 
 /**
  * @author Baoyi Chen
  */
 public abstract class XUris {
 	
+	private static final Logger logger = LoggerFactory.getLogger(XUris.class);
+	
 	public static String normalize(String source, FileType type, CommandSpec spec, String message) throws URISyntaxException {
 		try {
 			RedisSentinelURI uri = new RedisSentinelURI(source);
@@ -59,4 +90,179 @@ public abstract class XUris {
 		return new RedisURI(new URI("redis", u.getRawAuthority(), u.getRawPath(), u.getRawQuery(), u.getRawFragment()).toString());
 	}
 	
+	/**
+	 * @param source normalized source
+	 * @param configure configure
+	 * @return uri of every master that serves slots with the parameters of source if source is a node of redis
+	 * cluster, otherwise source itself. with parameter prefer=replica, every master is replaced by one of its
+	 * replicas, see {@link #replica(String, Configure)}.
+	 * @throws IOException if failed to connect to source
+	 * @throws URISyntaxException if source is invalid
+	 */
+	public static List<String> masters(String source, Configure configure) throws IOException, URISyntaxException {
+		List<String> masters = topology(source, configure);
+		for (int i = 0; i < masters.size(); i++) {
+			masters.set(i, replica(masters.get(i), configure));
+		}
+		return masters;
+	}
+	
+	private static List<String> topology(String source, Configure configure) throws IOException, URISyntaxException {
+		List<String> masters = new ArrayList<>();
+		URI u = new URI(source);
+		if (!"redis".equals(u.getScheme()) && !"rediss".equals(u.getScheme())) {
+			masters.add(source);
+			return masters;
+		}
+		RedisURI uri = new RedisURI(source);
+		if (uri.getFileType() != null) {
+			masters.add(source);
+			return masters;
+		}
+		try (XEndpoint endpoint = new XEndpoint(uri.getHost(), uri.getPort(), configure.merge(uri, true))) {
+			RedisObject r = endpoint.send(CLUSTER, NODES);
+			if (r.type.isError()) {
+				masters.add(source);
+				return masters;
+			}
+			Map<Short, String> slots = new HashMap<>();
+			// old redis prints myself without ip
+			NodeConfParser.parse(Collections.ofList(r.getString().split("\n")), new HashSet<>(), slots, t -> (t.getV1().isEmpty() ? uri.getHost() : t.getV1()) + ":" + t.getV2());
+			for (String address : new TreeSet<>(slots.values())) {
+				int idx = address.lastIndexOf(':');
+				masters.add(rebuild(u, address.substring(0, idx), address.substring(idx + 1)));
+			}
+		}
+		if (masters.isEmpty()) masters.add(source);
+		return masters;
+	}
+	
+	/**
+	 * @param source normalized source
+	 * @param configure configure
+	 * @return the healthy replica with the least lag if source has parameter prefer=replica, otherwise source itself.
+	 * also source itself if no replica is available.
+	 */
+	public static String replica(String source, Configure configure) {
+		try {
+			if (source.startsWith("redis-sentinel")) {
+				RedisSentinelURI uri = new RedisSentinelURI(source);
+				if (!"replica".equals(uri.getParameters().get("prefer"))) return source;
+				return choose(source, sentinel(uri, configure), configure);
+			}
+			URI u = new URI(source);
+			if (!"redis".equals(u.getScheme()) && !"rediss".equals(u.getScheme())) return source;
+			RedisURI uri = new RedisURI(source);
+			if (uri.getFileType() != null || !"replica".equals(uri.getParameters().get("prefer"))) return source;
+			List<String> candidates = new ArrayList<>();
+			try (XEndpoint endpoint = new XEndpoint(uri.getHost(), uri.getPort(), configure.merge(uri, true))) {
+				Map<String, String> replication = extract(endpoint.send(INFO, REPLICATION).getString()).get("Replication");
+				if (replication == null || !"master".equals(replication.get("role"))) return source;
+				List<Tuple3<String, Long, Long>> replicas = new ArrayList<>();
+				for (Map.Entry<String, String> entry : replication.entrySet()) {
+					// slave0:ip=127.0.0.1,port=6380,state=online,offset=1000,lag=0
+					if (!entry.getKey().matches("slave\\d+")) continue;
+					Map<String, String> slave = new HashMap<>();
+					for (String kv : entry.getValue().split(",")) {
+						int idx = kv.indexOf('=');
+						if (idx > 0) slave.put(kv.substring(0, idx), kv.substring(idx + 1));
+					}
+					if (!"online".equals(slave.get("state"))) continue;
+					String address = rebuild(u, slave.get("ip"), slave.get("port"));
+					replicas.add(Tuples.of(address, getLong(slave.get("lag"), Long.MAX_VALUE), getLong(slave.get("offset"), 0L)));
+				}
+				replicas.sort(Comparator.comparing((Tuple3<String, Long, Long> t) -> t.getV2()).thenComparing(t -> -t.getV3()));
+				for (Tuple3<String, Long, Long> replica : replicas) candidates.add(replica.getV1());
+			}
+			return choose(source, candidates, configure);
+		} catch (Throwable e) {
+			logger.warn("failed to resolve replica of {}, cause: {}", source, e.getMessage());
+			return source;
+		}
+	}
+	
+	private static List<String> sentinel(RedisSentinelURI uri, Configure configure) throws URISyntaxException {
+		String master = uri.getParameters().get("master");
+		Configuration configuration = configure.merge(uri, true);
+		// authUser and authPassword are for the master, not the sentinel
+		configuration.setAuthUser(uri.getUser());
+		configuration.setAuthPassword(uri.getPassword());
+		for (HostAndPort sentinel : uri.getHosts()) {
+			// sentinel refuses select
+			try (XEndpoint endpoint = new XEndpoint(sentinel.getHost(), sentinel.getPort(), -1, 1, false, configuration)) {
+				RedisObject r = endpoint.send(SENTINEL, REPLICAS, master.getBytes());
+				// redis 4 and earlier
+				if (r.type.isError()) r = endpoint.send(SENTINEL, SLAVES, master.getBytes());
+				if (!r.type.isArray()) continue;
+				List<Tuple2<String, Long>> replicas = new ArrayList<>();
+				for (RedisObject object : r.getArray()) {
+					RedisObject[] ary = object.getArray();
+					Map<String, String> replica = new HashMap<>();
+					for (int i = 0; i + 1 < ary.length; i += 2) replica.put(ary[i].getString(), ary[i + 1].getString());
+					String flags = replica.get("flags");
+					if (flags == null || flags.contains("s_down") || flags.contains("o_down") || flags.contains("disconnected")) continue;
+					if (!"ok".equals(replica.get("master-link-status"))) continue;
+					replicas.add(Tuples.of(rebuild(uri, replica.get("ip"), replica.get("port")), getLong(replica.get("slave-repl-offset"), 0L)));
+				}
+				replicas.sort(Comparator.comparing(t -> -t.getV2()));
+				List<String> candidates = new ArrayList<>();
+				for (Tuple2<String, Long> replica : replicas) candidates.add(replica.getV1());
+				return candidates;
+			} catch (Throwable e) {
+				logger.warn("failed to query sentinel {}, cause: {}", sentinel, e.getMessage());
+			}
+		}
+		return new ArrayList<>();
+	}
+	
+	/*
+	 * the address that the master or sentinel reports may not be reachable from here, so probe the replica
+	 * before using it.
+	 */
+	private static String choose(String source, List<String> candidates, Configure configure) {
+		for (String candidate : candidates) {
+			try {
+				RedisURI uri = new RedisURI(candidate);
+				try (XEndpoint endpoint = new XEndpoint(uri.getHost(), uri.getPort(), configure.merge(uri, true))) {
+					Map<String, String> replication = extract(endpoint.send(INFO, REPLICATION).getString()).get("Replication");
+					if (replication != null && "up".equals(replication.get("master_link_status"))) {
+						logger.info("use replica {}:{} instead of {}", uri.getHost(), uri.getPort(), source);
+						return candidate;
+					}
+				}
+			} catch (Throwable e) {
+				logger.warn("skip replica {}, cause: {}", candidate, e.getMessage());
+			}
+		}
+		logger.warn("no healthy replica of {}, fall back to it", source);
+		return source;
+	}
+	
+	private static String rebuild(URI u, String host, String port) {
+		if (host.indexOf(':') >= 0) host = "[" + host + "]";
+		StringBuilder builder = new StringBuilder(u.getScheme()).append("://");
+		if (u.getRawUserInfo() != null) builder.append(u.getRawUserInfo()).append('@');
+		builder.append(host).append(':').append(port);
+		if (u.getRawPath() != null) builder.append(u.getRawPath());
+		if (u.getRawQuery() != null) builder.append('?').append(u.getRawQuery());
+		return builder.toString();
+	}
+	
+	private static String rebuild(RedisSentinelURI uri, String host, String port) {
+		if (host.indexOf(':') >= 0) host = "[" + host + "]";
+		StringBuilder builder = new StringBuilder(uri.isSsl() ? "rediss" : "redis").append("://");
+		builder.append(host).append(':').append(port);
+		// authUser and authPassword of sentinel uri are the credentials of replica.
+		if (uri.getQuery() != null) builder.append('?').append(uri.getUris().get(0).getRawQuery());
+		return builder.toString();
+	}
+	
+	private static long getLong(String value, long defaultValue) {
+		try {
+			return Long.parseLong(value);
+		} catch (Throwable e) {
+			return defaultValue;
+		}
+	}
+	
 }
@@ -0,0 +1,102 @@
+package com.moilioncircle.redis.rdb.cli.ext;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosedCommand;
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosingCommand;
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.util.XThreadFactory;
+import com.moilioncircle.redis.replicator.AbstractReplicator;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.PreRdbSyncEvent;
+import com.moilioncircle.redis.replicator.rdb.datatype.KeyStringValueString;
+
+/**
+ * @author Baoyi Chen
+ */
+public class XAsyncEventListenerTest {
+
+	@Test
+	public void test() throws Exception {
+		for (String strategy : new String[]{"blocking", "yield"}) {
+			System.setProperty("migrate_threads", "2");
+			System.setProperty("migrate_wait_strategy", strategy);
+			try {
+				Source source = new Source();
+				List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+				List<Event> events = Collections.synchronizedList(new ArrayList<>());
+				source.addEventListener(new XAsyncEventListener((r, e) -> {
+					threads.add(Thread.currentThread());
+					events.add(e);
+				}, source, Configure.bind(), new XThreadFactory("sync-worker")));
+				source.emit(new PreRdbSyncEvent());
+				for (int i = 0; i < 5; i++) {
+					for (int j = 0; j < 20; j++) source.emit(kv("k" + j, "v" + i));
+				}
+				source.close();
+
+				// every key is applied in one worker in order
+				Set<Thread> workers = new HashSet<>();
+				for (int j = 0; j < 20; j++) {
+					Thread thread = null;
+					int i = 0;
+					for (int n = 0; n < events.size(); n++) {
+						Event e = events.get(n);
+						if (!(e instanceof KeyStringValueString)) continue;
+						KeyStringValueString kv = (KeyStringValueString) e;
+						if (!new String(kv.getKey()).equals("k" + j)) continue;
+						assertEquals("v" + i++, new String(kv.getValue()));
+						if (thread == null) thread = threads.get(n);
+						assertEquals(thread, threads.get(n));
+					}
+					assertEquals(5, i);
+					workers.add(thread);
+				}
+				assertEquals(2, workers.size());
+
+				// the other events are sent to all workers, ClosedCommand is sent once after all workers are closed
+				assertEquals(2, count(events, PreRdbSyncEvent.class));
+				assertEquals(2, count(events, ClosingCommand.class));
+				assertEquals(1, count(events, ClosedCommand.class));
+				assertEquals(ClosedCommand.class, events.get(events.size() - 1).getClass());
+			} finally {
+				System.clearProperty("migrate_threads");
+				System.clearProperty("migrate_wait_strategy");
+			}
+		}
+	}
+
+	private static int count(List<Event> events, Class<?> clazz) {
+		int count = 0;
+		synchronized (events) {
+			for (Event event : events) if (clazz.isInstance(event)) count++;
+		}
+		return count;
+	}
+
+	private static KeyStringValueString kv(String key, String value) {
+		KeyStringValueString kv = new KeyStringValueString();
+		kv.setKey(key.getBytes());
+		kv.setValue(value.getBytes());
+		return kv;
+	}
+
+	private static class Source extends AbstractReplicator {
+		void emit(Event event) {
+			doEventListener(this, event);
+		}
+
+		@Override
+		public void close() {
+			doCloseListener(this);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package com.moilioncircle.redis.rdb.cli.ext.rct.support;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * @author Baoyi Chen
+ */
+public class NodeMergerTest {
+
+	@Test
+	public void test() {
+		NodeMerger merger = new NodeMerger();
+		assertEquals(0, merger.join());
+		assertEquals(1, merger.join());
+		assertEquals(2, merger.join());
+
+		assertNull(merger.merge("b"));
+		assertNull(merger.merge("a"));
+		// PostRdbSyncEvent and PreCommandSyncEvent of the same node
+		assertNull(merger.merge("a"));
+		assertEquals(asList("b", "a", "c"), merger.merge("c"));
+		assertNull(merger.merge("c"));
+	}
+
+	@Test
+	public void testDrop() {
+		NodeMerger merger = new NodeMerger();
+		for (int i = 0; i < 4; i++) merger.join();
+
+		assertNull(merger.merge("a"));
+		// closed after finished
+		assertNull(merger.drop("a"));
+		assertNull(merger.drop("b"));
+		assertNull(merger.merge("c"));
+		// the last one failed, the others are exported
+		assertEquals(asList("a", "c"), merger.drop("d"));
+
+		merger = new NodeMerger();
+		merger.join();
+		merger.join();
+		assertNull(merger.drop("a"));
+		assertNull(merger.drop("b"));
+	}
+}
@@ -0,0 +1,131 @@
+package com.moilioncircle.redis.rdb.cli.ext.rmt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.cmd.XRmt;
+import com.moilioncircle.redis.rdb.cli.net.FakeNode;
+
+import picocli.CommandLine;
+
+/**
+ * @author Baoyi Chen
+ */
+public class BulkLoaderTest {
+
+	@Test
+	public void test() throws Exception {
+		Path path = Files.createTempFile("bulk", ".rdb");
+		AtomicReference<byte[]> payload = new AtomicReference<>();
+		try (FakeNode target = new FakeNode(c -> {
+			String name = FakeNode.name(c);
+			if (name.equals("cluster")) return "-ERR This instance has cluster support disabled\r\n";
+			if (name.equals("info") && c[1].getString().equals("keyspace")) return FakeNode.bulk("# Keyspace\r\n");
+			if (name.equals("info") && c[1].getString().equals("replication")) {
+				return FakeNode.bulk("# Replication\r\nrole:slave\r\nmaster_link_status:" + (payload.get() == null ? "down" : "up") + "\r\n");
+			}
+			if (name.equals("info") && c[1].getString().equals("persistence")) return FakeNode.bulk("# Persistence\r\nloading:0\r\n");
+			if (name.equals("replicaof") && !c[1].getString().equalsIgnoreCase("no")) {
+				String host = c[1].getString();
+				int port = Integer.parseInt(c[2].getString());
+				Thread thread = new Thread(() -> replicate(host, port, payload));
+				thread.setDaemon(true);
+				thread.start();
+			}
+			return null;
+		})) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write("REDIS0009".getBytes());
+			out.write(new byte[] {(byte) 0xFE, 0});
+			out.write(new byte[] {0, 2, 's', '1', 1, 'a'});
+			out.write(new byte[] {(byte) 0xFE, 1});
+			out.write(new byte[] {0, 2, 's', '2', 1, 'b'});
+			out.write(new byte[] {(byte) 0xFF, 0, 0, 0, 0, 0, 0, 0, 0});
+			Files.write(path, out.toByteArray());
+			String uri = "redis://" + target.getAddress();
+
+			// the rdb file is served as is
+			assertEquals(0, new CommandLine(new XRmt()).execute("-s", path.toString(), "-m", uri, "--bulk-load"));
+			assertArrayEquals(out.toByteArray(), payload.get());
+			List<String> commands = target.getCommands("replicaof");
+			assertEquals(2, commands.size());
+			assertEquals("replicaof no one", commands.get(1).toLowerCase());
+			assertTrue(target.getCommands("restore").isEmpty());
+
+			// a filtered rdb is written to a temp file first
+			payload.set(null);
+			assertEquals(0, new CommandLine(new XRmt()).execute("-s", path.toString(), "-m", uri, "--bulk-load", "-d", "1"));
+			String rdb = new String(payload.get());
+			assertTrue(rdb.startsWith("REDIS"));
+			assertTrue(rdb.contains("s2"));
+			assertFalse(rdb.contains("s1"));
+			assertEquals(4, target.getCommands("replicaof").size());
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void testNotEmpty() throws Exception {
+		Path path = Files.createTempFile("bulk", ".rdb");
+		try (FakeNode target = new FakeNode(c -> {
+			String name = FakeNode.name(c);
+			if (name.equals("cluster")) return "-ERR This instance has cluster support disabled\r\n";
+			if (name.equals("info")) return FakeNode.bulk("# Keyspace\r\ndb0:keys=1,expires=0,avg_ttl=0\r\n");
+			return null;
+		})) {
+			Files.write(path, new byte[] {'R', 'E', 'D', 'I', 'S', '0', '0', '0', '9', (byte) 0xFF, 0, 0, 0, 0, 0, 0, 0, 0});
+			assertTrue(new CommandLine(new XRmt()).execute("-s", path.toString(), "-m", "redis://" + target.getAddress(), "--bulk-load") != 0);
+			assertTrue(target.getCommands("replicaof").isEmpty());
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/*
+	 * handshake of a replica, then keep the link until rmt detaches it.
+	 */
+	private static void replicate(String host, int port, AtomicReference<byte[]> payload) {
+		try (Socket socket = new Socket(host, port)) {
+			OutputStream out = socket.getOutputStream();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			out.write(FakeNode.array("PING").getBytes());
+			assertEquals("+PONG", line(in));
+			out.write(FakeNode.array("REPLCONF", "listening-port", "6379").getBytes());
+			assertEquals("+OK", line(in));
+			out.write(FakeNode.array("PSYNC", "?", "-1").getBytes());
+			assertTrue(line(in).startsWith("+FULLRESYNC "));
+			String len = line(in);
+			byte[] rdb = new byte[Integer.parseInt(len.substring(1))];
+			in.readFully(rdb);
+			payload.set(rdb);
+			while (in.read() != -1) ;
+		} catch (IOException e) {
+		}
+	}
+
+	private static String line(InputStream in) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) throw new IOException("eof");
+			if (c != '\r') builder.append((char) c);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,50 @@
+package com.moilioncircle.redis.rdb.cli.ext.rmt;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.ext.datatype.DummyKeyValuePair;
+import com.moilioncircle.redis.replicator.rdb.dump.datatype.DumpKeyValuePair;
+
+/**
+ * @author Baoyi Chen
+ */
+public class CheckpointTest {
+
+	@Test
+	public void test() throws IOException {
+		Path path = Files.createTempFile("rmt", ".checkpoint");
+		try {
+			String hash = Checkpoint.hash("dump.rdb", 100L, "redis://127.0.0.1:6380");
+			Checkpoint checkpoint = Checkpoint.valueOf(path, hash, 0, false);
+			assertEquals(0L, checkpoint.getOffset());
+
+			checkpoint.dispatch(new DumpKeyValuePair(), 10, 20);
+			checkpoint.dispatch(new DummyKeyValuePair(), 25, 30);
+			checkpoint.dispatch(new DumpKeyValuePair(), 35, 40);
+			checkpoint.dispatch(new DumpKeyValuePair(), 45, 50);
+
+			// first key is not acknowledged
+			checkpoint.ack(asList(35L, 45L));
+			assertEquals(10L, Checkpoint.valueOf(path, hash, 0, true).getOffset());
+
+			checkpoint.ack(asList(10L));
+			assertEquals(50L, Checkpoint.valueOf(path, hash, 0, true).getOffset());
+
+			try {
+				Checkpoint.valueOf(path, Checkpoint.hash("dump.rdb", 101L, "redis://127.0.0.1:6380"), 0, true);
+				fail();
+			} catch (IOException e) {
+			}
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+}
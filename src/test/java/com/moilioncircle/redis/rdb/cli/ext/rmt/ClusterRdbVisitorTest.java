@@ -0,0 +1,68 @@
+package com.moilioncircle.redis.rdb.cli.ext.rmt;
+
+import static com.moilioncircle.redis.rdb.cli.conf.NodeConfParser.slot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.cmd.XRmt;
+import com.moilioncircle.redis.rdb.cli.net.FakeNode;
+import com.moilioncircle.redis.replicator.util.CRC64;
+
+import picocli.CommandLine;
+
+/**
+ * @author Baoyi Chen
+ */
+public class ClusterRdbVisitorTest {
+
+	@Test
+	public void testRaw() throws Exception {
+		Path path = Files.createTempFile("raw", ".rdb");
+		Path conf = Files.createTempFile("nodes", ".conf");
+		try (FakeNode a = new FakeNode(c -> null); FakeNode b = new FakeNode(c -> null)) {
+			ByteArrayOutputStream value = new ByteArrayOutputStream();
+			value.write(new byte[] {0, (byte) 0x80, 0, 0, 0x4E, 0x20});
+			for (int i = 0; i < 20000; i++) value.write('x');
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write("REDIS0009".getBytes());
+			out.write(new byte[] {(byte) 0xFE, 0});
+			out.write(new byte[] {0, 3, 'b', 'i', 'g'});
+			out.write(value.toByteArray(), 1, value.size() - 1);
+			out.write(new byte[] {0, 2, 'k', '1', 1, 'a'});
+			out.write(new byte[] {0, 2, 'k', '2', 1, 'b'});
+			out.write(new byte[] {(byte) 0xFF, 0, 0, 0, 0, 0, 0, 0, 0});
+			Files.write(path, out.toByteArray());
+			String nodes = String.format("%040d %s@1%d myself,master - 0 0 1 connected 0-8191\n", 1, a.getAddress(), a.getPort())
+					+ String.format("%040d %s@1%d master - 0 0 2 connected 8192-16383\n", 2, b.getAddress(), b.getPort());
+			Files.write(conf, nodes.getBytes());
+
+			assertEquals(0, new CommandLine(new XRmt()).execute("-s", path.toString(), "-c", conf.toString()));
+			FakeNode big = slot("big".getBytes()) < 8192 ? a : b;
+			FakeNode k1 = slot("k1".getBytes()) < 8192 ? a : b;
+			FakeNode k2 = slot("k2".getBytes()) < 8192 ? a : b;
+			assertTrue(big.getCommands().contains("restore-asking big 0 " + new String(dump(value.toByteArray()))));
+			assertTrue(k1.getCommands().contains("restore-asking k1 0 " + new String(dump(new byte[] {0, 1, 'a'}))));
+			assertTrue(k2.getCommands().contains("restore-asking k2 0 " + new String(dump(new byte[] {0, 1, 'b'}))));
+			assertEquals(3, a.getCommands("restore-asking").size() + b.getCommands("restore-asking").size());
+		} finally {
+			Files.deleteIfExists(path);
+			Files.deleteIfExists(conf);
+		}
+	}
+
+	private static byte[] dump(byte[] value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(value);
+		out.write(9);
+		out.write(0);
+		out.write(CRC64.longToByteArray(CRC64.crc64(out.toByteArray())));
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,75 @@
+package com.moilioncircle.redis.rdb.cli.ext.rmt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.filter.XFilter;
+import com.moilioncircle.redis.rdb.cli.net.FakeNode;
+import com.moilioncircle.redis.replicator.RedisURI;
+import com.moilioncircle.redis.replicator.Replicators;
+import com.moilioncircle.redis.replicator.event.PostRdbSyncEvent;
+
+/**
+ * @author Baoyi Chen
+ */
+public class ScanReplicatorTest {
+
+	@Test
+	public void test() throws Exception {
+		Path path = Files.createTempFile("scan", ".checkpoint");
+		try (FakeNode target = new FakeNode(c -> null);
+			 FakeNode owner = new FakeNode(c -> {
+				 String name = FakeNode.name(c);
+				 if (name.equals("dump")) return FakeNode.bulk("\0v" + c[1].getString());
+				 if (name.equals("pttl")) return ":-1\r\n";
+				 return null;
+			 });
+			 FakeNode source = new FakeNode(c -> {
+				 String name = FakeNode.name(c);
+				 if (name.equals("cluster")) return "-ERR This instance has cluster support disabled\r\n";
+				 if (name.equals("info")) return FakeNode.bulk("# Keyspace\r\ndb0:keys=4,expires=0,avg_ttl=0\r\n");
+				 if (name.equals("scan")) {
+					 if (c[1].getString().equals("0")) return "*2\r\n" + FakeNode.bulk("7") + FakeNode.array("k1", "k2", "k3");
+					 return "*2\r\n" + FakeNode.bulk("0") + FakeNode.array("k4", "k5");
+				 }
+				 String key = name.equals("dump") || name.equals("pttl") ? c[1].getString() : null;
+				 // k2 is migrating, k3 is not readable and k4 has an invalid ttl
+				 if (name.equals("dump") && key.equals("k2")) return "-MOVED 449 " + owner.getAddress() + "\r\n";
+				 if (name.equals("dump") && key.equals("k3")) return "-NOPERM no permissions to run the 'dump' command\r\n";
+				 if (name.equals("pttl") && key.equals("k4")) return "-ERR ttl\r\n";
+				 if (name.equals("dump")) return FakeNode.bulk("\0v" + key);
+				 if (name.equals("pttl")) return key.equals("k5") ? ":100000\r\n" : ":-1\r\n";
+				 return null;
+			 })) {
+			Configure configure = Configure.bind();
+			ScanReplicator r = new ScanReplicator(new RedisURI("redis://" + source.getAddress()), configure, path, false);
+			r.setRdbVisitor(new SingleRdbVisitor(r, configure, XFilter.filter(null, null, null), new RedisURI("redis://" + target.getAddress()), false, false, r.getCheckpoint()));
+			r.addEventListener((rep, event) -> {
+				if (event instanceof PostRdbSyncEvent) Replicators.closeQuietly(rep);
+			});
+			r.open();
+
+			assertEquals(3, target.getCommands("restore").size());
+			assertTrue(target.getCommands().contains("restore k1 0 \0vk1"));
+			assertTrue(target.getCommands().contains("restore k2 0 \0vk2"));
+			assertEquals(1, target.getCommands("restore k5").size());
+			assertEquals(1, owner.getCommands("dump k2").size());
+
+			Properties properties = new Properties();
+			try (Reader reader = Files.newBufferedReader(path)) {
+				properties.load(reader);
+			}
+			assertEquals("done", properties.getProperty("127.0.0.1:" + source.getPort() + "/0"));
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package com.moilioncircle.redis.rdb.cli.ext.rmt;
+
+import static com.moilioncircle.redis.rdb.cli.conf.NodeConfParser.slot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.cmd.XRmt;
+import com.moilioncircle.redis.rdb.cli.net.FakeNode;
+import com.moilioncircle.redis.replicator.util.CRC64;
+
+import picocli.CommandLine;
+
+/**
+ * @author Baoyi Chen
+ */
+public class SingleRdbVisitorTest {
+
+	@Test
+	public void testBytes() throws Exception {
+		Path path = Files.createTempFile("bytes", ".rdb");
+		try (FakeNode target = new FakeNode(c -> FakeNode.name(c).equals("cluster") ? "-ERR This instance has cluster support disabled\r\n" : null)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write("REDIS0009".getBytes());
+			out.write(new byte[] {(byte) 0xFE, 0});
+			// payload of DUMP is type, value, rdb version and crc
+			out.write(new byte[] {0, 2, 's', '1', 1, 'a'}); // 13 bytes
+			out.write(new byte[] {0, 2, 's', '2', (byte) 0xC0, 123}); // 13 bytes, int encoded
+			out.write(new byte[] {0, 2, 's', '3', 0x40, 100}); // 113 bytes
+			out.write(new byte[100]);
+			out.write(new byte[] {1, 2, 'l', '1', 2, 1, 'x', 1, 'y'}); // 16 bytes
+			out.write(new byte[] {(byte) 0xFF, 0, 0, 0, 0, 0, 0, 0, 0});
+			Files.write(path, out.toByteArray());
+			String uri = "redis://" + target.getAddress();
+
+			assertEquals(0, new CommandLine(new XRmt()).execute("-s", path.toString(), "-m", uri, "--min-bytes", "14", "--max-bytes", "120"));
+			List<String> restores = target.getCommands("restore");
+			assertEquals(2, restores.size());
+			assertEquals(1, target.getCommands("restore s3").size());
+			assertEquals(1, target.getCommands("restore l1").size());
+
+			assertEquals(0, new CommandLine(new XRmt()).execute("-s", path.toString(), "-m", uri, "--max-bytes", "15"));
+			restores = target.getCommands("restore");
+			assertEquals(4, restores.size());
+			assertTrue(restores.contains("restore s1 0 " + new String(dump(0, 1, 'a'))));
+			assertTrue(restores.contains("restore s2 0 " + new String(dump(0, 0xC0, 123))));
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void testRaw() throws Exception {
+		Path path = Files.createTempFile("raw", ".rdb");
+		try (FakeNode target = new FakeNode(c -> FakeNode.name(c).equals("cluster") ? "-ERR This instance has cluster support disabled\r\n" : null)) {
+			// larger than output_buffer_size
+			ByteArrayOutputStream value = new ByteArrayOutputStream();
+			value.write(new byte[] {0, (byte) 0x80, 0, 0, 0x4E, 0x20});
+			for (int i = 0; i < 20000; i++) value.write('x');
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write("REDIS0009".getBytes());
+			out.write(new byte[] {(byte) 0xFE, 0});
+			out.write(new byte[] {0, 3, 'b', 'i', 'g'});
+			out.write(value.toByteArray(), 1, value.size() - 1);
+			out.write(new byte[] {2, 2, 's', '1', 2, 1, 'a', 1, 'b'});
+			out.write(new byte[] {(byte) 0xFF, 0, 0, 0, 0, 0, 0, 0, 0});
+			Files.write(path, out.toByteArray());
+			String uri = "redis://" + target.getAddress();
+
+			// same version, the payload is passed through
+			assertEquals(0, new CommandLine(new XRmt()).execute("-s", path.toString(), "-m", uri));
+			assertTrue(target.getCommands().contains("restore big 0 " + new String(dump(9, value.toByteArray()))));
+			assertTrue(target.getCommands().contains("restore s1 0 " + new String(dump(9, new byte[] {2, 2, 1, 'a', 1, 'b'}))));
+
+			System.setProperty("dump_rdb_version", "8");
+			assertEquals(0, new CommandLine(new XRmt()).execute("-s", path.toString(), "-m", uri));
+			assertTrue(target.getCommands().contains("restore big 0 " + new String(dump(8, value.toByteArray()))));
+			assertEquals(2, target.getCommands("restore big").size());
+		} finally {
+			System.clearProperty("dump_rdb_version");
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void testHugeKey() throws Exception {
+		Path path = Files.createTempFile("huge", ".rdb");
+		System.setProperty("migrate_huge_key_size", "10");
+		try (FakeNode target = new FakeNode(c -> {
+			String name = FakeNode.name(c);
+			if (name.equals("cluster")) return "-ERR This instance has cluster support disabled\r\n";
+			// a}b exists in target
+			if (name.equals("renamenx")) return c[2].getString().equals("l1") ? ":1\r\n" : ":0\r\n";
+			return null;
+		})) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write("REDIS0009".getBytes());
+			out.write(new byte[] {(byte) 0xFE, 0});
+			out.write(new byte[] {1, 2, 'l', '1', 3, 1, 'x', 1, 'y', 1, 'z'});
+			out.write(new byte[] {1, 3, 'a', '}', 'b', 3, 1, 'x', 1, 'y', 1, 'z'});
+			out.write(new byte[] {(byte) 0xFF, 0, 0, 0, 0, 0, 0, 0, 0});
+			Files.write(path, out.toByteArray());
+
+			assertEquals(0, new CommandLine(new XRmt()).execute("-s", path.toString(), "-m", "redis://" + target.getAddress()));
+			// a}b is migrated by another worker in parallel
+			List<String> commands = target.getCommands().stream().filter(c -> c.contains("l1")).collect(Collectors.toList());
+			int idx = commands.indexOf("rpush {l1}:rmt-huge-key x y z");
+			assertTrue(idx > 0);
+			assertEquals("del {l1}:rmt-huge-key", commands.get(idx - 1));
+			assertEquals("renamenx {l1}:rmt-huge-key l1", commands.get(idx + 1));
+			assertEquals("del {l1}:rmt-huge-key", commands.get(idx + 2));
+			assertTrue(target.getCommands("restore").isEmpty());
+
+			// {a}b} is not a valid tag of a}b, the temp key has a tag of the same slot
+			List<String> renames = target.getCommands("renamenx");
+			assertEquals(2, renames.size());
+			String temp = renames.get(1).split(" ")[1];
+			assertTrue(temp.startsWith("{") && temp.endsWith("}a}b:rmt-huge-key"));
+			assertEquals(slot("a}b".getBytes()), slot(temp.getBytes()));
+			assertEquals(1, target.getCommands("rpush " + temp).size());
+			assertEquals(2, target.getCommands("del " + temp).size());
+		} finally {
+			System.clearProperty("migrate_huge_key_size");
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void testHugeKeyVersion() throws Exception {
+		Path path = Files.createTempFile("huge", ".rdb");
+		System.setProperty("migrate_huge_key_size", "15");
+		System.setProperty("dump_rdb_version", "8");
+		try (FakeNode target = new FakeNode(c -> {
+			String name = FakeNode.name(c);
+			if (name.equals("cluster")) return "-ERR This instance has cluster support disabled\r\n";
+			if (name.equals("renamenx")) return ":1\r\n";
+			return null;
+		})) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write("REDIS0009".getBytes());
+			out.write(new byte[] {(byte) 0xFE, 0});
+			out.write(new byte[] {1, 2, 'l', '1', 3, 1, 'x', 1, 'y', 1, 'z'}); // 18 bytes
+			out.write(new byte[] {1, 2, 'l', '2', 1, 1, 'x'}); // 14 bytes
+			out.write(new byte[] {(byte) 0xFF, 0, 0, 0, 0, 0, 0, 0, 0});
+			Files.write(path, out.toByteArray());
+
+			// the value is split whatever the dump rdb version is
+			assertEquals(0, new CommandLine(new XRmt()).execute("-s", path.toString(), "-m", "redis://" + target.getAddress()));
+			assertEquals(1, target.getCommands("rpush {l1}:rmt-huge-key x y z").size());
+			assertEquals(1, target.getCommands("renamenx {l1}:rmt-huge-key l1").size());
+			
+			// under the threshold, re-encoded in dump rdb version
+			List<String> restores = target.getCommands("restore");
+			assertEquals(1, restores.size());
+			assertEquals("restore l2 0 " + new String(dump(8, new byte[] {1, 1, 1, 'x'})), restores.get(0));
+		} finally {
+			System.clearProperty("dump_rdb_version");
+			System.clearProperty("migrate_huge_key_size");
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void testTemp() {
+		for (String key : new String[] {"k", "{t}k", "a}b", "{}", "}", ""}) {
+			byte[] temp = AbstractRmtRdbVisitor.temp(key.getBytes());
+			assertEquals(key, slot(key.getBytes()), slot(temp));
+		}
+	}
+
+	private static byte[] dump(int... value) throws IOException {
+		byte[] bytes = new byte[value.length];
+		for (int i = 0; i < value.length; i++) bytes[i] = (byte) value[i];
+		return dump(9, bytes);
+	}
+
+	private static byte[] dump(int version, byte[] value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(value);
+		out.write(version);
+		out.write(0);
+		out.write(CRC64.longToByteArray(CRC64.crc64(out.toByteArray())));
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,104 @@
+package com.moilioncircle.redis.rdb.cli.ext.rmt;
+
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_HASH;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_LIST_QUICKLIST_2;
+import static com.moilioncircle.redis.replicator.Constants.RDB_TYPE_STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.filter.Filter;
+import com.moilioncircle.redis.rdb.cli.filter.XFilter;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.RedisURI;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+import com.moilioncircle.redis.replicator.rdb.DefaultRdbValueVisitor;
+import com.moilioncircle.redis.replicator.rdb.RdbValueVisitor;
+import com.moilioncircle.redis.replicator.rdb.datatype.ZSetEntry;
+import com.moilioncircle.redis.replicator.rdb.iterable.ValueIterableRdbValueVisitor;
+
+/**
+ * @author Baoyi Chen
+ */
+public class VerifyRdbVisitorTest {
+
+	@Test
+	public void test() {
+		assertEquals(VerifyRdbVisitor.digest("abc".getBytes()), VerifyRdbVisitor.digest("abc".getBytes()));
+
+		// order of list matters
+		assertFalse(VerifyRdbVisitor.digest(Arrays.asList("a".getBytes(), "b".getBytes())).equals(VerifyRdbVisitor.digest(Arrays.asList("b".getBytes(), "a".getBytes()))));
+
+		// order of set, zset and hash does not
+		Set<byte[]> s1 = new LinkedHashSet<>(Arrays.asList("a".getBytes(), "b".getBytes()));
+		Set<byte[]> s2 = new LinkedHashSet<>(Arrays.asList("b".getBytes(), "a".getBytes()));
+		assertEquals(VerifyRdbVisitor.digest(s1), VerifyRdbVisitor.digest(s2));
+		s2.add("c".getBytes());
+		assertFalse(VerifyRdbVisitor.digest(s1).equals(VerifyRdbVisitor.digest(s2)));
+
+		Set<ZSetEntry> z1 = new LinkedHashSet<>(Arrays.asList(new ZSetEntry("a".getBytes(), 1d), new ZSetEntry("b".getBytes(), 2d)));
+		Set<ZSetEntry> z2 = new LinkedHashSet<>(Arrays.asList(new ZSetEntry("b".getBytes(), 2d), new ZSetEntry("a".getBytes(), 1d)));
+		Set<ZSetEntry> z3 = new LinkedHashSet<>(Arrays.asList(new ZSetEntry("b".getBytes(), 1d), new ZSetEntry("a".getBytes(), 2d)));
+		assertEquals(VerifyRdbVisitor.digest(z1), VerifyRdbVisitor.digest(z2));
+		assertFalse(VerifyRdbVisitor.digest(z1).equals(VerifyRdbVisitor.digest(z3)));
+
+		Map<byte[], byte[]> h1 = new LinkedHashMap<>();
+		h1.put("f1".getBytes(), "v1".getBytes());
+		h1.put("f2".getBytes(), "v2".getBytes());
+		Map<byte[], byte[]> h2 = new LinkedHashMap<>();
+		h2.put("f2".getBytes(), "v2".getBytes());
+		h2.put("f1".getBytes(), "v1".getBytes());
+		Map<byte[], byte[]> h3 = new LinkedHashMap<>();
+		h3.put("f1".getBytes(), "v2".getBytes());
+		h3.put("f2".getBytes(), "v1".getBytes());
+		assertEquals(VerifyRdbVisitor.digest(h1), VerifyRdbVisitor.digest(h2));
+		assertFalse(VerifyRdbVisitor.digest(h1).equals(VerifyRdbVisitor.digest(h3)));
+
+		assertNull(VerifyRdbVisitor.digest(new Object()));
+	}
+
+	@Test
+	public void testIterable() throws Exception {
+		Replicator replicator = new RedisReplicator(new RedisURI("redis://127.0.0.1:6379"));
+		RdbValueVisitor decoder = new DefaultRdbValueVisitor(replicator);
+		RdbValueVisitor iterable = new ValueIterableRdbValueVisitor(replicator);
+		// 2 elements "a" "b", 1 field "f1" of "v1"
+		byte[] list = new byte[]{2, 1, 'a', 1, 'b'};
+		byte[] hash = new byte[]{1, 2, 'f', '1', 2, 'v', '1'};
+
+		assertEquals(VerifyRdbVisitor.digest(decoder.applyList(in(list), 9)), VerifyRdbVisitor.ordered(iterable.applyList(in(list), 9)));
+		assertEquals(VerifyRdbVisitor.digest(decoder.applySet(in(list), 9)), VerifyRdbVisitor.unordered(iterable.applySet(in(list), 9)));
+		assertEquals(VerifyRdbVisitor.digest(decoder.applyHash(in(hash), 9)), VerifyRdbVisitor.unordered(iterable.applyHash(in(hash), 9)));
+
+		// the iterator is drained even if an element can't be digested
+		Iterator<Object> elements = Arrays.<Object>asList(new Object(), "a".getBytes()).iterator();
+		assertNull(VerifyRdbVisitor.unordered(elements));
+		assertFalse(elements.hasNext());
+	}
+
+	@Test
+	public void testBig() {
+		Filter filter = VerifyRdbVisitor.sample(XFilter.filter(null, null, null), 0d, null, true);
+		assertTrue(filter.contains(0, RDB_TYPE_LIST_QUICKLIST, "k"));
+		assertTrue(filter.contains(0, RDB_TYPE_LIST_QUICKLIST_2, "k"));
+		assertTrue(filter.contains(0, RDB_TYPE_HASH, "k"));
+		assertFalse(filter.contains(0, RDB_TYPE_STRING, "k"));
+	}
+
+	private static RedisInputStream in(byte[] bytes) {
+		return new RedisInputStream(new ByteArrayInputStream(bytes));
+	}
+}
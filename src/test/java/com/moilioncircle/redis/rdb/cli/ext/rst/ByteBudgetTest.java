@@ -0,0 +1,48 @@
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Baoyi Chen
+ */
+public class ByteBudgetTest {
+
+	@Test
+	public void test() throws Exception {
+		ByteBudget budget = new ByteBudget(100);
+		assertEquals(0L, budget.acquire(60));
+		assertEquals(0L, budget.acquire(40));
+		assertEquals(100L, budget.getBytes());
+
+		CountDownLatch latch = new CountDownLatch(1);
+		Thread thread = new Thread(() -> {
+			try {
+				assertTrue(budget.acquire(50) > 0);
+				latch.countDown();
+			} catch (InterruptedException e) {
+			}
+		});
+		thread.start();
+		assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+		budget.release(60);
+		assertTrue(latch.await(1000, TimeUnit.MILLISECONDS));
+		assertEquals(90L, budget.getBytes());
+
+		// larger than budget, accepted when nothing in flight
+		budget.release(90);
+		assertEquals(0L, budget.acquire(1000));
+		assertEquals(1000L, budget.getBytes());
+
+		// unbounded
+		ByteBudget unbounded = new ByteBudget(0);
+		assertEquals(0L, unbounded.acquire(Integer.MAX_VALUE));
+		assertEquals(0L, unbounded.acquire(Integer.MAX_VALUE));
+	}
+}
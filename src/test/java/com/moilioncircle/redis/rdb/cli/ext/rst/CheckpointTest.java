@@ -0,0 +1,75 @@
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.replicator.Configuration;
+
+/**
+ * @author Baoyi Chen
+ */
+public class CheckpointTest {
+
+	@Test
+	public void test() throws IOException {
+		Path path = Files.createTempFile("rst", ".checkpoint");
+		Files.delete(path);
+		try {
+			String hash = Checkpoint.hash("redis://127.0.0.1:6379", "redis://127.0.0.1:6380");
+			Checkpoint checkpoint = Checkpoint.valueOf(path, hash, 0, false);
+			assertFalse(checkpoint.isResumed());
+			Configuration configuration = Configuration.defaultSetting();
+			checkpoint.attach(configuration);
+
+			// full sync
+			checkpoint.reset();
+			checkpoint.ack(emptyList());
+			assertFalse(Files.exists(path));
+			configuration.setReplId("8a0a3c1a2b2f3e5d6c7b8a9f0e1d2c3b4a5f6e7d");
+			configuration.setReplOffset(100);
+			long sync = checkpoint.sync();
+			long m1 = checkpoint.dispatch();
+			configuration.addOffset(10);
+			checkpoint.select(2);
+			long m2 = checkpoint.dispatch();
+			configuration.addOffset(10);
+			long m3 = checkpoint.dispatch();
+			configuration.addOffset(10);
+
+			// rdb is not acknowledged by all workers
+			checkpoint.ack(asList(m1, m2));
+			assertFalse(Files.exists(path));
+
+			checkpoint.ack(asList(sync));
+			Checkpoint resumed = Checkpoint.valueOf(path, hash, 0, true);
+			assertTrue(resumed.isResumed());
+			assertEquals(120L, m3);
+			assertEquals(2, resumed.getDB());
+
+			checkpoint.ack(asList(m3));
+			resumed = Checkpoint.valueOf(path, hash, 0, true);
+			Configuration next = Configuration.defaultSetting();
+			resumed.attach(next);
+			assertEquals("8a0a3c1a2b2f3e5d6c7b8a9f0e1d2c3b4a5f6e7d", next.getReplId());
+			assertEquals(130L, next.getReplOffset());
+
+			try {
+				Checkpoint.valueOf(path, Checkpoint.hash("redis://127.0.0.1:6379", "redis://127.0.0.1:6381"), 0, true);
+				fail();
+			} catch (IOException e) {
+			}
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+}
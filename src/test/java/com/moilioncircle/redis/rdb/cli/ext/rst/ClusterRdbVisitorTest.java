@@ -0,0 +1,217 @@
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosingCommand;
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.CombineCommand;
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.filter.XFilter;
+import com.moilioncircle.redis.rdb.cli.net.FakeNode;
+import com.moilioncircle.redis.rdb.cli.util.Collections;
+import com.moilioncircle.redis.replicator.AbstractReplicator;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.RedisURI;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.cmd.Command;
+import com.moilioncircle.redis.replicator.cmd.CommandParser;
+import com.moilioncircle.redis.replicator.cmd.impl.DefaultCommand;
+import com.moilioncircle.redis.replicator.cmd.parser.DelParser;
+import com.moilioncircle.redis.replicator.cmd.parser.MSetNxParser;
+import com.moilioncircle.redis.replicator.cmd.parser.MSetParser;
+import com.moilioncircle.redis.replicator.cmd.parser.RenameParser;
+import com.moilioncircle.redis.replicator.cmd.parser.SetParser;
+import com.moilioncircle.redis.replicator.cmd.parser.UnLinkParser;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.PostRdbSyncEvent;
+import com.moilioncircle.redis.replicator.event.PreRdbSyncEvent;
+
+/**
+ * @author Baoyi Chen
+ */
+public class ClusterRdbVisitorTest {
+
+	@Test
+	public void testCrossSlot() throws Exception {
+		// k2 and k3 in different slots of a, k1 in b
+		try (FakeNode a = new FakeNode(c -> {
+				String name = FakeNode.name(c);
+				if (name.equals("dump")) return FakeNode.bulk("\0v" + c[1].getString());
+				if (name.equals("pttl")) return ":100000\r\n";
+				if (name.equals("del") || name.equals("unlink")) return ":1\r\n";
+				return null;
+			});
+			 FakeNode b = new FakeNode(c -> FakeNode.name(c).equals("del") || FakeNode.name(c).equals("unlink") ? ":1\r\n" : null)) {
+			List<String> lines = Collections.ofList(
+					String.format("%040d %s@1%d myself,master - 0 0 1 connected 0-8191", 1, a.getAddress(), a.getPort()),
+					String.format("%040d %s@1%d master - 0 0 2 connected 8192-16383", 2, b.getAddress(), b.getPort()));
+			Replicator replicator = new RedisReplicator(new RedisURI("redis://" + a.getAddress()));
+			ClusterRdbVisitor visitor = new ClusterRdbVisitor(replicator, Configure.bind(), XFilter.filter(null, null, null), null, lines, false, null);
+			visitor.onEvent(replicator, new PreRdbSyncEvent());
+			visitor.onEvent(replicator, cmd(new MSetParser(), "mset", "k1", "v1", "k2", "v2", "k3", "v3"));
+			visitor.onEvent(replicator, cmd(new DelParser(), "del", "k1", "k2"));
+			visitor.onEvent(replicator, cmd(new UnLinkParser(), "unlink", "k2", "k3", "k1"));
+			visitor.onEvent(replicator, cmd(new MSetNxParser(), "msetnx", "k1", "x", "k3", "y"));
+			visitor.onEvent(replicator, cmd(new RenameParser(), "rename", "k2", "k1"));
+			visitor.onEvent(replicator, new PostRdbSyncEvent());
+			visitor.onEvent(replicator, new ClosingCommand());
+
+			// one command per slot
+			assertTrue(a.getCommands().contains("mset k2 v2"));
+			assertTrue(a.getCommands().contains("mset k3 v3"));
+			assertTrue(b.getCommands().contains("mset k1 v1"));
+			assertTrue(a.getCommands().contains("del k2"));
+			assertTrue(b.getCommands().contains("del k1"));
+			assertTrue(a.getCommands().contains("unlink k2"));
+			assertTrue(a.getCommands().contains("unlink k3"));
+			assertTrue(b.getCommands().contains("unlink k1"));
+			// MSETNX was propagated, so every key was set
+			assertTrue(a.getCommands().contains("mset k3 y"));
+			assertTrue(b.getCommands().contains("mset k1 x"));
+
+			// RENAME moves the value of k2 to the node of k1
+			List<String> commands = a.getCommands();
+			int idx = commands.indexOf("dump k2");
+			assertTrue(idx > 0);
+			assertEquals("pttl k2", commands.get(idx + 1));
+			assertEquals("del k2", commands.get(idx + 2));
+			assertTrue(b.getCommands().contains("restore-asking k1 100000 \0vk2 replace"));
+			assertTrue(a.getCommands("rename").isEmpty());
+			assertTrue(b.getCommands("rename").isEmpty());
+		}
+	}
+
+	@Test
+	public void testSkip() throws Exception {
+		System.setProperty("migrate_cross_slot", "skip");
+		try (FakeNode a = new FakeNode(c -> null); FakeNode b = new FakeNode(c -> null)) {
+			List<String> lines = Collections.ofList(
+					String.format("%040d %s@1%d myself,master - 0 0 1 connected 0-8191", 1, a.getAddress(), a.getPort()),
+					String.format("%040d %s@1%d master - 0 0 2 connected 8192-16383", 2, b.getAddress(), b.getPort()));
+			Replicator replicator = new RedisReplicator(new RedisURI("redis://" + a.getAddress()));
+			ClusterRdbVisitor visitor = new ClusterRdbVisitor(replicator, Configure.bind(), XFilter.filter(null, null, null), null, lines, false, null);
+			visitor.onEvent(replicator, new PreRdbSyncEvent());
+			visitor.onEvent(replicator, cmd(new MSetNxParser(), "msetnx", "k1", "x", "k3", "y"));
+			visitor.onEvent(replicator, cmd(new RenameParser(), "rename", "k2", "k1"));
+			// splittable commands are not affected
+			visitor.onEvent(replicator, cmd(new MSetParser(), "mset", "k1", "v1", "k2", "v2"));
+			visitor.onEvent(replicator, new PostRdbSyncEvent());
+			visitor.onEvent(replicator, new ClosingCommand());
+
+			assertTrue(a.getCommands().contains("mset k2 v2"));
+			assertTrue(b.getCommands().contains("mset k1 v1"));
+			assertEquals(2, a.getCommands("mset").size() + b.getCommands("mset").size());
+			assertTrue(a.getCommands("dump").isEmpty());
+			assertTrue(b.getCommands("restore-asking").isEmpty());
+		} finally {
+			System.clearProperty("migrate_cross_slot");
+		}
+	}
+
+	@Test
+	public void testSharedPool() throws Exception {
+		System.setProperty("migrate_threads", "2");
+		try (FakeNode a = new FakeNode(c -> null)) {
+			List<String> lines = Collections.ofList(
+					String.format("%040d %s@1%d myself,master - 0 0 1 connected 0-16383", 1, a.getAddress(), a.getPort()));
+			Configure configure = Configure.bind();
+			ClusterPool pool = new ClusterPool(configure, null, lines);
+			List<Source> sources = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				Source source = new Source();
+				new ClusterRdbVisitor(source, configure, XFilter.filter(null, null, null), pool, false, null);
+				sources.add(source);
+			}
+			for (int i = 0; i < sources.size(); i++) {
+				Source source = sources.get(i);
+				source.emit(new PreRdbSyncEvent());
+				for (int j = 0; j < 10; j++) {
+					source.emit(cmd(new SetParser(), "set", "s" + i + "k" + j, "v" + j));
+				}
+				source.emit(new PostRdbSyncEvent());
+			}
+			for (int i = 0; i < sources.size() - 1; i++) sources.get(i).close();
+			// the workers keep running for the last source
+			assertFalse(pool.getExecutors()[0].isShutdown());
+			sources.get(sources.size() - 1).close();
+			assertTrue(pool.getExecutors()[0].isTerminated());
+			assertTrue(pool.getExecutors()[1].isTerminated());
+
+			// one connection per worker, not per source and worker
+			assertEquals(2, a.getConnections());
+			assertEquals(30, a.getCommands("set").size());
+			for (int i = 0; i < sources.size(); i++) {
+				assertTrue(a.getCommands().contains("set s" + i + "k9 v9"));
+			}
+		} finally {
+			System.clearProperty("migrate_threads");
+		}
+	}
+
+	@Test
+	public void testFailedTarget() throws Exception {
+		System.setProperty("migrate_threads", "2");
+		System.setProperty("migrate_queue_bytes", "64");
+		int port;
+		try (ServerSocket closed = new ServerSocket(0)) {
+			port = closed.getLocalPort();
+		}
+		try (FakeNode a = new FakeNode(c -> null)) {
+			Configure configure = Configure.bind();
+			ClusterPool good = new ClusterPool(configure, null, Collections.ofList(
+					String.format("%040d %s@1%d myself,master - 0 0 1 connected 0-16383", 1, a.getAddress(), a.getPort())));
+			ClusterPool bad = new ClusterPool(configure, null, Collections.ofList(
+					String.format("%040d 127.0.0.1:%d@1%d myself,master - 0 0 1 connected 0-16383", 2, port, port)));
+			Source source = new Source();
+			ClusterRdbVisitor v1 = new ClusterRdbVisitor(source, configure, XFilter.filter(null, null, null), good, false, null);
+			ClusterRdbVisitor v2 = new ClusterRdbVisitor(source, configure, XFilter.filter(null, null, null), bad, false, null);
+			source.emit(new PreRdbSyncEvent());
+			// more bytes than migrate_queue_bytes, the failed target doesn't hold the budget
+			for (int i = 0; i < 50; i++) {
+				source.emit(cmd(new SetParser(), "set", "k" + i, "v" + i));
+			}
+			source.emit(new PostRdbSyncEvent());
+			source.close();
+
+			assertFalse(v1.isFailed());
+			assertTrue(v2.isFailed());
+			assertEquals(50, a.getCommands("set").size());
+			assertTrue(bad.getExecutors()[0].isTerminated());
+			assertTrue(good.getExecutors()[0].isTerminated());
+		} finally {
+			System.clearProperty("migrate_threads");
+			System.clearProperty("migrate_queue_bytes");
+		}
+	}
+
+	private static class Source extends AbstractReplicator {
+		void emit(Event event) {
+			doEventListener(this, event);
+		}
+
+		@Override
+		public void close() {
+			doCloseListener(this);
+		}
+	}
+
+	private static CombineCommand cmd(CommandParser<? extends Command> parser, String... args) {
+		Object[] raw = new Object[args.length];
+		byte[][] rest = new byte[args.length - 1][];
+		for (int i = 0; i < args.length; i++) {
+			raw[i] = args[i].getBytes();
+			if (i > 0) rest[i - 1] = args[i].getBytes();
+		}
+		DefaultCommand command = new DefaultCommand();
+		command.setCommand(args[0].getBytes());
+		command.setArgs(rest);
+		return new CombineCommand(command, parser.parse(raw));
+	}
+}
@@ -0,0 +1,87 @@
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.CombineCommand;
+import com.moilioncircle.redis.replicator.cmd.Command;
+import com.moilioncircle.redis.replicator.cmd.CommandParser;
+import com.moilioncircle.redis.replicator.cmd.impl.DefaultCommand;
+import com.moilioncircle.redis.replicator.cmd.parser.DelParser;
+import com.moilioncircle.redis.replicator.cmd.parser.IncrByParser;
+import com.moilioncircle.redis.replicator.cmd.parser.IncrParser;
+import com.moilioncircle.redis.replicator.cmd.parser.PExpireAtParser;
+import com.moilioncircle.redis.replicator.cmd.parser.SetParser;
+
+/**
+ * @author Baoyi Chen
+ */
+public class CoalescingWindowTest {
+
+	@Test
+	public void test() {
+		CoalescingWindow window = new CoalescingWindow(100, 60000);
+		assertTrue(window.offer(cmd(new SetParser(), "set", "a", "1"), 0));
+		assertTrue(window.offer(cmd(new PExpireAtParser(), "pexpireat", "a", "100"), 10));
+		assertTrue(window.offer(cmd(new IncrParser(), "incr", "b"), 20));
+		assertTrue(window.offer(cmd(new PExpireAtParser(), "pexpireat", "a", "200"), 30));
+		assertTrue(window.offer(cmd(new IncrByParser(), "incrby", "b", "5"), 40));
+		assertTrue(window.offer(cmd(new SetParser(), "set", "c", "1"), 50));
+		assertTrue(window.offer(cmd(new SetParser(), "set", "c", "2", "px", "100"), 60));
+		assertFalse(window.offer(cmd(new SetParser(), "set", "c", "3", "nx"), 70));
+		assertFalse(window.offer(cmd(new DelParser(), "del", "a"), 80));
+		assertFalse(window.isFull());
+
+		List<String> commands = new ArrayList<>();
+		List<Long> marks = new ArrayList<>();
+		for (CoalescingWindow.Entry entry : window.drain()) {
+			commands.add(CombineCommand.toString(entry.getCommand().getDefaultCommand()));
+			marks.addAll(entry.getMarks());
+		}
+		assertEquals(asList("set a 1", "pexpireat a 200", "incrby b 6", "set c 2 px 100"), commands);
+		marks.sort(Long::compare);
+		assertEquals(asList(0L, 10L, 20L, 30L, 40L, 50L, 60L), marks);
+		assertTrue(window.isEmpty());
+
+		window = new CoalescingWindow(2, 60000);
+		window.offer(cmd(new SetParser(), "set", "a", "1"), 0);
+		window.offer(cmd(new SetParser(), "set", "a", "2"), 10);
+		assertFalse(window.isFull());
+		window.offer(cmd(new SetParser(), "set", "b", "1"), 20);
+		assertTrue(window.isFull());
+	}
+
+	@Test
+	public void testBytes() {
+		CoalescingWindow window = new CoalescingWindow(100, 60000);
+		window.offer(cmd(new SetParser(), "set", "a", "1"), 0, 5);
+		window.offer(cmd(new IncrParser(), "incr", "b"), 10, 7);
+		window.offer(cmd(new SetParser(), "set", "a", "2"), 20, 11);
+		window.offer(cmd(new IncrByParser(), "incrby", "b", "5"), 30, 13);
+
+		List<Long> bytes = new ArrayList<>();
+		for (CoalescingWindow.Entry entry : window.drain()) bytes.add(entry.getBytes());
+		// superseded commands are released with the commands that superseded them
+		assertEquals(asList(16L, 20L), bytes);
+	}
+
+	private static CombineCommand cmd(CommandParser<? extends Command> parser, String... args) {
+		Object[] raw = new Object[args.length];
+		byte[][] rest = new byte[args.length - 1][];
+		for (int i = 0; i < args.length; i++) {
+			raw[i] = args[i].getBytes();
+			if (i > 0) rest[i - 1] = args[i].getBytes();
+		}
+		DefaultCommand command = new DefaultCommand();
+		command.setCommand(args[0].getBytes());
+		command.setArgs(rest);
+		return new CombineCommand(command, parser.parse(raw));
+	}
+}
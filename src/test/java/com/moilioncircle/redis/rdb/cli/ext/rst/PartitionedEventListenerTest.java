@@ -0,0 +1,246 @@
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import static com.moilioncircle.redis.rdb.cli.conf.NodeConfParser.slot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosedCommand;
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosingCommand;
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.CombineCommand;
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.filter.XFilter;
+import com.moilioncircle.redis.rdb.cli.monitor.MonitorManager;
+import com.moilioncircle.redis.rdb.cli.util.XThreadFactory;
+import com.moilioncircle.redis.replicator.AbstractReplicator;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.cmd.Command;
+import com.moilioncircle.redis.replicator.cmd.CommandParser;
+import com.moilioncircle.redis.replicator.cmd.impl.DefaultCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SelectCommand;
+import com.moilioncircle.redis.replicator.cmd.parser.EvalParser;
+import com.moilioncircle.redis.replicator.cmd.parser.ExecParser;
+import com.moilioncircle.redis.replicator.cmd.parser.FlushAllParser;
+import com.moilioncircle.redis.replicator.cmd.parser.MultiParser;
+import com.moilioncircle.redis.replicator.cmd.parser.PingParser;
+import com.moilioncircle.redis.replicator.cmd.parser.SetParser;
+import com.moilioncircle.redis.replicator.cmd.parser.SwapDBParser;
+import com.moilioncircle.redis.replicator.event.Event;
+import com.moilioncircle.redis.replicator.event.PostRdbSyncEvent;
+import com.moilioncircle.redis.replicator.event.PreCommandSyncEvent;
+import com.moilioncircle.redis.replicator.event.PreRdbSyncEvent;
+
+/**
+ * @author Baoyi Chen
+ */
+public class PartitionedEventListenerTest {
+
+	private static final int THREADS = 4;
+
+	@Test
+	public void testOrder() throws Exception {
+		System.setProperty("migrate_threads", String.valueOf(THREADS));
+		try {
+			Source source = new Source();
+			Recorder recorder = new Recorder(source);
+			for (int i = 0; i < 5; i++) {
+				for (int j = 0; j < 20; j++) {
+					source.emit(cmd(new SetParser(), "set", "k" + j, "v" + i));
+				}
+			}
+			source.close();
+
+			// every key is applied in one worker in order, the keys are spread over the workers
+			Set<Thread> threads = new HashSet<>();
+			for (int j = 0; j < 20; j++) {
+				List<Record> records = recorder.get("set k" + j + " ");
+				assertEquals(5, records.size());
+				for (int i = 0; i < 5; i++) {
+					assertEquals("set k" + j + " v" + i, records.get(i).event);
+					assertEquals(records.get(0).thread, records.get(i).thread);
+				}
+				threads.add(records.get(0).thread);
+			}
+			assertEquals(THREADS, threads.size());
+		} finally {
+			System.clearProperty("migrate_threads");
+		}
+	}
+
+	@Test
+	public void testBarrier() throws Exception {
+		System.setProperty("migrate_threads", String.valueOf(THREADS));
+		try {
+			String[][] barriers = {{"flushall"}, {"swapdb", "0", "1"}, {"eval", "return 1", "0"}};
+			CommandParser<?>[] parsers = {new FlushAllParser(), new SwapDBParser(), new EvalParser()};
+			for (int n = 0; n < barriers.length; n++) {
+				Source source = new Source();
+				Recorder recorder = new Recorder(source);
+				for (int j = 0; j < 20; j++) source.emit(cmd(new SetParser(), "set", "k" + j, "before"));
+				source.emit(cmd(parsers[n], barriers[n]));
+				for (int j = 0; j < 20; j++) source.emit(cmd(new SetParser(), "set", "k" + j, "after"));
+				source.close();
+
+				// all commands before the barrier are applied before it, all commands after are applied after it
+				List<Record> records = recorder.get("set ");
+				records.add(20, recorder.get(barriers[n][0]).get(0));
+				assertEquals(records, recorder.get(""));
+				for (int j = 0; j < 20; j++) {
+					assertTrue(records.get(j).event.endsWith(" before"));
+					assertTrue(records.get(j + 21).event.endsWith(" after"));
+				}
+			}
+		} finally {
+			System.clearProperty("migrate_threads");
+		}
+	}
+
+	@Test
+	public void testMulti() throws Exception {
+		System.setProperty("migrate_threads", String.valueOf(THREADS));
+		try {
+			// k0 is in the worker 0, the others are spread over the workers
+			String k0 = null;
+			for (int j = 0; k0 == null; j++) {
+				if (slot(("k" + j).getBytes()) % THREADS == 0) k0 = "k" + j;
+			}
+			Source source = new Source();
+			Recorder recorder = new Recorder(source);
+			for (int j = 0; j < 20; j++) source.emit(cmd(new SetParser(), "set", "k" + j, "v"));
+			source.emit(cmd(new SetParser(), "set", k0, "v"));
+			source.emit(cmd(new MultiParser(), "multi"));
+			for (int j = 0; j < 20; j++) source.emit(cmd(new SetParser(), "set", "k" + j, "x"));
+			source.emit(cmd(new ExecParser(), "exec"));
+			source.emit(cmd(new SetParser(), "set", "z", "y"));
+			source.close();
+
+			// the transaction is sent in the connection of worker 0 in order
+			Thread pinned = recorder.get("set " + k0 + " v").get(0).thread;
+			List<Record> records = recorder.get("");
+			int multi = records.indexOf(recorder.get("multi").get(0));
+			// MULTI waits until the commands before it were applied
+			assertEquals(21, multi);
+			for (int i = multi; i < multi + 22; i++) assertEquals(pinned, records.get(i).thread);
+			for (int j = 0; j < 20; j++) assertEquals("set k" + j + " x", records.get(multi + 1 + j).event);
+			assertEquals("exec", records.get(multi + 21).event);
+			// EXEC waits the worker 0, the commands after it are not applied before the transaction
+			assertEquals("set z y", records.get(multi + 22).event);
+		} finally {
+			System.clearProperty("migrate_threads");
+		}
+	}
+
+	@Test
+	public void testBroadcast() throws Exception {
+		System.setProperty("migrate_threads", String.valueOf(THREADS));
+		try {
+			Source source = new Source();
+			Recorder recorder = new Recorder(source);
+			source.emit(new PreRdbSyncEvent());
+			source.emit(new PostRdbSyncEvent());
+			source.emit(new PreCommandSyncEvent());
+			source.emit(new SelectCommand(3));
+			source.emit(cmd(new PingParser(), "ping"));
+			source.close();
+
+			// every worker has its own connection, so all of them receive the events
+			String[] names = {"PreRdbSyncEvent", "PostRdbSyncEvent", "PreCommandSyncEvent", "SelectCommand", "ping", "ClosingCommand"};
+			for (String name : names) {
+				Set<Thread> threads = new HashSet<>();
+				for (Record record : recorder.get(name)) threads.add(record.thread);
+				assertEquals(THREADS, recorder.get(name).size());
+				assertEquals(THREADS, threads.size());
+			}
+			assertEquals(1, recorder.get("ClosedCommand").size());
+		} finally {
+			System.clearProperty("migrate_threads");
+		}
+	}
+
+	private static CombineCommand cmd(CommandParser<? extends Command> parser, String... args) {
+		Object[] raw = new Object[args.length];
+		byte[][] rest = new byte[args.length - 1][];
+		for (int i = 0; i < args.length; i++) {
+			raw[i] = args[i].getBytes();
+			if (i > 0) rest[i - 1] = args[i].getBytes();
+		}
+		DefaultCommand command = new DefaultCommand();
+		command.setCommand(args[0].getBytes());
+		command.setArgs(rest);
+		return new CombineCommand(command, parser.parse(raw));
+	}
+
+	private static class Record {
+		private final Thread thread;
+		private final String event;
+
+		private Record(Thread thread, String event) {
+			this.thread = thread;
+			this.event = event;
+		}
+	}
+
+	/**
+	 * records the events in the order they are applied by the workers.
+	 */
+	private static class Recorder extends AbstractRstRdbVisitor {
+		private final List<Record> records = Collections.synchronizedList(new ArrayList<>());
+
+		private Recorder(Replicator replicator) {
+			super(replicator, Configure.bind(), XFilter.filter(null, null, null), false, null);
+			replicator.addEventListener(new PartitionedEventListener(this, replicator, configure, new XThreadFactory("sync-worker")));
+		}
+
+		@Override
+		protected void flushQuietly() {
+		}
+
+		@Override
+		public void onEvent(Replicator replicator, Event event) {
+			String name;
+			if (event instanceof CombineCommand) {
+				name = CombineCommand.toString(((CombineCommand) event).getDefaultCommand());
+			} else {
+				name = event.getClass().getSimpleName();
+			}
+			try {
+				// give the other workers a chance to overtake
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			records.add(new Record(Thread.currentThread(), name));
+			if (event instanceof ClosedCommand) MonitorManager.closeQuietly(manager);
+		}
+
+		private List<Record> get(String prefix) {
+			List<Record> r = new ArrayList<>();
+			synchronized (records) {
+				for (Record record : records) {
+					if (!record.event.startsWith(prefix)) continue;
+					if (prefix.isEmpty() && (record.event.equals(ClosingCommand.class.getSimpleName()) || record.event.equals(ClosedCommand.class.getSimpleName()))) continue;
+					r.add(record);
+				}
+			}
+			return r;
+		}
+	}
+
+	private static class Source extends AbstractReplicator {
+		void emit(Event event) {
+			doEventListener(this, event);
+		}
+
+		@Override
+		public void close() {
+			doCloseListener(this);
+		}
+	}
+}
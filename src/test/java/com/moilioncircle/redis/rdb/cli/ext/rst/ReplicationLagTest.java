@@ -0,0 +1,51 @@
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.replicator.Configuration;
+
+/**
+ * @author Baoyi Chen
+ */
+public class ReplicationLagTest {
+
+	@Test
+	public void test() {
+		Configuration configuration = Configuration.defaultSetting();
+		ReplicationLag lag = new ReplicationLag(configuration);
+		configuration.setReplOffset(100L);
+		assertEquals(100L, lag.getAcknowledged(lag.getReceived()));
+		assertEquals(0L, lag.getAge(System.currentTimeMillis()));
+
+		long now = System.currentTimeMillis();
+		assertEquals(100L, lag.dispatch());
+		// SELECT and the next command have the same offset
+		assertEquals(100L, lag.dispatch());
+		configuration.setReplOffset(150L);
+		assertEquals(150L, lag.dispatch());
+		configuration.setReplOffset(200L);
+
+		// received but nothing acknowledged, the gauge still moves without new events
+		assertEquals(200L, lag.getReceived());
+		assertEquals(100L, lag.getAcknowledged(200L));
+		assertTrue(lag.getAge(now + 5000) >= 4000);
+
+		lag.ack(asList(100L, 150L));
+		assertEquals(100L, lag.getAcknowledged(200L));
+		lag.ack(asList(100L));
+		assertEquals(200L, lag.getAcknowledged(200L));
+		assertEquals(0L, lag.getAge(now + 5000));
+
+		// unknown marks are ignored
+		lag.ack(asList(100L, 300L));
+		assertEquals(200L, lag.getAcknowledged(200L));
+
+		lag.dispatch();
+		lag.reset();
+		assertEquals(200L, lag.getAcknowledged(200L));
+	}
+}
@@ -0,0 +1,91 @@
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.glossary.WaitStrategy;
+
+/**
+ * @author Baoyi Chen
+ */
+public class RingExecutorTest {
+
+	@Test
+	public void test() throws Exception {
+		for (WaitStrategy strategy : new WaitStrategy[]{WaitStrategy.BUSY_SPIN, WaitStrategy.YIELD, WaitStrategy.PARK}) {
+			// 4 slots, producers wait when full
+			RingExecutor executor = new RingExecutor(3, strategy, Executors.defaultThreadFactory());
+			List<Integer> list = new ArrayList<>();
+			for (int i = 0; i < 10000; i++) {
+				int n = i;
+				executor.execute(() -> list.add(n));
+			}
+			Future<Integer> future = executor.submit(list::size);
+			assertEquals(10000, future.get().intValue());
+			for (int i = 0; i < 10000; i++) assertEquals(i, list.get(i).intValue());
+
+			// multiple producers
+			AtomicLong sum = new AtomicLong();
+			List<Thread> threads = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				Thread thread = new Thread(() -> {
+					for (int j = 1; j <= 1000; j++) {
+						long n = j;
+						executor.execute(() -> sum.addAndGet(n));
+					}
+				});
+				threads.add(thread);
+				thread.start();
+			}
+			for (Thread thread : threads) thread.join();
+
+			// pending tasks are run before terminated
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+			assertTrue(executor.isTerminated());
+			assertEquals(4 * 500500L, sum.get());
+		}
+	}
+
+	@Test
+	public void testShutdown() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			RingExecutor executor = new RingExecutor(16, WaitStrategy.PARK, Executors.defaultThreadFactory());
+			AtomicLong accepted = new AtomicLong();
+			AtomicLong ran = new AtomicLong();
+			List<Thread> threads = new ArrayList<>();
+			for (int j = 0; j < 4; j++) {
+				Thread thread = new Thread(() -> {
+					try {
+						while (true) {
+							executor.execute(ran::incrementAndGet);
+							accepted.incrementAndGet();
+						}
+					} catch (RejectedExecutionException e) {
+					}
+				});
+				threads.add(thread);
+				thread.start();
+			}
+			// a failed task doesn't stop the worker
+			executor.execute(() -> {
+				throw new IllegalStateException("test");
+			});
+			executor.shutdown();
+			for (Thread thread : threads) thread.join();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+			// accepted tasks are never lost
+			assertEquals(accepted.get(), ran.get());
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.moilioncircle.redis.rdb.cli.ext.rst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosedCommand;
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.ClosingCommand;
+import com.moilioncircle.redis.rdb.cli.api.sink.cmd.CombineCommand;
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.filter.XFilter;
+import com.moilioncircle.redis.rdb.cli.net.FakeNode;
+import com.moilioncircle.redis.rdb.cli.util.Collections;
+import com.moilioncircle.redis.replicator.RedisReplicator;
+import com.moilioncircle.redis.replicator.RedisURI;
+import com.moilioncircle.redis.replicator.Replicator;
+import com.moilioncircle.redis.replicator.cmd.Command;
+import com.moilioncircle.redis.replicator.cmd.CommandParser;
+import com.moilioncircle.redis.replicator.cmd.impl.DefaultCommand;
+import com.moilioncircle.redis.replicator.cmd.impl.SelectCommand;
+import com.moilioncircle.redis.replicator.cmd.parser.ExecParser;
+import com.moilioncircle.redis.replicator.cmd.parser.FlushAllParser;
+import com.moilioncircle.redis.replicator.cmd.parser.MoveParser;
+import com.moilioncircle.redis.replicator.cmd.parser.MultiParser;
+import com.moilioncircle.redis.replicator.cmd.parser.SetParser;
+import com.moilioncircle.redis.replicator.cmd.parser.SwapDBParser;
+import com.moilioncircle.redis.replicator.event.PreCommandSyncEvent;
+import com.moilioncircle.redis.replicator.event.PreRdbSyncEvent;
+
+/**
+ * @author Baoyi Chen
+ */
+public class SingleRdbVisitorTest {
+
+	@Test
+	public void testCrossDB() throws Exception {
+		try (FakeNode a = new FakeNode(c -> null)) {
+			RedisURI uri = new RedisURI("redis://" + a.getAddress());
+			Replicator replicator = new RedisReplicator(uri);
+			SingleRdbVisitor visitor = new SingleRdbVisitor(replicator, Configure.bind(), XFilter.filter(null, null, null), uri, false, false, null);
+			visitor.onEvent(replicator, new PreRdbSyncEvent());
+			visitor.onEvent(replicator, new PreCommandSyncEvent());
+			// writes of db 0 and db 3 interleaved
+			visitor.onEvent(replicator, new SelectCommand(0));
+			visitor.onEvent(replicator, cmd(new SetParser(), "set", "a", "1"));
+			visitor.onEvent(replicator, new SelectCommand(3));
+			visitor.onEvent(replicator, cmd(new SetParser(), "set", "b", "1"));
+			visitor.onEvent(replicator, new SelectCommand(0));
+			visitor.onEvent(replicator, cmd(new SetParser(), "set", "c", "1"));
+			visitor.onEvent(replicator, new SelectCommand(3));
+			visitor.onEvent(replicator, cmd(new SetParser(), "set", "d", "1"));
+			visitor.onEvent(replicator, cmd(new MoveParser(), "move", "d", "0"));
+			// transaction of db 0 that SELECTs db 3
+			visitor.onEvent(replicator, new SelectCommand(0));
+			visitor.onEvent(replicator, cmd(new MultiParser(), "multi"));
+			visitor.onEvent(replicator, cmd(new SetParser(), "set", "e", "1"));
+			visitor.onEvent(replicator, new SelectCommand(3));
+			visitor.onEvent(replicator, cmd(new SetParser(), "set", "f", "1"));
+			visitor.onEvent(replicator, cmd(new ExecParser(), "exec"));
+			visitor.onEvent(replicator, cmd(new SwapDBParser(), "swapdb", "0", "3"));
+			visitor.onEvent(replicator, cmd(new FlushAllParser(), "flushall"));
+			visitor.onEvent(replicator, new SelectCommand(0));
+			visitor.onEvent(replicator, cmd(new SetParser(), "set", "g", "1"));
+			visitor.onEvent(replicator, new ClosingCommand());
+			visitor.onEvent(replicator, new ClosedCommand());
+
+			// one connection per db selected once when connected. only the SELECT in transaction is sent,
+			// and the connection of MULTI selects back to db 0 after EXEC.
+			assertEquals(2, a.getConnections());
+			assertEquals(Collections.ofList("select 0", "select 3", "select 3", "select 0"), a.getCommands("select"));
+
+			// the commands that touch other dbs are applied after all commands before them, and before all after them
+			List<String> commands = a.getCommands();
+			int move = commands.indexOf("move d 0");
+			for (String set : new String[]{"set a 1", "set b 1", "set c 1", "set d 1"}) {
+				assertTrue(commands.indexOf(set) < move);
+			}
+			int multi = commands.indexOf("multi");
+			assertTrue(move < multi);
+			assertEquals(Collections.ofList("multi", "set e 1", "select 3", "set f 1", "exec", "select 0"), commands.subList(multi, multi + 6));
+			int swapdb = commands.indexOf("swapdb 0 3");
+			int flushall = commands.indexOf("flushall");
+			assertTrue(multi + 5 < swapdb);
+			assertTrue(swapdb < flushall);
+			assertTrue(flushall < commands.indexOf("set g 1"));
+		}
+	}
+
+	private static CombineCommand cmd(CommandParser<? extends Command> parser, String... args) {
+		Object[] raw = new Object[args.length];
+		byte[][] rest = new byte[args.length - 1][];
+		for (int i = 0; i < args.length; i++) {
+			raw[i] = args[i].getBytes();
+			if (i > 0) rest[i - 1] = args[i].getBytes();
+		}
+		DefaultCommand command = new DefaultCommand();
+		command.setCommand(args[0].getBytes());
+		command.setArgs(rest);
+		return new CombineCommand(command, parser.parse(raw));
+	}
+}
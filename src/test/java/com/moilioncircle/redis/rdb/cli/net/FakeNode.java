@@ -0,0 +1,125 @@
+package com.moilioncircle.redis.rdb.cli.net;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import com.moilioncircle.redis.rdb.cli.net.protocol.Protocol;
+import com.moilioncircle.redis.rdb.cli.net.protocol.RedisObject;
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+
+/**
+ * a redis node that records every command it received and replies by handler. the handler returns the raw
+ * reply, or null to reply +OK.
+ *
+ * @author Baoyi Chen
+ */
+public class FakeNode implements Closeable {
+
+	private final ServerSocket server;
+	private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> commands = Collections.synchronizedList(new ArrayList<>());
+
+	public FakeNode(Function<RedisObject[], String> handler) throws IOException {
+		this.server = new ServerSocket(0);
+		Thread thread = new Thread(() -> {
+			while (!server.isClosed()) {
+				try {
+					Socket socket = server.accept();
+					sockets.add(socket);
+					Thread t = new Thread(() -> serve(socket, handler));
+					t.setDaemon(true);
+					t.start();
+				} catch (IOException e) {
+					return;
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void serve(Socket socket, Function<RedisObject[], String> handler) {
+		try {
+			Protocol protocol = new Protocol(new RedisInputStream(socket.getInputStream(), 1024), null);
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			while (true) {
+				RedisObject[] command = protocol.parse().getArray();
+				commands.add(toString(command));
+				String reply = handler.apply(command);
+				if (reply == null) {
+					reply = name(command).equals("ping") ? "+PONG\r\n" : "+OK\r\n";
+				}
+				out.write(reply.getBytes());
+				out.flush();
+			}
+		} catch (Exception e) {
+		}
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public String getAddress() {
+		return "127.0.0.1:" + getPort();
+	}
+
+	/**
+	 * @return received commands, e.g. "restore-asking key 0 payload"
+	 */
+	public int getConnections() {
+		return sockets.size();
+	}
+
+	public List<String> getCommands() {
+		synchronized (commands) {
+			return new ArrayList<>(commands);
+		}
+	}
+
+	public List<String> getCommands(String name) {
+		List<String> r = new ArrayList<>();
+		for (String command : getCommands()) {
+			if (command.equals(name) || command.startsWith(name + " ")) r.add(command);
+		}
+		return r;
+	}
+
+	public static String name(RedisObject[] command) {
+		return command[0].getString().toLowerCase();
+	}
+
+	public static String bulk(String value) {
+		return "$" + value.getBytes().length + "\r\n" + value + "\r\n";
+	}
+
+	public static String array(String... values) {
+		StringBuilder builder = new StringBuilder("*").append(values.length).append("\r\n");
+		for (String value : values) builder.append(bulk(value));
+		return builder.toString();
+	}
+
+	private static String toString(RedisObject[] command) {
+		StringBuilder builder = new StringBuilder(name(command));
+		for (int i = 1; i < command.length; i++) {
+			builder.append(' ').append(command[i].getString());
+		}
+		return builder.toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+		synchronized (sockets) {
+			for (Socket socket : sockets) socket.close();
+		}
+	}
+}
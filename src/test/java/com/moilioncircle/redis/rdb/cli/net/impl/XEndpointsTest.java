@@ -0,0 +1,163 @@
+package com.moilioncircle.redis.rdb.cli.net.impl;
+
+import static com.moilioncircle.redis.rdb.cli.conf.NodeConfParser.slot;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RESTORE_ASKING;
+import static com.moilioncircle.redis.rdb.cli.util.ByteBuffers.wrap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.io.LayeredOutputStream;
+import com.moilioncircle.redis.rdb.cli.net.FakeNode;
+import com.moilioncircle.redis.rdb.cli.util.ByteBuffers;
+import com.moilioncircle.redis.rdb.cli.util.Collections;
+import com.moilioncircle.redis.replicator.Configuration;
+
+/**
+ * @author Baoyi Chen
+ */
+public class XEndpointsTest {
+
+	@Test
+	public void testRawRedirect() throws Exception {
+		short s1 = slot("k1".getBytes());
+		short s2 = slot("k2".getBytes());
+		try (FakeNode b = new FakeNode(c -> null);
+			 FakeNode a = new FakeNode(c -> {
+				 if (!FakeNode.name(c).equals("restore-asking")) return null;
+				 String key = c[1].getString();
+				 if (key.equals("k1")) return "-MOVED " + s1 + " " + b.getAddress() + "\r\n";
+				 if (key.equals("k2")) return "-ASK " + s2 + " " + b.getAddress() + "\r\n";
+				 return null;
+			 })) {
+			List<String> lines = Collections.ofList(String.format("%040d %s@1%d myself,master - 0 0 1 connected 0-16383", 1, a.getAddress(), a.getPort()));
+			XEndpoints endpoints = new XEndpoints(lines, 8, false, Configuration.defaultSetting());
+			try {
+				endpoints.batch(false, s1, wrap(RESTORE_ASKING), wrap("k1".getBytes()), wrap("0".getBytes()), wrap("v1".getBytes()));
+				endpoints.batch(false, s2, wrap(RESTORE_ASKING), wrap("k2".getBytes()), wrap("0".getBytes()), wrap("v2".getBytes()));
+				endpoints.flushQuietly();
+
+				List<String> commands = b.getCommands();
+				assertTrue(commands.contains("restore-asking k1 0 v1"));
+				int idx = commands.indexOf("restore-asking k2 0 v2");
+				assertTrue(idx > 0);
+				assertEquals("asking", commands.get(idx - 1));
+
+				// -MOVED updates the route, -ASK doesn't
+				assertEquals(1L, endpoints.getEpoch());
+				endpoints.batch(false, s1, wrap(RESTORE_ASKING), wrap("k1".getBytes()), wrap("0".getBytes()), wrap("v3".getBytes()));
+				endpoints.batch(false, s2, wrap(RESTORE_ASKING), wrap("k2".getBytes()), wrap("0".getBytes()), wrap("v4".getBytes()));
+				endpoints.flushQuietly();
+				assertEquals(1, a.getCommands("restore-asking k1").size());
+				assertTrue(b.getCommands().contains("restore-asking k1 0 v3"));
+				assertEquals(2, a.getCommands("restore-asking k2").size());
+				assertTrue(b.getCommands().contains("restore-asking k2 0 v4"));
+			} finally {
+				XEndpoints.closeQuietly(endpoints);
+			}
+		}
+	}
+
+	@Test
+	public void testRawRetained() throws Exception {
+		short s1 = slot("k1".getBytes());
+		try (FakeNode b = new FakeNode(c -> null);
+			 FakeNode a = new FakeNode(c -> {
+				 if (!FakeNode.name(c).equals("restore-asking")) return null;
+				 return "-MOVED " + s1 + " " + b.getAddress() + "\r\n";
+			 })) {
+			List<String> lines = Collections.ofList(String.format("%040d %s@1%d myself,master - 0 0 1 connected 0-16383", 1, a.getAddress(), a.getPort()));
+			XEndpoints endpoints = new XEndpoints(lines, 8, false, Configuration.defaultSetting());
+			try {
+				// the value is larger than the buffer of the stream, it is kept in a temp file
+				AtomicBoolean closed = new AtomicBoolean();
+				LayeredOutputStream out = new LayeredOutputStream(16, 64) {
+					@Override
+					public void close() throws IOException {
+						closed.set(true);
+						super.close();
+					}
+				};
+				byte[] value = new byte[1000];
+				Arrays.fill(value, (byte) 'v');
+				out.write(value);
+				
+				// caller closes the value after batch, the endpoint retains it until -MOVED is re-sent and replied
+				ByteBuffers buffers = out.toByteBuffers();
+				endpoints.batch(false, s1, wrap(RESTORE_ASKING), wrap("k1".getBytes()), wrap("0".getBytes()), buffers);
+				buffers.close();
+				assertFalse(closed.get());
+				
+				endpoints.flushQuietly();
+				assertTrue(b.getCommands().contains("restore-asking k1 0 " + new String(value)));
+				assertTrue(closed.get());
+			} finally {
+				XEndpoints.closeQuietly(endpoints);
+			}
+		}
+	}
+
+	@Test
+	public void testPartialFailover() throws Exception {
+		try (FakeNode c = new FakeNode(r -> null)) {
+			FakeNode a = new FakeNode(r -> null);
+			// a failed, c took half of its slots, the others are not covered yet
+			AtomicReference<String> view = new AtomicReference<>();
+			FakeNode b = new FakeNode(r -> FakeNode.name(r).equals("cluster") ? FakeNode.bulk(view.get()) : null);
+			String line = String.format("%040d %s@1%d myself,master - 0 0 2 connected 8192-16383", 2, b.getAddress(), b.getPort());
+			view.set(line + "\n" + String.format("%040d %s@1%d master - 0 0 3 connected 0-4095", 3, c.getAddress(), c.getPort()));
+			try {
+				List<String> lines = Collections.ofList(String.format("%040d %s@1%d master - 0 0 1 connected 0-8191", 1, a.getAddress(), a.getPort()), line);
+				XEndpoints endpoints = new XEndpoints(lines, 8, false, Configuration.defaultSetting());
+				try {
+					a.close();
+					endpoints.update((short) 0);
+					assertEquals(1L, endpoints.getEpoch());
+					endpoints.batch(true, (short) 0, "set".getBytes(), "k".getBytes(), "v".getBytes());
+					endpoints.flushQuietly();
+					assertTrue(c.getCommands().contains("set k v"));
+				} finally {
+					XEndpoints.closeQuietly(endpoints);
+				}
+			} finally {
+				a.close();
+				b.close();
+			}
+		}
+	}
+
+	@Test
+	public void testSharedRoutes() throws Exception {
+		short s1 = slot("k1".getBytes());
+		try (FakeNode b = new FakeNode(c -> null);
+			 FakeNode a = new FakeNode(c -> FakeNode.name(c).equals("set") ? "-MOVED " + s1 + " " + b.getAddress() + "\r\n" : null)) {
+			List<String> lines = Collections.ofList(String.format("%040d %s@1%d myself,master - 0 0 1 connected 0-16383", 1, a.getAddress(), a.getPort()));
+			Routes routes = new Routes(lines);
+			XEndpoints e1 = new XEndpoints(routes, 8, false, Configuration.defaultSetting());
+			XEndpoints e2 = new XEndpoints(routes, 8, false, Configuration.defaultSetting());
+			try {
+				e1.batch(false, s1, "set".getBytes(), "k1".getBytes(), "v1".getBytes());
+				e1.flushQuietly();
+				assertEquals(1L, routes.get().getEpoch());
+
+				// -MOVED seen by e1 routes e2 to the new owner without another redirection
+				e2.batch(false, s1, "set".getBytes(), "k1".getBytes(), "v2".getBytes());
+				e2.flushQuietly();
+				assertEquals(1, a.getCommands("set").size());
+				assertTrue(b.getCommands().contains("set k1 v2"));
+				assertEquals(1L, e2.getEpoch());
+			} finally {
+				XEndpoints.closeQuietly(e1);
+				XEndpoints.closeQuietly(e2);
+			}
+		}
+	}
+}
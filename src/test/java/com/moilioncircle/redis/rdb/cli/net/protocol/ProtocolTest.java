@@ -0,0 +1,48 @@
+package com.moilioncircle.redis.rdb.cli.net.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.replicator.io.RedisInputStream;
+
+/**
+ * @author Baoyi Chen
+ */
+public class ProtocolTest {
+	
+	private static final String REPLIES = "+OK\r\n:-12\r\n$5\r\nvalue\r\n$-1\r\n*2\r\n:1\r\n-ERR in array\r\n-ERR busy key\r\n*-1\r\n";
+	
+	@Test
+	public void testParse() throws IOException {
+		Protocol protocol = new Protocol(new RedisInputStream(new ByteArrayInputStream(REPLIES.getBytes()), 4), null);
+		assertEquals("OK", protocol.parse().getString());
+		assertEquals(-12L, protocol.parse().getNumber().longValue());
+		assertEquals("value", protocol.parse().getString());
+		assertTrue(protocol.parse().type.isNull());
+		RedisObject[] ary = protocol.parse().getArray();
+		assertEquals(1L, ary[0].getNumber().longValue());
+		assertEquals("ERR in array", ary[1].getString());
+		assertEquals("ERR busy key", protocol.parse().getString());
+		assertTrue(protocol.parse().type.isNull());
+	}
+	
+	@Test
+	public void testDiscard() throws IOException {
+		Protocol protocol = new Protocol(new RedisInputStream(new ByteArrayInputStream(REPLIES.getBytes()), 4), null);
+		assertNull(protocol.discard());
+		assertNull(protocol.discard());
+		assertNull(protocol.discard());
+		assertNull(protocol.discard());
+		assertEquals("ERR in array", protocol.discard().getString());
+		RedisObject r = protocol.discard();
+		assertTrue(r.type.isError());
+		assertEquals("ERR busy key", r.getString());
+		assertNull(protocol.discard());
+	}
+}
@@ -0,0 +1,38 @@
+package com.moilioncircle.redis.rdb.cli.net.protocol;
+
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.REPLACE;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.RESTORE;
+import static com.moilioncircle.redis.rdb.cli.ext.datatype.CommandConstants.ZERO;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.util.ByteBuffers;
+
+/**
+ * @author Baoyi Chen
+ */
+public class ProtocolsTest {
+	
+	@Test
+	public void test() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Protocols.emit(out, RESTORE, "key".getBytes(), ZERO, "value".getBytes(), REPLACE);
+		assertEquals("*5\r\n$7\r\nrestore\r\n$3\r\nkey\r\n$1\r\n0\r\n$5\r\nvalue\r\n$7\r\nreplace\r\n", out.toString());
+		
+		out.reset();
+		byte[] large = new byte[1024];
+		Arrays.fill(large, (byte) 'a');
+		Protocols.emit(out, "set".getBytes(), "key".getBytes(), large);
+		assertEquals("*3\r\n$3\r\nset\r\n$3\r\nkey\r\n$1024\r\n" + new String(large) + "\r\n", out.toString());
+		
+		out.reset();
+		ByteBuffer buf = ByteBuffer.wrap("xvaluex".getBytes(), 1, 5);
+		Protocols.emit(out, ByteBuffers.wrap(RESTORE), ByteBuffers.wrap("key".getBytes()), ByteBuffers.wrap(ZERO), ByteBuffers.wrap(buf.slice()));
+		assertEquals("*4\r\n$7\r\nrestore\r\n$3\r\nkey\r\n$1\r\n0\r\n$5\r\nvalue\r\n", out.toString());
+	}
+}
@@ -0,0 +1,101 @@
+package com.moilioncircle.redis.rdb.cli.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.moilioncircle.redis.rdb.cli.conf.Configure;
+import com.moilioncircle.redis.rdb.cli.net.FakeNode;
+
+/**
+ * @author Baoyi Chen
+ */
+public class XUrisTest {
+
+	@Test
+	public void testReplica() throws Exception {
+		Configure configure = Configure.bind();
+		try (FakeNode r1 = new FakeNode(c -> replica("up"));
+			 FakeNode r2 = new FakeNode(c -> replica("down"));
+			 FakeNode r3 = new FakeNode(c -> replica("up"));
+			 FakeNode master = new FakeNode(c -> FakeNode.bulk("# Replication\r\nrole:master\r\nconnected_slaves:3\r\n"
+					 + "slave0:ip=127.0.0.1,port=" + r1.getPort() + ",state=online,offset=100,lag=3\r\n"
+					 // least lag, but its link is down
+					 + "slave1:ip=127.0.0.1,port=" + r2.getPort() + ",state=online,offset=90,lag=0\r\n"
+					 + "slave2:ip=127.0.0.1,port=" + r3.getPort() + ",state=wait_bgsave,offset=0,lag=0\r\n"))) {
+			String source = "redis://" + master.getAddress();
+			assertEquals(source, XUris.replica(source, configure));
+			assertTrue(master.getCommands("info").isEmpty());
+
+			assertEquals("redis://" + r1.getAddress() + "?prefer=replica", XUris.replica(source + "?prefer=replica", configure));
+			assertEquals(1, r2.getCommands("info").size());
+			assertTrue(r3.getCommands().isEmpty());
+		}
+
+		// no healthy replica
+		try (FakeNode r1 = new FakeNode(c -> replica("down"));
+			 FakeNode master = new FakeNode(c -> FakeNode.bulk("# Replication\r\nrole:master\r\n"
+					 + "slave0:ip=127.0.0.1,port=" + r1.getPort() + ",state=online,offset=100,lag=0\r\n"))) {
+			String source = "redis://" + master.getAddress() + "?prefer=replica";
+			assertEquals(source, XUris.replica(source, configure));
+		}
+	}
+
+	@Test
+	public void testCluster() throws Exception {
+		Configure configure = Configure.bind();
+		AtomicInteger port = new AtomicInteger();
+		// a serves 0-8191 and has the replica ra, b serves 8192-16383 and has no replica
+		try (FakeNode ra = new FakeNode(c -> replica("up"));
+			 FakeNode b = new FakeNode(c -> FakeNode.bulk("# Replication\r\nrole:master\r\n"));
+			 FakeNode a = new FakeNode(c -> {
+				 if (FakeNode.name(c).equals("cluster")) {
+					 return FakeNode.bulk(String.format("%040d 127.0.0.1:%d@1%d myself,master - 0 0 1 connected 0-8191\n", 1, port.get(), port.get())
+							 + String.format("%040d %s@1%d master - 0 0 2 connected 8192-16383\n", 2, b.getAddress(), b.getPort())
+							 + String.format("%040d %s@1%d slave %040d 0 0 1 connected\n", 3, ra.getAddress(), ra.getPort(), 1));
+				 }
+				 return FakeNode.bulk("# Replication\r\nrole:master\r\nslave0:ip=127.0.0.1,port=" + ra.getPort() + ",state=online,offset=10,lag=0\r\n");
+			 })) {
+			port.set(a.getPort());
+			List<String> masters = XUris.masters("redis://" + a.getAddress() + "?prefer=replica", configure);
+			assertEquals(2, masters.size());
+			assertTrue(masters.contains("redis://" + ra.getAddress() + "?prefer=replica"));
+			assertTrue(masters.contains("redis://" + b.getAddress() + "?prefer=replica"));
+		}
+	}
+
+	@Test
+	public void testSentinel() throws Exception {
+		Configure configure = Configure.bind();
+		try (FakeNode r1 = new FakeNode(c -> replica("up"));
+			 FakeNode r2 = new FakeNode(c -> replica("up"));
+			 FakeNode r3 = new FakeNode(c -> replica("up"));
+			 FakeNode sentinel = new FakeNode(c -> {
+				 if (!FakeNode.name(c).equals("sentinel")) return null;
+				 return "*3\r\n"
+						 + sentinelReplica(r1, "slave", "ok", 10)
+						 + sentinelReplica(r2, "slave,s_down", "ok", 30)
+						 + sentinelReplica(r3, "slave", "ok", 20);
+			 })) {
+			String source = "redis-sentinel://" + sentinel.getAddress() + "?master=mymaster&prefer=replica";
+			// largest offset of the replicas that are not down
+			String replica = XUris.replica(source, configure);
+			assertTrue(replica.startsWith("redis://" + r3.getAddress() + "?"));
+			assertTrue(r2.getCommands().isEmpty());
+			assertEquals(1, sentinel.getCommands("sentinel replicas mymaster").size());
+		}
+	}
+
+	private static String replica(String status) {
+		return FakeNode.bulk("# Replication\r\nrole:slave\r\nmaster_link_status:" + status + "\r\n");
+	}
+
+	private static String sentinelReplica(FakeNode node, String flags, String status, long offset) {
+		return FakeNode.array("name", node.getAddress(), "ip", "127.0.0.1", "port", String.valueOf(node.getPort()),
+				"flags", flags, "master-link-status", status, "slave-repl-offset", String.valueOf(offset));
+	}
+}